@@ -41,7 +41,7 @@ import org.micromanager.acquisition.AcquisitionEndedEvent;
 import org.micromanager.acquisition.SequenceSettings;
 import org.micromanager.alerts.UpdatableAlert;
 import org.micromanager.data.Coords;
-import org.micromanager.data.DataProviderHasNewImageEvent;
+import org.micromanager.data.DataProviderHasNewImagesEvent;
 import org.micromanager.data.Datastore;
 import org.micromanager.data.DatastoreFrozenException;
 import org.micromanager.data.DatastoreRewriteException;
@@ -53,7 +53,7 @@ import org.micromanager.data.internal.CommentsHelper;
 import org.micromanager.data.internal.DefaultDatastore;
 import org.micromanager.data.internal.DefaultSummaryMetadata;
 import org.micromanager.data.internal.PropertyKey;
-import org.micromanager.data.internal.StorageRAM;
+import org.micromanager.data.internal.StorageOffHeap;
 import org.micromanager.data.internal.StorageSinglePlaneTiffSeries;
 import org.micromanager.data.internal.multipagetiff.StorageMultipageTiff;
 import org.micromanager.data.internal.ndtiff.NDTiffAdapter;
@@ -148,7 +148,7 @@ public final class MMAcquisition extends DataViewerListener {
             return;
          }
       } else {
-         store_.setStorage(new StorageRAM(store_));
+         store_.setStorage(StorageOffHeap.createRAMStorage(store_));
       }
 
       // Transfer any summary comment from the acquisition engine.
@@ -447,8 +447,9 @@ public final class MMAcquisition extends DataViewerListener {
    }
 
    @Subscribe
-   public void onNewImage(DataProviderHasNewImageEvent event) {
-      imagesReceived_++;
+   public void onNewImages(DataProviderHasNewImagesEvent event) {
+      // Only counts images; no need to be notified of each one
+      imagesReceived_ += event.getCoords().size();
       setProgressText();
    }
 
@@ -492,7 +493,8 @@ public final class MMAcquisition extends DataViewerListener {
       if (null != mode) {
          switch (mode) {
             case SINGLEPLANE_TIFF_SERIES:
-               return new StorageSinglePlaneTiffSeries(store, path, isNew);
+               return new StorageSinglePlaneTiffSeries(store, path, isNew,
+                     StorageMultipageTiff.getShouldDeltaEncodeScopeData());
             case MULTIPAGE_TIFF:
                return new StorageMultipageTiff(studio.app().getMainWindow(), store, path, isNew);
             case ND_TIFF:
@@ -71,6 +71,7 @@ import org.micromanager.data.internal.PropertyKey;
 import org.micromanager.display.DisplayWindow;
 import org.micromanager.events.NewPositionListEvent;
 import org.micromanager.events.internal.InternalShutdownCommencingEvent;
+import org.micromanager.internal.DeviceStateCache;
 import org.micromanager.internal.MMStudio;
 import org.micromanager.internal.propertymap.NonPropertyMapJSONFormats;
 import org.micromanager.internal.utils.AcqOrderMode;
@@ -137,6 +138,14 @@ public class AcqEngJAdapter implements AcquisitionEngine, MMAcquistionControlCal
       sequenceSettings_ = (new SequenceSettings.Builder()).build();
    }
 
+   /**
+    * Stage positions and config group states, without going to the hardware
+    * when callbacks have kept them current.
+    */
+   private DeviceStateCache deviceState() {
+      return ((MMStudio) studio_).deviceState();
+   }
+
    // this is where the work happens
    private Datastore runAcquisition(SequenceSettings sequenceSettings) {
       final SequenceSettings.Builder sb = sequenceSettings.copyBuilder();
@@ -236,7 +245,17 @@ public class AcqEngJAdapter implements AcquisitionEngine, MMAcquistionControlCal
          studio_.logs().logMessage("Running acquisition with AcqEngJ");
          studio_.logs().logMessage(acquisitionSettings.toString());
 
-         AcqEngJMDADataSink sink = new AcqEngJMDADataSink(studio_.events(), this);
+         // Stage origins, continuous focus or manual changes since the last
+         // acquisition may not have caused callbacks, so start from the hardware
+         deviceState().invalidate();
+
+         AcqEngJMDADataSink sink = new AcqEngJMDADataSink(studio_, this);
+         SequencingPlan sequencingPlan = SequencingPlan.create(core_, acquisitionSettings,
+               getUsedChannels(acquisitionSettings),
+               getNumPositions(acquisitionSettings, posList_));
+         studio_.logs().logMessage(sequencingPlan.toString());
+         sink.setSequencingPlan(sequencingPlan);
+         sink.setDeviceState(deviceState());
          currentAcquisition_ = new Acquisition(sink);
          currentAcquisition_.setDebugMode(core_.debugLogEnabled());
 
@@ -310,6 +329,7 @@ public class AcqEngJAdapter implements AcquisitionEngine, MMAcquistionControlCal
          if (((sequenceSettings.useChannels() && sequenceSettings.keepShutterOpenChannels())
                || (sequenceSettings.useSlices() && sequenceSettings.keepShutterOpenSlices()))
                && core_.getAutoShutter()) {
+            shutterHeldOpen_ = false;
             currentAcquisition_.addHook(shutterHookBefore(acquisitionSettings),
                   AcquisitionAPI.AFTER_HARDWARE_HOOK);
             currentAcquisition_.addHook(shutterHookAfter(acquisitionSettings),
@@ -318,7 +338,7 @@ public class AcqEngJAdapter implements AcquisitionEngine, MMAcquistionControlCal
 
          if (sequenceSettings.useChannels()) {
             String channelGroup = core_.getChannelGroup();
-            String channel = core_.getCurrentConfig(channelGroup);
+            String channel = deviceState().getCurrentConfig(channelGroup);
             currentAcquisition_.addHook(restoreChannelHook(channelGroup, channel),
                   AcquisitionAPI.AFTER_EXPOSURE_HOOK);
          }
@@ -328,12 +348,11 @@ public class AcqEngJAdapter implements AcquisitionEngine, MMAcquistionControlCal
             MultiStagePosition msp = new MultiStagePosition();
             String xyStageDevice = core_.getXYStageDevice();
             if (xyStageDevice != null && !xyStageDevice.isEmpty()) {
-               msp.add(StagePosition.create2D(xyStageDevice, core_.getXPosition(xyStageDevice),
-                       core_.getYPosition(xyStageDevice)));
+               msp.add(currentXYPosition(xyStageDevice));
             }
             String zDevice = core_.getFocusDevice();
             if (zDevice != null && !zDevice.isEmpty()) {
-               msp.add(StagePosition.create1D(zDevice, core_.getPosition(zDevice)));
+               msp.add(StagePosition.create1D(zDevice, deviceState().getPosition(zDevice)));
             }
             // assume that all positions in the list use the same stages, we eventually could go
             // through all of them to pick up unique stages, but lets keep it simpler for now
@@ -343,13 +362,13 @@ public class AcqEngJAdapter implements AcquisitionEngine, MMAcquistionControlCal
                   StagePosition sp = msp0.get(i);
                   String stageDevice = sp.getStageDeviceLabel();
                   if (sp.is1DStagePosition() && !stageDevice.equals(zDevice)) {
-                     msp.add(StagePosition.create1D(stageDevice, core_.getPosition(stageDevice)));
+                     msp.add(StagePosition.create1D(stageDevice,
+                           deviceState().getPosition(stageDevice)));
                   }
                   // Multiple XY stages are not supported yet by the acq engine.  Add them here to
                   // avoid forgetting about it in the future.
                   if (sp.is2DStagePosition() && !stageDevice.equals(xyStageDevice)) {
-                     msp.add(StagePosition.create2D(stageDevice, core_.getXPosition(stageDevice),
-                             core_.getYPosition(stageDevice)));
+                     msp.add(currentXYPosition(stageDevice));
                   }
                }
             }
@@ -466,24 +485,32 @@ public class AcqEngJAdapter implements AcquisitionEngine, MMAcquistionControlCal
     * AcqEnJ's metadata to include this here
     */
    public static void addMMImageMetadata(JSONObject imageMD) {
+      addMMImageMetadata(imageMD, AcqEngMetadata.getAxes(imageMD));
+   }
+
+   /**
+    * Same as {@link #addMMImageMetadata(JSONObject)}, using axes that were
+    * already extracted from the metadata with AcqEngMetadata.getAxes(), so
+    * that they do not have to be parsed again for every axis.
+    *
+    * @param imageMD Image metadata, will be modified
+    * @param axes    Axes of the image, as returned by AcqEngMetadata.getAxes(imageMD)
+    */
+   public static void addMMImageMetadata(JSONObject imageMD, HashMap<String, Object> axes) {
       try {
-         if (AcqEngMetadata.hasAxis(imageMD, AcqEngMetadata.TIME_AXIS)) {
-            imageMD.put(PropertyKey.FRAME_INDEX.key(),
-                  AcqEngMetadata.getAxisPosition(imageMD, AcqEngMetadata.TIME_AXIS));
-         }
-         if (AcqEngMetadata.hasAxis(imageMD, AcqEngMetadata.Z_AXIS)) {
-            imageMD.put(PropertyKey.SLICE_INDEX.key(),
-                  AcqEngMetadata.getAxisPosition(imageMD, AcqEngMetadata.Z_AXIS));
-         }
-         if (AcqEngMetadata.hasAxis(imageMD, AcqEngMetadata.CHANNEL_AXIS)) {
-            imageMD.put(PropertyKey.CHANNEL_INDEX.key(),
-                  AcqEngMetadata.getAxisPosition(imageMD, AcqEngMetadata.CHANNEL_AXIS));
-            String channelName = "" + AcqEngMetadata.getAxes(imageMD)
-                  .get(AcqEngMetadata.CHANNEL_AXIS);
+         if (axes.containsKey(AcqEngMetadata.TIME_AXIS)) {
+            imageMD.put(PropertyKey.FRAME_INDEX.key(), axes.get(AcqEngMetadata.TIME_AXIS));
+         }
+         if (axes.containsKey(AcqEngMetadata.Z_AXIS)) {
+            imageMD.put(PropertyKey.SLICE_INDEX.key(), axes.get(AcqEngMetadata.Z_AXIS));
+         }
+         if (axes.containsKey(AcqEngMetadata.CHANNEL_AXIS)) {
+            imageMD.put(PropertyKey.CHANNEL_INDEX.key(), axes.get(AcqEngMetadata.CHANNEL_AXIS));
+            String channelName = "" + axes.get(AcqEngMetadata.CHANNEL_AXIS);
             imageMD.put(PropertyKey.CHANNEL_NAME.key(), channelName);
          }
-         if (AcqEngMetadata.hasAxis(imageMD, "position")) {
-            int index = (Integer) AcqEngMetadata.getAxisPosition(imageMD, "position");
+         if (axes.containsKey("position")) {
+            int index = (Integer) axes.get("position");
             imageMD.put(PropertyKey.POSITION_INDEX.key(), index);
             if (imageMD.has(AcqEngMetadata.TAGS)) {
                JSONObject tags = imageMD.getJSONObject(AcqEngMetadata.TAGS);
@@ -572,19 +599,13 @@ public class AcqEngJAdapter implements AcquisitionEngine, MMAcquistionControlCal
     */
    private Iterator<AcquisitionEvent> createAcqEventIterator(SequenceSettings acquisitionSettings)
          throws Exception {
-      // Select channels that we are actually using
-      List<ChannelSpec> chSpecs = new ArrayList<>();
-      for (ChannelSpec chSpec : acquisitionSettings.channels()) {
-         if (chSpec.useChannel()) {
-            chSpecs.add(chSpec);
-         }
-      }
+      List<ChannelSpec> chSpecs = getUsedChannels(acquisitionSettings);
 
       Function<AcquisitionEvent, Iterator<AcquisitionEvent>> zStack = null;
       if (acquisitionSettings.useSlices()) {
          double origin = acquisitionSettings.slices().get(0);
          if (acquisitionSettings.relativeZSlice()) {
-            origin = studio_.core().getPosition() + acquisitionSettings.slices().get(0);
+            origin = deviceState().getPosition() + acquisitionSettings.slices().get(0);
          }
          zStack = MDAAcqEventModules.zStack(0,
                acquisitionSettings.slices().size() - 1,
@@ -599,7 +620,7 @@ public class AcqEngJAdapter implements AcquisitionEngine, MMAcquistionControlCal
             zStack = MDAAcqEventModules.zStack(0,
                   0,
                   0.1,
-                  studio_.core().getPosition(),
+                  deviceState().getPosition(),
                   chSpecs,
                   null);
          }
@@ -609,7 +630,8 @@ public class AcqEngJAdapter implements AcquisitionEngine, MMAcquistionControlCal
       if (acquisitionSettings.useChannels()) {
          if (chSpecs.size() > 0) {
             Integer middleSliceIndex = (acquisitionSettings.slices().size() - 1) / 2;
-            channels = MDAAcqEventModules.channels(chSpecs, middleSliceIndex, null);
+            channels = MDAAcqEventModules.channels(chSpecs, middleSliceIndex, null,
+                  deviceState());
          }
       }
 
@@ -695,6 +717,27 @@ public class AcqEngJAdapter implements AcquisitionEngine, MMAcquistionControlCal
 
    }
 
+   /**
+    * Returns the position of an XY stage, with at most one call to the hardware.
+    */
+   private StagePosition currentXYPosition(String xyStage) throws Exception {
+      double[] xy = deviceState().getXYPosition(xyStage);
+      return StagePosition.create2D(xyStage, xy[0], xy[1]);
+   }
+
+   /**
+    * Returns the channels that we are actually using.
+    */
+   private static List<ChannelSpec> getUsedChannels(SequenceSettings acquisitionSettings) {
+      List<ChannelSpec> chSpecs = new ArrayList<>();
+      for (ChannelSpec chSpec : acquisitionSettings.channels()) {
+         if (chSpec.useChannel()) {
+            chSpecs.add(chSpec);
+         }
+      }
+      return chSpecs;
+   }
+
    protected Function<AcquisitionEvent, AcquisitionEvent> acqEventMonitor(
            SequenceSettings acquisitionSettings) {
       return null;
@@ -840,6 +883,8 @@ public class AcqEngJAdapter implements AcquisitionEngine, MMAcquistionControlCal
                }
                try {
                   studio_.getAutofocusManager().getAutofocusMethod().fullFocus();
+                  // Autofocus may move the focus without a position callback
+                  deviceState().invalidate();
                   String posName = event.getTags().get(AcqEngMetadata.POS_NAME);
                   if (posName != null) {
                      MultiStagePosition msp = new MultiStagePosition();
@@ -945,7 +990,7 @@ public class AcqEngJAdapter implements AcquisitionEngine, MMAcquistionControlCal
                            return event;
                         }
                      }
-                     zStagePositionBefore_ = core_.getPosition();
+                     zStagePositionBefore_ = deviceState().getPosition();
                   }
                } else if (when == AcquisitionAPI.AFTER_EXPOSURE_HOOK) {
                   if (event.getZIndex() != null
@@ -978,6 +1023,26 @@ public class AcqEngJAdapter implements AcquisitionEngine, MMAcquistionControlCal
       };
    }
 
+   // Whether the shutter hooks currently hold the shutter open; the hooks
+   // only go to the hardware when this changes
+   private boolean shutterHeldOpen_ = false;
+
+   private void holdShutterOpen() throws Exception {
+      if (!shutterHeldOpen_) {
+         core_.setAutoShutter(false);
+         core_.setShutterOpen(true);
+         shutterHeldOpen_ = true;
+      }
+   }
+
+   private void releaseShutter() throws Exception {
+      if (shutterHeldOpen_) {
+         core_.setShutterOpen(false);
+         core_.setAutoShutter(true);
+         shutterHeldOpen_ = false;
+      }
+   }
+
    /**
     * Hook function to keep shutter open between channels of slices if desired.
     *
@@ -993,15 +1058,13 @@ public class AcqEngJAdapter implements AcquisitionEngine, MMAcquistionControlCal
                try {
                   if (!event.isZSequenced() && sequenceSettings.keepShutterOpenSlices()) {
                      if (event.getZIndex() == 0) {
-                        core_.setAutoShutter(false);
-                        core_.setShutterOpen(true);
+                        holdShutterOpen();
                      }
                   }
                   if (!event.isConfigGroupSequenced()
                         && sequenceSettings.keepShutterOpenChannels()) {
                      if ((Integer) event.getAxisPosition(AcqEngMetadata.CHANNEL_AXIS) == 0) {
-                        core_.setAutoShutter(false);
-                        core_.setShutterOpen(true);
+                        holdShutterOpen();
                      }
                   }
                } catch (Exception ex) {
@@ -1036,22 +1099,19 @@ public class AcqEngJAdapter implements AcquisitionEngine, MMAcquistionControlCal
                         if (event.getZIndex() == sequenceSettings.slices().size() - 1
                               && (Integer) event.getAxisPosition(AcqEngMetadata.CHANNEL_AXIS)
                                  == sequenceSettings.channels().size() - 1) {
-                           core_.setShutterOpen(false);
-                           core_.setAutoShutter(true);
+                           releaseShutter();
                         }
                      } else {
                      if (!event.isZSequenced() && sequenceSettings.keepShutterOpenSlices()) {
                         if (event.getZIndex() == sequenceSettings.slices().size() - 1) {
-                           core_.setShutterOpen(false);
-                           core_.setAutoShutter(true);
+                           releaseShutter();
                         }
                      }
                      if (!event.isConfigGroupSequenced()
                            && sequenceSettings.keepShutterOpenChannels()) {
                         if ((Integer) event.getAxisPosition(AcqEngMetadata.CHANNEL_AXIS)
                               == sequenceSettings.channels().size() - 1) {
-                           core_.setShutterOpen(false);
-                           core_.setAutoShutter(true);
+                           releaseShutter();
                         }
                      }
                   }
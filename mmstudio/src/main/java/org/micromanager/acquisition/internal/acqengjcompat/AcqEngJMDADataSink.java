@@ -2,11 +2,9 @@ package org.micromanager.acquisition.internal.acqengjcompat;
 
 import clojure.lang.Obj;
 import java.io.IOException;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
-import java.util.function.Predicate;
-import java.util.stream.Collectors;
+import java.util.Map;
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
 import mmcorej.TaggedImage;
@@ -15,13 +13,22 @@ import org.micromanager.acqj.api.AcqEngJDataSink;
 import org.micromanager.acqj.internal.Engine;
 import org.micromanager.acqj.main.AcqEngMetadata;
 import org.micromanager.acqj.main.Acquisition;
+import org.micromanager.Studio;
 import org.micromanager.acquisition.internal.DefaultAcquisitionEndedEvent;
+import org.micromanager.alerts.UpdatableAlert;
+import org.micromanager.data.Coordinates;
 import org.micromanager.data.Coords;
 import org.micromanager.data.Datastore;
 import org.micromanager.data.Pipeline;
 import org.micromanager.data.PipelineErrorException;
+import org.micromanager.data.Storage;
+import org.micromanager.data.SummaryMetadata;
+import org.micromanager.data.internal.DefaultDatastore;
 import org.micromanager.data.internal.DefaultImage;
+import org.micromanager.data.internal.multipagetiff.StorageMultipageTiff;
+import org.micromanager.data.internal.pipeline.DefaultPipeline;
 import org.micromanager.events.EventManager;
+import org.micromanager.internal.DeviceStateCache;
 import org.micromanager.internal.MMStudio;
 import org.micromanager.internal.utils.ReportingUtils;
 
@@ -36,15 +43,50 @@ import org.micromanager.internal.utils.ReportingUtils;
  */
 public final class AcqEngJMDADataSink implements AcqEngJDataSink {
 
+   // Minimum time between updates of the backpressure alert
+   private static final long ALERT_INTERVAL_NS = 500000000L;
+   // Writing queue occupancy from which the user is told that saving is
+   // falling behind
+   private static final double WRITING_BACKLOG_ALERT = 0.75;
+
    private Datastore store_;
    private Pipeline pipeline_;
+   private final Studio studio_;
    private final EventManager studioEvents_;
    private boolean somethingAcquired_ = false;
    private boolean finished_ = false;
    private AcqEngJAdapter engine_;
+   // Channel index for each channel name, for the summary metadata it was
+   // built from
+   private SummaryMetadata channelIndicesSource_;
+   private Map<String, Integer> channelIndices_;
+   // Time spent converting TaggedImages, for the log
+   private long ingestNs_ = 0;
+   private int ingestCount_ = 0;
+   // Images for which the pipeline was full, and the time spent waiting;
+   // shown in an alert while the acquisition runs
+   private int backpressureCount_ = 0;
+   private long backpressureNs_ = 0;
+   private UpdatableAlert backpressureAlert_;
+   private long lastAlertNs_ = 0;
+   // Fullest writing queue of the storage seen so far, as a fraction of its
+   // capacity, and when it was last looked at
+   private double writingBacklog_ = 0.0;
+   private long lastWritingCheckNs_ = 0;
+   // Predicted sequencing and frame rate, compared with the achieved frame
+   // rate in the log
+   private SequencingPlan sequencingPlan_;
+   private long firstImageNs_ = 0;
+   private long lastImageNs_ = 0;
+   // Device state cache, and its counts when the acquisition started, so
+   // that the log shows the hits and core calls of this acquisition
+   private DeviceStateCache deviceState_;
+   private long deviceStateHits_ = 0;
+   private long deviceStateCoreCalls_ = 0;
 
-   public AcqEngJMDADataSink(EventManager studioEvents, AcqEngJAdapter engine) {
-      studioEvents_ = studioEvents;
+   public AcqEngJMDADataSink(Studio studio, AcqEngJAdapter engine) {
+      studio_ = studio;
+      studioEvents_ = studio.events();
       engine_ = engine;
    }
 
@@ -56,6 +98,16 @@ public final class AcqEngJMDADataSink implements AcqEngJDataSink {
       store_ = store;
    }
 
+   void setSequencingPlan(SequencingPlan plan) {
+      sequencingPlan_ = plan;
+   }
+
+   void setDeviceState(DeviceStateCache deviceState) {
+      deviceState_ = deviceState;
+      deviceStateHits_ = deviceState.getHitCount();
+      deviceStateCoreCalls_ = deviceState.getCoreCallCount();
+   }
+
    // Never called from EDT
    private void handleOutOfMemory(final OutOfMemoryError e) {
       ReportingUtils.logError(e);
@@ -78,6 +130,24 @@ public final class AcqEngJMDADataSink implements AcqEngJDataSink {
 
    @Override
    public void finish() {
+      if (ingestCount_ > 0) {
+         ReportingUtils.logMessage("Sink ingested " + ingestCount_ + " images, "
+               + (ingestNs_ / 1000 / ingestCount_) + " \u00b5s per image");
+         if (sequencingPlan_ != null) {
+            ReportingUtils.logMessage(sequencingPlan_.report(ingestCount_,
+                  (lastImageNs_ - firstImageNs_) / 1000000));
+         }
+      }
+      if (backpressureCount_ > 0 || writingBacklog_ >= WRITING_BACKLOG_ALERT) {
+         updateBackpressureAlert(true);
+         ReportingUtils.logMessage(backpressureText());
+      }
+      if (deviceState_ != null) {
+         ReportingUtils.logMessage(String.format(
+               "Device state cache: %d hits, %d core calls",
+               deviceState_.getHitCount() - deviceStateHits_,
+               deviceState_.getCoreCallCount() - deviceStateCoreCalls_));
+      }
       pipeline_.halt();
       studioEvents_.post(
             new DefaultAcquisitionEndedEvent(store_, Engine.getInstance()));
@@ -96,50 +166,24 @@ public final class AcqEngJMDADataSink implements AcqEngJDataSink {
          return null;
       }
       try {
-         AcqEngJAdapter.addMMImageMetadata(tagged.tags);
-         DefaultImage image = new DefaultImage(tagged);
-
-         HashMap<String, Object> axisNames = AcqEngMetadata.getAxes(tagged.tags);
-         // Add any non-standard (ptzc) coords
-         List<String> nonStandardAxisNames = axisNames.keySet()
-                  .stream().filter(new Predicate<String>() {
-                     @Override
-                     public boolean test(String s) {
-                        String[] standardAxes = new String[]{AcqEngMetadata.TIME_AXIS,
-                              AcqEngMetadata.Z_AXIS, AcqEngMetadata.CHANNEL_AXIS, "position"};
-                        return !Arrays.asList(standardAxes).contains(s);
-                     }
-                  }).collect(Collectors.toList());
-
-         Coords.CoordsBuilder cb = image.getCoords().copyBuilder();
-         for (String axisName : nonStandardAxisNames) {
-            if (axisName.equals("camera")) {
-               String chName;
-               if (AcqEngMetadata.getAxes(tagged.tags).get(AcqEngMetadata.CHANNEL_AXIS) != null) {
-                  int channelIndex = (Integer) AcqEngMetadata.getAxes(tagged.tags).get(
-                           AcqEngMetadata.CHANNEL_AXIS);
-                  chName = engine_.getSequenceSettings().channels().get(channelIndex).config()
-                           + "-"
-                           + AcqEngMetadata.getAxes(tagged.tags).get("camera");
-               } else {
-                  chName = (String) AcqEngMetadata.getAxes(tagged.tags).get("camera");
-               }
-               List<String> channelNameList = store_.getSummaryMetadata().getChannelNameList();
-               for (int i = 0; i < channelNameList.size(); i++) {
-                  if (channelNameList.get(i).equals(chName)) {
-                     cb.index(AcqEngMetadata.CHANNEL_AXIS, i);
-                  }
-               }
-            } else {
-               if (AcqEngMetadata.getAxes(tagged.tags).get(axisName) instanceof Integer) {
-                  cb.index(axisName, (Integer) AcqEngMetadata.getAxes(tagged.tags).get(axisName));
-               }
-            }
+         long startNs = System.nanoTime();
+         if (ingestCount_ == 0) {
+            firstImageNs_ = startNs;
          }
-         image = (DefaultImage) image.copyAtCoords(cb.build());
+         lastImageNs_ = startNs;
+         // Parse the axes once; they are needed both for the Micro-Manager
+         // metadata and for the coords of the image
+         HashMap<String, Object> axes = AcqEngMetadata.getAxes(tagged.tags);
+         AcqEngJAdapter.addMMImageMetadata(tagged.tags, axes);
+         // Build the image at its final coords directly, wrapping the pixels
+         // of the TaggedImage, so that no intermediate image is needed
+         DefaultImage image = new DefaultImage(tagged, coordsFromAxes(axes), null);
+         ingestNs_ += System.nanoTime() - startNs;
+         ingestCount_++;
 
          try {
-            pipeline_.insertImage(image);
+            insertImage(image);
+            checkWritingQueues();
          } catch (PipelineErrorException e) {
             // These TODOs inherited from DefaultTaggedImageSink
             // TODO: make showing the dialog optional.
@@ -165,6 +209,158 @@ public final class AcqEngJMDADataSink implements AcqEngJDataSink {
       return null;
    }
 
+   /**
+    * Hands an image to the pipeline. When the pipeline supports it, the image
+    * is first offered without waiting, so that we learn when the processors
+    * can't keep up; only then do we block until there is room.
+    */
+   private void insertImage(DefaultImage image) throws IOException,
+         PipelineErrorException {
+      if (pipeline_ instanceof DefaultPipeline
+            && ((DefaultPipeline) pipeline_).offerImage(image)) {
+         return;
+      }
+      long startNs = System.nanoTime();
+      pipeline_.insertImage(image);
+      if (pipeline_ instanceof DefaultPipeline) {
+         if (backpressureCount_ == 0) {
+            ReportingUtils.logMessage("Processing pipeline is full; acquisition is waiting");
+         }
+         backpressureCount_++;
+         backpressureNs_ += System.nanoTime() - startNs;
+         updateBackpressureAlert(false);
+      }
+   }
+
+   /**
+    * Looks at the writing queues of Multipage TIFF storage, a few times per
+    * second. Once one of them is nearly full, saving is what holds up the
+    * acquisition, and the user is told so.
+    */
+   private void checkWritingQueues() {
+      long now = System.nanoTime();
+      if (now - lastWritingCheckNs_ < ALERT_INTERVAL_NS) {
+         return;
+      }
+      lastWritingCheckNs_ = now;
+      if (!(store_ instanceof DefaultDatastore)) {
+         return;
+      }
+      Storage storage = ((DefaultDatastore) store_).getStorage();
+      if (!(storage instanceof StorageMultipageTiff)) {
+         return;
+      }
+      StorageMultipageTiff tiff = (StorageMultipageTiff) storage;
+      int fullest = 0;
+      for (int depth : tiff.getWritingQueueDepths().values()) {
+         fullest = Math.max(fullest, depth);
+      }
+      double backlog = Math.max(fullest / (double) tiff.getWritingQueueCapacity(),
+            tiff.getCompressionQueueDepth() / (double) tiff.getCompressionQueueCapacity());
+      if (backlog > writingBacklog_) {
+         writingBacklog_ = backlog;
+         if (backlog >= WRITING_BACKLOG_ALERT) {
+            updateBackpressureAlert(true);
+         }
+      }
+   }
+
+   private String backpressureText() {
+      StringBuilder text = new StringBuilder();
+      if (backpressureCount_ > 0) {
+         text.append("Processing could not keep up with ").append(backpressureCount_)
+               .append(" images; acquisition waited ")
+               .append(backpressureNs_ / 1000000).append(" ms");
+      }
+      if (writingBacklog_ >= WRITING_BACKLOG_ALERT) {
+         if (text.length() > 0) {
+            text.append(". ");
+         }
+         text.append("Saving is falling behind; writing queue up to ")
+               .append(Math.round(writingBacklog_ * 100)).append("% full");
+      }
+      return text.toString();
+   }
+
+   /**
+    * Tells the user that the acquisition is being held up by processing or
+    * saving, in an alert that is updated at most a few times per second.
+    *
+    * @param force update even if the alert was updated just now
+    */
+   private void updateBackpressureAlert(boolean force) {
+      long now = System.nanoTime();
+      if (!force && backpressureAlert_ != null && now - lastAlertNs_ < ALERT_INTERVAL_NS) {
+         return;
+      }
+      lastAlertNs_ = now;
+      if (backpressureAlert_ == null) {
+         backpressureAlert_ = studio_.alerts().postUpdatableAlert(
+               "Acquisition", backpressureText());
+      } else {
+         backpressureAlert_.setText(backpressureText());
+      }
+   }
+
+   /**
+    * Translates the AcqEngJ axes of an image into Coords. The standard axes
+    * map onto time, z, channel and stage position. A "camera" axis selects the
+    * channel with the matching name in the summary metadata, and any other
+    * axis with an integer value is used as is.
+    */
+   private Coords coordsFromAxes(HashMap<String, Object> axes) {
+      Coords.Builder cb = Coordinates.builder();
+      for (Map.Entry<String, Object> axis : axes.entrySet()) {
+         String axisName = axis.getKey();
+         Object value = axis.getValue();
+         if (axisName.equals(AcqEngMetadata.TIME_AXIS)) {
+            cb.time((Integer) value);
+         } else if (axisName.equals(AcqEngMetadata.Z_AXIS)) {
+            cb.z((Integer) value);
+         } else if (axisName.equals("position")) {
+            cb.stagePosition((Integer) value);
+         } else if (axisName.equals(AcqEngMetadata.CHANNEL_AXIS)) {
+            // The camera axis, if any, overrides this
+            if (!axes.containsKey("camera")) {
+               cb.channel((Integer) value);
+            }
+         } else if (axisName.equals("camera")) {
+            String chName;
+            Object channelIndex = axes.get(AcqEngMetadata.CHANNEL_AXIS);
+            if (channelIndex != null) {
+               chName = engine_.getSequenceSettings().channels()
+                     .get((Integer) channelIndex).config() + "-" + value;
+            } else {
+               chName = (String) value;
+            }
+            Integer index = getChannelIndices().get(chName);
+            if (index != null) {
+               cb.channel(index);
+            } else if (channelIndex != null) {
+               cb.channel((Integer) channelIndex);
+            }
+         } else if (value instanceof Integer) {
+            cb.index(axisName, (Integer) value);
+         }
+      }
+      return cb.build();
+   }
+
+   private Map<String, Integer> getChannelIndices() {
+      SummaryMetadata summary = store_.getSummaryMetadata();
+      if (summary != channelIndicesSource_) {
+         List<String> channelNameList = summary.getChannelNameList();
+         Map<String, Integer> indices = new HashMap<>();
+         for (int i = 0; i < channelNameList.size(); i++) {
+            // Last one wins, as before
+            indices.put(channelNameList.get(i), i);
+         }
+         channelIndices_ = indices;
+         channelIndicesSource_ = summary;
+      }
+      return channelIndices_;
+   }
+
    @Override
    public boolean anythingAcquired() {
       return somethingAcquired_;
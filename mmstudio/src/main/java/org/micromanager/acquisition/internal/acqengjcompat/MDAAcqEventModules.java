@@ -5,7 +5,6 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
 import java.util.function.Function;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import mmcorej.CMMCore;
 import org.micromanager.MultiStagePosition;
@@ -15,6 +14,7 @@ import org.micromanager.acqj.internal.Engine;
 import org.micromanager.acqj.main.AcqEngMetadata;
 import org.micromanager.acqj.main.AcquisitionEvent;
 import org.micromanager.acquisition.ChannelSpec;
+import org.micromanager.internal.DeviceStateCache;
 
 
 public class MDAAcqEventModules {
@@ -140,9 +140,31 @@ public class MDAAcqEventModules {
    public static Function<AcquisitionEvent, Iterator<AcquisitionEvent>> channels(
          List<ChannelSpec> channelList, Integer middleSliceIndex,
          HashMap<String, String> extraTags) {
+      return channels(channelList, middleSliceIndex, extraTags, null);
+   }
+
+   /**
+    * Make an iterator for events for each active channel.
+    *
+    * @param channelList Channel settings for this acquisition.  Should only include
+    *                    the channels that are actually used.
+    * @param middleSliceIndex Only used when use ZStack is not checked, indicates index
+    *                         of the middle slice
+    * @param deviceState Where the focus position for channel z offsets is read
+    *                    from, or null to read it from the core
+    * @return Function with AcquisitionEvent and Iterator
+    */
+   public static Function<AcquisitionEvent, Iterator<AcquisitionEvent>> channels(
+         List<ChannelSpec> channelList, Integer middleSliceIndex,
+         HashMap<String, String> extraTags, DeviceStateCache deviceState) {
+      // The same for every event, so only looked at once
+      final boolean hasZOffsets = channelList.stream().anyMatch(t -> t.zOffset() != 0);
       return (AcquisitionEvent event) -> {
          return new Iterator<AcquisitionEvent>() {
             int index = 0;
+            // Focus position the channel offsets of this event are relative
+            // to, looked up once rather than for every channel
+            Double baseZ = null;
 
             @Override
             public boolean hasNext() {
@@ -173,16 +195,18 @@ public class MDAAcqEventModules {
                channelEvent.setConfigGroup(channelList.get(index).channelGroup());
                channelEvent.setConfigPreset(channelList.get(index).config());
                channelEvent.setAxisPosition(AcqEngMetadata.CHANNEL_AXIS, index);
-               boolean hasZOffsets = channelList.stream().map(t -> t.zOffset())
-                           .filter(t -> t != 0).collect(Collectors.toList()).size() > 0;
                Double zPos;
                if (event.getZPosition() == null) {
                   if (hasZOffsets) {
-                     try {
-                        zPos = Engine.getCore().getPosition() + channelList.get(index).zOffset();
-                     } catch (Exception e) {
-                        throw new RuntimeException(e);
+                     if (baseZ == null) {
+                        try {
+                           baseZ = deviceState != null ? deviceState.getPosition()
+                                 : Engine.getCore().getPosition();
+                        } catch (Exception e) {
+                           throw new RuntimeException(e);
+                        }
                      }
+                     zPos = baseZ + channelList.get(index).zOffset();
                   } else {
                      zPos = null;
                   }
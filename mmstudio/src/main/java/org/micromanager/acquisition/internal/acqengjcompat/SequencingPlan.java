@@ -0,0 +1,270 @@
+package org.micromanager.acquisition.internal.acqengjcompat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import mmcorej.CMMCore;
+import mmcorej.Configuration;
+import mmcorej.PropertySetting;
+import org.micromanager.acquisition.ChannelSpec;
+import org.micromanager.acquisition.SequenceSettings;
+import org.micromanager.internal.utils.AcqOrderMode;
+
+/**
+ * Predicts, before an MDA starts, which of its axes AcqEngJ will be able to
+ * run as hardware sequences, and the frame rate that would result.
+ *
+ * <p>AcqEngJ merges consecutive acquisition events into a single sequence
+ * as long as every device that changes between them can be sequenced and
+ * the sequence fits in the devices' sequence buffers. Since the events of an
+ * MDA follow a fixed nesting order, the outcome can be worked out from the
+ * settings: starting with the innermost axis, axes join the sequence until
+ * one is reached that cannot be sequenced. The predicted frame rate assumes
+ * that the time between sequences is negligible, so comparing it with the
+ * achieved frame rate shows how much the per-event overhead costs.
+ */
+final class SequencingPlan {
+   static final String CHANNEL = "channel";
+   static final String Z = "z";
+   static final String TIME = "time";
+   static final String POSITION = "position";
+
+   /**
+    * An axis of the acquisition, and whether (and how far) the devices that
+    * change along it can be sequenced.
+    */
+   static final class Axis {
+      final String name;
+      final int length;
+      final boolean sequenceable;
+      // Smallest sequence buffer of the devices changing along this axis
+      final long maxSequenceLength;
+
+      Axis(String name, int length, boolean sequenceable, long maxSequenceLength) {
+         this.name = name;
+         this.length = Math.max(1, length);
+         this.sequenceable = sequenceable;
+         this.maxSequenceLength = maxSequenceLength;
+      }
+   }
+
+   private final List<String> sequencedAxes_ = new ArrayList<>();
+   private final int sequenceLength_;
+   private final int totalImages_;
+   private final double predictedFps_;
+
+   /**
+    * Works out the plan for axes given from innermost to outermost.
+    *
+    * @param axes             axes, innermost first
+    * @param meanExposureMs   mean exposure time of the images
+    * @param intervalMs       time between time points, 0 if none
+    */
+   SequencingPlan(List<Axis> axes, double meanExposureMs, double intervalMs) {
+      int sequenceLength = 1;
+      long bufferLimit = Long.MAX_VALUE;
+      boolean open = true;
+      int imagesPerTimePoint = 1;
+      int numTimePoints = 1;
+      int total = 1;
+      for (Axis axis : axes) {
+         total *= axis.length;
+         if (axis.name.equals(TIME)) {
+            numTimePoints = axis.length;
+         } else {
+            imagesPerTimePoint *= axis.length;
+         }
+         if (!open || axis.length == 1) {
+            continue;
+         }
+         // Devices sequenced along inner axes have to hold the whole sequence
+         long newLimit = axis.sequenceable
+               ? Math.min(bufferLimit, axis.maxSequenceLength) : 0;
+         if ((long) sequenceLength * axis.length > newLimit) {
+            open = false;
+            continue;
+         }
+         sequenceLength *= axis.length;
+         bufferLimit = newLimit;
+         sequencedAxes_.add(axis.name);
+      }
+      sequenceLength_ = sequenceLength;
+      totalImages_ = total;
+
+      double timePointMs = imagesPerTimePoint * meanExposureMs;
+      if (numTimePoints > 1) {
+         timePointMs = Math.max(timePointMs, intervalMs);
+      }
+      predictedFps_ = timePointMs > 0 ? 1000.0 * imagesPerTimePoint / timePointMs : 0.0;
+   }
+
+   /**
+    * Queries the hardware for the sequencing capabilities relevant to the
+    * given acquisition.
+    *
+    * @param core         the core
+    * @param settings     settings of the acquisition
+    * @param channels     channels actually used
+    * @param numPositions number of stage positions
+    */
+   static SequencingPlan create(CMMCore core, SequenceSettings settings,
+                                List<ChannelSpec> channels, int numPositions) {
+      int numSlices = settings.useSlices() ? settings.slices().size() : 1;
+      int numChannels = settings.useChannels() ? Math.max(1, channels.size()) : 1;
+      int numFrames = settings.useFrames() ? settings.numFrames() : 1;
+
+      String focus = core.getFocusDevice();
+      boolean zSequenceable = false;
+      long zMaxLength = 0;
+      try {
+         if (focus != null && !focus.isEmpty() && core.isStageSequenceable(focus)) {
+            zSequenceable = true;
+            zMaxLength = core.getStageSequenceMaxLength(focus);
+         }
+      } catch (Exception e) {
+         core.logMessage("Could not determine if " + focus + " is sequenceable: "
+               + e.getMessage());
+      }
+
+      boolean channelsSequenceable = settings.useChannels();
+      long channelMaxLength = Long.MAX_VALUE;
+      double exposureSum = 0;
+      boolean zOffsets = false;
+      boolean exposuresDiffer = false;
+      for (ChannelSpec channel : channels) {
+         exposureSum += channel.exposure();
+         zOffsets |= channel.zOffset() != 0;
+         exposuresDiffer |= channel.exposure() != channels.get(0).exposure();
+         // Channels that skip slices or frames break the regular pattern of
+         // events that a sequence needs; that only matters when there are
+         // slices or frames to skip
+         if (settings.useSlices()) {
+            channelsSequenceable &= channel.doZStack();
+         }
+         if (settings.useFrames()) {
+            channelsSequenceable &= channel.skipFactorFrame() == 0;
+         }
+      }
+      try {
+         if (channelsSequenceable && exposuresDiffer) {
+            String camera = core.getCameraDevice();
+            channelsSequenceable = core.isExposureSequenceable(camera);
+            if (channelsSequenceable) {
+               channelMaxLength = core.getExposureSequenceMaxLength(camera);
+            }
+         }
+         for (ChannelSpec channel : channels) {
+            if (!channelsSequenceable) {
+               break;
+            }
+            Configuration preset = core.getConfigData(channel.channelGroup(),
+                  channel.config());
+            for (long i = 0; i < preset.size(); i++) {
+               PropertySetting setting = preset.getSetting(i);
+               if (!core.isPropertySequenceable(setting.getDeviceLabel(),
+                     setting.getPropertyName())) {
+                  channelsSequenceable = false;
+                  break;
+               }
+               channelMaxLength = Math.min(channelMaxLength, core.getPropertySequenceMaxLength(
+                     setting.getDeviceLabel(), setting.getPropertyName()));
+            }
+         }
+      } catch (Exception e) {
+         core.logMessage("Could not determine if channels are sequenceable: "
+               + e.getMessage());
+         channelsSequenceable = false;
+      }
+      if (zOffsets) {
+         // The focus drive moves from channel to channel as well
+         channelsSequenceable &= zSequenceable;
+         channelMaxLength = Math.min(channelMaxLength, zMaxLength);
+      }
+
+      Axis z = new Axis(Z, numSlices, zSequenceable, zMaxLength);
+      Axis channel = new Axis(CHANNEL, numChannels, channelsSequenceable, channelMaxLength);
+      // Time points only follow each other without a pause when there is no
+      // interval, and autofocus runs in between
+      Axis time = new Axis(TIME, numFrames,
+            settings.intervalMs() == 0 && !settings.useCustomIntervals()
+                  && !settings.useAutofocus(), Long.MAX_VALUE);
+      // The MDA does not sequence stage positions
+      Axis position = new Axis(POSITION, numPositions, false, 0);
+
+      List<Axis> axes = new ArrayList<>();
+      switch (settings.acqOrderMode()) {
+         case AcqOrderMode.TIME_POS_SLICE_CHANNEL:
+            axes.add(channel);
+            axes.add(z);
+            axes.add(position);
+            axes.add(time);
+            break;
+         case AcqOrderMode.TIME_POS_CHANNEL_SLICE:
+            axes.add(z);
+            axes.add(channel);
+            axes.add(position);
+            axes.add(time);
+            break;
+         case AcqOrderMode.POS_TIME_SLICE_CHANNEL:
+            axes.add(channel);
+            axes.add(z);
+            axes.add(time);
+            axes.add(position);
+            break;
+         default:
+            axes.add(z);
+            axes.add(channel);
+            axes.add(time);
+            axes.add(position);
+            break;
+      }
+      double meanExposureMs = channels.isEmpty() || !settings.useChannels()
+            ? core.getExposure() : exposureSum / channels.size();
+      return new SequencingPlan(axes, meanExposureMs,
+            settings.useFrames() ? settings.intervalMs() : 0);
+   }
+
+   /**
+    * Axes that will be run as hardware sequences, innermost first.
+    */
+   List<String> getSequencedAxes() {
+      return sequencedAxes_;
+   }
+
+   /**
+    * Number of images in each hardware sequence (1 if nothing is sequenced).
+    */
+   int getSequenceLength() {
+      return sequenceLength_;
+   }
+
+   double getPredictedFps() {
+      return predictedFps_;
+   }
+
+   @Override
+   public String toString() {
+      return String.format(Locale.US,
+            "Sequencing plan: %d images in %d sequence(s) of %d%s; predicted %.1f fps",
+            totalImages_, (totalImages_ + sequenceLength_ - 1) / sequenceLength_,
+            sequenceLength_,
+            sequencedAxes_.isEmpty() ? " (no hardware sequencing)"
+                  : " over " + String.join(", ", sequencedAxes_),
+            predictedFps_);
+   }
+
+   /**
+    * Compares the frame rate achieved by an acquisition with the prediction.
+    *
+    * @param images    number of images acquired
+    * @param elapsedMs time from the first to the last image
+    */
+   String report(int images, long elapsedMs) {
+      double achieved = images > 1 && elapsedMs > 0
+            ? 1000.0 * (images - 1) / elapsedMs : 0.0;
+      return String.format(Locale.US,
+            "Acquired %d images at %.1f fps (predicted %.1f fps, %.0f%%)",
+            images, achieved, predictedFps_,
+            predictedFps_ > 0 ? 100.0 * achieved / predictedFps_ : 0.0);
+   }
+}
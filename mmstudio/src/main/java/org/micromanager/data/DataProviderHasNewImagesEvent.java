@@ -0,0 +1,36 @@
+package org.micromanager.data;
+
+import java.util.List;
+import org.micromanager.MMEvent;
+
+/**
+ * This class signifies that one or more images have been added to a
+ * DataProvider.
+ *
+ * <p>This is a coalesced form of {@link DataProviderHasNewImageEvent}: images
+ * added in quick succession are reported together, at most a few times per
+ * second. Subscribers that only need to know which images were added (e.g. to
+ * count them or to update a range of coordinates) can use this event instead
+ * of handling one event per image, which is costly when thousands of images
+ * are added per second. The per-image events are still posted as well.</p>
+ *
+ * <p>The default implementation of this Event posts on the Datastore event
+ * bus, after the per-image events for the same images.
+ * Subscribe using {@link DataProvider#registerForEvents(Object)}.</p>
+ */
+public interface DataProviderHasNewImagesEvent extends MMEvent {
+   /**
+    * Returns the Coords of the added images, in the order they were added.
+    *
+    * @return unmodifiable list of the Coords of the images added
+    */
+   List<Coords> getCoords();
+
+   /**
+    * Provides the DataProvider these images were added to; potentially
+    * useful for code that listens to events from multiple DataProviders.
+    *
+    * @return the DataProvider these images were added to.
+    */
+   DataProvider getDataProvider();
+}
@@ -54,6 +54,22 @@ public interface Processor {
     */
    void processImage(Image image, ProcessorContext context);
 
+   /**
+    * Indicate whether this Processor handles each Image independently of all
+    * other Images, i.e. it keeps no state between calls to processImage()
+    * (flat-field correction or flipping are examples; frame averaging is
+    * not). In an asynchronous Pipeline, a stateless Processor is run on
+    * several threads at once: processImage() may be called concurrently and
+    * must therefore be thread-safe. The Images output for each input Image
+    * are still passed on in the order in which the input Images arrived.
+    * The default implementation returns false.
+    *
+    * @return true if processImage() may be called concurrently
+    */
+   default boolean isStateless() {
+      return false;
+   }
+
    /**
     * Clean up when processing is finished. At this time no more images are
     * going to be sent to the processImage method. The ProcessorContext is
@@ -4,7 +4,11 @@ import java.io.UnsupportedEncodingException;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.nio.LongBuffer;
 import java.nio.ShortBuffer;
 import java.util.Arrays;
 import org.micromanager.internal.utils.ReportingUtils;
@@ -124,6 +128,9 @@ public final class BufferTools {
          byte[] arr = bb.array();
          return Arrays.copyOf(arr, arr.length);
       } else if (rawPixels instanceof ByteBuffer) {
+         if (!rawPixels.hasArray()) {
+            return bytesFromBuffer((ByteBuffer) rawPixels);
+         }
          byte[] arr = ((ByteBuffer) rawPixels).array();
          return Arrays.copyOf(arr, arr.length);
       } else {
@@ -178,6 +185,32 @@ public final class BufferTools {
       }
    }
 
+   /**
+    * Creates a new Buffer sharing the content of the given one, but with
+    * independent position and limit.
+    *
+    * @param buffer Buffer to be duplicated
+    * @return Duplicate of the Buffer
+    */
+   public static Buffer duplicate(Buffer buffer) {
+      if (buffer instanceof ByteBuffer) {
+         ByteBuffer source = (ByteBuffer) buffer;
+         return source.duplicate().order(source.order());
+      } else if (buffer instanceof ShortBuffer) {
+         return ((ShortBuffer) buffer).duplicate();
+      } else if (buffer instanceof IntBuffer) {
+         return ((IntBuffer) buffer).duplicate();
+      } else if (buffer instanceof LongBuffer) {
+         return ((LongBuffer) buffer).duplicate();
+      } else if (buffer instanceof FloatBuffer) {
+         return ((FloatBuffer) buffer).duplicate();
+      } else if (buffer instanceof CharBuffer) {
+         return ((CharBuffer) buffer).duplicate();
+      }
+      // The only remaining kind of Buffer
+      return ((DoubleBuffer) buffer).duplicate();
+   }
+
    /**
     * Wraps a primitive array of either byte[] or short[] into a ByteBuffer.
     *
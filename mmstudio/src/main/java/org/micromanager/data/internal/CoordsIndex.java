@@ -0,0 +1,232 @@
+package org.micromanager.data.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import org.micromanager.data.Coords;
+
+/**
+ * Secondary index over the Coords held by a Storage, used to answer
+ * getImagesIgnoringAxes() without traversing all images.
+ *
+ * <p>For every combination of ignored axes that has been asked for, the index
+ * keeps a map from the Coords with those axes removed to the list of full
+ * Coords that project onto it. Such a projection is built with a single pass
+ * over all Coords the first time it is requested, and is kept up to date on
+ * every subsequent add() and remove(), so that repeated lookups (as done by
+ * the viewer, or by ZProjector for every output plane) take constant time.
+ * Projections that are known to be needed can be created up front by passing
+ * their axes to the constructor; these are always kept. Of the projections
+ * created on request, only the most recently used ones are kept (see
+ * MAX_REQUESTED_PROJECTIONS); others are rebuilt when asked for again.
+ *
+ * <p>All methods are synchronized; Storages may call them from the writing
+ * thread and from reading threads at the same time.
+ */
+public final class CoordsIndex {
+   private static final long MAX_PRESIZE = 1 << 22;
+   // Each projection holds an entry for every Coords, so keeping one for
+   // every combination of axes ever asked for would grow without bound
+   static final int MAX_REQUESTED_PROJECTIONS = 4;
+
+   private Set<Coords> allCoords_;
+   // Projections passed to the constructor
+   private final Map<String, Projection> projections_ = new HashMap<>();
+   // Projections created by getMatching(), least recently used first
+   private final Map<String, Projection> requested_ =
+         new LinkedHashMap<String, Projection>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Projection> eldest) {
+               return size() > MAX_REQUESTED_PROJECTIONS;
+            }
+         };
+
+   /**
+    * Creates an empty index.
+    *
+    * @param initialProjections Each entry is a single axis for which a
+    *                           projection is maintained from the start. Use
+    *                           Coords.C to reproduce the previous channel index.
+    */
+   public CoordsIndex(String... initialProjections) {
+      allCoords_ = new LinkedHashSet<>();
+      for (String axis : initialProjections) {
+         projections_.put(axis, new Projection(new String[] {axis}, 16));
+      }
+   }
+
+   /**
+    * Presizes the index from the intended dimensions in the summary metadata.
+    * Only has an effect while the index is still empty.
+    *
+    * @param intendedDimensions Intended dimensions of the dataset, can be null
+    */
+   public synchronized void presize(Coords intendedDimensions) {
+      if (intendedDimensions == null || !allCoords_.isEmpty()) {
+         return;
+      }
+      long nrImages = 1;
+      for (String axis : intendedDimensions.getAxes()) {
+         nrImages *= Math.max(1, intendedDimensions.getIndex(axis));
+      }
+      // Intended dimensions are only a hint; don't let a bogus value
+      // allocate huge tables
+      nrImages = Math.min(nrImages, MAX_PRESIZE);
+      allCoords_ = new LinkedHashSet<>((int) (nrImages / 0.75f) + 1);
+      for (Map.Entry<String, Projection> entry : projections_.entrySet()) {
+         String[] axes = entry.getValue().axes_;
+         long nrProjected = nrImages;
+         for (String axis : axes) {
+            nrProjected /= Math.max(1, intendedDimensions.getIndex(axis));
+         }
+         entry.setValue(new Projection(axes, (int) nrProjected));
+      }
+   }
+
+   /**
+    * Adds coords to the index. Adding coords that are already present has no
+    * effect.
+    *
+    * @param coords Coords of a newly stored image
+    */
+   public synchronized void add(Coords coords) {
+      if (!allCoords_.add(coords)) {
+         return;
+      }
+      for (Projection projection : projections_.values()) {
+         projection.add(coords);
+      }
+      for (Projection projection : requested_.values()) {
+         projection.add(coords);
+      }
+   }
+
+   /**
+    * Removes coords from the index.
+    *
+    * @param coords Coords of a deleted image
+    */
+   public synchronized void remove(Coords coords) {
+      if (!allCoords_.remove(coords)) {
+         return;
+      }
+      for (Projection projection : projections_.values()) {
+         projection.remove(coords);
+      }
+      for (Projection projection : requested_.values()) {
+         projection.remove(coords);
+      }
+   }
+
+   /**
+    * Returns all indexed Coords that equal the given coords once the ignored
+    * axes are removed from them.
+    *
+    * @param coords      Coords to match, normally without the ignored axes
+    * @param ignoredAxes Axes to remove from indexed Coords before comparing
+    * @return Matching Coords in insertion order; empty when there are none
+    */
+   public synchronized List<Coords> getMatching(Coords coords,
+                                                String... ignoredAxes) {
+      if (ignoredAxes.length == 0) {
+         return allCoords_.contains(coords)
+               ? Collections.singletonList(coords)
+               : Collections.<Coords>emptyList();
+      }
+      String key = makeKey(ignoredAxes);
+      Projection projection = projections_.get(key);
+      if (projection == null) {
+         projection = requested_.get(key);
+      }
+      if (projection == null) {
+         projection = new Projection(key.split(","), allCoords_.size());
+         for (Coords indexed : allCoords_) {
+            projection.add(indexed);
+         }
+         requested_.put(key, projection);
+      }
+      Set<Coords> members = projection.members_.get(coords);
+      if (members == null) {
+         return Collections.emptyList();
+      }
+      return new ArrayList<>(members);
+   }
+
+   public synchronized boolean contains(Coords coords) {
+      return allCoords_.contains(coords);
+   }
+
+   public synchronized int size() {
+      return allCoords_.size();
+   }
+
+   /**
+    * Removes all Coords, but keeps the projections passed to the
+    * constructor.
+    */
+   public synchronized void clear() {
+      allCoords_.clear();
+      for (Projection projection : projections_.values()) {
+         projection.members_.clear();
+      }
+      requested_.clear();
+   }
+
+   /**
+    * Number of projections created by getMatching() that are currently kept.
+    */
+   synchronized int getNumRequestedProjections() {
+      return requested_.size();
+   }
+
+   // Axes are sorted so that the order in which callers list them does not
+   // lead to duplicate projections.
+   private static String makeKey(String[] axes) {
+      if (axes.length == 1) {
+         return axes[0];
+      }
+      return String.join(",", new TreeSet<>(Arrays.asList(axes)));
+   }
+
+   /**
+    * Coords grouped by their value with a fixed set of axes removed. Groups
+    * keep insertion order, and members are removed by hash lookup.
+    */
+   private static final class Projection {
+      private final String[] axes_;
+      private final Map<Coords, Set<Coords>> members_;
+
+      Projection(String[] axes, int expectedSize) {
+         axes_ = axes;
+         members_ = new HashMap<>(Math.max(16, expectedSize));
+      }
+
+      void add(Coords coords) {
+         Coords projected = coords.copyRemovingAxes(axes_);
+         Set<Coords> members = members_.get(projected);
+         if (members == null) {
+            members = new LinkedHashSet<>(8);
+            members_.put(projected, members);
+         }
+         members.add(coords);
+      }
+
+      void remove(Coords coords) {
+         Coords projected = coords.copyRemovingAxes(axes_);
+         Set<Coords> members = members_.get(projected);
+         if (members != null) {
+            members.remove(coords);
+            if (members.isEmpty()) {
+               members_.remove(projected);
+            }
+         }
+      }
+   }
+}
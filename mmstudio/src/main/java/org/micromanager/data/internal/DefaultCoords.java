@@ -21,10 +21,10 @@
 package org.micromanager.data.internal;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.ImmutableList;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 import org.apache.commons.lang3.ArrayUtils;
 import org.micromanager.PropertyMap;
@@ -32,51 +32,120 @@ import org.micromanager.PropertyMaps;
 import org.micromanager.data.Coords;
 
 
+/**
+ * Immutable Coords.
+ *
+ * <p>Coords are created for every image and are used as hash keys throughout
+ * the storages and the viewer, so this class is kept cheap: axis names are
+ * interned (and validated only the first time they are seen), indices are
+ * kept in a primitive array sorted by axis name, and the hash code is
+ * computed once. Setting indices on a Builder does not allocate, and
+ * building from an unmodified copyBuilder() returns the original instance.
+ */
 public final class DefaultCoords implements Coords {
 
+   // Canonical instances of all axis names seen so far. Since every axis name
+   // held by a DefaultCoords comes from here, names can be compared by
+   // identity.
+   private static final ConcurrentHashMap<String, String> AXIS_NAMES =
+         new ConcurrentHashMap<>();
+
+   static {
+      for (String axis : new String[] {CHANNEL, Z_SLICE, TIME_POINT, STAGE_POSITION}) {
+         AXIS_NAMES.put(axis, axis);
+      }
+   }
+
+   private static final String[] NO_AXES = new String[0];
+   private static final int[] NO_INDICES = new int[0];
+
+   private static String internAxis(String axis) {
+      String canonical = AXIS_NAMES.get(axis);
+      if (canonical == null) {
+         Preconditions.checkArgument(isValidAxis(axis), "Invalid axis name");
+         canonical = AXIS_NAMES.putIfAbsent(axis, axis);
+         if (canonical == null) {
+            canonical = axis;
+         }
+      }
+      return canonical;
+   }
+
    public static class Builder implements Coords.Builder {
-      // Since we only hold several axes, array lists are likely more efficient
-      // than a LinkedHashMap
-      private final List<String> axes_;
-      private final List<Integer> indices_;
+      // Unsorted; sorting is done once, in build()
+      private String[] axes_;
+      private int[] indices_;
+      private int size_;
+      // Coords this builder was copied from, as long as it is unmodified
+      private DefaultCoords source_;
 
       public Builder() {
-         axes_ = new ArrayList<>(5);
-         indices_ = new ArrayList<>(5);
+         axes_ = new String[5];
+         indices_ = new int[5];
       }
 
-      private Builder(List<String> axes, List<Integer> indices) {
-         axes_ = new ArrayList<>(axes);
-         indices_ = new ArrayList<>(indices);
+      private Builder(DefaultCoords source) {
+         int capacity = Math.max(5, source.axes_.length + 1);
+         axes_ = Arrays.copyOf(source.axes_, capacity);
+         indices_ = Arrays.copyOf(source.indices_, capacity);
+         size_ = source.axes_.length;
+         source_ = source;
       }
 
       @Override
       public DefaultCoords build() {
+         if (source_ != null) {
+            return source_;
+         }
          return new DefaultCoords(this);
       }
 
+      private int find(String axis) {
+         for (int i = 0; i < size_; i++) {
+            if (axes_[i] == axis) {
+               return i;
+            }
+         }
+         for (int i = 0; i < size_; i++) {
+            if (axes_[i].equals(axis)) {
+               return i;
+            }
+         }
+         return -1;
+      }
+
       @Override
       public Builder index(String axis, int index) {
-         Preconditions.checkArgument(isValidAxis(axis), "Invalid axis name");
+         axis = internAxis(axis);
          if (index <= 0) {
             return removeAxis(axis);
          }
-         int i = axes_.indexOf(axis);
+         int i = find(axis);
          if (i < 0) {
-            axes_.add(axis);
-            indices_.add(index);
-         } else {
-            indices_.set(i, index);
+            if (size_ == axes_.length) {
+               axes_ = Arrays.copyOf(axes_, size_ * 2);
+               indices_ = Arrays.copyOf(indices_, size_ * 2);
+            }
+            axes_[size_] = axis;
+            indices_[size_] = index;
+            size_++;
+            source_ = null;
+         } else if (indices_[i] != index) {
+            indices_[i] = index;
+            source_ = null;
          }
          return this;
       }
 
       @Override
       public Builder removeAxis(String axis) {
-         int i = axes_.indexOf(axis);
+         int i = find(axis);
          if (i >= 0) {
-            axes_.remove(i);
-            indices_.remove(i);
+            size_--;
+            System.arraycopy(axes_, i + 1, axes_, i, size_ - i);
+            System.arraycopy(indices_, i + 1, indices_, i, size_ - i);
+            axes_[size_] = null;
+            source_ = null;
          }
          return this;
       }
@@ -84,10 +153,10 @@ public final class DefaultCoords implements Coords {
       @Override
       public Builder offset(String axis, int offset)
             throws IllegalArgumentException, IndexOutOfBoundsException {
-         int i = axes_.indexOf(axis);
+         int i = find(axis);
          int oldIndex = 0;
          if (i >= 0) {
-            oldIndex = indices_.get(i);
+            oldIndex = indices_[i];
          }
          int newIndex = oldIndex + offset;
          if (newIndex < 0) {
@@ -146,32 +215,54 @@ public final class DefaultCoords implements Coords {
       }
    }
 
-   // Since we only hold several axes, array lists are likely more efficient
-   // than a LinkedHashMap
-   private final List<String> axes_;
-   private final List<Integer> indices_;
+   // Sorted by axis name; all indices are positive
+   private final String[] axes_;
+   private final int[] indices_;
+   private final int hash_;
 
    public DefaultCoords(Builder builder) {
-      // sort by axes name
-      List<String> axes = new ArrayList<>(builder.axes_);
-      Collections.sort(axes);
-      List<Integer> indices = new ArrayList<>(axes.size());
-      for (String axis : axes) {
-         int index = builder.axes_.indexOf(axis);
-         indices.add(builder.indices_.get(index));
+      int size = builder.size_;
+      if (size == 0) {
+         axes_ = NO_AXES;
+         indices_ = NO_INDICES;
+      } else {
+         axes_ = Arrays.copyOf(builder.axes_, size);
+         indices_ = Arrays.copyOf(builder.indices_, size);
+         // sort by axes name (insertion sort; there are only a few axes)
+         for (int i = 1; i < size; i++) {
+            String axis = axes_[i];
+            int index = indices_[i];
+            int j = i - 1;
+            while (j >= 0 && axes_[j].compareTo(axis) > 0) {
+               axes_[j + 1] = axes_[j];
+               indices_[j + 1] = indices_[j];
+               j--;
+            }
+            axes_[j + 1] = axis;
+            indices_[j + 1] = index;
+         }
       }
-
-      axes_ = ImmutableList.copyOf(axes);
-      indices_ = ImmutableList.copyOf(indices);
+      int hash = 3;
+      for (int i = 0; i < axes_.length; i++) {
+         hash = 23 * hash + axes_[i].hashCode();
+         hash = 23 * hash + indices_[i];
+      }
+      hash_ = hash;
    }
 
    @Override
    public int getIndex(String axis) {
-      int i = axes_.indexOf(axis);
-      if (i < 0) {
-         return 0;
+      for (int i = 0; i < axes_.length; i++) {
+         if (axes_[i] == axis) {
+            return indices_[i];
+         }
       }
-      return indices_.get(i);
+      for (int i = 0; i < axes_.length; i++) {
+         if (axes_[i].equals(axis)) {
+            return indices_[i];
+         }
+      }
+      return 0;
    }
 
    @Override
@@ -222,12 +313,17 @@ public final class DefaultCoords implements Coords {
 
    @Override
    public List<String> getAxes() {
-      return new ArrayList<>(axes_);
+      return new ArrayList<>(Arrays.asList(axes_));
    }
 
    @Override
    public boolean hasAxis(String axis) {
-      return axes_.contains(axis);
+      for (String a : axes_) {
+         if (a == axis || a.equals(axis)) {
+            return true;
+         }
+      }
+      return false;
    }
 
    @Override
@@ -279,7 +375,7 @@ public final class DefaultCoords implements Coords {
 
    @Override
    public Builder copyBuilder() {
-      return new Builder(axes_, indices_);
+      return new Builder(this);
    }
 
    @Override
@@ -290,6 +386,7 @@ public final class DefaultCoords implements Coords {
 
    @Override
    public Coords copyRemovingAxes(String... axes) {
+      // Returns this if none of the axes are present
       Builder b = copyBuilder();
       for (String axis : axes) {
          b.removeAxis(axis);
@@ -300,9 +397,9 @@ public final class DefaultCoords implements Coords {
    @Override
    public Coords copyRetainingAxes(String... axes) {
       Builder b = new Builder();
-      for (String axis : axes_) {
-         if (ArrayUtils.contains(axes, axis)) {
-            b.index(axis, getIndex(axis));
+      for (int i = 0; i < axes_.length; i++) {
+         if (ArrayUtils.contains(axes, axes_[i])) {
+            b.index(axes_[i], indices_[i]);
          }
       }
       return b.build();
@@ -310,22 +407,38 @@ public final class DefaultCoords implements Coords {
 
    @Override
    public boolean equals(Object other) {
+      if (other == this) {
+         return true;
+      }
+      if (other instanceof DefaultCoords) {
+         // Axis names are interned and sorted, so comparing the arrays
+         // element by element is enough
+         DefaultCoords theOther = (DefaultCoords) other;
+         if (hash_ != theOther.hash_ || axes_.length != theOther.axes_.length) {
+            return false;
+         }
+         for (int i = 0; i < axes_.length; i++) {
+            if (axes_[i] != theOther.axes_[i] || indices_[i] != theOther.indices_[i]) {
+               return false;
+            }
+         }
+         return true;
+      }
       if (!(other instanceof Coords)) {
          return false;
       }
       // Axis order is not considered for equality, but axes are sorted already
       // A zero index axis is no longer possible, so no need to remove zero axes
       Coords theOther = (Coords) other;
-
-      if (this.getAxes().size() != theOther.getAxes().size()) {
+      List<String> otherAxes = theOther.getAxes();
+      if (axes_.length != otherAxes.size()) {
          return false;
       }
-      for (int i = 0; i < this.getAxes().size(); i++) {
-         String axis = this.getAxes().get(i);
-         if (!axis.equals(theOther.getAxes().get(i))) {
+      for (int i = 0; i < axes_.length; i++) {
+         if (!axes_[i].equals(otherAxes.get(i))) {
             return false;
          }
-         if (this.getIndex(axis) != theOther.getIndex(axis)) {
+         if (indices_[i] != theOther.getIndex(axes_[i])) {
             return false;
          }
       }
@@ -336,30 +449,27 @@ public final class DefaultCoords implements Coords {
    @Override
    public int hashCode() {
       // Axis order is not considered for equality, but axes are sorted already
-      int hash = 3;
-      hash = 23 * hash + axes_.hashCode();
-      hash = 23 * hash + indices_.hashCode();
-      return hash;
+      return hash_;
    }
 
    @Override
    public String toString() {
       StringBuilder sb = new StringBuilder().append("<");
       boolean isFirst = true;
-      for (String axis : axes_) {
+      for (int i = 0; i < axes_.length; i++) {
          if (!isFirst) {
             sb.append(" ");
          }
          isFirst = false;
-         sb.append(String.format("%s=%d", axis, getIndex(axis)));
+         sb.append(axes_[i]).append('=').append(indices_[i]);
       }
       return sb.append(">").toString();
    }
 
    public PropertyMap toPropertyMap() {
       PropertyMap.Builder b = PropertyMaps.builder();
-      for (String axis : axes_) {
-         b.putInteger(axis, getIndex(axis));
+      for (int i = 0; i < axes_.length; i++) {
+         b.putInteger(axes_[i], indices_[i]);
       }
       return b.build();
    }
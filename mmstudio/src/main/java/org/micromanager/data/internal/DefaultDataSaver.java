@@ -58,7 +58,8 @@ public class DefaultDataSaver extends SwingWorker<Void, Void> {
          saver_ = new NDTiffAdapter(duplicate_, path_, true);
          ((NDTiffAdapter) saver_).setSummaryMetadata(store.getSummaryMetadata());
       } else if (mode == Datastore.SaveMode.SINGLEPLANE_TIFF_SERIES) {
-         saver_ = new StorageSinglePlaneTiffSeries(duplicate_, path_, true);
+         saver_ = new StorageSinglePlaneTiffSeries(duplicate_, path_, true,
+               StorageMultipageTiff.getShouldDeltaEncodeScopeData());
       } else {
          throw new IllegalArgumentException("Unrecognized mode parameter "
                + mode);
@@ -24,10 +24,18 @@ import java.awt.Component;
 import java.beans.PropertyChangeEvent;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.swing.JFileChooser;
 import javax.swing.ProgressMonitor;
 import javax.swing.filechooser.FileFilter;
@@ -45,6 +53,7 @@ import org.micromanager.internal.utils.FileDialogs;
 import org.micromanager.internal.utils.PrioritizedEventBus;
 import org.micromanager.internal.utils.ProgressBar;
 import org.micromanager.internal.utils.ReportingUtils;
+import org.micromanager.internal.utils.ThreadFactoryFactory;
 
 /**
  * Default implementaton of the Datastore interface.
@@ -97,8 +106,38 @@ public class DefaultDatastore implements Datastore {
    private String savePath_ = null;
    private boolean haveSetSummary_ = false;
 
+   // Per-channel intensity range of all images, updated in the background
+   // as images are added (unless turned off in the preferences), and saved
+   // with the data
+   private static final String SHOULD_KEEP_INTENSITY_SUMMARY =
+         "keep intensity summary of images added";
+   private final boolean keepIntensitySummary_;
+   private volatile IntensitySummary intensitySummary_ = new IntensitySummary();
+   // Images waiting to be added to the summary; beyond this, images are left
+   // out rather than slowing down putImage(). A summary missing images is
+   // not saved, and is computed again from the data when it is needed.
+   private static final int INTENSITY_SUMMARY_QUEUE_IMAGES = 64;
+   private final AtomicLong intensitySummarySkipped_ = new AtomicLong();
+   private final Object intensitySummaryLock_ = new Object();
+   // Guarded by intensitySummaryLock_
+   private ThreadPoolExecutor intensitySummaryExecutor_ = null;
+
+   // DataProviderHasNewImagesEvent: images added are reported together, at
+   // most once per interval, from a timer thread shared by all datastores
+   public static final int DEFAULT_NEW_IMAGES_EVENT_INTERVAL_MS = 100;
+   private static final ScheduledExecutorService NEW_IMAGES_EVENT_SCHEDULER =
+         Executors.newSingleThreadScheduledExecutor(
+               ThreadFactoryFactory.createThreadFactory("Datastore new images events"));
+   private volatile int newImagesEventIntervalMs_ = DEFAULT_NEW_IMAGES_EVENT_INTERVAL_MS;
+   private final Object newImagesLock_ = new Object();
+   // Guarded by newImagesLock_
+   private List<Coords> newImagesCoords_ = new ArrayList<>();
+   private boolean newImagesEventScheduled_ = false;
+
    public DefaultDatastore(Studio mmStudio) {
       studio_ = mmStudio;
+      keepIntensitySummary_ = mmStudio == null
+            || getShouldKeepIntensitySummary(mmStudio);
       bus_ = new PrioritizedEventBus(true);
       syncBus_ = new PrioritizedEventBus(false);
    }
@@ -156,6 +195,13 @@ public class DefaultDatastore implements Datastore {
       storage_ = storage;
    }
 
+   /**
+    * The storage images are written to, or null before one is set.
+    */
+   public Storage getStorage() {
+      return storage_;
+   }
+
    /**
     * Registers objects at default priority levels.
     *
@@ -254,10 +300,54 @@ public class DefaultDatastore implements Datastore {
       if (storage_ != null) {
          storage_.putImage(image);
       }
+      if (keepIntensitySummary_ && isIntensitySummaryTracked()) {
+         addToIntensitySummary(image);
+      }
       // Note: the store may be very busy saving data, so consumers of this message
       // should use as few resources as possible.  Note that the bus is asynchronous,
       // so we do not have to wait for processing to finish.
       bus_.post(new DefaultNewImageEvent(image, this));
+      queueNewImagesEvent(coords);
+   }
+
+   /**
+    * Set how often images added are reported by a
+    * {@link org.micromanager.data.DataProviderHasNewImagesEvent}.
+    *
+    * @param intervalMs maximum delay before added images are reported
+    */
+   public void setNewImagesEventIntervalMs(int intervalMs) {
+      newImagesEventIntervalMs_ = Math.max(0, intervalMs);
+   }
+
+   private void queueNewImagesEvent(Coords coords) {
+      synchronized (newImagesLock_) {
+         newImagesCoords_.add(coords);
+         if (newImagesEventScheduled_) {
+            return;
+         }
+         newImagesEventScheduled_ = true;
+      }
+      NEW_IMAGES_EVENT_SCHEDULER.schedule(this::postNewImagesEvent,
+            newImagesEventIntervalMs_, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Post the images added since the last DataProviderHasNewImagesEvent.
+    * Since the per-image events of these images have already been posted on
+    * the same (asynchronous) bus, subscribers receive this event after them.
+    */
+   private void postNewImagesEvent() {
+      List<Coords> coords;
+      synchronized (newImagesLock_) {
+         newImagesEventScheduled_ = false;
+         if (newImagesCoords_.isEmpty()) {
+            return;
+         }
+         coords = newImagesCoords_;
+         newImagesCoords_ = new ArrayList<>();
+      }
+      bus_.post(new DefaultNewImagesEvent(coords, this));
    }
 
    @Override
@@ -386,6 +476,95 @@ public class DefaultDatastore implements Datastore {
       }
    }
 
+   /**
+    * Whether this datastore keeps an intensity summary of its images.
+    */
+   protected boolean isIntensitySummaryTracked() {
+      return true;
+   }
+
+   private void addToIntensitySummary(final Image image) {
+      ExecutorService executor;
+      synchronized (intensitySummaryLock_) {
+         if (intensitySummaryExecutor_ == null) {
+            intensitySummaryExecutor_ = new ThreadPoolExecutor(1, 1,
+                  0L, TimeUnit.MILLISECONDS,
+                  new ArrayBlockingQueue<>(INTENSITY_SUMMARY_QUEUE_IMAGES),
+                  ThreadFactoryFactory.createThreadFactory("Intensity Summary"),
+                  (Runnable r, ThreadPoolExecutor e) ->
+                        intensitySummarySkipped_.incrementAndGet());
+         }
+         executor = intensitySummaryExecutor_;
+      }
+      final IntensitySummary summary = intensitySummary_;
+      executor.execute(() -> summary.add(image));
+   }
+
+   /**
+    * Wait until all images added so far are included in the summary.
+    */
+   private void finishIntensitySummary() {
+      ExecutorService executor;
+      synchronized (intensitySummaryLock_) {
+         executor = intensitySummaryExecutor_;
+         intensitySummaryExecutor_ = null;
+      }
+      if (executor == null) {
+         return;
+      }
+      executor.shutdown();
+      try {
+         executor.awaitTermination(1, TimeUnit.MINUTES);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      long skipped = intensitySummarySkipped_.get();
+      if (skipped > 0) {
+         ReportingUtils.logMessage("Intensity summary of " + name_ + " left out "
+               + skipped + " images that arrived too fast; not saving it");
+      }
+   }
+
+   private void saveIntensitySummary() {
+      IntensitySummary summary = intensitySummary_;
+      if (savePath_ == null || !summary.isModified()
+            || summary.getImageCount() != getNumImages()) {
+         return;
+      }
+      try {
+         summary.save(savePath_);
+      } catch (IOException e) {
+         ReportingUtils.logError(e, "Failed to save intensity summary to " + savePath_);
+      }
+   }
+
+   /**
+    * Return the per-channel intensity range of all images in this datastore.
+    * If the summary is not available for a frozen datastore (e.g. for data
+    * saved before summaries were kept, or when images were added faster than
+    * they could be summarized), it is computed by reading all images
+    * once. It is then kept in memory only: opening or viewing a dataset
+    * never writes into its directory.
+    *
+    * @return the intensity summary, or null if this datastore does not keep
+    *         one
+    * @throws IOException if reading images fails
+    */
+   public IntensitySummary getIntensitySummary() throws IOException {
+      if (!isIntensitySummaryTracked()) {
+         return null;
+      }
+      IntensitySummary summary = intensitySummary_;
+      if (isFrozen_ && summary.getImageCount() != getNumImages()) {
+         summary = new IntensitySummary();
+         for (Coords coords : getUnorderedImageCoords()) {
+            summary.add(getImage(coords));
+         }
+         intensitySummary_ = summary;
+      }
+      return summary;
+   }
+
    @Override
    public synchronized void freeze() throws IOException {
       if (!isFrozen_) {
@@ -393,6 +572,10 @@ public class DefaultDatastore implements Datastore {
          if (storage_ != null) {
             storage_.freeze();
          }
+         finishIntensitySummary();
+         saveIntensitySummary();
+         // Report all images before reporting that there will be no more
+         postNewImagesEvent();
          bus_.post(new DefaultDatastoreFrozenEvent());
       }
    }
@@ -430,6 +613,18 @@ public class DefaultDatastore implements Datastore {
    @Override
    public void setSavePath(String path) {
       savePath_ = path;
+      // Reopened data: pick up the summary saved with it
+      if (path != null && isIntensitySummaryTracked()
+            && intensitySummary_.getImageCount() == 0) {
+         try {
+            IntensitySummary saved = IntensitySummary.load(path);
+            if (saved != null) {
+               intensitySummary_ = saved;
+            }
+         } catch (IOException e) {
+            ReportingUtils.logError(e, "Failed to read intensity summary in " + path);
+         }
+      }
    }
 
    @Override
@@ -561,6 +756,23 @@ public class DefaultDatastore implements Datastore {
       }
    }
 
+   /**
+    * Whether new datastores keep an intensity summary of the images added to
+    * them (see {@link #getIntensitySummary}).
+    *
+    * @param studio Studio object to get access to the User Profile.
+    * @return true unless turned off in the User Profile
+    */
+   public static boolean getShouldKeepIntensitySummary(Studio studio) {
+      return studio.profile().getSettings(DefaultDatastore.class)
+            .getBoolean(SHOULD_KEEP_INTENSITY_SUMMARY, true);
+   }
+
+   public static void setShouldKeepIntensitySummary(Studio studio, boolean keep) {
+      studio.profile().getSettings(DefaultDatastore.class)
+            .putBoolean(SHOULD_KEEP_INTENSITY_SUMMARY, keep);
+   }
+
    /**
     * Saves the preferresed DataFormat in the User Profile.
     *
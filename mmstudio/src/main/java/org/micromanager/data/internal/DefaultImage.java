@@ -28,7 +28,9 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
 import java.nio.ShortBuffer;
+import java.util.function.Supplier;
 import mmcorej.TaggedImage;
 import mmcorej.org.json.JSONException;
 import mmcorej.org.json.JSONObject;
@@ -53,11 +55,19 @@ import org.micromanager.internal.utils.imageanalysis.ImageUtils;
  * getRawPixels(), the method exposed in the Image interface to access pixel
  * data, returns an ImageJ-style array, while getPixelBuffer (which is not
  * exposed in the API) returns the raw buffer.
+ *
+ * <p>The metadata of images read from disk can be deferred (see
+ * {@link #withDeferredMetadata}), so that code that only needs pixels and
+ * coords (display, playback, statistics) does not pay for parsing it.
  */
 public final class DefaultImage implements Image {
-   private DefaultMetadata metadata_;
+   private volatile DefaultMetadata metadata_;
+   // Produces metadata_ on first use when deferred; null otherwise
+   private Supplier<? extends Metadata> metadataSupplier_;
+   // Bit depth known without producing deferred metadata, or null
+   private Integer deferredBitDepth_;
    private Coords coords_;
-   private Buffer rawPixels_;
+   private volatile Buffer rawPixels_;
 
    // Width of the image, in pixels
    int pixelWidth_;
@@ -218,6 +228,73 @@ public final class DefaultImage implements Image {
       pixelType_ = PixelType.valueFor(bytesPerPixel, bpc, numComponents);
    }
 
+   /**
+    * Generates a DefaultImage that uses the given Buffer as pixel storage.
+    *
+    * <p>The buffer is used directly (i.e., it is not copied), which makes it
+    * possible to hand out views on memory-mapped files. Buffers that are not
+    * backed by a Java array are copied to the heap once, the first time
+    * getRawPixels() is called.
+    *
+    * <p>A ByteBuffer holding 16-bit pixels is viewed as a ShortBuffer in its
+    * byte order. Pixels in other buffer types (e.g. RGB pixels in an
+    * IntBuffer) are copied, in native byte order.
+    *
+    * @param pixels    ByteBuffer, ShortBuffer or IntBuffer holding the pixels (not null).
+    * @param width     Image width in pixels.
+    * @param height    Image height in pixels.
+    * @param pixelType Pixel type of the image.
+    * @param coords    Coords to be used for this new image (can be null).
+    * @param metadata  Metadata to be used this new image (can be null).
+    * @throws IllegalArgumentException when the buffer does not match the image size,
+    *                                  or is of another type
+    */
+   public DefaultImage(Buffer pixels, int width, int height, PixelType pixelType,
+                       Coords coords, Metadata metadata) throws IllegalArgumentException {
+      Preconditions.checkNotNull(pixels);
+      Preconditions.checkNotNull(pixelType);
+      metadata_ = metadata == null ? new DefaultMetadata.Builder().build() :
+            (DefaultMetadata) metadata;
+      coords_ = coords == null ? Coordinates.builder().build() : coords;
+      pixels = toComponentBuffer(pixels, pixelType.getBytesPerComponent());
+      if (pixels.capacity() < width * height) {
+         throw new IllegalArgumentException("Invalid pixel data " + pixels);
+      }
+      rawPixels_ = pixels;
+      pixelWidth_ = width;
+      pixelHeight_ = height;
+      pixelType_ = pixelType;
+   }
+
+   /**
+    * Returns the pixels in a ByteBuffer (1 byte per component) or a
+    * ShortBuffer (2 bytes per component), viewing or copying them as needed.
+    */
+   private static Buffer toComponentBuffer(Buffer pixels, int bytesPerComponent) {
+      if ((bytesPerComponent == 1 && pixels instanceof ByteBuffer)
+            || (bytesPerComponent == 2 && pixels instanceof ShortBuffer)) {
+         return pixels;
+      }
+      ByteBuffer bytes;
+      if (pixels instanceof ByteBuffer) {
+         ByteBuffer source = (ByteBuffer) pixels;
+         bytes = source.duplicate().order(source.order());
+      } else if (pixels instanceof ShortBuffer) {
+         ShortBuffer source = ((ShortBuffer) pixels).duplicate();
+         bytes = ByteBuffer.allocate(2 * source.remaining())
+               .order(BufferTools.NATIVE_ORDER);
+         bytes.asShortBuffer().put(source);
+      } else if (pixels instanceof IntBuffer) {
+         IntBuffer source = ((IntBuffer) pixels).duplicate();
+         bytes = ByteBuffer.allocate(4 * source.remaining())
+               .order(BufferTools.NATIVE_ORDER);
+         bytes.asIntBuffer().put(source);
+      } else {
+         throw new IllegalArgumentException("Invalid pixel data " + pixels);
+      }
+      return bytesPerComponent == 2 ? bytes.asShortBuffer() : bytes;
+   }
+
    /**
     * Creates a new image object that shares the pixels of the source image
     * Attaches the provided coords and metadata.
@@ -230,6 +307,17 @@ public final class DefaultImage implements Image {
       metadata_ = (DefaultMetadata) metadata;
       coords_ = coords;
 
+      if (source instanceof DefaultImage
+            && !((DefaultImage) source).rawPixels_.hasArray()) {
+         // Share the (possibly memory-mapped) buffer rather than forcing a copy
+         DefaultImage defaultSource = (DefaultImage) source;
+         rawPixels_ = BufferTools.duplicate(defaultSource.rawPixels_);
+         pixelWidth_ = defaultSource.pixelWidth_;
+         pixelHeight_ = defaultSource.pixelHeight_;
+         pixelType_ = defaultSource.pixelType_;
+         return;
+      }
+
       int bytesPerComponent = 0;
       if (source.getRawPixels() instanceof byte[]) {
          bytesPerComponent = 1;
@@ -258,9 +346,77 @@ public final class DefaultImage implements Image {
 
    }
 
+   /**
+    * Creates an image sharing the pixels and coords of the given image, whose
+    * metadata is only produced, by the given supplier, when first asked for.
+    * The supplier is called at most once per image (copies made with
+    * copyAtCoords() keep deferring, and call it again). If it throws,
+    * getMetadata() passes the exception on and asks again on the next call.
+    *
+    * @param image    image providing pixels and coords
+    * @param metadata supplier of the metadata of the new image
+    * @return the new image
+    */
+   public static DefaultImage withDeferredMetadata(DefaultImage image,
+                                                   Supplier<? extends Metadata> metadata) {
+      return withDeferredMetadata(image, metadata, null);
+   }
+
+   /**
+    * Like {@link #withDeferredMetadata(DefaultImage, Supplier)}, additionally
+    * providing the bit depth, which is needed to compute histograms, so that
+    * {@link #getBitDepth} does not produce the metadata.
+    *
+    * @param image    image providing pixels and coords
+    * @param metadata supplier of the metadata of the new image
+    * @param bitDepth bit depth found in the metadata, or null if unknown
+    * @return the new image
+    */
+   public static DefaultImage withDeferredMetadata(DefaultImage image,
+                                                   Supplier<? extends Metadata> metadata,
+                                                   Integer bitDepth) {
+      Preconditions.checkNotNull(metadata);
+      DefaultImage result = new DefaultImage(image, image.coords_, null);
+      result.metadataSupplier_ = metadata;
+      result.deferredBitDepth_ = bitDepth;
+      return result;
+   }
+
    @Override
    public Metadata getMetadata() {
-      return metadata_;
+      DefaultMetadata metadata = metadata_;
+      if (metadata != null) {
+         return metadata;
+      }
+      synchronized (this) {
+         if (metadata_ == null && metadataSupplier_ != null) {
+            metadata_ = (DefaultMetadata) metadataSupplier_.get();
+            metadataSupplier_ = null;
+         }
+         return metadata_;
+      }
+   }
+
+   /**
+    * Returns true if the metadata has been produced (always, unless the
+    * metadata was deferred and has not been asked for yet).
+    */
+   public boolean isMetadataLoaded() {
+      return metadata_ != null;
+   }
+
+   /**
+    * Returns the bit depth recorded in the metadata, without producing
+    * deferred metadata when the bit depth was provided with it.
+    *
+    * @return bit depth, or null if not recorded
+    */
+   public Integer getBitDepth() {
+      if (metadata_ == null && deferredBitDepth_ != null) {
+         return deferredBitDepth_;
+      }
+      Metadata metadata = getMetadata();
+      return metadata == null ? null : metadata.getBitDepth();
    }
 
    @Override
@@ -270,6 +426,15 @@ public final class DefaultImage implements Image {
 
    @Override
    public Image copyAtCoords(Coords coords) {
+      synchronized (this) {
+         if (metadata_ == null) {
+            // Keep deferring; the copy parses independently if asked
+            DefaultImage copy = new DefaultImage(this, coords, null);
+            copy.metadataSupplier_ = metadataSupplier_;
+            copy.deferredBitDepth_ = deferredBitDepth_;
+            return copy;
+         }
+      }
       return new DefaultImage(this, coords, metadata_);
    }
 
@@ -289,10 +454,26 @@ public final class DefaultImage implements Image {
     */
    @Override
    public Object getRawPixels() {
-      if (rawPixels_.hasArray()) {
-         return rawPixels_.array();
+      return heapPixels().array();
+   }
+
+   /**
+    * Returns the pixels in a buffer backed by a Java array, copying pixels
+    * held elsewhere (e.g. in a memory-mapped file) on first access, so that
+    * subsequent calls return the same array.
+    */
+   private Buffer heapPixels() {
+      Buffer pixels = rawPixels_;
+      if (pixels.hasArray()) {
+         return pixels;
+      }
+      synchronized (this) {
+         if (!rawPixels_.hasArray()) {
+            rawPixels_ = BufferTools.wrapArray(BufferTools.arrayFromBuffer(rawPixels_),
+                  pixelType_.getBytesPerComponent());
+         }
+         return rawPixels_;
       }
-      return BufferTools.arrayFromBuffer(rawPixels_);
    }
 
    @Override
@@ -324,8 +505,17 @@ public final class DefaultImage implements Image {
       return copy;
    }
 
+   /**
+    * Returns the buffer holding the pixels. Callers may write into it (e.g.
+    * processors that modify images in place); pixels held in a read-only
+    * buffer (such as a view on a memory-mapped file) are first copied to the
+    * heap.
+    *
+    * @return buffer holding the pixels of this image
+    */
    public Buffer getPixelBuffer() {
-      return rawPixels_;
+      Buffer pixels = rawPixels_;
+      return pixels.isReadOnly() ? heapPixels() : pixels;
    }
 
    // TODO Use ImgLib2
@@ -425,7 +615,7 @@ public final class DefaultImage implements Image {
       NonPropertyMapJSONFormats.coords().addToGson(jo,
             ((DefaultCoords) coords_).toPropertyMap());
       NonPropertyMapJSONFormats.metadata().addToGson(jo,
-            metadata_.toPropertyMap());
+            ((DefaultMetadata) getMetadata()).toPropertyMap());
       Gson gson = new GsonBuilder().disableHtmlEscaping().create();
       String json = gson.toJson(jo);
 
@@ -41,10 +41,12 @@ import static org.micromanager.data.internal.PropertyKey.Z_POSITION_UM;
 
 import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
+import java.io.IOException;
 import java.util.UUID;
 import org.micromanager.PropertyMap;
 import org.micromanager.PropertyMaps;
 import org.micromanager.data.Metadata;
+import org.micromanager.internal.propertymap.PropertyMapBinarySerializer;
 
 /**
  * This class holds the metadata for ImagePlanes. It is intended to be
@@ -207,6 +209,18 @@ public final class DefaultMetadata implements Metadata {
    }
 
 
+   // Keys written by index rather than by name in the binary encoding. Only
+   // ever append to this list (encodings made with a different list cannot
+   // be decoded).
+   private static final PropertyMapBinarySerializer.KeyDictionary BINARY_KEYS =
+         PropertyMapBinarySerializer.KeyDictionary.of(
+               PropertyKey.UUID.key(), CAMERA.key(), BINNING.key(), ROI.key(),
+               BIT_DEPTH.key(), EXPOSURE_MS.key(), ELAPSED_TIME_MS.key(),
+               IMAGE_NUMBER.key(), RECEIVED_TIME.key(), PIXEL_SIZE_UM.key(),
+               PIXEL_SIZE_AFFINE.key(), PIXEL_ASPECT.key(), POSITION_NAME.key(),
+               X_POSITION_UM.key(), Y_POSITION_UM.key(), Z_POSITION_UM.key(),
+               SCOPE_DATA.key(), USER_DATA.key(), FILE_NAME.key());
+
    private final PropertyMap pmap_;
 
    public DefaultMetadata(PropertyMap pmap) {
@@ -268,6 +282,33 @@ public final class DefaultMetadata implements Metadata {
       return pmap_;
    }
 
+   /**
+    * Compact binary form of this metadata, much faster to create and read
+    * back than JSON. Suitable for keeping and transporting metadata within
+    * a running application; not meant to be stored in files read by other
+    * programs.
+    *
+    * @return binary encoding of this metadata
+    * @throws UnsupportedOperationException if the metadata holds values that
+    *     have no binary form, such as legacy serialized objects
+    * @see #fromBinary(byte[])
+    */
+   public byte[] toBinary() {
+      return PropertyMapBinarySerializer.toBytes(pmap_, BINARY_KEYS);
+   }
+
+   /**
+    * Reverse of {@link #toBinary()}.
+    *
+    * @param bytes binary encoding created by toBinary()
+    * @return the metadata
+    * @throws IOException if the encoding is invalid
+    */
+   public static Metadata fromBinary(byte[] bytes) throws IOException {
+      return new DefaultMetadata(
+            PropertyMapBinarySerializer.fromBytes(bytes, BINARY_KEYS));
+   }
+
    @Override
    public UUID getUUID() {
       return pmap_.getUUID(PropertyKey.UUID.key(), null);
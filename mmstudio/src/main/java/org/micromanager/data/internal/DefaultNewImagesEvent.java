@@ -0,0 +1,34 @@
+package org.micromanager.data.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.micromanager.data.Coords;
+import org.micromanager.data.DataProvider;
+import org.micromanager.data.DataProviderHasNewImagesEvent;
+
+/**
+ * This class signifies that a batch of images has been added to a Datastore.
+ *
+ * <p>This Event posts on the DataProvider bus.
+ * Subscribe using {@link DataProvider#registerForEvents(Object)}.
+ */
+public final class DefaultNewImagesEvent implements DataProviderHasNewImagesEvent {
+   private final List<Coords> coords_;
+   private final DataProvider provider_;
+
+   public DefaultNewImagesEvent(List<Coords> coords, DataProvider provider) {
+      coords_ = Collections.unmodifiableList(new ArrayList<>(coords));
+      provider_ = provider;
+   }
+
+   @Override
+   public List<Coords> getCoords() {
+      return coords_;
+   }
+
+   @Override
+   public DataProvider getDataProvider() {
+      return provider_;
+   }
+}
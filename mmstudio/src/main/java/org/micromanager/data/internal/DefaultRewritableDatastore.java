@@ -49,6 +49,12 @@ public final class DefaultRewritableDatastore extends DefaultDatastore
       super.setStorage(storage);
    }
 
+   @Override
+   protected boolean isIntensitySummaryTracked() {
+      // Images are replaced all the time (e.g. in live mode)
+      return false;
+   }
+
    @Override
    public void setSummaryMetadata(SummaryMetadata metadata) throws DatastoreFrozenException {
       if (isFrozen_) {
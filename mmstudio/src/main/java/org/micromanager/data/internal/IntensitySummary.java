@@ -0,0 +1,313 @@
+package org.micromanager.data.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import org.micromanager.PropertyMap;
+import org.micromanager.PropertyMaps;
+import org.micromanager.data.Image;
+
+/**
+ * Intensity range of all images of a dataset, for each channel: minimum,
+ * maximum and a coarse histogram, from which an autoscaling range for the
+ * whole dataset can be derived without reading the images again.
+ *
+ * <p>The summary is updated image by image as they are added to a datastore,
+ * and is saved next to the data (in {@link #FILE_NAME}) so that it is
+ * available when the dataset is opened again. Only single-component (i.e.
+ * grayscale) images are summarized. Thread-safe.
+ */
+public final class IntensitySummary {
+   public static final String FILE_NAME = "IntensitySummary.json";
+
+   // 256 bins spanning the range of the bit depth of the channel
+   private static final int BIN_COUNT_POWER_OF_2 = 8;
+   private static final int BIN_COUNT = 1 << BIN_COUNT_POWER_OF_2;
+
+   private static final String KEY_IMAGE_COUNT = "ImageCount";
+   private static final String KEY_CHANNELS = "Channels";
+   private static final String KEY_CHANNEL = "Channel";
+   private static final String KEY_BIT_DEPTH = "BitDepth";
+   private static final String KEY_MIN = "Min";
+   private static final String KEY_MIN_NONZERO = "MinNonZero";
+   private static final String KEY_MAX = "Max";
+   private static final String KEY_ZERO_COUNT = "ZeroCount";
+   private static final String KEY_HISTOGRAM = "Histogram";
+
+   private static final class Channel {
+      int bitDepth_;
+      long min_ = Long.MAX_VALUE;
+      long minNonZero_ = Long.MAX_VALUE;
+      long max_ = Long.MIN_VALUE;
+      long zeroCount_ = 0;
+      final long[] histogram_ = new long[BIN_COUNT];
+
+      Channel(int bitDepth) {
+         bitDepth_ = Math.max(BIN_COUNT_POWER_OF_2, bitDepth);
+      }
+
+      /**
+       * Rebin the histogram for a larger bit depth; each power of 2 merges
+       * pairs of bins.
+       */
+      void widenTo(int bitDepth) {
+         while (bitDepth_ < bitDepth) {
+            for (int i = 0; i < BIN_COUNT / 2; ++i) {
+               histogram_[i] = histogram_[2 * i] + histogram_[2 * i + 1];
+            }
+            for (int i = BIN_COUNT / 2; i < BIN_COUNT; ++i) {
+               histogram_[i] = 0;
+            }
+            bitDepth_++;
+         }
+      }
+   }
+
+   // Guarded by this
+   private final TreeMap<Integer, Channel> channels_ = new TreeMap<>();
+   private long imageCount_ = 0;
+   private boolean modified_ = false;
+
+   // Only used by the thread calling add(); no need to allocate per image
+   private final long[] scratch_ = new long[BIN_COUNT];
+
+   /**
+    * Add the pixels of an image to the summary of its channel.
+    *
+    * @param image Image to add; images with several components are only
+    *              counted
+    */
+   public void add(Image image) {
+      if (image.getNumComponents() != 1) {
+         countImage();
+         return;
+      }
+      Object pixels = image.getRawPixels();
+      // Images read from disk may defer parsing their metadata; most of them
+      // know their bit depth without it
+      Integer boxedBitDepth = image instanceof DefaultImage
+            ? ((DefaultImage) image).getBitDepth() : image.getMetadata().getBitDepth();
+      int bitDepth = boxedBitDepth == null || boxedBitDepth <= 0
+            ? 8 * image.getBytesPerPixel() : boxedBitDepth;
+      int channel = image.getCoords().getChannel();
+
+      synchronized (scratch_) {
+         long[] histogram = scratch_;
+         Arrays.fill(histogram, 0L);
+         int shift = Math.max(0, bitDepth - BIN_COUNT_POWER_OF_2);
+         int lastBin = BIN_COUNT - 1;
+         int min = Integer.MAX_VALUE;
+         int minNonZero = Integer.MAX_VALUE;
+         int max = Integer.MIN_VALUE;
+         long zeroCount = 0;
+         if (pixels instanceof byte[]) {
+            for (byte b : (byte[]) pixels) {
+               int v = b & 0xff;
+               histogram[Math.min(lastBin, v >>> shift)]++;
+               min = Math.min(min, v);
+               max = Math.max(max, v);
+               if (v == 0) {
+                  zeroCount++;
+               } else if (v < minNonZero) {
+                  minNonZero = v;
+               }
+            }
+         } else if (pixels instanceof short[]) {
+            for (short s : (short[]) pixels) {
+               int v = s & 0xffff;
+               histogram[Math.min(lastBin, v >>> shift)]++;
+               min = Math.min(min, v);
+               max = Math.max(max, v);
+               if (v == 0) {
+                  zeroCount++;
+               } else if (v < minNonZero) {
+                  minNonZero = v;
+               }
+            }
+         } else {
+            countImage();
+            return;
+         }
+         if (min > max) {
+            countImage(); // No pixels
+            return;
+         }
+
+         synchronized (this) {
+            Channel summary = channels_.get(channel);
+            if (summary == null) {
+               summary = new Channel(bitDepth);
+               channels_.put(channel, summary);
+            }
+            int imageBitDepth = Math.max(BIN_COUNT_POWER_OF_2, bitDepth);
+            summary.widenTo(imageBitDepth);
+            // The image may have a smaller bit depth than earlier images
+            int fold = summary.bitDepth_ - imageBitDepth;
+            for (int i = 0; i < BIN_COUNT; ++i) {
+               summary.histogram_[i >> fold] += histogram[i];
+            }
+            summary.min_ = Math.min(summary.min_, min);
+            if (minNonZero != Integer.MAX_VALUE) {
+               summary.minNonZero_ = Math.min(summary.minNonZero_, minNonZero);
+            }
+            summary.max_ = Math.max(summary.max_, max);
+            summary.zeroCount_ += zeroCount;
+            imageCount_++;
+            modified_ = true;
+         }
+      }
+   }
+
+   private synchronized void countImage() {
+      imageCount_++;
+      modified_ = true;
+   }
+
+   /**
+    * Number of images that have been added to this summary, including the
+    * ones added before it was saved and loaded.
+    */
+   public synchronized long getImageCount() {
+      return imageCount_;
+   }
+
+   /**
+    * Whether images were added since the summary was created or loaded.
+    */
+   public synchronized boolean isModified() {
+      return modified_;
+   }
+
+   public synchronized boolean hasChannel(int channel) {
+      return channels_.containsKey(channel);
+   }
+
+   /**
+    * Intensity range covering the pixels of all images of a channel, except
+    * for a fraction of the darkest and the brightest pixels.
+    *
+    * <p>With a quantile of 0, the exact minimum and maximum are returned;
+    * otherwise the range is derived from the histogram, and its ends are
+    * rounded outwards to bin boundaries.
+    *
+    * @param channel     channel index
+    * @param quantile    fraction of pixels to ignore at each end (0 to 0.5)
+    * @param ignoreZeros whether to leave out pixels with a value of 0
+    * @return minimum and maximum, or null if no image of the channel was
+    *         added
+    */
+   public synchronized long[] getRange(int channel, double quantile,
+                                       boolean ignoreZeros) {
+      Channel summary = channels_.get(channel);
+      if (summary == null) {
+         return null;
+      }
+      long[] histogram = summary.histogram_.clone();
+      long min = summary.min_;
+      if (ignoreZeros) {
+         histogram[0] -= summary.zeroCount_;
+         min = summary.minNonZero_;
+      }
+      long max = summary.max_;
+      long count = 0;
+      for (long n : histogram) {
+         count += n;
+      }
+      if (count == 0) {
+         return null;
+      }
+      if (quantile <= 0.0) {
+         return new long[] {min, max};
+      }
+      int shift = summary.bitDepth_ - BIN_COUNT_POWER_OF_2;
+      long ignored = (long) Math.floor(Math.min(0.5, quantile) * count);
+      long cumulative = 0;
+      int low = 0;
+      while (low < BIN_COUNT - 1 && cumulative + histogram[low] <= ignored) {
+         cumulative += histogram[low];
+         low++;
+      }
+      cumulative = 0;
+      int high = BIN_COUNT - 1;
+      while (high > low && cumulative + histogram[high] <= ignored) {
+         cumulative += histogram[high];
+         high--;
+      }
+      long rangeMin = Math.max(min, (long) low << shift);
+      long rangeMax = Math.min(max, ((long) (high + 1) << shift) - 1);
+      return new long[] {rangeMin, Math.max(rangeMin, rangeMax)};
+   }
+
+   public synchronized PropertyMap toPropertyMap() {
+      List<PropertyMap> channels = new ArrayList<>();
+      for (Integer channel : channels_.keySet()) {
+         Channel summary = channels_.get(channel);
+         channels.add(PropertyMaps.builder()
+               .putInteger(KEY_CHANNEL, channel)
+               .putInteger(KEY_BIT_DEPTH, summary.bitDepth_)
+               .putLong(KEY_MIN, summary.min_)
+               .putLong(KEY_MIN_NONZERO, summary.minNonZero_)
+               .putLong(KEY_MAX, summary.max_)
+               .putLong(KEY_ZERO_COUNT, summary.zeroCount_)
+               .putLongList(KEY_HISTOGRAM, summary.histogram_)
+               .build());
+      }
+      return PropertyMaps.builder()
+            .putLong(KEY_IMAGE_COUNT, imageCount_)
+            .putPropertyMapList(KEY_CHANNELS, channels)
+            .build();
+   }
+
+   /**
+    * Recreate a summary from its property map form.
+    *
+    * @throws IOException if the map is not a valid summary
+    */
+   public static IntensitySummary fromPropertyMap(PropertyMap map) throws IOException {
+      IntensitySummary result = new IntensitySummary();
+      result.imageCount_ = map.getLong(KEY_IMAGE_COUNT, 0L);
+      for (PropertyMap pm : map.getPropertyMapList(KEY_CHANNELS)) {
+         Channel summary = new Channel(pm.getInteger(KEY_BIT_DEPTH, 0));
+         long[] histogram = pm.getLongList(KEY_HISTOGRAM);
+         if (histogram.length != BIN_COUNT) {
+            throw new IOException("Invalid intensity summary histogram");
+         }
+         System.arraycopy(histogram, 0, summary.histogram_, 0, BIN_COUNT);
+         summary.min_ = pm.getLong(KEY_MIN, Long.MAX_VALUE);
+         summary.minNonZero_ = pm.getLong(KEY_MIN_NONZERO, Long.MAX_VALUE);
+         summary.max_ = pm.getLong(KEY_MAX, Long.MIN_VALUE);
+         summary.zeroCount_ = pm.getLong(KEY_ZERO_COUNT, 0L);
+         result.channels_.put(pm.getInteger(KEY_CHANNEL, 0), summary);
+      }
+      return result;
+   }
+
+   /**
+    * Save the summary in the given directory.
+    */
+   public void save(String directory) throws IOException {
+      PropertyMap map;
+      synchronized (this) {
+         map = toPropertyMap();
+         modified_ = false;
+      }
+      map.saveJSON(new File(directory, FILE_NAME), true, false);
+   }
+
+   /**
+    * Load the summary saved in the given directory.
+    *
+    * @return the summary, or null if none was saved there
+    * @throws IOException if the saved summary cannot be read
+    */
+   public static IntensitySummary load(String directory) throws IOException {
+      File file = new File(directory, FILE_NAME);
+      if (!file.isFile()) {
+         return null;
+      }
+      return fromPropertyMap(PropertyMaps.loadJSON(file));
+   }
+}
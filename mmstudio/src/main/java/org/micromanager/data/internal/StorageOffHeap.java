@@ -0,0 +1,522 @@
+package org.micromanager.data.internal;
+
+import com.google.common.eventbus.Subscribe;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import org.micromanager.data.Coords;
+import org.micromanager.data.DataProviderHasNewSummaryMetadataEvent;
+import org.micromanager.data.Datastore;
+import org.micromanager.data.Image;
+import org.micromanager.data.Metadata;
+import org.micromanager.data.RewritableStorage;
+import org.micromanager.data.SummaryMetadata;
+import org.micromanager.internal.MMStudio;
+import org.micromanager.internal.utils.ReportingUtils;
+
+
+/**
+ * RAM-based storage that keeps pixel data outside of the Java heap, within a
+ * fixed byte budget. Only metadata and coords are kept on the heap, the
+ * metadata in the compact binary form of {@link DefaultMetadata#toBinary()};
+ * it is decoded only when the metadata of an image handed out is used.
+ * Metadata that has no binary form (legacy serialized user data) is kept as
+ * is.
+ *
+ * <p>Pixels are copied into fixed-size slots carved out of direct ByteBuffer
+ * slabs (all images in a Datastore have the same size). When the budget is
+ * exhausted, the least recently used planes are written to a scratch file and
+ * their slots are reused. Spilled planes are transparently read back (and
+ * become resident again) when requested, so that getImage() and
+ * getImagesMatching() behave exactly as in StorageRAM.
+ *
+ * <p>Images handed out by this storage own a heap copy of the pixels, since
+ * slots are recycled. Methods that touch the slots or the scratch file are
+ * synchronized.
+ */
+public final class StorageOffHeap implements RewritableStorage {
+   private static final String RAM_BUDGET_MB = "off-heap RAM storage budget in MB";
+   private static final long BYTES_PER_MB = 1024L * 1024L;
+   // Size of a single direct allocation; a slab holds as many planes as fit.
+   private static final long SLAB_BYTES = 256L * BYTES_PER_MB;
+
+   private final long budgetBytes_;
+   private HashMap<Coords, Entry> coordsToEntry_;
+   // Resident entries in least-recently-used order
+   private LinkedHashMap<Coords, Entry> resident_;
+   private CoordsIndex coordsIndex_;
+   private Coords maxIndex_;
+   private SummaryMetadata summaryMetadata_;
+   private final Set<String> axesInUse_;
+   // First image added, for checking the sizes of later ones (it may since
+   // have been overwritten or deleted)
+   private Image firstImage_;
+
+   private int width_;
+   private int height_;
+   private int planeBytes_ = -1;
+   private int planesPerSlab_;
+   private int maxSlots_;
+   private final List<ByteBuffer> slabs_ = new ArrayList<>();
+   private final ArrayDeque<Integer> freeSlots_ = new ArrayDeque<>();
+   private int numSlots_ = 0;
+
+   private File spillFile_;
+   private RandomAccessFile spillRaFile_;
+   private FileChannel spillChannel_;
+   private final ArrayDeque<Long> freeSpillOffsets_ = new ArrayDeque<>();
+   private long spillFileEnd_ = 0;
+   private long spillCount_ = 0;
+   private long reloadCount_ = 0;
+
+   /**
+    * Image Data Storage located in off-heap RAM, with spill to disk.
+    *
+    * @param store       Datastore that "owns" this storage.
+    * @param budgetBytes Maximum number of bytes of pixel data kept in RAM.
+    */
+   public StorageOffHeap(Datastore store, long budgetBytes) {
+      budgetBytes_ = budgetBytes;
+      coordsToEntry_ = new HashMap<>();
+      resident_ = new LinkedHashMap<>(16, 0.75f, true);
+      maxIndex_ = new DefaultCoords.Builder().build();
+      axesInUse_ = new TreeSet<>();
+      summaryMetadata_ = (new DefaultSummaryMetadata.Builder()).build();
+      coordsIndex_ = new CoordsIndex(Coords.C);
+      // It is imperative that we be notified of new images before anyone who
+      // wants to retrieve the images from the store is notified.
+      ((DefaultDatastore) store).registerForEvents(this, 0);
+   }
+
+   /**
+    * Add a new image to our storage, and update maxIndex_.
+    */
+   @Override
+   public synchronized void putImage(Image image) throws IOException {
+      if (firstImage_ != null) {
+         ImageSizeChecker.checkImageSizes(image, firstImage_);
+      } else {
+         ImageSizeChecker.checkImageSizeInSummary(summaryMetadata_, image);
+         initializeSlots(image);
+      }
+      Coords coords = image.getCoords();
+      Entry entry = coordsToEntry_.get(coords);
+      if (entry == null) {
+         entry = new Entry(coords);
+         coordsToEntry_.put(coords, entry);
+      } else {
+         // Overwriting an existing image (rewritable store)
+         releaseSpill(entry);
+      }
+      Metadata metadata = image.getMetadata();
+      entry.metadata_ = null;
+      entry.heapMetadata_ = null;
+      if (metadata instanceof DefaultMetadata) {
+         try {
+            entry.metadata_ = ((DefaultMetadata) metadata).toBinary();
+         } catch (UnsupportedOperationException e) {
+            // Values the binary form cannot hold, such as legacy serialized
+            // objects in the user data
+         }
+      }
+      if (entry.metadata_ == null) {
+         entry.heapMetadata_ = metadata;
+      }
+      entry.bitDepth_ = metadata.getBitDepth();
+      entry.pixelType_ = ((DefaultImage) image).getPixelType();
+      if (entry.slot_ < 0) {
+         entry.slot_ = allocateSlot();
+      }
+      resident_.put(coords, entry);
+      copyToSlot(image.getRawPixels(), entry.slot_);
+      if (firstImage_ == null) {
+         firstImage_ = readEntry(entry);
+      }
+
+      coordsIndex_.add(coords);
+
+      for (String axis : coords.getAxes()) {
+         axesInUse_.add(axis);
+         if (maxIndex_.getIndex(axis) < coords.getIndex(axis)) {
+            maxIndex_ = maxIndex_.copyBuilder()
+                  .index(axis, coords.getIndex(axis))
+                  .build();
+         }
+      }
+   }
+
+   private void initializeSlots(Image image) {
+      width_ = image.getWidth();
+      height_ = image.getHeight();
+      planeBytes_ = width_ * height_ * image.getBytesPerPixel();
+      planesPerSlab_ = (int) Math.max(1, SLAB_BYTES / planeBytes_);
+      maxSlots_ = (int) Math.max(1, Math.min(Integer.MAX_VALUE, budgetBytes_ / planeBytes_));
+   }
+
+   /**
+    * Returns a free slot, allocating a new slab or spilling the least recently
+    * used resident plane to disk when needed.
+    */
+   private int allocateSlot() throws IOException {
+      if (!freeSlots_.isEmpty()) {
+         return freeSlots_.pop();
+      }
+      if (numSlots_ < maxSlots_) {
+         if (numSlots_ == slabs_.size() * planesPerSlab_) {
+            int planes = Math.min(planesPerSlab_, maxSlots_ - numSlots_);
+            slabs_.add(ByteBuffer.allocateDirect(planes * planeBytes_)
+                  .order(BufferTools.NATIVE_ORDER));
+         }
+         return numSlots_++;
+      }
+      Iterator<Entry> lru = resident_.values().iterator();
+      Entry victim = lru.next();
+      lru.remove();
+      spill(victim);
+      int slot = victim.slot_;
+      victim.slot_ = -1;
+      return slot;
+   }
+
+   private ByteBuffer slotView(int slot) {
+      ByteBuffer view = slabs_.get(slot / planesPerSlab_).duplicate()
+            .order(BufferTools.NATIVE_ORDER);
+      int start = (slot % planesPerSlab_) * planeBytes_;
+      view.position(start);
+      view.limit(start + planeBytes_);
+      return view.slice().order(BufferTools.NATIVE_ORDER);
+   }
+
+   private void copyToSlot(Object pixels, int slot) {
+      ByteBuffer view = slotView(slot);
+      if (pixels instanceof byte[]) {
+         view.put((byte[]) pixels);
+      } else if (pixels instanceof short[]) {
+         view.asShortBuffer().put((short[]) pixels);
+      } else {
+         throw new UnsupportedOperationException("Unsupported pixel data type");
+      }
+   }
+
+   private void spill(Entry entry) throws IOException {
+      if (spillChannel_ == null) {
+         spillFile_ = File.createTempFile("MMOffHeapStorage", ".bin");
+         spillFile_.deleteOnExit();
+         spillRaFile_ = new RandomAccessFile(spillFile_, "rw");
+         spillChannel_ = spillRaFile_.getChannel();
+      }
+      if (entry.spillOffset_ < 0) {
+         if (!freeSpillOffsets_.isEmpty()) {
+            entry.spillOffset_ = freeSpillOffsets_.pop();
+         } else {
+            entry.spillOffset_ = spillFileEnd_;
+            spillFileEnd_ += planeBytes_;
+         }
+         ByteBuffer view = slotView(entry.slot_);
+         long position = entry.spillOffset_;
+         while (view.hasRemaining()) {
+            position += spillChannel_.write(view, position);
+         }
+         spillCount_++;
+      }
+      // else: the plane was already spilled and has not changed since it was
+      // read back, so the copy on disk is still valid.
+   }
+
+   private void releaseSpill(Entry entry) {
+      if (entry.spillOffset_ >= 0) {
+         freeSpillOffsets_.push(entry.spillOffset_);
+         entry.spillOffset_ = -1;
+      }
+   }
+
+   /**
+    * Makes the entry resident (reading it back from the scratch file if
+    * needed) and returns a heap copy of the image.
+    */
+   private Image readEntry(Entry entry) throws IOException {
+      if (entry.slot_ < 0) {
+         int slot = allocateSlot();
+         ByteBuffer view = slotView(slot);
+         long position = entry.spillOffset_;
+         while (view.hasRemaining()) {
+            int read = spillChannel_.read(view, position);
+            if (read < 0) {
+               throw new IOException("Unexpected end of RAM storage scratch file");
+            }
+            position += read;
+         }
+         entry.slot_ = slot;
+         reloadCount_++;
+      }
+      resident_.put(entry.coords_, entry);
+      ByteBuffer view = slotView(entry.slot_);
+      Object pixels;
+      if (entry.pixelType_.getBytesPerComponent() == 2) {
+         short[] shorts = new short[planeBytes_ / 2];
+         view.asShortBuffer().get(shorts);
+         pixels = shorts;
+      } else {
+         byte[] bytes = new byte[planeBytes_];
+         view.get(bytes);
+         pixels = bytes;
+      }
+      DefaultImage image = new DefaultImage(pixels, width_, height_,
+            entry.pixelType_.getBytesPerPixel(),
+            entry.pixelType_.getNumberOfComponents(), entry.coords_,
+            entry.heapMetadata_);
+      if (entry.heapMetadata_ != null) {
+         return image;
+      }
+      final byte[] metadata = entry.metadata_;
+      return DefaultImage.withDeferredMetadata(image, () -> decodeMetadata(metadata),
+            entry.bitDepth_);
+   }
+
+   private static Metadata decodeMetadata(byte[] bytes) {
+      try {
+         return DefaultMetadata.fromBinary(bytes);
+      } catch (IOException e) {
+         // We only ever decode what toBinary() produced
+         throw new IllegalStateException("Corrupt metadata in RAM storage", e);
+      }
+   }
+
+   @Override
+   public void freeze() {
+      // The Datastore handles making certain writes don't occur, and we don't
+      // do anything special to "finish" storing data, so this is a no-op.
+   }
+
+   @Override
+   public synchronized Image getImage(Coords coords) {
+      if (coordsToEntry_ == null || !coordsToEntry_.containsKey(coords)) {
+         return null;
+      }
+      try {
+         return readEntry(coordsToEntry_.get(coords));
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex, "Failed to read image at " + coords);
+         return null;
+      }
+   }
+
+   @Override
+   public synchronized Image getAnyImage() {
+      if (coordsToEntry_ == null || coordsToEntry_.isEmpty()) {
+         return null;
+      }
+      // Prefer the first image, if it is still there, for consistency
+      Entry entry = coordsToEntry_.get(firstImage_.getCoords());
+      if (entry == null) {
+         entry = coordsToEntry_.values().iterator().next();
+      }
+      try {
+         return readEntry(entry);
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex, "Failed to read image at " + entry.coords_);
+         return null;
+      }
+   }
+
+   @Override
+   public synchronized List<Image> getImagesMatching(Coords coords) {
+      List<String> ignoredAxes = new ArrayList<>();
+      for (String axis : axesInUse_) {
+         if (!coords.getAxes().contains(axis)) {
+            ignoredAxes.add(axis);
+         }
+      }
+      return getImagesIgnoringAxes(coords, ignoredAxes.toArray(new String[0]));
+   }
+
+   @Override
+   public synchronized List<Image> getImagesIgnoringAxes(Coords coords,
+                                                         String... ignoreTheseAxes) {
+      if (coordsToEntry_ == null) {
+         return null;
+      }
+      List<String> ignoredInUse = new ArrayList<>(ignoreTheseAxes.length);
+      for (String axis : ignoreTheseAxes) {
+         if (axesInUse_.contains(axis)) {
+            ignoredInUse.add(axis);
+         }
+      }
+      // Only read pixels for matching entries.
+      List<Image> result = new ArrayList<>();
+      for (Coords match : coordsIndex_.getMatching(coords,
+            ignoredInUse.toArray(new String[0]))) {
+         Image image = getImage(match);
+         if (image != null) {
+            result.add(image);
+         }
+      }
+      return result;
+   }
+
+   @Override
+   public synchronized Iterable<Coords> getUnorderedImageCoords() {
+      return coordsToEntry_.keySet();
+   }
+
+   @Override
+   public synchronized boolean hasImage(Coords coords) {
+      return coordsToEntry_ != null && coordsToEntry_.containsKey(coords);
+   }
+
+   @Override
+   public int getMaxIndex(String axis) {
+      return maxIndex_.getIndex(axis);
+   }
+
+   @Override
+   public List<String> getAxes() {
+      return summaryMetadata_.getOrderedAxes();
+   }
+
+   @Override
+   public Coords getMaxIndices() {
+      return maxIndex_;
+   }
+
+   @Override
+   public SummaryMetadata getSummaryMetadata() {
+      return summaryMetadata_;
+   }
+
+   /**
+    * Recieve the new summary through an event.  This is guaranteed to happen before
+    * putImage is called.
+    *
+    * @param event this gives use the summary metadata
+    */
+   @Subscribe
+   public void onNewSummary(DataProviderHasNewSummaryMetadataEvent event) {
+      summaryMetadata_ = event.getSummaryMetadata();
+      coordsIndex_.presize(summaryMetadata_.getIntendedDimensions());
+   }
+
+   @Override
+   public synchronized int getNumImages() {
+      return coordsToEntry_.size();
+   }
+
+   /**
+    * Number of times a plane was written to the scratch file. Planes that
+    * are evicted again after being read back, unchanged, are not counted.
+    *
+    * @return number of spills since this storage was created
+    */
+   public synchronized long getSpillCount() {
+      return spillCount_;
+   }
+
+   /**
+    * Number of times a plane was read back from the scratch file.
+    *
+    * @return number of reloads since this storage was created
+    */
+   public synchronized long getReloadCount() {
+      return reloadCount_;
+   }
+
+   @Override
+   public synchronized void deleteImage(Coords coords) throws IllegalArgumentException {
+      if (!coordsToEntry_.containsKey(coords)) {
+         throw new IllegalArgumentException("Storage does not contain image at " + coords);
+      }
+      Entry entry = coordsToEntry_.remove(coords);
+      resident_.remove(coords);
+      if (entry.slot_ >= 0) {
+         freeSlots_.push(entry.slot_);
+      }
+      releaseSpill(entry);
+      coordsIndex_.remove(coords);
+   }
+
+   @Override
+   public synchronized void close() {
+      if (spillCount_ > 0) {
+         ReportingUtils.logMessage("Off-heap RAM storage wrote " + spillCount_
+               + " planes to disk and read back " + reloadCount_);
+      }
+      coordsToEntry_ = null;
+      resident_ = null;
+      coordsIndex_ = null;
+      // Direct buffers are released when garbage collected
+      slabs_.clear();
+      freeSlots_.clear();
+      if (spillChannel_ != null) {
+         try {
+            spillChannel_.close();
+            spillRaFile_.close();
+         } catch (IOException ex) {
+            ReportingUtils.logError(ex, "Error closing RAM storage scratch file");
+         }
+         if (!spillFile_.delete()) {
+            ReportingUtils.logError("Unable to delete " + spillFile_);
+         }
+         spillChannel_ = null;
+      }
+   }
+
+   /**
+    * Returns the budget for off-heap RAM storage of acquisitions that are not
+    * saved to disk.
+    *
+    * @return Budget in MB, or 0 if such acquisitions use the unbounded StorageRAM
+    */
+   public static long getBudgetMB() {
+      return MMStudio.getInstance().profile().getSettings(StorageOffHeap.class)
+            .getLong(RAM_BUDGET_MB, 0L);
+   }
+
+   public static void setBudgetMB(long budgetMB) {
+      MMStudio.getInstance().profile().getSettings(StorageOffHeap.class)
+            .putLong(RAM_BUDGET_MB, Math.max(0L, budgetMB));
+   }
+
+   /**
+    * Creates the storage to be used for in-RAM datasets, according to the
+    * budget set by the user.
+    *
+    * @param store Datastore that will own the storage
+    * @return StorageOffHeap when a budget is set, StorageRAM otherwise
+    */
+   public static RewritableStorage createRAMStorage(Datastore store) {
+      long budgetMB = getBudgetMB();
+      if (budgetMB > 0) {
+         return new StorageOffHeap(store, budgetMB * BYTES_PER_MB);
+      }
+      return new StorageRAM(store);
+   }
+
+   private static final class Entry {
+      private final Coords coords_;
+      // Binary encoding of the metadata (see DefaultMetadata.toBinary())
+      private byte[] metadata_;
+      // The metadata itself, when it has no binary encoding
+      private Metadata heapMetadata_;
+      // Bit depth from the metadata, so that it is known without decoding
+      private Integer bitDepth_;
+      private PixelType pixelType_;
+      // Index of the RAM slot holding the pixels, or -1 when not resident
+      private int slot_ = -1;
+      // Position of the pixels in the scratch file, or -1 when never spilled
+      private long spillOffset_ = -1;
+
+      Entry(Coords coords) {
+         coords_ = coords;
+      }
+   }
+}
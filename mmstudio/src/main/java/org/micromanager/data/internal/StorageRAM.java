@@ -23,11 +23,9 @@ package org.micromanager.data.internal;
 import com.google.common.eventbus.Subscribe;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.ConcurrentModificationException;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import org.micromanager.data.Coords;
@@ -50,7 +48,7 @@ import org.micromanager.internal.utils.ReportingUtils;
  */
 public final class StorageRAM implements RewritableStorage {
    private HashMap<Coords, Image> coordsToImage_;
-   private Map<Coords, List<Coords>> coordsIndexedMissingC_;
+   private CoordsIndex coordsIndex_;
    private Coords maxIndex_;
    private SummaryMetadata summaryMetadata_;
    private final Set<String> axesInUse_;
@@ -65,7 +63,7 @@ public final class StorageRAM implements RewritableStorage {
       maxIndex_ = new DefaultCoords.Builder().build();
       axesInUse_ = new TreeSet<>();
       summaryMetadata_ = (new DefaultSummaryMetadata.Builder()).build();
-      coordsIndexedMissingC_ = new HashMap<>();
+      coordsIndex_ = new CoordsIndex(Coords.C);
       // It is imperative that we be notified of new images before anyone who
       // wants to retrieve the images from the store is notified.
       ((DefaultDatastore) store).registerForEvents(this, 0);
@@ -85,15 +83,9 @@ public final class StorageRAM implements RewritableStorage {
       // index the coords
       Coords coords = image.getCoords();
       coordsToImage_.put(coords, image);
-      Coords coordsNoC = image.getCoords().copyRemovingAxes(Coords.C);
-      if (!coordsIndexedMissingC_.containsKey(coordsNoC)) {
-         coordsIndexedMissingC_.put(coordsNoC, new ArrayList<>(4));
-      }
-      // since we can insert the same coords multiple times in a rewriteable RAMStore
-      // we need to check if this coord was already present
-      if (!coordsIndexedMissingC_.get(coordsNoC).contains(image.getCoords())) {
-         coordsIndexedMissingC_.get(coordsNoC).add(image.getCoords());
-      }
+      // since we can insert the same coords multiple times in a rewriteable RAMStore,
+      // the index ignores coords that were already present
+      coordsIndex_.add(coords);
 
       for (String axis : coords.getAxes()) {
          axesInUse_.add(axis);
@@ -167,46 +159,21 @@ public final class StorageRAM implements RewritableStorage {
       if (coordsToImage_ == null) {
          return null;
       }
-      // Optimization: traversing large HashMaps is costly, so avoid that when there is no need
-      // without this, there is noticeable slowdown for one axis data > ~10,000 images.
-      // An alternative optimization approach is to keep collections of coords
-      // for all possible ignoredAxes.  There is more upfront work involved but may be
-      // needed for fast multi-camera imaging.
-      List<Image> result = new ArrayList<>();
-      boolean haveIgnoredAxes = false;
+      // Traversing large HashMaps is costly, so all lookups go through the
+      // coords index, which keeps a projection for every combination of
+      // ignored axes that has been asked for.
+      List<String> ignoredInUse = new ArrayList<>(ignoreTheseAxes.length);
       for (String axis : ignoreTheseAxes) {
          if (axesInUse_.contains(axis)) {
-            haveIgnoredAxes = true;
-            break;
+            ignoredInUse.add(axis);
          }
       }
-      if (!haveIgnoredAxes) {
-         result.add(coordsToImage_.get(coords));
-      } else {
-         // special case: if the ignored axis is C, use a special index to find the Coords
-         // otherwise, the search will be very expensive (which will  be the case for other
-         // axes) and result in noticaeble slowodwns with large datasetsz
-         if (ignoreTheseAxes[0].equals(Coords.CHANNEL)) {
-            if (coordsIndexedMissingC_.get(coords) != null) {
-               for (Coords tmpCoords : coordsIndexedMissingC_.get(coords)) {
-                  result.add(coordsToImage_.get(tmpCoords));
-               }
-            }
-         } else {
-            // Brute force it.  This will be slow with large data sets
-            // Note that coordsToReader_ can be modified at the same time,
-            // catch ConcurrentModificationException rather than incur the cost
-            // of a lock that could slow down insertions
-            try {
-               for (Image image : coordsToImage_.values()) {
-                  Coords imCoord = image.getCoords().copyRemovingAxes(ignoreTheseAxes);
-                  if (imCoord.equals(coords)) {
-                     result.add(image);
-                  }
-               }
-            } catch (ConcurrentModificationException cme) {
-               ReportingUtils.logError(cme, "coordsToReader_ was modified while iterating");
-            }
+      List<Image> result = new ArrayList<>();
+      for (Coords match : coordsIndex_.getMatching(coords,
+            ignoredInUse.toArray(new String[0]))) {
+         Image image = coordsToImage_.get(match);
+         if (image != null) {
+            result.add(image);
          }
       }
       return result;
@@ -254,15 +221,8 @@ public final class StorageRAM implements RewritableStorage {
       summaryMetadata_ = event.getSummaryMetadata();
 
       // setSummaryMetadata must be called before adding images to the store, so use this moment
-      // to smartly initialize several HashMaps
-      Coords dims = summaryMetadata_.getIntendedDimensions();
-      int nrImagesNoC = 1;
-      for (String axis : dims.getAxes()) {
-         if (!axis.equals(Coords.CHANNEL)) {
-            nrImagesNoC *= dims.getIndex(axis);
-         }
-      }
-      coordsIndexedMissingC_ = new HashMap<>(nrImagesNoC);
+      // to smartly initialize the index
+      coordsIndex_.presize(summaryMetadata_.getIntendedDimensions());
    }
 
    @Override
@@ -276,11 +236,12 @@ public final class StorageRAM implements RewritableStorage {
          throw new IllegalArgumentException("Storage does not contain image at " + coords);
       }
       coordsToImage_.remove(coords);
+      coordsIndex_.remove(coords);
    }
 
    @Override
    public void close() {
       coordsToImage_ = null;
-      coordsIndexedMissingC_ = null;
+      coordsIndex_ = null;
    }
 }
@@ -64,6 +64,7 @@ import org.micromanager.data.Image;
 import org.micromanager.data.Metadata;
 import org.micromanager.data.Storage;
 import org.micromanager.data.SummaryMetadata;
+import org.micromanager.data.internal.multipagetiff.ScopeDataDelta;
 import org.micromanager.internal.propertymap.NonPropertyMapJSONFormats;
 import org.micromanager.internal.utils.JavaUtils;
 import org.micromanager.internal.utils.ReportingUtils;
@@ -79,15 +80,21 @@ public final class StorageSinglePlaneTiffSeries implements Storage {
    private static final HashSet<String> ALLOWED_AXES = new HashSet<>(
          Arrays.asList(Coords.CHANNEL, Coords.T, Coords.Z,
                Coords.STAGE_POSITION));
+   // Shared by all writes; building a Gson for each image is slow
+   private static final Gson GSON = new GsonBuilder().disableHtmlEscaping()
+         .setPrettyPrinting().create();
+
    private final DefaultDatastore store_;
    private final String dir_;
    private boolean firstElement_;
    private boolean amLoading_;
    private final HashMap<Integer, Writer> metadataStreams_;
+   // Null unless the scope data in metadata.txt is delta encoded
+   private final HashMap<Integer, ScopeDataDelta> scopeDataDeltas_;
    private boolean isDatasetWritable_;
    private SummaryMetadata summaryMetadata_ = (new DefaultSummaryMetadata.Builder()).build();
    private final ConcurrentHashMap<Coords, String> coordsToFilename_;
-   private Map<Coords, List<Coords>> coordsIndexedMissingC_;
+   private CoordsIndex coordsIndex_;
    private final HashMap<Integer, String> positionIndexToName_;
    private final ArrayList<String> orderedChannelNames_;
    private final Set<String> axesInUse_;
@@ -105,6 +112,23 @@ public final class StorageSinglePlaneTiffSeries implements Storage {
     */
    public StorageSinglePlaneTiffSeries(DefaultDatastore store,
                                        String directory, boolean newDataSet) throws IOException {
+      this(store, directory, newDataSet, false);
+   }
+
+   /**
+    * Implements storing single plane TIff series.
+    *
+    * @param store          Datastore using this storage implementation.
+    * @param directory      Path on disk used to store data.
+    * @param newDataSet     Whether this is a new (true) or existing (false) dataset.
+    * @param deltaScopeData Whether the per-image entries of metadata.txt store
+    *                       only the device properties that changed (see
+    *                       ScopeDataDelta). The TIFF files always hold all of them.
+    * @throws IOException As can be expected with disk-based storage.
+    */
+   public StorageSinglePlaneTiffSeries(DefaultDatastore store, String directory,
+                                       boolean newDataSet, boolean deltaScopeData)
+         throws IOException {
       store_ = store;
       dir_ = directory;
       store_.setSavePath(dir_);
@@ -118,12 +142,13 @@ public final class StorageSinglePlaneTiffSeries implements Storage {
       store_.registerForEvents(this, 0);
       coordsToFilename_ = new ConcurrentHashMap<>();
       metadataStreams_ = new HashMap<>();
+      scopeDataDeltas_ = deltaScopeData && newDataSet ? new HashMap<>() : null;
       positionIndexToName_ = new HashMap<>();
       orderedChannelNames_ = new ArrayList<>();
       axesInUse_ = new TreeSet<>();
       maxIndices_ = new DefaultCoords.Builder().build();
       amLoading_ = false;
-      coordsIndexedMissingC_ = new HashMap<>();
+      coordsIndex_ = new CoordsIndex(Coords.C);
       isMultiPosition_ = true;
 
       // Note: this will throw an error if there is no existing data set
@@ -206,15 +231,13 @@ public final class StorageSinglePlaneTiffSeries implements Storage {
                ((DefaultCoords) image.getCoords()).toPropertyMap());
          Metadata imgMetadata = image.getMetadata().copyBuilderPreservingUUID()
                .fileName(fileName).build();
-         NonPropertyMapJSONFormats.metadata().addToGson(jo,
-               ((DefaultMetadata) imgMetadata).toPropertyMap());
+         PropertyMap mdPmap = ((DefaultMetadata) imgMetadata).toPropertyMap();
+         NonPropertyMapJSONFormats.metadata().addToGson(jo, mdPmap);
 
-         Gson gson = new GsonBuilder().disableHtmlEscaping()
-               .setPrettyPrinting().create();
-         String metadataJSON = gson.toJson(jo);
+         String metadataJSON = GSON.toJson(jo);
 
          saveImageFile(image, dir_, fileName, metadataJSON);
-         writeFrameMetadata(image, metadataJSON, fileName);
+         writeFrameMetadata(image, metadataJSON, mdPmap, fileName);
       }
 
       // Update our Coords indices
@@ -224,11 +247,7 @@ public final class StorageSinglePlaneTiffSeries implements Storage {
          // isn't?  See the above code that branches based on amLoading_.
          coordsToFilename_.put(coords, fileName);
       }
-      Coords coordsNoC = image.getCoords().copyRemovingAxes(Coords.C);
-      if (!coordsIndexedMissingC_.containsKey(coordsNoC)) {
-         coordsIndexedMissingC_.put(coordsNoC, new ArrayList<>(4));
-      }
-      coordsIndexedMissingC_.get(coordsNoC).add(image.getCoords());
+      coordsIndex_.add(coords);
 
       // Update our tracking of the max index along each axis.
       for (String axis : coords.getAxes()) {
@@ -354,36 +373,21 @@ public final class StorageSinglePlaneTiffSeries implements Storage {
       if (coordsToFilename_ == null) {
          return null;
       }
-      // Optimization: traversing large HashMaps is costly, so avoid that when there is no need
-      // without this, there is noticeable slowdown for one axis data > ~10,000 images.
-      // An alternative optimization approach is to keep collections of coords
-      // for all possible ignoredAxes.  There is more upfront work involved but may be
-      // needed for fast multi-camera imaging.
-      List<Image> result = new ArrayList<>();
-      boolean haveIgnoredAxes = false;
+      // Traversing large HashMaps is costly, so all lookups go through the
+      // coords index, which keeps a projection for every combination of
+      // ignored axes that has been asked for.
+      List<String> ignoredInUse = new ArrayList<>(ignoreTheseAxes.length);
       for (String axis : ignoreTheseAxes) {
          if (axesInUse_.contains(axis)) {
-            haveIgnoredAxes = true;
-            break;
+            ignoredInUse.add(axis);
          }
       }
-      if (!haveIgnoredAxes) {
-         result.add(getImage(coords));
-      } else {
-         // special case: if the ignored axis is C, use a special index to find the Coords
-         // otherwise, the search will be very expensive (which will  be the case for other
-         // axes) and result in noticaeble slowodwns with large datasetsz
-         if (ignoreTheseAxes[0].equals(Coords.CHANNEL)) {
-            for (Coords tmpCoords : coordsIndexedMissingC_.get(coords)) {
-               result.add(getImage(tmpCoords));
-            }
-         } else { // brute force it.  This will be slow with large data sets
-            for (Coords altCoords : coordsToFilename_.keySet()) {
-               Coords strippedAltCoords = altCoords.copyRemovingAxes(ignoreTheseAxes);
-               if (coords.equals(strippedAltCoords)) {
-                  result.add(getImage(altCoords));
-               }
-            }
+      List<Image> result = new ArrayList<>();
+      for (Coords match : coordsIndex_.getMatching(coords,
+            ignoredInUse.toArray(new String[0]))) {
+         Image image = getImage(match);
+         if (image != null) {
+            result.add(image);
          }
       }
       return result;
@@ -482,7 +486,7 @@ public final class StorageSinglePlaneTiffSeries implements Storage {
    }
 
    private void writeFrameMetadata(final Image image, final String metadataJSON,
-                                   final String fileName) {
+                                   final PropertyMap mdPmap, final String fileName) {
       try {
          String coordsKey = "Coords-" + fileName;
 
@@ -491,12 +495,25 @@ public final class StorageSinglePlaneTiffSeries implements Storage {
          JsonObject jo = new JsonObject();
          NonPropertyMapJSONFormats.coords().addToGson(jo,
                ((DefaultCoords) image.getCoords()).toPropertyMap());
-         Gson gson = new GsonBuilder().disableHtmlEscaping()
-               .setPrettyPrinting().create();
-         writeJSONMetadata(pos, gson.toJson(jo), coordsKey);
+         writeJSONMetadata(pos, GSON.toJson(jo), coordsKey);
 
          String mdKey = "Metadata-" + fileName;
-         writeJSONMetadata(pos, metadataJSON, mdKey);
+         ScopeDataDelta delta = scopeDataDeltas_ == null ? null
+               : scopeDataDeltas_.computeIfAbsent(pos, k -> new ScopeDataDelta());
+         if (delta == null) {
+            writeJSONMetadata(pos, metadataJSON, mdKey);
+         } else {
+            // Keyframes are written as is; other planes only with the
+            // scope data that changed since their keyframe
+            JsonObject md = new JsonObject();
+            NonPropertyMapJSONFormats.imageFormat().addToGson(md,
+                  ((DefaultImage) image).formatToPropertyMap());
+            NonPropertyMapJSONFormats.coords().addToGson(md,
+                  ((DefaultCoords) image.getCoords()).toPropertyMap());
+            NonPropertyMapJSONFormats.metadata().addToGson(md,
+                  delta.encode(mdPmap, mdKey, md));
+            writeJSONMetadata(pos, GSON.toJson(md), mdKey);
+         }
       } catch (Exception ex) {
          ReportingUtils.logError(ex);
       }
@@ -654,8 +671,7 @@ public final class StorageSinglePlaneTiffSeries implements Storage {
       PropertyMap formatPmap = ((DefaultImage) image).formatToPropertyMap();
       PropertyKey.IJ_TYPE.storeInGsonObject(formatPmap, jo);
       PropertyKey.PIXEL_TYPE.storeInGsonObject(formatPmap, jo);
-      Gson gson = new GsonBuilder().disableHtmlEscaping().setPrettyPrinting().create();
-      writeJSONMetadata(pos, gson.toJson(jo), "Summary");
+      writeJSONMetadata(pos, GSON.toJson(jo), "Summary");
    }
 
    private void closeMetadataStreams() {
@@ -856,20 +872,13 @@ public final class StorageSinglePlaneTiffSeries implements Storage {
       summaryMetadata_ = event.getSummaryMetadata();
 
       // setSummaryMetadata must be called before adding images to the store, so use this moment
-      // to smartly initialize several HashMaps
-      Coords dims = summaryMetadata_.getIntendedDimensions();
-      int nrImagesNoC = 1;
-      for (String axis : dims.getAxes()) {
-         if (!axis.equals(Coords.CHANNEL)) {
-            nrImagesNoC *= dims.getIndex(axis);
-         }
-      }
-      coordsIndexedMissingC_ = new HashMap<>(nrImagesNoC);
+      // to smartly initialize the index
+      coordsIndex_.presize(summaryMetadata_.getIntendedDimensions());
    }
 
    @Override
    public void close() {
       saveComments();
-      coordsIndexedMissingC_ = null;
+      coordsIndex_ = null;
    }
 }
\ No newline at end of file
@@ -0,0 +1,277 @@
+package org.micromanager.data.internal.multipagetiff;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.micromanager.internal.utils.ThreadFactoryFactory;
+
+/**
+ * Lossless compression of image planes as TIFF "Adobe Deflate" strips
+ * (compression 8) with horizontal differencing (predictor 2).
+ *
+ * <p>A plane is split into strips of a few hundred kilobytes, which are
+ * compressed (or decompressed) in parallel on a shared thread pool, so that a
+ * single large plane keeps several cores busy. Strips are independent
+ * zlib streams, as required by the TIFF specification, so files can be read
+ * by other TIFF readers.
+ */
+final class DeflateStripCodec {
+   static final int COMPRESSION_NONE = 1;
+   static final int COMPRESSION_DEFLATE = 8;
+   // Value used by older writers for the same codec
+   static final int COMPRESSION_DEFLATE_OBSOLETE = 32946;
+   static final int PREDICTOR_NONE = 1;
+   static final int PREDICTOR_HORIZONTAL = 2;
+
+   private static final int TARGET_STRIP_BYTES = 256 * 1024;
+
+   private static final ExecutorService POOL = Executors.newFixedThreadPool(
+         Runtime.getRuntime().availableProcessors(),
+         ThreadFactoryFactory.createThreadFactory("MultipageTiff Compression"));
+
+   // Deflater and Inflater hold native memory; reuse one per pool thread
+   private static final ThreadLocal<Deflater> DEFLATERS =
+         ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+   private static final ThreadLocal<Inflater> INFLATERS =
+         ThreadLocal.withInitial(Inflater::new);
+
+   private final int width_;
+   private final int height_;
+   private final int samplesPerPixel_;
+   private final int bytesPerSample_;
+   private final int rowBytes_;
+   private final int rowsPerStrip_;
+   private final ByteOrder order_;
+
+   /**
+    * Creates a codec for planes of the given geometry.
+    *
+    * @param width           Plane width in pixels
+    * @param height          Plane height in pixels
+    * @param samplesPerPixel 1 for grayscale, 3 for RGB
+    * @param bytesPerSample  1 or 2
+    * @param rowsPerStrip    Number of rows per strip; 0 to choose automatically
+    * @param order           Byte order of 16-bit samples
+    */
+   DeflateStripCodec(int width, int height, int samplesPerPixel,
+                     int bytesPerSample, int rowsPerStrip, ByteOrder order) {
+      width_ = width;
+      height_ = height;
+      samplesPerPixel_ = samplesPerPixel;
+      bytesPerSample_ = bytesPerSample;
+      rowBytes_ = width * samplesPerPixel * bytesPerSample;
+      if (rowsPerStrip <= 0) {
+         rowsPerStrip = Math.max(1, TARGET_STRIP_BYTES / Math.max(1, rowBytes_));
+      }
+      rowsPerStrip_ = Math.min(rowsPerStrip, Math.max(1, height));
+      order_ = order;
+   }
+
+   int getRowsPerStrip() {
+      return rowsPerStrip_;
+   }
+
+   int getNumStrips() {
+      return (height_ + rowsPerStrip_ - 1) / rowsPerStrip_;
+   }
+
+   int getUncompressedSize() {
+      return rowBytes_ * height_;
+   }
+
+   /**
+    * Compresses a plane.
+    *
+    * @param pixels Uncompressed plane, starting at index 0, in the layout
+    *               written to file
+    * @return One compressed zlib stream per strip
+    * @throws IOException if compression fails
+    */
+   byte[][] compress(final ByteBuffer pixels) throws IOException {
+      List<Callable<byte[]>> tasks = new ArrayList<>(getNumStrips());
+      for (int strip = 0; strip < getNumStrips(); strip++) {
+         final int firstRow = strip * rowsPerStrip_;
+         final int numRows = Math.min(rowsPerStrip_, height_ - firstRow);
+         tasks.add(() -> compressStrip(pixels, firstRow, numRows));
+      }
+      return runAll(tasks).toArray(new byte[0][]);
+   }
+
+   /**
+    * Decompresses a plane.
+    *
+    * @param strips    Compressed strips, each positioned at its start
+    * @param predictor Predictor recorded in the file
+    * @return Uncompressed plane
+    * @throws IOException if the data are corrupt
+    */
+   byte[] decompress(final ByteBuffer[] strips, final int predictor)
+         throws IOException {
+      final byte[] result = new byte[getUncompressedSize()];
+      List<Callable<byte[]>> tasks = new ArrayList<>(strips.length);
+      for (int strip = 0; strip < strips.length; strip++) {
+         final int firstRow = strip * rowsPerStrip_;
+         final int numRows = Math.min(rowsPerStrip_, height_ - firstRow);
+         if (numRows <= 0) {
+            break;
+         }
+         final ByteBuffer source = strips[strip];
+         tasks.add(() -> {
+            decompressStrip(source, result, firstRow * rowBytes_, numRows * rowBytes_);
+            if (predictor == PREDICTOR_HORIZONTAL) {
+               decodePredictor(result, firstRow * rowBytes_, numRows);
+            }
+            return null;
+         });
+      }
+      runAll(tasks);
+      return result;
+   }
+
+   private static <T> List<T> runAll(List<Callable<T>> tasks) throws IOException {
+      List<T> results = new ArrayList<>(tasks.size());
+      try {
+         if (tasks.size() == 1) {
+            results.add(tasks.get(0).call());
+            return results;
+         }
+         for (Future<T> future : POOL.invokeAll(tasks)) {
+            results.add(future.get());
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted while (de)compressing image", e);
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof IOException) {
+            throw (IOException) e.getCause();
+         }
+         throw new IOException(e.getCause());
+      } catch (IOException e) {
+         throw e;
+      } catch (Exception e) {
+         throw new IOException(e);
+      }
+      return results;
+   }
+
+   private byte[] compressStrip(ByteBuffer pixels, int firstRow, int numRows) {
+      byte[] raw = new byte[numRows * rowBytes_];
+      ByteBuffer source = pixels.duplicate();
+      source.clear().position(firstRow * rowBytes_);
+      source.get(raw);
+      encodePredictor(raw, 0, numRows);
+
+      Deflater deflater = DEFLATERS.get();
+      deflater.reset();
+      deflater.setInput(raw);
+      deflater.finish();
+      byte[] out = new byte[raw.length + raw.length / 1000 + 64];
+      int length = 0;
+      while (!deflater.finished()) {
+         if (length == out.length) {
+            out = Arrays.copyOf(out, out.length * 2);
+         }
+         length += deflater.deflate(out, length, out.length - length);
+      }
+      return Arrays.copyOf(out, length);
+   }
+
+   private static void decompressStrip(ByteBuffer source, byte[] dest,
+                                       int offset, int length) throws IOException {
+      // Strips are read with absolute reads, so the position of the buffer
+      // says nothing; the whole buffer is the strip
+      ByteBuffer all = source.duplicate();
+      all.clear();
+      byte[] input;
+      if (all.hasArray()) {
+         input = Arrays.copyOfRange(all.array(), all.arrayOffset(),
+               all.arrayOffset() + all.capacity());
+      } else {
+         input = new byte[all.capacity()];
+         all.get(input);
+      }
+      Inflater inflater = INFLATERS.get();
+      inflater.reset();
+      inflater.setInput(input);
+      try {
+         int done = 0;
+         while (done < length && !inflater.finished()) {
+            int n = inflater.inflate(dest, offset + done, length - done);
+            if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+               break;
+            }
+            done += n;
+         }
+         if (done < length) {
+            throw new IOException("Compressed strip is truncated");
+         }
+      } catch (DataFormatException e) {
+         throw new IOException("Corrupt compressed strip", e);
+      }
+   }
+
+   // Horizontal differencing works on samples, per row, with a stride of
+   // samplesPerPixel so that the components of RGB pixels are kept apart.
+
+   private void encodePredictor(byte[] data, int offset, int numRows) {
+      int samplesPerRow = width_ * samplesPerPixel_;
+      for (int row = 0; row < numRows; row++) {
+         int rowStart = offset + row * rowBytes_;
+         if (bytesPerSample_ == 1) {
+            for (int i = samplesPerRow - 1; i >= samplesPerPixel_; i--) {
+               data[rowStart + i] -= data[rowStart + i - samplesPerPixel_];
+            }
+         } else {
+            for (int i = samplesPerRow - 1; i >= samplesPerPixel_; i--) {
+               putShort(data, rowStart + 2 * i, (short) (getShort(data, rowStart + 2 * i)
+                     - getShort(data, rowStart + 2 * (i - samplesPerPixel_))));
+            }
+         }
+      }
+   }
+
+   private void decodePredictor(byte[] data, int offset, int numRows) {
+      int samplesPerRow = width_ * samplesPerPixel_;
+      for (int row = 0; row < numRows; row++) {
+         int rowStart = offset + row * rowBytes_;
+         if (bytesPerSample_ == 1) {
+            for (int i = samplesPerPixel_; i < samplesPerRow; i++) {
+               data[rowStart + i] += data[rowStart + i - samplesPerPixel_];
+            }
+         } else {
+            for (int i = samplesPerPixel_; i < samplesPerRow; i++) {
+               putShort(data, rowStart + 2 * i, (short) (getShort(data, rowStart + 2 * i)
+                     + getShort(data, rowStart + 2 * (i - samplesPerPixel_))));
+            }
+         }
+      }
+   }
+
+   private short getShort(byte[] data, int index) {
+      if (order_ == ByteOrder.LITTLE_ENDIAN) {
+         return (short) ((data[index] & 0xff) | (data[index + 1] << 8));
+      }
+      return (short) ((data[index] << 8) | (data[index + 1] & 0xff));
+   }
+
+   private void putShort(byte[] data, int index, short value) {
+      if (order_ == ByteOrder.LITTLE_ENDIAN) {
+         data[index] = (byte) value;
+         data[index + 1] = (byte) (value >> 8);
+      } else {
+         data[index] = (byte) (value >> 8);
+         data[index + 1] = (byte) value;
+      }
+   }
+}
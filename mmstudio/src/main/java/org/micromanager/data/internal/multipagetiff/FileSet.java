@@ -62,6 +62,7 @@ class FileSet {
    private boolean expectedImageOrder_ = true;
    private int ifdCount_ = 0;
    private StorageMultipageTiff masterStorage_;
+   private final WritingLane writingLane_;
    int nextExpectedChannel_ = 0;
    int nextExpectedSlice_ = 0;
    int nextExpectedFrame_ = 0;
@@ -70,9 +71,11 @@ class FileSet {
 
    public FileSet(Image firstImage, StorageMultipageTiff masterStorage,
                   OMEMetadata omeMetadata,
-                  boolean splitByXYPosition, boolean separateMetadataFile) throws IOException {
+                  boolean splitByXYPosition, boolean separateMetadataFile,
+                  WritingLane writingLane) throws IOException {
       tiffWriters_ = new LinkedList<>();
       masterStorage_ = masterStorage;
+      writingLane_ = writingLane;
       omeMetadata_ = omeMetadata;
       splitByXYPosition_ = splitByXYPosition;
       separateMetadataFile_ = separateMetadataFile;
@@ -83,7 +86,7 @@ class FileSet {
       currentTiffUUID_ = "urn:uuid:" + UUID.randomUUID();
       //make first writer
       tiffWriters_.add(new MultipageTiffWriter(masterStorage_,
-            firstImage, currentTiffFilename_));
+            firstImage, currentTiffFilename_, writingLane_));
 
       if (separateMetadataFile_) {
          startMetadataFile();
@@ -168,7 +171,7 @@ class FileSet {
          currentTiffUUID_ = "urn:uuid:" + UUID.randomUUID();
          ifdCount_ = 0;
          tiffWriters_.add(new MultipageTiffWriter(masterStorage_,
-               img, currentTiffFilename_));
+               img, currentTiffFilename_, writingLane_));
 
          //Add new filename to image tags
          img = img.copyWithMetadata(img.getMetadata()
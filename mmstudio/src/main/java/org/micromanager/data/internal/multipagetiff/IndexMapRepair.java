@@ -0,0 +1,102 @@
+package org.micromanager.data.internal.multipagetiff;
+
+import java.awt.Component;
+import java.awt.GraphicsEnvironment;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.swing.SwingUtilities;
+import org.micromanager.internal.utils.ProgressBar;
+import org.micromanager.internal.utils.ReportingUtils;
+
+/**
+ * Rebuilds the index maps of the files of a dataset that was not closed
+ * properly (e.g. after a crash).
+ *
+ * <p>Each file is repaired by walking its IFD chain (see
+ * MultipageTiffReader.fixIndexMap()). The chain of a single file has to be
+ * followed in order, but files are independent, so they are repaired
+ * concurrently on a fork-join pool. Progress is shown as a single bar over
+ * the total size of all files.
+ */
+final class IndexMapRepair {
+   // Repair is mostly waiting for the disk
+   private static final int MAX_THREADS = 8;
+   private static final int PROGRESS_STEPS = 1000;
+
+   private IndexMapRepair() {
+   }
+
+   /**
+    * Repairs the index maps of the given files.
+    *
+    * @param parent Component to center the progress bar on; may be null
+    * @param files  Files without a valid index map
+    * @return The files that were repaired, in the given order
+    */
+   static List<File> repair(Component parent, List<File> files) {
+      List<File> repaired = new ArrayList<>(files.size());
+      if (files.isEmpty()) {
+         return repaired;
+      }
+      long totalBytes = 0;
+      for (File f : files) {
+         totalBytes += Math.max(1, f.length());
+      }
+      final long total = totalBytes;
+      final AtomicLong scanned = new AtomicLong();
+      final AtomicInteger shownStep = new AtomicInteger();
+      final ProgressBar progressBar = GraphicsEnvironment.isHeadless() ? null
+            : new ProgressBar(parent, "Repairing " + files.size()
+                  + (files.size() == 1 ? " file" : " files"), 0, PROGRESS_STEPS);
+      if (progressBar != null) {
+         progressBar.setProgress(0);
+      }
+
+      ForkJoinPool pool = new ForkJoinPool(Math.min(MAX_THREADS, files.size()));
+      List<Future<Boolean>> futures = new ArrayList<>(files.size());
+      for (final File f : files) {
+         futures.add(pool.submit(() -> {
+            final long[] lastPosition = {0};
+            // Each file reports its own position; add the increments to the
+            // total, and only update the bar when it visibly changes
+            MultipageTiffReader reader = new MultipageTiffReader(f, (long position) -> {
+               long done = scanned.addAndGet(
+                     Math.min(position, f.length()) - lastPosition[0]);
+               lastPosition[0] = Math.min(position, f.length());
+               int step = (int) (done * PROGRESS_STEPS / total);
+               if (progressBar != null && shownStep.getAndSet(step) != step) {
+                  SwingUtilities.invokeLater(() -> progressBar.setProgress(step));
+               }
+            });
+            reader.close();
+            return true;
+         }));
+      }
+      try {
+         for (int i = 0; i < files.size(); i++) {
+            try {
+               futures.get(i).get();
+               repaired.add(files.get(i));
+            } catch (ExecutionException e) {
+               ReportingUtils.logError(e.getCause(), "Failed to repair " + files.get(i));
+            }
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      } finally {
+         pool.shutdownNow();
+         if (progressBar != null) {
+            SwingUtilities.invokeLater(() -> progressBar.setVisible(false));
+         }
+      }
+      ReportingUtils.logMessage("Repaired index map of " + repaired.size()
+            + " of " + files.size() + " files");
+      return repaired;
+   }
+}
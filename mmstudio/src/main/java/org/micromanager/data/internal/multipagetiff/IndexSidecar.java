@@ -0,0 +1,213 @@
+package org.micromanager.data.internal.multipagetiff;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import org.micromanager.data.Coords;
+import org.micromanager.data.internal.DefaultCoords;
+import org.micromanager.internal.utils.ReportingUtils;
+
+/**
+ * Binary index of all images in a Multipage TIFF dataset, stored next to the
+ * TIFF files so that a dataset can be reopened without reading the index map,
+ * summary metadata and comments of every file.
+ *
+ * <p>The sidecar lists, for each TIFF file, its size and modification time at
+ * the time the index was written, and the IFD offset of every image in that
+ * file. It is only used if the set of TIFF files in the directory, and the
+ * size and modification time of each of them, still match; otherwise the
+ * dataset is opened the normal way.
+ *
+ * <p>Layout (little endian): magic, version, number of files, and for each
+ * file the UTF-8 name, size, modification time, byte order of the TIFF file,
+ * number of images, followed by channel, z, time, position (4 ints) and IFD
+ * offset (long) of each image.
+ */
+final class IndexSidecar {
+   static final String FILE_NAME = "MMStack.index";
+
+   private static final int MAGIC = 0x58494D4D; // "MMIX"
+   private static final int VERSION = 1;
+   private static final int BYTES_PER_IMAGE = 4 * 4 + 8;
+
+   /**
+    * Index of a single TIFF file.
+    */
+   static final class FileIndex {
+      final long size_;
+      final long lastModified_;
+      final ByteOrder byteOrder_;
+      final HashMap<Coords, Long> offsets_;
+
+      FileIndex(long size, long lastModified, ByteOrder byteOrder,
+                HashMap<Coords, Long> offsets) {
+         size_ = size;
+         lastModified_ = lastModified;
+         byteOrder_ = byteOrder;
+         offsets_ = offsets;
+      }
+   }
+
+   private IndexSidecar() {
+   }
+
+   /**
+    * Whether the given file is one of the TIFF files of a dataset. Skips
+    * files created by the OS (starting with "._").
+    */
+   static boolean isDataFile(File f) {
+      String fileName = f.getName();
+      return (fileName.endsWith(".tif") || fileName.endsWith(".TIF"))
+            && !fileName.startsWith("._");
+   }
+
+   /**
+    * Reads the sidecar index of a dataset.
+    *
+    * @param directory Dataset directory
+    * @param dataFiles TIFF files currently in the directory
+    * @return Index for each file name, in the order they were written, or
+    *     null if there is no index or it does not match the files on disk
+    */
+   static Map<String, FileIndex> read(File directory, File[] dataFiles) {
+      File indexFile = new File(directory, FILE_NAME);
+      if (!indexFile.isFile()) {
+         return null;
+      }
+      Map<String, FileIndex> result;
+      try (RandomAccessFile raFile = new RandomAccessFile(indexFile, "r");
+           FileChannel channel = raFile.getChannel()) {
+         MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+               0, channel.size());
+         buffer.order(ByteOrder.LITTLE_ENDIAN);
+         result = parse(buffer);
+      } catch (IOException | RuntimeException e) {
+         // RuntimeException covers buffer underflow in truncated files
+         ReportingUtils.logError(e, "Ignoring unreadable index " + indexFile);
+         return null;
+      }
+      if (result == null) {
+         return null;
+      }
+
+      Set<String> namesOnDisk = new HashSet<>();
+      for (File f : dataFiles) {
+         if (isDataFile(f)) {
+            namesOnDisk.add(f.getName());
+         }
+      }
+      if (!namesOnDisk.equals(result.keySet())) {
+         ReportingUtils.logMessage("Index " + indexFile + " is stale: file set changed");
+         return null;
+      }
+      for (Map.Entry<String, FileIndex> entry : result.entrySet()) {
+         File f = new File(directory, entry.getKey());
+         if (f.length() != entry.getValue().size_
+               || f.lastModified() != entry.getValue().lastModified_) {
+            ReportingUtils.logMessage("Index " + indexFile + " is stale: "
+                  + entry.getKey() + " was modified");
+            return null;
+         }
+      }
+      return result;
+   }
+
+   private static Map<String, FileIndex> parse(ByteBuffer buffer) {
+      if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+         return null;
+      }
+      int numFiles = buffer.getInt();
+      Map<String, FileIndex> result = new LinkedHashMap<>();
+      for (int i = 0; i < numFiles; i++) {
+         byte[] name = new byte[buffer.getShort() & 0xffff];
+         buffer.get(name);
+         long size = buffer.getLong();
+         long lastModified = buffer.getLong();
+         ByteOrder byteOrder = buffer.get() == 0
+               ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+         int numImages = buffer.getInt();
+         HashMap<Coords, Long> offsets = new HashMap<>((int) (numImages / 0.75f) + 1);
+         DefaultCoords.Builder builder = new DefaultCoords.Builder();
+         for (int j = 0; j < numImages; j++) {
+            builder.channel(buffer.getInt())
+                  .z(buffer.getInt())
+                  .time(buffer.getInt())
+                  .stagePosition(buffer.getInt());
+            offsets.put(builder.build(), buffer.getLong());
+         }
+         result.put(new String(name, StandardCharsets.UTF_8),
+               new FileIndex(size, lastModified, byteOrder, offsets));
+      }
+      return result;
+   }
+
+   /**
+    * Writes the sidecar index of a dataset. The files must be complete, since
+    * their current size and modification time are recorded.
+    *
+    * @param directory Dataset directory
+    * @param readers   One reader for each TIFF file in the directory
+    * @throws IOException if the index cannot be written
+    */
+   static void write(File directory, Collection<MultipageTiffReader> readers)
+         throws IOException {
+      int length = 12;
+      for (MultipageTiffReader reader : readers) {
+         if (reader.getFile() == null || reader.getIndexMap() == null) {
+            throw new IOException("Reader is not associated with a file");
+         }
+         length += 2 + reader.getFile().getName().getBytes(StandardCharsets.UTF_8).length
+               + 8 + 8 + 1 + 4 + BYTES_PER_IMAGE * reader.getIndexMap().size();
+      }
+      ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+      buffer.putInt(MAGIC).putInt(VERSION).putInt(readers.size());
+      for (MultipageTiffReader reader : readers) {
+         File f = reader.getFile();
+         byte[] name = f.getName().getBytes(StandardCharsets.UTF_8);
+         buffer.putShort((short) name.length).put(name);
+         buffer.putLong(f.length()).putLong(f.lastModified());
+         buffer.put((byte) (reader.getByteOrder() == ByteOrder.LITTLE_ENDIAN ? 0 : 1));
+         buffer.putInt(reader.getIndexMap().size());
+         for (Map.Entry<Coords, Long> offset : reader.getIndexMap().entrySet()) {
+            Coords coords = offset.getKey();
+            buffer.putInt(coords.getChannel()).putInt(coords.getZ())
+                  .putInt(coords.getT()).putInt(coords.getStagePosition());
+            buffer.putLong(offset.getValue());
+         }
+      }
+      buffer.flip();
+
+      // Write to a temporary file first, so that readers never see a
+      // partially written index
+      File tmpFile = new File(directory, FILE_NAME + ".tmp");
+      try (RandomAccessFile raFile = new RandomAccessFile(tmpFile, "rw");
+           FileChannel channel = raFile.getChannel()) {
+         raFile.setLength(0);
+         while (buffer.hasRemaining()) {
+            channel.write(buffer);
+         }
+      }
+      File indexFile = new File(directory, FILE_NAME);
+      try {
+         Files.move(tmpFile.toPath(), indexFile.toPath(),
+               StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+         Files.move(tmpFile.toPath(), indexFile.toPath(),
+               StandardCopyOption.REPLACE_EXISTING);
+      }
+   }
+}
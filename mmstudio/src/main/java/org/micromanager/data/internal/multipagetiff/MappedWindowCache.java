@@ -0,0 +1,182 @@
+package org.micromanager.data.internal.multipagetiff;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process-wide cache of memory-mapped windows into Multipage TIFF files.
+ *
+ * <p>Files are mapped in windows of WINDOW_SIZE bytes, aligned to multiples
+ * of WINDOW_SIZE. A window is extended beyond WINDOW_SIZE when a requested
+ * region crosses its end, so that every region can be handed out as a single
+ * view. The total number of mapped bytes held by the cache is bounded; the
+ * least recently used windows are dropped when the budget is exceeded.
+ *
+ * <p>Dropping a window from the cache does not invalidate views that were
+ * handed out earlier: each view keeps its window alive until it is garbage
+ * collected. The budget therefore limits the address space pinned by the
+ * cache itself, not by images that are still referenced elsewhere.
+ */
+class MappedWindowCache {
+   static final long WINDOW_SIZE = 256L * 1024 * 1024;
+   private static final long MAX_MAPPED_BYTES = 4L * 1024 * 1024 * 1024;
+
+   // Memory mapping large windows is not a good idea in a 32-bit address space
+   static final boolean IS_SUPPORTED =
+         !System.getProperty("sun.arch.data.model").equals("32");
+
+   private static final MappedWindowCache INSTANCE =
+         new MappedWindowCache(WINDOW_SIZE, MAX_MAPPED_BYTES);
+
+   private final long windowSize_;
+   private final long maxMappedBytes_;
+   private final LinkedHashMap<WindowKey, MappedByteBuffer> windows_ =
+         new LinkedHashMap<>(16, 0.75f, true);
+   private long mappedBytes_ = 0;
+
+   static MappedWindowCache getInstance() {
+      return INSTANCE;
+   }
+
+   /**
+    * Creates a cache separate from the shared instance. Only tests need this,
+    * to exercise windows and eviction on small files.
+    *
+    * @param windowSize     Size and alignment of the windows, in bytes
+    * @param maxMappedBytes Budget of mapped bytes held by the cache
+    */
+   MappedWindowCache(long windowSize, long maxMappedBytes) {
+      windowSize_ = windowSize;
+      maxMappedBytes_ = maxMappedBytes;
+   }
+
+   /**
+    * Returns a read-only view of the given region of a file.
+    *
+    * @param file    File the region belongs to, used as part of the cache key
+    * @param channel Open channel on file, used only when a new window needs to be mapped
+    * @param offset  Position of the region in the file
+    * @param length  Length of the region in bytes
+    * @param order   Byte order to be set on the returned view
+    * @return View of the region, with position 0 and capacity length
+    * @throws IOException when the region lies beyond the end of the file, or
+    *                     mapping fails
+    */
+   ByteBuffer getRegion(File file, FileChannel channel, long offset, int length,
+                        ByteOrder order) throws IOException {
+      long windowStart = (offset / windowSize_) * windowSize_;
+      long regionEnd = offset + length;
+      WindowKey key = new WindowKey(file.getAbsolutePath(), windowStart);
+      MappedByteBuffer window;
+      synchronized (this) {
+         window = windows_.get(key);
+         if (window == null || windowStart + window.capacity() < regionEnd) {
+            if (channel == null) {
+               throw new IOException("No open file to map " + file.getName());
+            }
+            long fileSize = channel.size();
+            if (regionEnd > fileSize) {
+               throw new IOException("Attempted to map beyond the end of "
+                     + file.getName());
+            }
+            long windowEnd = Math.min(fileSize,
+                  Math.max(windowStart + windowSize_, regionEnd));
+            MappedByteBuffer newWindow = map(channel, windowStart,
+                  windowEnd - windowStart);
+            if (window != null) {
+               mappedBytes_ -= window.capacity();
+            }
+            window = newWindow;
+            windows_.put(key, window);
+            mappedBytes_ += window.capacity();
+            evictIfNeeded(key);
+         }
+      }
+      // Views are independent of each other and of the window, so the window
+      // position is never modified and needs no further locking.
+      ByteBuffer view = window.duplicate();
+      int start = (int) (offset - windowStart);
+      view.position(start);
+      view.limit(start + length);
+      return view.slice().order(order);
+   }
+
+   /**
+    * Maps a window. Separate so that tests can make mapping fail.
+    */
+   MappedByteBuffer map(FileChannel channel, long start, long size)
+         throws IOException {
+      return channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+   }
+
+   private void evictIfNeeded(WindowKey keep) {
+      Iterator<Map.Entry<WindowKey, MappedByteBuffer>> it =
+            windows_.entrySet().iterator();
+      while (mappedBytes_ > maxMappedBytes_ && it.hasNext()) {
+         Map.Entry<WindowKey, MappedByteBuffer> eldest = it.next();
+         if (eldest.getKey().equals(keep)) {
+            continue;
+         }
+         mappedBytes_ -= eldest.getValue().capacity();
+         it.remove();
+      }
+   }
+
+   /**
+    * Drops all windows belonging to the given file. Outstanding views remain
+    * valid.
+    *
+    * @param file File for which to drop the windows
+    */
+   synchronized void evict(File file) {
+      String path = file.getAbsolutePath();
+      Iterator<Map.Entry<WindowKey, MappedByteBuffer>> it =
+            windows_.entrySet().iterator();
+      while (it.hasNext()) {
+         Map.Entry<WindowKey, MappedByteBuffer> entry = it.next();
+         if (entry.getKey().path_.equals(path)) {
+            mappedBytes_ -= entry.getValue().capacity();
+            it.remove();
+         }
+      }
+   }
+
+   synchronized int getNumWindows() {
+      return windows_.size();
+   }
+
+   synchronized long getMappedBytes() {
+      return mappedBytes_;
+   }
+
+   private static final class WindowKey {
+      private final String path_;
+      private final long start_;
+
+      WindowKey(String path, long start) {
+         path_ = path;
+         start_ = start;
+      }
+
+      @Override
+      public boolean equals(Object other) {
+         if (!(other instanceof WindowKey)) {
+            return false;
+         }
+         WindowKey o = (WindowKey) other;
+         return start_ == o.start_ && path_.equals(o.path_);
+      }
+
+      @Override
+      public int hashCode() {
+         return 31 * path_.hashCode() + Long.hashCode(start_);
+      }
+   }
+}
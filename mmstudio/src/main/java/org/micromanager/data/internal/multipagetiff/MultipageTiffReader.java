@@ -24,6 +24,7 @@ package org.micromanager.data.internal.multipagetiff;
 
 import com.google.common.collect.ImmutableList;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.JsonSyntaxException;
 import com.google.gson.stream.JsonReader;
@@ -32,19 +33,27 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.StringReader;
+import java.io.UncheckedIOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 import java.util.ArrayDeque;
 import java.util.Deque;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
 import javax.swing.SwingUtilities;
 import mmcorej.org.json.JSONException;
 import mmcorej.org.json.JSONObject;
 import org.micromanager.PropertyMap;
+import org.micromanager.PropertyMaps;
 import org.micromanager.data.Coords;
 import org.micromanager.data.Datastore;
 import org.micromanager.data.Image;
@@ -73,6 +82,13 @@ public final class MultipageTiffReader {
    private static final char STRIP_OFFSETS = MultipageTiffWriter.STRIP_OFFSETS;
    private static final char STRIP_BYTE_COUNTS = MultipageTiffWriter.STRIP_BYTE_COUNTS;
    private static final char MM_METADATA = MultipageTiffWriter.MM_METADATA;
+   private static final char WIDTH = MultipageTiffWriter.WIDTH;
+   private static final char HEIGHT = MultipageTiffWriter.HEIGHT;
+   private static final char BITS_PER_SAMPLE = MultipageTiffWriter.BITS_PER_SAMPLE;
+   private static final char COMPRESSION = MultipageTiffWriter.COMPRESSION;
+   private static final char SAMPLES_PER_PIXEL = MultipageTiffWriter.SAMPLES_PER_PIXEL;
+   private static final char ROWS_PER_STRIP = MultipageTiffWriter.ROWS_PER_STRIP;
+   private static final char PREDICTOR = MultipageTiffWriter.PREDICTOR;
 
    // Note: ordering of axes here matches that in MDUtils.getLabel().
    // If you change this, you will need to track down places where the size of
@@ -80,10 +96,19 @@ public final class MultipageTiffReader {
    // map entry, 20 bytes) and update those locations.
    static final List<String> ALLOWED_AXES = ImmutableList.of("channel", "z", "time", "position");
 
+   private static final Object COMMENTS_LOCK = new Object();
+   private static final int SCAN_WINDOW_BYTES = 1 << 20;
+   // Scope data of the keyframes read most recently (see ScopeDataDelta)
+   private static final int KEYFRAME_CACHE_SIZE = 8;
+
    private ByteOrder byteOrder_;
    private File file_;
    private RandomAccessFile raFile_;
-   private FileChannel fileChannel_;
+   private volatile FileChannel fileChannel_;
+   // Held for reading while an image is read, so that images can be read
+   // concurrently, and for writing by pause(), which must not close the
+   // channel under a read in progress
+   private final ReentrantReadWriteLock channelLock_ = new ReentrantReadWriteLock();
 
    private StorageMultipageTiff masterStorage_;
    private SummaryMetadata summaryMetadata_;
@@ -91,6 +116,24 @@ public final class MultipageTiffReader {
 
    private HashMap<Coords, Long> coordsToOffset_;
    private long maxImageOffset_ = Long.MAX_VALUE;
+   // Keyframe IFD offset to scope data, for delta-encoded scope data
+   private final Map<Long, PropertyMap> keyframeScopeData_ =
+         new LinkedHashMap<Long, PropertyMap>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, PropertyMap> eldest) {
+               return size() > KEYFRAME_CACHE_SIZE;
+            }
+         };
+
+   // When true, IFDs and planes are read through views on memory-mapped
+   // windows shared by all readers (see MappedWindowCache) rather than copied
+   // into buffers with FileChannel.read(). Cleared if mapping fails.
+   private volatile boolean memoryMapped_ = false;
+   private MappedWindowCache mappedWindows_ = MappedWindowCache.getInstance();
+
+   // Only set while fixIndexMap() walks the IFD chain
+   private ByteBuffer scanWindow_;
+   private long scanWindowStart_;
 
    //
    // Buffer allocation and recycling, copied from MultipageTiffWriter
@@ -198,13 +241,32 @@ public final class MultipageTiffReader {
       fileChannel_ = fc;
    }
 
+   void setFile(File file) {
+      file_ = file;
+   }
+
    /**
     * This constructor is used for opening datasets that have already been saved.
     */
    public MultipageTiffReader(StorageMultipageTiff masterStorage, File file)
          throws IOException, InvalidIndexMapException {
+      this(masterStorage, file, false);
+   }
+
+   /**
+    * This constructor is used for opening datasets that have already been saved.
+    *
+    * @param masterStorage Storage entity that will be using this reader
+    * @param file          File to be read
+    * @param memoryMapped  Whether to read images through memory-mapped views
+    *                      (ignored on 32-bit JVMs)
+    */
+   public MultipageTiffReader(StorageMultipageTiff masterStorage, File file,
+                              boolean memoryMapped)
+         throws IOException, InvalidIndexMapException {
       masterStorage_ = masterStorage;
       file_ = file;
+      memoryMapped_ = memoryMapped && MappedWindowCache.IS_SUPPORTED;
       try {
          createFileChannel(false);
       } catch (Exception ex) {
@@ -224,6 +286,25 @@ public final class MultipageTiffReader {
       readComments();
    }
 
+   /**
+    * This constructor is used for opening files of a saved dataset whose
+    * index was read from the sidecar index. It does no I/O; the file is
+    * opened when the first image is read.
+    *
+    * @param masterStorage Storage entity that will be using this reader
+    * @param file          File to be read
+    * @param memoryMapped  Whether to read images through memory-mapped views
+    * @param fileIndex     Byte order and IFD offsets of the images in the file
+    */
+   MultipageTiffReader(StorageMultipageTiff masterStorage, File file,
+                       boolean memoryMapped, IndexSidecar.FileIndex fileIndex) {
+      masterStorage_ = masterStorage;
+      file_ = file;
+      memoryMapped_ = memoryMapped && MappedWindowCache.IS_SUPPORTED;
+      byteOrder_ = fileIndex.byteOrder_;
+      coordsToOffset_ = fileIndex.offsets_;
+   }
+
    /**
     * HACK: this version is only used when fixing index maps.
     * Ideally said fixing would be done without needing to create a new
@@ -231,6 +312,19 @@ public final class MultipageTiffReader {
     * file reading code that does some setup before fixIndexMap() is called.
     */
    public MultipageTiffReader(File file) throws IOException {
+      this(file, null);
+   }
+
+   /**
+    * Repairs the index map of the given file, reporting progress to the
+    * caller instead of showing a progress bar for the file.
+    *
+    * @param file     File to be repaired
+    * @param progress Receives the file position up to which the file has been
+    *                 scanned, on the calling thread. If null, a progress bar
+    *                 is shown.
+    */
+   MultipageTiffReader(File file, LongConsumer progress) throws IOException {
       file_ = file;
       try {
          createFileChannel(true);
@@ -241,7 +335,7 @@ public final class MultipageTiffReader {
       long firstIFD = readHeader();
       readSummaryMD();
 
-      fixIndexMap(firstIFD, file.getName());
+      fixIndexMap(firstIFD, file.getName(), progress);
    }
 
    /**
@@ -324,6 +418,18 @@ public final class MultipageTiffReader {
       return coordsToOffset_.keySet();
    }
 
+   File getFile() {
+      return file_;
+   }
+
+   ByteOrder getByteOrder() {
+      return byteOrder_;
+   }
+
+   HashMap<Coords, Long> getIndexMap() {
+      return coordsToOffset_;
+   }
+
    private void readSummaryMD() throws IOException {
       ByteBuffer mdInfo = ByteBuffer.allocate(8).order(byteOrder_);
       fileChannel_.read(mdInfo, 32);
@@ -359,6 +465,13 @@ public final class MultipageTiffReader {
     * any comments we find here into an Annotation.
     */
    private void readComments() throws IOException {
+      // Files of a dataset may be opened in parallel
+      synchronized (COMMENTS_LOCK) {
+         readCommentsImpl();
+      }
+   }
+
+   private void readCommentsImpl() throws IOException {
       Datastore store = masterStorage_.getDatastore();
       if (CommentsHelper.hasAnnotation(store)) {
          // Already have a comments annotation set up; bail.
@@ -405,6 +518,79 @@ public final class MultipageTiffReader {
       return buffer;
    }
 
+   /**
+    * Returns the given region of the file, either as a view on a memory-mapped
+    * window (no copy), or read into a newly allocated buffer. Either way the
+    * returned buffer has position 0.
+    *
+    * <p>If mapping fails (for instance when the address space is exhausted),
+    * this reader stops using memory mapping and reads into buffers instead.
+    */
+   private ByteBuffer readRegion(long position, int length) throws IOException {
+      if (scanWindow_ != null && length <= scanWindow_.capacity()) {
+         return readFromScanWindow(position, length);
+      }
+      if (memoryMapped_) {
+         try {
+            return mappedWindows_.getRegion(file_, fileChannel_,
+                  position, length, byteOrder_);
+         } catch (IOException e) {
+            if (fileChannel_ == null) {
+               throw e;
+            }
+            ReportingUtils.logError(e, "Unable to memory map " + file_.getName()
+                  + "; reading it without memory mapping");
+            memoryMapped_ = false;
+            mappedWindows_.evict(file_);
+         }
+      }
+      ByteBuffer buffer = readIntoBuffer(position, length);
+      buffer.rewind();
+      return buffer;
+   }
+
+   /**
+    * Replaces the cache of mapped windows this reader uses. Only used by tests.
+    */
+   void setMappedWindowCache(MappedWindowCache cache) {
+      mappedWindows_ = cache;
+   }
+
+   boolean isMemoryMapped() {
+      return memoryMapped_;
+   }
+
+   /**
+    * Returns a copy of the given region, refilling the scan window with a
+    * single large read if the region is not in it. When walking the IFD
+    * chain, an IFD, its out-of-line values, and the metadata of the previous
+    * image followed by the next IFD each fall within one window, so a file is
+    * scanned with about two reads per image.
+    */
+   private ByteBuffer readFromScanWindow(long position, int length)
+         throws IOException {
+      if (position < scanWindowStart_
+            || position + length > scanWindowStart_ + scanWindow_.limit()) {
+         scanWindow_.clear();
+         while (scanWindow_.hasRemaining()) {
+            if (fileChannel_.read(scanWindow_, position + scanWindow_.position()) <= 0) {
+               break;
+            }
+         }
+         scanWindow_.flip();
+         scanWindowStart_ = position;
+         if (length > scanWindow_.limit()) {
+            // Region extends past the end of the file
+            return readIntoBuffer(position, length);
+         }
+      }
+      byte[] copy = new byte[length];
+      ByteBuffer source = scanWindow_.duplicate();
+      source.position((int) (position - scanWindowStart_));
+      source.get(copy);
+      return ByteBuffer.wrap(copy).order(byteOrder_);
+   }
+
    private long readOffsetHeaderAndOffset(int offsetHeaderVal, int startOffset)
          throws IOException {
       ByteBuffer buffer1 = readIntoBuffer(startOffset, 8);
@@ -450,20 +636,53 @@ public final class MultipageTiffReader {
    }
 
    private IFDData readIFD(long byteOffset) throws IOException {
-      ByteBuffer buff = readIntoBuffer(byteOffset, 2);
+      ByteBuffer buff = readRegion(byteOffset, 2);
       int numEntries = buff.getChar(0);
 
-      ByteBuffer entries = readIntoBuffer(byteOffset + 2, numEntries * 12 + 4).order(byteOrder_);
+      ByteBuffer entries = readRegion(byteOffset + 2, numEntries * 12 + 4);
       IFDData data = new IFDData();
+      IFDEntry stripOffsets = null;
+      IFDEntry stripByteCounts = null;
       for (int i = 0; i < numEntries; i++) {
          IFDEntry entry = readDirectoryEntry(i * 12, entries);
          if (entry.tag == MM_METADATA) {
             data.mdOffset = entry.value;
             data.mdLength = entry.count;
          } else if (entry.tag == STRIP_OFFSETS) {
+            stripOffsets = entry;
             data.pixelOffset = entry.value;
          } else if (entry.tag == STRIP_BYTE_COUNTS) {
+            stripByteCounts = entry;
             data.bytesPerImage = entry.value;
+         } else if (entry.tag == COMPRESSION) {
+            data.compression = (int) entry.value;
+         } else if (entry.tag == PREDICTOR) {
+            data.predictor = (int) entry.value;
+         } else if (entry.tag == ROWS_PER_STRIP) {
+            data.rowsPerStrip = (int) entry.value;
+         } else if (entry.tag == WIDTH) {
+            data.width = (int) entry.value;
+         } else if (entry.tag == HEIGHT) {
+            data.height = (int) entry.value;
+         } else if (entry.tag == SAMPLES_PER_PIXEL) {
+            data.samplesPerPixel = (int) entry.value;
+         } else if (entry.tag == BITS_PER_SAMPLE && entry.count == 1) {
+            data.bitsPerSample = (int) entry.value;
+         } else if (entry.tag == BITS_PER_SAMPLE) {
+            // One value per sample, stored outside of the IFD; all are equal
+            data.bitsPerSample = readRegion(entry.value, 2).getChar(0);
+         }
+      }
+      if (data.compression != DeflateStripCodec.COMPRESSION_NONE
+            && stripOffsets != null && stripByteCounts != null) {
+         data.stripOffsets = readLongArray(stripOffsets);
+         data.stripByteCounts = readLongArray(stripByteCounts);
+         if (data.stripOffsets.length > 0) {
+            data.pixelOffset = data.stripOffsets[0];
+         }
+         data.bytesPerImage = 0;
+         for (long count : data.stripByteCounts) {
+            data.bytesPerImage += count;
          }
       }
       data.nextIFD = unsignInt(entries.getInt(numEntries * 12));
@@ -477,8 +696,62 @@ public final class MultipageTiffReader {
       return data;
    }
 
+   /**
+    * Returns the values of an IFD entry of type SHORT or LONG, reading them
+    * from the file if they don't fit in the entry itself.
+    */
+   private long[] readLongArray(IFDEntry entry) throws IOException {
+      long[] result = new long[(int) entry.count];
+      int valueBytes = entry.type == 3 ? 2 : 4;
+      if (entry.count * valueBytes <= 4) {
+         if (entry.count == 1) {
+            result[0] = entry.value;
+         } else if (entry.count == 2) {
+            // Two SHORTs in the value field; not written by us but legal
+            ByteBuffer b = ByteBuffer.allocate(4).order(byteOrder_);
+            b.putInt(0, (int) entry.value);
+            result[0] = b.getChar(0);
+            result[1] = b.getChar(2);
+         }
+         return result;
+      }
+      ByteBuffer values = readRegion(entry.value, (int) entry.count * valueBytes);
+      for (int i = 0; i < result.length; i++) {
+         result[i] = entry.type == 3
+               ? values.getChar(2 * i) : unsignInt(values.getInt(4 * i));
+      }
+      return result;
+   }
+
+   /**
+    * Reads and decompresses the strips of a compressed image.
+    */
+   private ByteBuffer readCompressedPixels(IFDData data) throws IOException {
+      if (data.compression != DeflateStripCodec.COMPRESSION_DEFLATE
+            && data.compression != DeflateStripCodec.COMPRESSION_DEFLATE_OBSOLETE) {
+         throw new IOException("Unsupported TIFF compression: " + data.compression);
+      }
+      if (data.width < 1 || data.height < 1 || data.samplesPerPixel < 1
+            || (data.bitsPerSample != 8 && data.bitsPerSample != 16)) {
+         throw new IOException("Unsupported compressed image layout: " + data);
+      }
+      ByteBuffer[] strips = new ByteBuffer[data.stripOffsets.length];
+      for (int i = 0; i < strips.length; i++) {
+         strips[i] = readRegion(data.stripOffsets[i], (int) data.stripByteCounts[i]);
+      }
+      DeflateStripCodec codec = new DeflateStripCodec(data.width, data.height,
+            data.samplesPerPixel, data.bitsPerSample / 8,
+            data.rowsPerStrip > 0 ? data.rowsPerStrip : data.height, byteOrder_);
+      return ByteBuffer.wrap(codec.decompress(strips, data.predictor)).order(byteOrder_);
+   }
+
    private String getString(ByteBuffer buffer) {
       try {
+         if (!buffer.hasArray()) {
+            byte[] bytes = new byte[buffer.capacity()];
+            buffer.duplicate().get(bytes);
+            return new String(bytes, "UTF-8");
+         }
          return new String(buffer.array(), "UTF-8");
       } catch (UnsupportedEncodingException ex) {
          ReportingUtils.logError(ex);
@@ -500,26 +773,37 @@ public final class MultipageTiffReader {
          return null;
       }
       long byteOffset = coordsToOffset_.get(coords);
-      if (fileChannel_ == null) {
-         createFileChannel(false);
+      channelLock_.readLock().lock();
+      try {
+         reopenIfPaused();
+
+         if (fileChannel_ == null) {
+            ReportingUtils.logError("Attempted to read image on FileChannel that is null");
+            return null;
+         }
+
+         IFDData data = readIFD(byteOffset);
+         return (DefaultImage) readImage(data, coords);
+      } finally {
+         channelLock_.readLock().unlock();
       }
+   }
 
+   /**
+    * Opens the file again if it was closed by pause(). Must be called with
+    * the read lock of channelLock_ held.
+    */
+   private void reopenIfPaused() throws IOException {
       if (fileChannel_ == null) {
-         ReportingUtils.logError("Attempted to read image on FileChannel that is null");
-         return null;
+         synchronized (channelLock_) {
+            if (fileChannel_ == null) {
+               createFileChannel(false);
+            }
+         }
       }
-
-      IFDData data = readIFD(byteOffset);
-      return (DefaultImage) readImage(data);
    }
 
-   private Image readImage(IFDData data) throws IOException {
-      ByteBuffer pixelBuffer = getLargeBuffer((int) data.bytesPerImage, byteOrder_);
-      pixelBuffer.rewind();
-      ByteBuffer mdBuffer = ByteBuffer.allocate((int) data.mdLength).order(byteOrder_);
-      fileChannel_.read(pixelBuffer, data.pixelOffset);
-      fileChannel_.read(mdBuffer, data.mdOffset);
-
+   private JsonElement parseImageMetadata(ByteBuffer mdBuffer) {
       String mdJSON = getString(mdBuffer);
       String tmp = mdJSON.substring(mdJSON.length() - 3);
       if (!tmp.substring(0, 2).equals("\"}")) {
@@ -529,63 +813,310 @@ public final class MultipageTiffReader {
       JsonParser parser = new JsonParser();
       JsonReader reader = new JsonReader(new StringReader(mdJSON));
       reader.setLenient(true);
-      JsonElement mdGson = null;
       try {
-         mdGson = parser.parse(reader);
+         return parser.parse(reader);
       } catch (JsonSyntaxException jse) {
          ReportingUtils.logError(jse, "Error parsing image metadata.");
          return null;
       }
+   }
+
+   /**
+    * Reads the Metadata property map of an image, reconstructing the scope
+    * data of delta-encoded planes from their keyframe.
+    */
+   private PropertyMap readMetadataPropertyMap(JsonElement mdGson)
+         throws IOException {
+      if (mdGson.isJsonObject()) {
+         JsonObject jo = mdGson.getAsJsonObject();
+         long keyframeOffset = ScopeDataDelta.getKeyframeOffset(jo);
+         if (keyframeOffset > 0) {
+            PropertyMap scopeData = ScopeDataDelta.decode(jo,
+                  readKeyframeScopeData(keyframeOffset));
+            return NonPropertyMapJSONFormats.metadata().fromGson(jo).copyBuilder()
+                  .putPropertyMap(PropertyKey.SCOPE_DATA.key(), scopeData)
+                  .build();
+         }
+      }
+      return NonPropertyMapJSONFormats.metadata().fromGson(mdGson);
+   }
+
+   private PropertyMap readKeyframeScopeData(long ifdOffset) throws IOException {
+      synchronized (keyframeScopeData_) {
+         PropertyMap scopeData = keyframeScopeData_.get(ifdOffset);
+         if (scopeData != null) {
+            return scopeData;
+         }
+      }
+      reopenIfPaused();
+      IFDData data = readIFD(ifdOffset);
+      JsonElement mdGson = parseImageMetadata(
+            readRegion(data.mdOffset, (int) data.mdLength));
+      if (mdGson == null) {
+         throw new IOException("Unreadable keyframe metadata at offset " + ifdOffset);
+      }
+      PropertyMap scopeData = NonPropertyMapJSONFormats.metadata().fromGson(mdGson)
+            .getPropertyMap(PropertyKey.SCOPE_DATA.key(), null);
+      if (scopeData == null) {
+         throw new IOException("No device properties in keyframe at offset " + ifdOffset);
+      }
+      synchronized (keyframeScopeData_) {
+         keyframeScopeData_.put(ifdOffset, scopeData);
+      }
+      return scopeData;
+   }
+
+   /**
+    * Reads the coords of the image described by the IFD from its metadata,
+    * without reading the pixels.
+    *
+    * @return Coords of the image, or null for blank placeholder images
+    */
+   private Coords readCoordsOnly(IFDData data) throws IOException {
+      JsonElement mdGson = parseImageMetadata(
+            readRegion(data.mdOffset, (int) data.mdLength));
+      if (mdGson == null) {
+         throw new IOException("Unreadable image metadata");
+      }
+      Metadata metadata = DefaultMetadata.fromPropertyMap(
+            NonPropertyMapJSONFormats.metadata().fromGson(mdGson));
+      if (((DefaultMetadata) metadata).toPropertyMap().equals(
+            new DefaultMetadata.Builder().build())) {
+         return null;
+      }
+      return DefaultCoords.fromPropertyMap(
+            NonPropertyMapJSONFormats.coords().fromGson(mdGson));
+   }
+
+   /**
+    * Returns the width, height, and pixel type of an image as recorded in its
+    * IFD, or null if the IFD does not match one of the pixel types we write.
+    */
+   private static PropertyMap imageFormatFromIFD(IFDData data) {
+      PixelType pixelType = null;
+      if (data.samplesPerPixel == 1 && data.bitsPerSample == 8) {
+         pixelType = PixelType.GRAY8;
+      } else if (data.samplesPerPixel == 1 && data.bitsPerSample == 16) {
+         pixelType = PixelType.GRAY16;
+      } else if (data.samplesPerPixel == 3 && data.bitsPerSample == 8) {
+         pixelType = PixelType.RGB32;
+      }
+      if (pixelType == null || data.width < 1 || data.height < 1) {
+         return null;
+      }
+      return PropertyMaps.builder()
+            .putInteger(PropertyKey.WIDTH.key(), data.width)
+            .putInteger(PropertyKey.HEIGHT.key(), data.height)
+            .putEnumAsString(PropertyKey.PIXEL_TYPE.key(), pixelType)
+            .build();
+   }
+
+   /**
+    * Wraps an image so that its metadata is parsed when first asked for,
+    * or returns it as is if mdBuffer is null. The metadata bytes are copied
+    * so that no file buffer or mapping is retained; the bit depth (needed
+    * for histograms) is picked out of them right away. Delta-encoded planes
+    * read their keyframe when the metadata is parsed, opening the file again
+    * for that if it has been paused since. If the metadata cannot be read,
+    * getMetadata() throws an UncheckedIOException.
+    */
+   private DefaultImage withDeferredMetadata(DefaultImage image,
+                                             ByteBuffer mdBuffer) {
+      if (mdBuffer == null) {
+         return image;
+      }
+      final byte[] mdBytes = new byte[mdBuffer.capacity()];
+      ByteBuffer source = mdBuffer.duplicate();
+      source.clear();
+      source.get(mdBytes);
+      Supplier<Metadata> metadata = () -> {
+         boolean wasPaused = false;
+         channelLock_.readLock().lock();
+         try {
+            wasPaused = fileChannel_ == null;
+            JsonElement mdGson = parseImageMetadata(ByteBuffer.wrap(mdBytes));
+            if (mdGson == null) {
+               throw new IOException("Unreadable image metadata");
+            }
+            return DefaultMetadata.fromPropertyMap(readMetadataPropertyMap(mdGson));
+         } catch (IOException | IllegalStateException e) {
+            throw new UncheckedIOException("Error reading image metadata from " + file_,
+                  e instanceof IOException ? (IOException) e : new IOException(e));
+         } finally {
+            channelLock_.readLock().unlock();
+            if (wasPaused) {
+               // Leave the file as we found it
+               try {
+                  pause();
+               } catch (IOException e) {
+                  ReportingUtils.logError(e, "Error closing " + file_);
+               }
+            }
+         }
+      };
+      return DefaultImage.withDeferredMetadata(image, metadata,
+            scanTopLevelInteger(mdBytes, PropertyKey.BIT_DEPTH.key()));
+   }
+
+   /**
+    * Finds the value of a top-level integer in a JSON object without parsing
+    * it, by skipping over everything but the keys of the outermost object.
+    *
+    * @return the value, or null if the key is not found or not an integer
+    */
+   static Integer scanTopLevelInteger(byte[] json, String key) {
+      int depth = 0;
+      for (int i = 0; i < json.length; ++i) {
+         byte b = json[i];
+         if (b == '"') {
+            int start = i + 1;
+            for (++i; i < json.length && json[i] != '"'; ++i) {
+               if (json[i] == '\\') {
+                  ++i;
+               }
+            }
+            if (depth == 1 && i - start == key.length()) {
+               int j = 0;
+               while (j < key.length() && json[start + j] == key.charAt(j)) {
+                  ++j;
+               }
+               int colon = i + 1;
+               while (colon < json.length && json[colon] <= ' ') {
+                  ++colon;
+               }
+               if (j == key.length() && colon < json.length && json[colon] == ':') {
+                  return parseInteger(json, colon + 1);
+               }
+            }
+         } else if (b == '{' || b == '[') {
+            ++depth;
+         } else if (b == '}' || b == ']') {
+            --depth;
+         }
+      }
+      return null;
+   }
+
+   private static Integer parseInteger(byte[] json, int pos) {
+      while (pos < json.length && json[pos] <= ' ') {
+         ++pos;
+      }
+      int end = pos;
+      if (end < json.length && json[end] == '-') {
+         ++end;
+      }
+      while (end < json.length && json[end] >= '0' && json[end] <= '9') {
+         ++end;
+      }
+      try {
+         return Integer.valueOf(new String(json, pos, end - pos, "US-ASCII"));
+      } catch (NumberFormatException | UnsupportedEncodingException e) {
+         return null;
+      }
+   }
+
+   private Image readImage(IFDData data, Coords coords) throws IOException {
+      ByteBuffer pixelBuffer;
+      ByteBuffer mdBuffer;
+      final boolean compressed = data.compression != DeflateStripCodec.COMPRESSION_NONE;
+      // Only uncompressed pixels read through a buffer of our own can be
+      // recycled
+      final boolean recyclePixelBuffer = !memoryMapped_ && !compressed;
+      if (compressed) {
+         pixelBuffer = readCompressedPixels(data);
+         mdBuffer = readRegion(data.mdOffset, (int) data.mdLength);
+      } else if (memoryMapped_) {
+         pixelBuffer = readRegion(data.pixelOffset, (int) data.bytesPerImage);
+         mdBuffer = readRegion(data.mdOffset, (int) data.mdLength);
+      } else {
+         pixelBuffer = getLargeBuffer((int) data.bytesPerImage, byteOrder_);
+         pixelBuffer.rewind();
+         mdBuffer = ByteBuffer.allocate((int) data.mdLength).order(byteOrder_);
+         fileChannel_.read(pixelBuffer, data.pixelOffset);
+         fileChannel_.read(mdBuffer, data.mdOffset);
+      }
 
       try {
-         PropertyMap formatPmap = NonPropertyMapJSONFormats.imageFormat()
-               .fromGson(mdGson);
-         Coords coords = DefaultCoords.fromPropertyMap(
-               NonPropertyMapJSONFormats.coords().fromGson(mdGson));
-         Metadata metadata = DefaultMetadata.fromPropertyMap(
-               NonPropertyMapJSONFormats.metadata().fromGson(mdGson));
-
-         // Usually we get the width, height, and pixel type from the image (plane)
-         // metadata. If it's not there, we use the values found in the summary
-         // metadata.
-         int width = formatPmap.getInteger(PropertyKey.WIDTH.key(), 0);
-         int height = formatPmap.getInteger(PropertyKey.HEIGHT.key(), 0);
-         if (width < 1 || height < 1) {
-            width = imageFormatReadFromSummary_.getInteger(PropertyKey.WIDTH.key(), 0);
-            height = imageFormatReadFromSummary_.getInteger(PropertyKey.HEIGHT.key(), 0);
+         // The format is normally in the IFD and the coords in the index map,
+         // so the metadata is only parsed (which can take longer than reading
+         // the pixels) if somebody asks for it
+         PropertyMap formatPmap = coords == null ? null : imageFormatFromIFD(data);
+         Metadata metadata = null;
+         ByteBuffer deferredMetadata = null;
+         int width;
+         int height;
+         PixelType pixelType;
+         if (formatPmap != null) {
+            deferredMetadata = mdBuffer;
+            width = data.width;
+            height = data.height;
+            pixelType = formatPmap.getStringAsEnum(
+                  PropertyKey.PIXEL_TYPE.key(), PixelType.class, null);
+         } else {
+            JsonElement mdGson = parseImageMetadata(mdBuffer);
+            if (mdGson == null) {
+               return null;
+            }
+            formatPmap = NonPropertyMapJSONFormats.imageFormat()
+                  .fromGson(mdGson);
+            coords = DefaultCoords.fromPropertyMap(
+                  NonPropertyMapJSONFormats.coords().fromGson(mdGson));
+            metadata = DefaultMetadata.fromPropertyMap(
+                  readMetadataPropertyMap(mdGson));
+
+            // Usually we get the width, height, and pixel type from the image (plane)
+            // metadata. If it's not there, we use the values found in the summary
+            // metadata.
+            width = formatPmap.getInteger(PropertyKey.WIDTH.key(), 0);
+            height = formatPmap.getInteger(PropertyKey.HEIGHT.key(), 0);
             if (width < 1 || height < 1) {
-               // TODO We should probably try the IFD before giving up
-               throw new IOException("Cannot find image width and height");
+               width = imageFormatReadFromSummary_.getInteger(PropertyKey.WIDTH.key(), 0);
+               height = imageFormatReadFromSummary_.getInteger(PropertyKey.HEIGHT.key(), 0);
+               if (width < 1 || height < 1) {
+                  // TODO We should probably try the IFD before giving up
+                  throw new IOException("Cannot find image width and height");
+               }
+               formatPmap = formatPmap.copyBuilder()
+                     .putInteger(PropertyKey.WIDTH.key(), width)
+                     .putInteger(PropertyKey.HEIGHT.key(), height)
+                     .build();
             }
-            formatPmap = formatPmap.copyBuilder()
-                  .putInteger(PropertyKey.WIDTH.key(), width)
-                  .putInteger(PropertyKey.HEIGHT.key(), height)
-                  .build();
-         }
 
-         PixelType pixelType = formatPmap.getStringAsEnum(
-               PropertyKey.PIXEL_TYPE.key(), PixelType.class, null);
-         if (pixelType == null) {
-            pixelType = imageFormatReadFromSummary_.getStringAsEnum(
+            pixelType = formatPmap.getStringAsEnum(
                   PropertyKey.PIXEL_TYPE.key(), PixelType.class, null);
             if (pixelType == null) {
-               // TODO We should probably try the IFD before giving up
-               throw new IOException("Cannot find image width and height");
+               pixelType = imageFormatReadFromSummary_.getStringAsEnum(
+                     PropertyKey.PIXEL_TYPE.key(), PixelType.class, null);
+               if (pixelType == null) {
+                  // TODO We should probably try the IFD before giving up
+                  throw new IOException("Cannot find image width and height");
+               }
+               formatPmap = formatPmap.copyBuilder().putEnumAsString(
+                     PropertyKey.PIXEL_TYPE.key(), pixelType).build();
             }
-            formatPmap = formatPmap.copyBuilder().putEnumAsString(
-                  PropertyKey.PIXEL_TYPE.key(), pixelType).build();
          }
 
-
          // TODO We should avoid converting to Java array and back, instead using
          // a nio buffer directly as the Image storage (even better if memory
          // mapped).
          Image img = null;
+         if (memoryMapped_ && !compressed && pixelType != PixelType.RGB32) {
+            // Zero-copy: the image keeps a view on the mapped window, and only
+            // copies to the heap if getRawPixels() is called.
+            Buffer view = pixelType == PixelType.GRAY16
+                  ? pixelBuffer.asShortBuffer() : pixelBuffer;
+            return withDeferredMetadata(
+                  new DefaultImage(view, width, height, pixelType, coords, metadata),
+                  deferredMetadata);
+         }
          switch (pixelType) {
             case GRAY8: {
                // make a copy of the array so that ByteBuffer can be recycled
                Object pixels;
-               if (pixelBuffer.hasArray()) {
+               if (compressed) {
+                  // Freshly decompressed, not shared with anything
+                  pixels = pixelBuffer.array();
+               } else if (pixelBuffer.hasArray()) {
                   pixels = pixelBuffer.array().clone();
                } else {
                   byte[] pixels8 = new byte[pixelBuffer.capacity()];
@@ -606,9 +1137,16 @@ public final class MultipageTiffReader {
                break;
             }
             case RGB32: {
-               byte[] pixelsARGB = new byte[(int) (4 * data.bytesPerImage / 3)];
+               byte[] pixelsRGB;
+               if (pixelBuffer.hasArray()) {
+                  pixelsRGB = pixelBuffer.array();
+               } else {
+                  pixelsRGB = new byte[pixelBuffer.capacity()];
+                  pixelBuffer.duplicate().get(pixelsRGB);
+               }
+               byte[] pixelsARGB = new byte[4 * pixelsRGB.length / 3];
                int i = 0;
-               for (byte b : pixelBuffer.array()) {
+               for (byte b : pixelsRGB) {
                   // need to swap byte 0 and 2: saved order is RGBA, but we want BGRA
                   if (i % 4 == 0) {
                      pixelsARGB[i + 2] = b;
@@ -629,8 +1167,10 @@ public final class MultipageTiffReader {
             default:
                throw new IOException("Unknown pixel type: " + pixelType.name());
          }
-         tryRecycleLargeBuffer(pixelBuffer);
-         return img;
+         if (recyclePixelBuffer) {
+            tryRecycleLargeBuffer(pixelBuffer);
+         }
+         return withDeferredMetadata((DefaultImage) img, deferredMetadata);
       } catch (IllegalStateException ise) {
 
          // can be thrown when metadata are bad, todo: report
@@ -695,17 +1235,23 @@ public final class MultipageTiffReader {
     * not mean that user-code will not try to read other images in this file.
     * Better approaches are welcome but for the time being this is the only way I
     * can think off not to run out of RAMM when virtually reading large data sets.
+    * Waits for reads from this file that are in progress.
     *
     * @throws IOException Accessing disk can cause these
     */
    void pause() throws IOException {
-      if (fileChannel_ != null) {
-         fileChannel_.close();
-         fileChannel_ = null;
-      }
-      if (raFile_ != null) {
-         raFile_.close();
-         raFile_ = null;
+      channelLock_.writeLock().lock();
+      try {
+         if (fileChannel_ != null) {
+            fileChannel_.close();
+            fileChannel_ = null;
+         }
+         if (raFile_ != null) {
+            raFile_.close();
+            raFile_ = null;
+         }
+      } finally {
+         channelLock_.writeLock().unlock();
       }
    }
 
@@ -716,6 +1262,9 @@ public final class MultipageTiffReader {
     */
    public void close() throws IOException {
       pause();
+      if (memoryMapped_) {
+         mappedWindows_.evict(file_);
+      }
       if (masterStorage_ != null) {
          try {
             CommentsHelper.saveComments(masterStorage_.getDatastore());
@@ -739,45 +1288,65 @@ public final class MultipageTiffReader {
    // terminates before properly closing, thereby preventing the multipage tiff
    // writer from putting in the index map, comments, channels, and OME XML in
    // the ImageDescription tag location
-   private void fixIndexMap(final long firstIFD, final String fileName) throws IOException {
+   private void fixIndexMap(final long firstIFD, final String fileName,
+                            LongConsumer progress) throws IOException {
       coordsToOffset_ = new HashMap<>();
-      long progBarMax = (fileChannel_.size() / 2L);
-      final ProgressBar progressBar = new ProgressBar(null, "Fixing " + fileName, 0,
-            progBarMax >= Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) progBarMax);
-      progressBar.setProgress(0);
+      ProgressBar progressBar = null;
+      if (progress == null) {
+         long progBarMax = (fileChannel_.size() / 2L);
+         final ProgressBar bar = new ProgressBar(null, "Fixing " + fileName, 0,
+               progBarMax >= Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) progBarMax);
+         bar.setProgress(0);
+         progress = (long position) -> {
+            final int value = (int) (position / 2L);
+            SwingUtilities.invokeLater(() -> bar.setProgress(value));
+         };
+         progressBar = bar;
+      }
       long nextIFDOffsetLocation = 0;
       IFDData data;
       long filePosition = firstIFD;
-      while (filePosition > 0) {
-         try {
-            data = readIFD(filePosition);
-            if (data.nextIFD == 0) {
-               break;
-            }
-            Image image = readImage(data);
-            if (((DefaultMetadata) image.getMetadata()).toPropertyMap().equals(
-                  new DefaultMetadata.Builder().build())) {
-               //Blank placeholder image, dont add to index map
-               filePosition = data.nextIFD;
-               nextIFDOffsetLocation = data.nextIFDOffsetLocation;
-               continue;
-            }
-            coordsToOffset_.put(image.getCoords(), filePosition);
+      // Only IFDs and metadata are needed; read them through a window
+      // rather than with several small reads (and a pixel read) per image
+      scanWindow_ = ByteBuffer.allocate(SCAN_WINDOW_BYTES).order(byteOrder_);
+      scanWindow_.limit(0);
+      scanWindowStart_ = 0;
+      try {
+         while (filePosition > 0) {
+            try {
+               data = readIFD(filePosition);
+               if (data.nextIFD == 0) {
+                  break;
+               }
+               Coords coords = readCoordsOnly(data);
+               if (coords == null) {
+                  //Blank placeholder image, dont add to index map
+                  filePosition = data.nextIFD;
+                  nextIFDOffsetLocation = data.nextIFDOffsetLocation;
+                  continue;
+               }
+               coordsToOffset_.put(coords, filePosition);
 
-            final int progress = (int) (filePosition / 2L);
-            SwingUtilities.invokeLater(() -> progressBar.setProgress(progress));
+               progress.accept(filePosition);
 
-            if (data.nextIFD <= filePosition
-                  || data.nextIFDOffsetLocation <= nextIFDOffsetLocation) {
-               break; //so no recoverable data is ever lost
+               if (data.nextIFD <= filePosition
+                     || data.nextIFDOffsetLocation <= nextIFDOffsetLocation) {
+                  break; //so no recoverable data is ever lost
+               }
+               filePosition = data.nextIFD;
+               nextIFDOffsetLocation = data.nextIFDOffsetLocation;
+            } catch (Exception e) {
+               break;
             }
-            filePosition = data.nextIFD;
-            nextIFDOffsetLocation = data.nextIFDOffsetLocation;
-         } catch (Exception e) {
-            break;
          }
+      } finally {
+         scanWindow_ = null;
+      }
+      progress.accept(fileChannel_.size());
+      if (progressBar != null) {
+         final ProgressBar bar = progressBar;
+         SwingUtilities.invokeLater(() -> bar.setVisible(false));
       }
-      SwingUtilities.invokeLater(() -> progressBar.setVisible(false));
 
       filePosition += writeIndexMap(filePosition);
 
@@ -855,6 +1424,16 @@ public final class MultipageTiffReader {
       public long mdLength;
       public long nextIFD;
       public long nextIFDOffsetLocation;
+      // Only needed to decode compressed images
+      public int compression = DeflateStripCodec.COMPRESSION_NONE;
+      public int predictor = DeflateStripCodec.PREDICTOR_NONE;
+      public int rowsPerStrip;
+      public int width;
+      public int height;
+      public int samplesPerPixel = 1;
+      public int bitsPerSample;
+      public long[] stripOffsets;
+      public long[] stripByteCounts;
 
       public IFDData() {
       }
@@ -863,9 +1442,9 @@ public final class MultipageTiffReader {
       public String toString() {
          return String.format(
                "<IFDData offset %d, bytes %d, metadata offset %d, metadata length %d, "
-                     + "next %d, next offset %d>",
+                     + "next %d, next offset %d, compression %d>",
                pixelOffset, bytesPerImage, mdOffset, mdLength, nextIFD,
-               nextIFDOffsetLocation);
+               nextIFDOffsetLocation, compression);
       }
    }
 
@@ -42,7 +42,6 @@ import java.util.Deque;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.ThreadPoolExecutor;
 import org.micromanager.PropertyMap;
 import org.micromanager.PropertyMaps;
 import org.micromanager.data.Coords;
@@ -99,6 +98,7 @@ public final class MultipageTiffWriter {
    public static final char X_RESOLUTION = 282;
    public static final char Y_RESOLUTION = 283;
    public static final char RESOLUTION_UNIT = 296;
+   public static final char PREDICTOR = 317;
    public static final char IJ_METADATA_BYTE_COUNTS = TiffDecoder.META_DATA_BYTE_COUNTS;
    public static final char IJ_METADATA = TiffDecoder.META_DATA;
    public static final char MM_METADATA = 51123;
@@ -107,10 +107,13 @@ public final class MultipageTiffWriter {
 
    public static final ByteOrder BYTE_ORDER = ByteOrder.nativeOrder();
 
+   // Gson instances are thread-safe, and costly to create for every image
+   private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+
    private StorageMultipageTiff masterStorage_;
    private RandomAccessFile raFile_;
    private FileChannel fileChannel_;
-   private final ThreadPoolExecutor writingExecutor_;
+   private final WritingLane writingLane_;
    private long filePosition_ = 0;
    //current position of the dynamically written index map
    private long indexMapPosition_;
@@ -139,6 +142,11 @@ public final class MultipageTiffWriter {
    //Reader associated with this file
    private final MultipageTiffReader reader_;
    private long blankPixelsOffset_ = -1;
+   private long maxImagesInFile_;
+   // Non-null when pixels are compressed
+   private final DeflateStripCodec codec_;
+   // Non-null when scope data is delta encoded
+   private final ScopeDataDelta scopeDataDelta_;
 
    /**
     * Class writing Multipage Tiffs to disk.
@@ -146,14 +154,17 @@ public final class MultipageTiffWriter {
     * @param masterStorage Associated Storage instance
     * @param firstImage    image, needed to deduce certain metadata
     * @param filename      where to store the data
+    * @param writingLane   lane on which all writes to this file are executed
     * @throws IOException can happen when writing/reading to disk
     */
-   public MultipageTiffWriter(
+   MultipageTiffWriter(
          final StorageMultipageTiff masterStorage,
          final Image firstImage,
-         final String filename)
+         final String filename,
+         final WritingLane writingLane)
          throws IOException {
       masterStorage_ = masterStorage;
+      writingLane_ = writingLane;
 
       // Obtain information from storage that will be used globally:
       Image repImage = masterStorage_.getAnyImage();
@@ -166,6 +177,13 @@ public final class MultipageTiffWriter {
       imageHeight_ = repImage.getHeight();
       byteDepth_ = repImage.getBytesPerPixel() / repImage.getNumComponents();
       bytesPerImagePixels_ = imageHeight_ * imageWidth_ * byteDepth_ * repImage.getNumComponents();
+      // RGB images are written without their alpha component
+      codec_ = masterStorage_.isCompressionEnabled()
+            ? new DeflateStripCodec(imageWidth_, imageHeight_, rgb_ ? 3 : 1,
+                  byteDepth_, 0, BYTE_ORDER)
+            : null;
+      scopeDataDelta_ = masterStorage_.isScopeDataDeltaEnabled()
+            ? new ScopeDataDelta() : null;
       // Tiff resolution tag values
       double cmPerPixel = 0.0001;
       Metadata repMetadata = repImage.getMetadata();
@@ -228,9 +246,9 @@ public final class MultipageTiffWriter {
                "Insufficent space on disk: no room to write data");
       }
       fileChannel_ = raFile_.getChannel();
-      writingExecutor_ = masterStorage_.getWritingExecutor();
       coordsToOffset_ = new HashMap<>();
       reader_.setFileChannel(fileChannel_);
+      reader_.setFile(f);
       reader_.setIndexMap(coordsToOffset_);
       buffers_ = new LinkedList<>();
 
@@ -336,8 +354,10 @@ public final class MultipageTiffWriter {
       }
    }
 
+   // Blocks while the lane is full, which throttles the caller to the
+   // speed of the disk
    private void executeWritingTask(Runnable writingTask) {
-      writingExecutor_.execute(writingTask);
+      writingLane_.execute(writingTask);
    }
 
    private void fileChannelWrite(final ByteBuffer buffer, final long position) {
@@ -379,6 +399,12 @@ public final class MultipageTiffWriter {
       int mdLength = summaryMDBytes.length;
       // 20 bytes plus 8 header for index map
       long maxImagesInFile = MAX_FILE_SIZE / bytesPerImagePixels_;
+      if (codec_ != null) {
+         // Compressed images can be much smaller; reserve room for more
+         // index map entries rather than running out of them.
+         maxImagesInFile *= 4;
+      }
+      maxImagesInFile_ = maxImagesInFile;
       long indexMapSpace = 8 + 20 * maxImagesInFile;
 
       ByteBuffer headerBuffer = allocateByteBuffer(40);
@@ -503,6 +529,10 @@ public final class MultipageTiffWriter {
     * @return true if there is enough space, false otherwise
     */
    public boolean hasSpaceToWrite(Image img, int omeMDLength) {
+      if ((indexMapPosition_ - indexMapFirstEntry_) / 20 >= maxImagesInFile_) {
+         // No room left in the index map
+         return false;
+      }
       boolean splitByFrame = true;
       PropertyMap mdPmap = ((DefaultMetadata) img.getMetadata()).toPropertyMap();
       int mdLength = NonPropertyMapJSONFormats.metadata().toJSON(mdPmap).length();
@@ -568,25 +598,24 @@ public final class MultipageTiffWriter {
     * @throws IOException can happen
     */
    public void writeImage(Image img) throws IOException {
-      if (writingExecutor_ != null) {
-         int queueSize = writingExecutor_.getQueue().size();
-         int attemptCount = 0;
-         while (queueSize > 20) {
-            if (attemptCount == 0) {
-               ReportingUtils.logMessage("Warning: writing queue behind by "
-                     + queueSize + " images.");
-            }
-            ++attemptCount;
-            try {
-               Thread.sleep(5);
-               queueSize = writingExecutor_.getQueue().size();
-            } catch (InterruptedException ex) {
-               ReportingUtils.logError(ex);
-            }
+      long offset = filePosition_;
+      byte[][] strips = null;
+      if (codec_ != null) {
+         // Compression runs in parallel on the compression pool, and needs
+         // to finish before the IFD can be laid out. Storage calls this from
+         // its compression lane, not from the thread that acquired the image.
+         long start = System.nanoTime();
+         ByteBuffer pixels = getPixelBuffer(img.getRawPixels());
+         strips = codec_.compress(pixels);
+         tryRecycleLargeBuffer(pixels);
+         long stored = 0;
+         for (byte[] strip : strips) {
+            stored += strip.length;
          }
+         masterStorage_.recordCompression(bytesPerImagePixels_, stored,
+               System.nanoTime() - start);
       }
-      long offset = filePosition_;
-      writeIFD(img);
+      writeIFD(img, strips);
       addToIndexMap(img.getCoords(), offset);
       writeBuffers();
    }
@@ -623,20 +652,23 @@ public final class MultipageTiffWriter {
       fileChannelWrite(buffs);
    }
 
-   private void writeIFD(Image img) {
+   private void writeIFD(Image img, byte[][] strips) {
       JsonObject jo = new JsonObject();
       NonPropertyMapJSONFormats.imageFormat().addToGson(jo,
             ((DefaultImage) img).formatToPropertyMap());
       NonPropertyMapJSONFormats.coords().addToGson(jo,
             ((DefaultCoords) img.getCoords()).toPropertyMap());
-      NonPropertyMapJSONFormats.metadata().addToGson(jo,
-            ((DefaultMetadata) img.getMetadata()).toPropertyMap());
-      Gson gson = new GsonBuilder().disableHtmlEscaping().create();
-      String mdJSON = gson.toJson(jo);
+      PropertyMap mdPmap = ((DefaultMetadata) img.getMetadata()).toPropertyMap();
+      if (scopeDataDelta_ != null) {
+         mdPmap = scopeDataDelta_.encode(mdPmap, filePosition_, jo);
+      }
+      NonPropertyMapJSONFormats.metadata().addToGson(jo, mdPmap);
+      String mdJSON = GSON.toJson(jo);
 
       byte[] mdBytes = getBytesFromString(mdJSON + " "); // Space for null
       // Null-terminate buffer.
       mdBytes[mdBytes.length - 1] = 0;
+      masterStorage_.recordImageMetadata(mdBytes.length);
 
       // 2 bytes for number of directory entries,
       // 12 bytes per directory entry,
@@ -646,7 +678,21 @@ public final class MultipageTiffWriter {
       // 1 byte per character of MD string
       // number of bytes for pixels
       char numEntries = ((firstIFD_ ? ENTRIES_PER_IFD + 4 : ENTRIES_PER_IFD));
+      if (strips != null) {
+         numEntries++; // Predictor
+      }
       int ifDandBitDepthBytes = 2 + numEntries * 12 + 4 + (rgb_ ? 6 : 0);
+      int numStrips = strips == null ? 1 : strips.length;
+      long pixelBytes = bytesPerImagePixels_;
+      if (strips != null) {
+         pixelBytes = 0;
+         for (byte[] strip : strips) {
+            pixelBytes += strip.length;
+         }
+      }
+      // Strip offsets and byte counts do not fit in the IFD entries if there
+      // is more than one strip
+      int stripArrayBytes = numStrips > 1 ? 8 * numStrips : 0;
 
       ByteBuffer ifdBuffer = allocateByteBuffer(ifDandBitDepthBytes);
       CharBuffer charView = ifdBuffer.asCharBuffer();
@@ -664,7 +710,9 @@ public final class MultipageTiffWriter {
       if (rgb_) {
          tagDataOffset += 6;
       }
-      writeIFDEntry(ifdBuffer, charView, COMPRESSION, (char) 3, 1, 1);
+      writeIFDEntry(ifdBuffer, charView, COMPRESSION, (char) 3, 1,
+            strips == null ? DeflateStripCodec.COMPRESSION_NONE
+                  : DeflateStripCodec.COMPRESSION_DEFLATE);
       writeIFDEntry(ifdBuffer, charView, PHOTOMETRIC_INTERPRETATION, (char) 3, 1, rgb_ ? 2 : 1);
 
       if (firstIFD_) {
@@ -674,16 +722,25 @@ public final class MultipageTiffWriter {
          writeIFDEntry(ifdBuffer, charView, IMAGE_DESCRIPTION, (char) 2, 0, 0);
       }
 
-      writeIFDEntry(ifdBuffer, charView, STRIP_OFFSETS, (char) 4, 1, tagDataOffset);
-      tagDataOffset += bytesPerImagePixels_;
+      long stripArrayOffset = tagDataOffset;
+      long pixelOffset = tagDataOffset + stripArrayBytes;
+      writeIFDEntry(ifdBuffer, charView, STRIP_OFFSETS, (char) 4, numStrips,
+            numStrips > 1 ? stripArrayOffset : pixelOffset);
+      tagDataOffset = pixelOffset + pixelBytes;
       writeIFDEntry(ifdBuffer, charView, SAMPLES_PER_PIXEL, (char) 3, 1, (rgb_ ? 3 : 1));
-      writeIFDEntry(ifdBuffer, charView, ROWS_PER_STRIP, (char) 3, 1, imageHeight_);
-      writeIFDEntry(ifdBuffer, charView, STRIP_BYTE_COUNTS, (char) 4, 1, bytesPerImagePixels_);
+      writeIFDEntry(ifdBuffer, charView, ROWS_PER_STRIP, (char) 3, 1,
+            strips == null ? imageHeight_ : codec_.getRowsPerStrip());
+      writeIFDEntry(ifdBuffer, charView, STRIP_BYTE_COUNTS, (char) 4, numStrips,
+            numStrips > 1 ? stripArrayOffset + 4 * numStrips : pixelBytes);
       writeIFDEntry(ifdBuffer, charView, X_RESOLUTION, (char) 5, 1, tagDataOffset);
       tagDataOffset += 8;
       writeIFDEntry(ifdBuffer, charView, Y_RESOLUTION, (char) 5, 1, tagDataOffset);
       tagDataOffset += 8;
       writeIFDEntry(ifdBuffer, charView, RESOLUTION_UNIT, (char) 3, 1, 3);
+      if (strips != null) {
+         writeIFDEntry(ifdBuffer, charView, PREDICTOR, (char) 3, 1,
+               DeflateStripCodec.PREDICTOR_HORIZONTAL);
+      }
       if (firstIFD_) {
          ijMetadataCountsTagPosition_ = filePosition_ + bufferPosition_;
          writeIFDEntry(ifdBuffer, charView, IJ_METADATA_BYTE_COUNTS, (char) 4, 0, 0);
@@ -702,12 +759,28 @@ public final class MultipageTiffWriter {
          charView.put(bufferPosition_ / 2 + 2, (char) (byteDepth_ * 8));
       }
       buffers_.add(ifdBuffer);
-      buffers_.add(getPixelBuffer(img.getRawPixels()));
+      if (strips == null) {
+         buffers_.add(getPixelBuffer(img.getRawPixels()));
+      } else {
+         if (numStrips > 1) {
+            ByteBuffer stripArrays = allocateByteBuffer(stripArrayBytes);
+            long stripOffset = pixelOffset;
+            for (int i = 0; i < numStrips; i++) {
+               stripArrays.putInt(4 * i, (int) stripOffset);
+               stripArrays.putInt(4 * (numStrips + i), strips[i].length);
+               stripOffset += strips[i].length;
+            }
+            buffers_.add(stripArrays);
+         }
+         for (byte[] strip : strips) {
+            buffers_.add(ByteBuffer.wrap(strip));
+         }
+      }
       buffers_.add(getResolutionValuesBuffer());
       buffers_.add(ByteBuffer.wrap(mdBytes));
 
-      int totalBytes = 2 + numEntries * 12 + 4 + (rgb_ ? 6 : 0) + 16 + mdBytes.length
-            + bytesPerImagePixels_;
+      long totalBytes = 2 + numEntries * 12 + 4 + (rgb_ ? 6 : 0) + stripArrayBytes
+            + 16 + mdBytes.length + pixelBytes;
       filePosition_ += totalBytes;
       firstIFD_ = false;
    }
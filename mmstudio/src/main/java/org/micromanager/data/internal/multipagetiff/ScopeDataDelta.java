@@ -0,0 +1,157 @@
+package org.micromanager.data.internal.multipagetiff;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import java.util.Map;
+import org.micromanager.PropertyMap;
+import org.micromanager.PropertyMaps;
+import org.micromanager.data.internal.PropertyKey;
+
+/**
+ * Delta encoding of the scope data (device property values) stored with
+ * each plane of a Multipage TIFF file.
+ *
+ * <p>Most device properties do not change from one plane to the next, yet
+ * by default all of them are written with every plane. When delta encoding
+ * is on, a keyframe plane is written in the usual format, and subsequent
+ * planes only store the properties that differ from the keyframe (under
+ * {@link #DELTA_KEY}), the properties missing from it ({@link #REMOVED_KEY}),
+ * and the IFD offset of the keyframe ({@link #KEYFRAME_KEY}). A new keyframe
+ * is written periodically and whenever the delta grows large, so any plane
+ * can be reconstructed from itself and a single keyframe in the same file.
+ *
+ * <p>Readers that are unaware of delta encoding still read the keyframes
+ * completely, and all other metadata of the delta planes.
+ *
+ * <p>Single plane TIFF series use the same encoding for the per-plane entries
+ * of their metadata.txt files, with the key of the keyframe entry in place of
+ * the IFD offset. The TIFF files themselves keep the full metadata.
+ *
+ * <p>One encoder is used per file, by the writer of that file. Not
+ * thread-safe.
+ */
+public final class ScopeDataDelta {
+   static final String DELTA_KEY = "ScopeDataDelta";
+   static final String REMOVED_KEY = "ScopeDataRemoved";
+   static final String KEYFRAME_KEY = "ScopeDataKeyframe";
+
+   // Maximum number of planes between keyframes, bounding the damage done
+   // by a corrupted keyframe
+   static final int KEYFRAME_INTERVAL = 100;
+
+   private PropertyMap keyframe_;
+   private JsonPrimitive keyframeRef_;
+   private int planesSinceKeyframe_;
+
+   /**
+    * Prepare the metadata of a plane for writing.
+    *
+    * @param metadata  metadata of the plane, as a property map
+    * @param ifdOffset offset of the IFD of the plane in the file
+    * @param dest      JSON object to which the delta is added, if the plane
+    *                  is delta encoded
+    * @return the metadata to store in the usual way: unchanged for keyframes
+    *         and planes without scope data, otherwise without the scope data
+    */
+   PropertyMap encode(PropertyMap metadata, long ifdOffset, JsonObject dest) {
+      return encode(metadata, new JsonPrimitive(ifdOffset), dest);
+   }
+
+   /**
+    * Prepare the metadata of a plane for writing to a metadata.txt file.
+    *
+    * @param metadata metadata of the plane, as a property map
+    * @param key      key of the metadata entry of the plane in the file
+    * @param dest     JSON object to which the delta is added, if the plane
+    *                 is delta encoded
+    * @return the metadata to store in the usual way: unchanged for keyframes
+    *         and planes without scope data, otherwise without the scope data
+    */
+   public PropertyMap encode(PropertyMap metadata, String key, JsonObject dest) {
+      return encode(metadata, new JsonPrimitive(key), dest);
+   }
+
+   private PropertyMap encode(PropertyMap metadata, JsonPrimitive ref,
+                              JsonObject dest) {
+      String scopeKey = PropertyKey.SCOPE_DATA.key();
+      PropertyMap scopeData = metadata.getPropertyMap(scopeKey, null);
+      if (scopeData == null) {
+         return metadata;
+      }
+      if (keyframe_ != null && planesSinceKeyframe_ < KEYFRAME_INTERVAL) {
+         JsonObject delta = new JsonObject();
+         JsonArray removed = new JsonArray();
+         for (String key : scopeData.keySet()) {
+            String value = scopeData.getValueAsString(key, null);
+            if (!keyframe_.containsKey(key)
+                  || !value.equals(keyframe_.getValueAsString(key, null))) {
+               delta.addProperty(key, value);
+            }
+         }
+         for (String key : keyframe_.keySet()) {
+            if (!scopeData.containsKey(key)) {
+               removed.add(new JsonPrimitive(key));
+            }
+         }
+         // A delta of more than half the properties saves little; start a
+         // new keyframe instead
+         if (2 * (delta.entrySet().size() + removed.size()) <= keyframe_.keySet().size()) {
+            planesSinceKeyframe_++;
+            dest.add(DELTA_KEY, delta);
+            if (removed.size() > 0) {
+               dest.add(REMOVED_KEY, removed);
+            }
+            dest.add(KEYFRAME_KEY, keyframeRef_);
+            return metadata.copyBuilder().remove(scopeKey).build();
+         }
+      }
+      keyframe_ = scopeData;
+      keyframeRef_ = ref;
+      planesSinceKeyframe_ = 0;
+      return metadata;
+   }
+
+   /**
+    * Returns the IFD offset of the keyframe of a plane, or -1 if the plane
+    * metadata is not delta encoded.
+    *
+    * @param jo plane metadata as read from the file
+    */
+   static long getKeyframeOffset(JsonObject jo) {
+      JsonElement offset = jo.get(KEYFRAME_KEY);
+      if (offset == null || !offset.isJsonPrimitive()) {
+         return -1;
+      }
+      return offset.getAsLong();
+   }
+
+   /**
+    * Reconstruct the scope data of a delta-encoded plane. The delta is
+    * removed from the plane metadata, so that it is not mistaken for user
+    * data when the rest of the metadata is read.
+    *
+    * @param jo        plane metadata as read from the file
+    * @param keyframe  scope data of the keyframe of the plane
+    * @return the full scope data of the plane
+    */
+   static PropertyMap decode(JsonObject jo, PropertyMap keyframe) {
+      PropertyMap.Builder builder = keyframe == null
+            ? PropertyMaps.builder() : keyframe.copyBuilder();
+      jo.remove(KEYFRAME_KEY);
+      JsonElement removed = jo.remove(REMOVED_KEY);
+      if (removed != null && removed.isJsonArray()) {
+         for (JsonElement key : removed.getAsJsonArray()) {
+            builder.remove(key.getAsString());
+         }
+      }
+      JsonElement delta = jo.remove(DELTA_KEY);
+      if (delta != null && delta.isJsonObject()) {
+         for (Map.Entry<String, JsonElement> e : delta.getAsJsonObject().entrySet()) {
+            builder.putString(e.getKey(), e.getValue().getAsString());
+         }
+      }
+      return builder.build();
+   }
+}
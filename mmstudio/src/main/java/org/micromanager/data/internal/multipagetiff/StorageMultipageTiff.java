@@ -27,21 +27,24 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Arrays;
-import java.util.ConcurrentModificationException;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
@@ -52,6 +55,7 @@ import org.micromanager.data.Datastore;
 import org.micromanager.data.Image;
 import org.micromanager.data.Storage;
 import org.micromanager.data.SummaryMetadata;
+import org.micromanager.data.internal.CoordsIndex;
 import org.micromanager.data.internal.DefaultCoords;
 import org.micromanager.data.internal.DefaultDatastore;
 import org.micromanager.data.internal.DefaultImage;
@@ -79,6 +83,23 @@ public final class StorageMultipageTiff implements Storage {
          "generate a metadata file when saving datasets as multipage TIFF files";
    private static final String SHOULD_USE_SEPARATE_FILES_FOR_POSITIONS =
          "generate a separate multipage TIFF file for each stage position";
+   private static final String SHOULD_MEMORY_MAP_FILES =
+         "read multipage TIFF files through memory mapping";
+   private static final String SHOULD_COMPRESS =
+         "compress multipage TIFF files losslessly";
+   private static final String SHOULD_DELTA_ENCODE_SCOPE_DATA =
+         "store only changed device properties in multipage TIFF image metadata";
+   private static final String SHOULD_USE_PARALLEL_WRITING =
+         "write multipage TIFF files for different positions in parallel";
+   // Upper bound on the number of writing threads in parallel mode; file sets
+   // beyond this share lanes
+   private static final int MAX_WRITING_LANES =
+         Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+   // Opening is mostly waiting for the disk; more threads than this rarely
+   // help
+   private static final int MAX_OPENING_THREADS = 8;
+   // Images that may wait for compression before putImage() blocks
+   private static final int COMPRESSION_CAPACITY = 16;
    private static final HashSet<String> ALLOWED_AXES = new HashSet<>(
          Arrays.asList(Coords.CHANNEL, Coords.T, Coords.Z,
                Coords.STAGE_POSITION));
@@ -92,12 +113,28 @@ public final class StorageMultipageTiff implements Storage {
    private int lastFrameOpenedDataSet_ = -1;
    private final String directory_;
    private final boolean separateMetadataFile_;
+   private final boolean memoryMapFiles_;
    private boolean splitByXYPosition_ = true;
    private volatile boolean finished_ = false;
    private OMEMetadata omeMetadata_;
    private int lastFrame_ = 0;
    private int lastAcquiredPosition_ = 0;
-   private ThreadPoolExecutor writingExecutor_;
+   private final int maxWritingLanes_;
+   private final boolean compress_;
+   // Totals over all compressed images, for performance reporting
+   private long compressionRawBytes_ = 0;
+   private long compressionStoredBytes_ = 0;
+   private long compressionNanos_ = 0;
+   private final boolean deltaScopeData_;
+   // Totals over all images written, for performance reporting
+   private long metadataBytes_ = 0;
+   private long metadataImages_ = 0;
+   // Writing lanes by lane index. With a single lane all file sets share
+   // one writing thread, as in earlier versions.
+   private final Map<Integer, WritingLane> writingLanes_ = new ConcurrentHashMap<>();
+   // With compression on, images are compressed and laid out on this lane
+   // rather than on the thread calling putImage(). Null otherwise.
+   private final WritingLane compressionLane_;
    private Image firstImage_;
 
    // Images that are currently being written. We keep them around until
@@ -113,23 +150,140 @@ public final class StorageMultipageTiff implements Storage {
    // Map of image Coords to files
    private Map<Coords, MultipageTiffReader> coordsToReader_;
    private MultipageTiffReader lastReader_;
-   private Map<Coords, List<Coords>> coordsIndexedMissingC_;
+   private final Object readerLock_ = new Object();
+   private final CoordsIndex coordsIndex_ = new CoordsIndex(Coords.C);
    // Cache the axes that are in use
    private final Set<String> axesInUse_;
    // Keeps track of our maximum extent along each axis.
    private Coords maxIndices_;
 
 
+   /**
+    * How a dataset is written to and read from disk. Options that do not
+    * apply (for instance, writing options when opening existing data) are
+    * ignored.
+    */
+   public static final class Options {
+      private final boolean separateMetadataFile_;
+      private final boolean splitPositions_;
+      private final boolean memoryMapFiles_;
+      private final int maxWritingLanes_;
+      private final boolean compress_;
+      private final boolean deltaScopeData_;
+
+      public static final class Builder {
+         private boolean separateMetadataFile_ = true;
+         private boolean splitPositions_ = true;
+         private boolean memoryMapFiles_ = false;
+         private int maxWritingLanes_ = 1;
+         private boolean compress_ = false;
+         private boolean deltaScopeData_ = false;
+
+         /**
+          * Whether to also write the metadata of all images to a separate
+          * text file. Default: true.
+          */
+         public Builder separateMetadataFile(boolean separate) {
+            separateMetadataFile_ = separate;
+            return this;
+         }
+
+         /**
+          * Whether to write each stage position to its own files, rather
+          * than all data to a single series of files. Default: true.
+          */
+         public Builder splitPositions(boolean split) {
+            splitPositions_ = split;
+            return this;
+         }
+
+         /**
+          * Whether existing files are read through memory-mapped views
+          * instead of buffered reads. Default: false.
+          */
+         public Builder memoryMapFiles(boolean map) {
+            memoryMapFiles_ = map;
+            return this;
+         }
+
+         /**
+          * Maximum number of threads writing to disk. When positions are
+          * written to separate files, each position gets its own thread, up
+          * to this number. Default: 1.
+          */
+         public Builder maxWritingLanes(int lanes) {
+            maxWritingLanes_ = Math.max(1, lanes);
+            return this;
+         }
+
+         /**
+          * Whether new images are written with lossless (Deflate)
+          * compression. Default: false.
+          */
+         public Builder compress(boolean compress) {
+            compress_ = compress;
+            return this;
+         }
+
+         /**
+          * Whether the device properties of new images are stored as changes
+          * relative to a periodic keyframe (see ScopeDataDelta). Default:
+          * false.
+          */
+         public Builder deltaScopeData(boolean delta) {
+            deltaScopeData_ = delta;
+            return this;
+         }
+
+         public Options build() {
+            return new Options(this);
+         }
+      }
+
+      private Options(Builder builder) {
+         separateMetadataFile_ = builder.separateMetadataFile_;
+         splitPositions_ = builder.splitPositions_;
+         memoryMapFiles_ = builder.memoryMapFiles_;
+         maxWritingLanes_ = builder.maxWritingLanes_;
+         compress_ = builder.compress_;
+         deltaScopeData_ = builder.deltaScopeData_;
+      }
+
+      /**
+       * Options as set in the user's preferences.
+       */
+      public static Options fromPreferences() {
+         return new Builder()
+               .separateMetadataFile(getShouldGenerateMetadataFile())
+               .splitPositions(getShouldSplitPositions())
+               .memoryMapFiles(getShouldMemoryMapFiles())
+               .maxWritingLanes(getShouldWriteInParallel() ? MAX_WRITING_LANES : 1)
+               .compress(getShouldCompress())
+               .deltaScopeData(getShouldDeltaEncodeScopeData())
+               .build();
+      }
+   }
+
+   /**
+    * Creates storage using the options set in the user's preferences.
+    *
+    * @param parent        GUI element on top of which a ProgressBar (or other
+    *                      things) can be displayed
+    * @param store         Datastore to be saved
+    * @param dir           Directory in which to store the data
+    * @param amInWriteMode whether or not we are also writing data
+    * @throws java.io.IOException can happen
+    */
    public StorageMultipageTiff(Component parent, Datastore store, String dir,
                                Boolean amInWriteMode)
          throws IOException {
-      this(parent, store, dir, amInWriteMode, getShouldGenerateMetadataFile(),
-            getShouldSplitPositions());
+      this(parent, store, dir, amInWriteMode, Options.fromPreferences());
    }
 
    /**
     * Constructor that doesn't make reference to MMStudio so it can be used
-    * independently of MM GUI.
+    * independently of MM GUI. All other options have their defaults (see
+    * {@link Options.Builder}).
     *
     * @param parent                    GUI element on top of which a ProgressBar
     *                                  (or other things) can be displayed
@@ -144,13 +298,41 @@ public final class StorageMultipageTiff implements Storage {
    public StorageMultipageTiff(Component parent, Datastore store, String dir,
                                boolean amInWriteMode, boolean separateMDFile,
                                boolean separateFilesForPositions) throws IOException {
+      this(parent, store, dir, amInWriteMode, new Options.Builder()
+            .separateMetadataFile(separateMDFile)
+            .splitPositions(separateFilesForPositions)
+            .build());
+   }
+
+   /**
+    * Constructor that doesn't make reference to MMStudio so it can be used
+    * independently of MM GUI.
+    *
+    * @param parent        GUI element on top of which a ProgressBar (or other
+    *                      things) can be displayed
+    * @param store         Datastore to be saved
+    * @param dir           Directory in which to store the data
+    * @param amInWriteMode whether or not we are also writing data
+    * @param options       how to write and read the files
+    * @throws java.io.IOException can happen
+    */
+   public StorageMultipageTiff(Component parent, Datastore store, String dir,
+                               boolean amInWriteMode, Options options)
+         throws IOException {
       store_ = (DefaultDatastore) store;
       parent_ = parent;
       // We must be notified of changes in the Datastore before everyone else,
       // so that others can read those changes out of the Datastore later.
       store_.registerForEvents(this, 0);
-      separateMetadataFile_ = separateMDFile;
-      splitByXYPosition_ = separateFilesForPositions;
+      separateMetadataFile_ = options.separateMetadataFile_;
+      splitByXYPosition_ = options.splitPositions_;
+      memoryMapFiles_ = options.memoryMapFiles_;
+      maxWritingLanes_ = options.maxWritingLanes_;
+      compress_ = options.compress_;
+      deltaScopeData_ = options.deltaScopeData_;
+      compressionLane_ = compress_ && amInWriteMode
+            ? new WritingLane("StorageMultiPageTiff compression", COMPRESSION_CAPACITY)
+            : null;
 
       amInWriteMode_ = amInWriteMode;
       directory_ = dir;
@@ -192,8 +374,110 @@ public final class StorageMultipageTiff implements Storage {
       }
    }
 
-   public ThreadPoolExecutor getWritingExecutor() {
-      return writingExecutor_;
+   private WritingLane getWritingLane(int fileSetIndex) {
+      int laneIndex = fileSetIndex % maxWritingLanes_;
+      return writingLanes_.computeIfAbsent(laneIndex, (Integer i) ->
+            new WritingLane("StorageMultiPageTiff" + (maxWritingLanes_ > 1 ? " " + i : ""),
+                  WritingLane.DEFAULT_CAPACITY));
+   }
+
+   boolean isCompressionEnabled() {
+      return compress_;
+   }
+
+   boolean isScopeDataDeltaEnabled() {
+      return deltaScopeData_;
+   }
+
+   synchronized void recordImageMetadata(long bytes) {
+      metadataBytes_ += bytes;
+      metadataImages_++;
+   }
+
+   /**
+    * Average size of the metadata stored with each image written so far.
+    *
+    * @return metadata bytes per image, or 0 when nothing was written
+    */
+   public synchronized double getMetadataBytesPerImage() {
+      if (metadataImages_ == 0) {
+         return 0.0;
+      }
+      return (double) metadataBytes_ / metadataImages_;
+   }
+
+   synchronized void recordCompression(long rawBytes, long storedBytes, long nanos) {
+      compressionRawBytes_ += rawBytes;
+      compressionStoredBytes_ += storedBytes;
+      compressionNanos_ += nanos;
+   }
+
+   /**
+    * Ratio of uncompressed to stored pixel bytes for the images written so far.
+    *
+    * @return compression ratio, or 1 when compression is off
+    */
+   public synchronized double getCompressionRatio() {
+      if (compressionStoredBytes_ == 0) {
+         return 1.0;
+      }
+      return (double) compressionRawBytes_ / compressionStoredBytes_;
+   }
+
+   /**
+    * Compression throughput for the images written so far, in uncompressed
+    * megabytes per second of time spent waiting for compression.
+    *
+    * @return compression throughput, or 0 when nothing was compressed
+    */
+   public synchronized double getCompressionThroughputMBps() {
+      if (compressionNanos_ == 0) {
+         return 0.0;
+      }
+      return compressionRawBytes_ / (compressionNanos_ / 1e9) / (1024 * 1024);
+   }
+
+   /**
+    * Returns the number of writing tasks that are queued or running, for each
+    * writing lane. Producers can use this to slow down before writing blocks.
+    *
+    * @return Map from lane index to queue depth. Lanes are created on demand,
+    *     so the map is empty until the first image has been written.
+    */
+   public Map<Integer, Integer> getWritingQueueDepths() {
+      Map<Integer, Integer> result = new TreeMap<>();
+      for (Map.Entry<Integer, WritingLane> entry : writingLanes_.entrySet()) {
+         result.put(entry.getKey(), entry.getValue().getQueueDepth());
+      }
+      return result;
+   }
+
+   /**
+    * Number of writing tasks that can be queued on a single lane before
+    * writing blocks.
+    *
+    * @return capacity of each writing lane
+    */
+   public int getWritingQueueCapacity() {
+      return WritingLane.DEFAULT_CAPACITY;
+   }
+
+   /**
+    * Number of images waiting to be compressed.
+    *
+    * @return queue depth of the compression stage, 0 when not compressing
+    */
+   public int getCompressionQueueDepth() {
+      return compressionLane_ == null ? 0 : compressionLane_.getQueueDepth();
+   }
+
+   /**
+    * Number of images that can wait to be compressed before putImage() blocks.
+    *
+    * @return capacity of the compression stage
+    */
+   public int getCompressionQueueCapacity() {
+      return COMPRESSION_CAPACITY;
    }
 
    /**
@@ -235,98 +519,216 @@ public final class StorageMultipageTiff implements Storage {
    }
 
    private void openExistingDataSet() {
-      //Need to throw error if file not found
-      MultipageTiffReader reader = null;
       File dir = new File(directory_);
 
       // Allow operation in headless mode.
       File[] listFiles = dir.listFiles();
-      ProgressBar progressBar = null;
-      if (!GraphicsEnvironment.isHeadless() && listFiles != null) {
-         progressBar = new ProgressBar(parent_, "Reading " + directory_, 0,
-               listFiles.length);
+      if (listFiles == null) {
+         return;
       }
-      int numRead = 0;
-      if (progressBar != null) {
-         progressBar.setProgress(0);
+      MultipageTiffReader reader = null;
+      Map<String, IndexSidecar.FileIndex> sidecar = IndexSidecar.read(dir, listFiles);
+      if (sidecar != null && !sidecar.isEmpty()) {
+         reader = openFromSidecar(dir, sidecar);
       }
-      if (listFiles != null) {
-         for (File f : listFiles) {
-            // Heuristics to only read tiff files, and not files created by the
-            // OS (starting with "._")
-            String fileName = f.getName();
-            if (fileName.endsWith(".tif") || fileName.endsWith(".TIF")) {
-               if (!fileName.startsWith("._")) {
-                  reader = loadFile(f);
-               }
-            }
-            numRead++;
-            final int nr = numRead;
-            if (progressBar != null) {
-               progressBar.setProgress(nr);
-            }
+      if (reader == null) {
+         List<MultipageTiffReader> readers = openAllFiles(listFiles);
+         if (!readers.isEmpty()) {
+            reader = readers.get(readers.size() - 1);
          }
       }
-      if (progressBar != null) {
-         final ProgressBar tmpBar = progressBar;
-         SwingUtilities.invokeLater(() -> {
-            tmpBar.setVisible(false);
-         });
-      }
 
       if (reader != null) {
          // TODO: coercing to DefaultSummaryMetadata here to match method
          // signature; see our setSummaryMetadata methods for more info.
          setSummaryMetadata((DefaultSummaryMetadata) reader.getSummaryMetadata(), true);
       }
-
    }
 
-   private MultipageTiffReader loadFile(File f) {
-      MultipageTiffReader reader = null;
+   /**
+    * Opens the dataset using the index in the sidecar file. Summary metadata
+    * and comments are read from one file only; the other files are not
+    * touched until images are read from them.
+    *
+    * @return Reader holding the summary metadata, or null if the files
+    *     could not be opened this way
+    */
+   private MultipageTiffReader openFromSidecar(File dir,
+                                               Map<String, IndexSidecar.FileIndex> sidecar) {
+      MultipageTiffReader summaryReader = null;
       try {
-         try {
-            reader = new MultipageTiffReader(this, f);
-         } catch (InvalidIndexMapException e) {
-            // Prompt to repair it.
-            int choice = JOptionPane.showConfirmDialog(null,
-                  "This file cannot be opened because it appears to have \n"
-                        + "been improperly saved. Would you like Micro-Manger to attempt "
-                        + "to fix it?",
-                  "Micro-Manager", JOptionPane.YES_NO_OPTION);
-            if (choice != JOptionPane.YES_OPTION) {
-               return null;
+         for (Map.Entry<String, IndexSidecar.FileIndex> entry : sidecar.entrySet()) {
+            File f = new File(dir, entry.getKey());
+            if (summaryReader == null) {
+               summaryReader = new MultipageTiffReader(this, f, memoryMapFiles_);
+               addReader(summaryReader);
+            } else {
+               addReader(new MultipageTiffReader(this, f, memoryMapFiles_,
+                     entry.getValue()));
             }
-            // Attempt to repair it. This constructor automatically invokes
-            // the fixIndexMap method (and is the only constructor that
-            // opens files in read/write mode).
-            reader = new MultipageTiffReader(f);
-            reader.close();
-            // Open the file normally.
-            reader = new MultipageTiffReader(this, f);
          }
-         Set<Coords> readerCoords = reader.getIndexKeys();
-         if (readerCoords != null) {
-            coordsIndexedMissingC_ = new HashMap<>();
-            for (Coords coords : readerCoords) {
-               coordsToReader_.put(coords, reader);
-               axesInUse_.addAll(coords.getAxes());
-               final Coords coordsNoC = coords.copyRemovingAxes(Coords.C);
-               if (!coordsIndexedMissingC_.containsKey(coordsNoC)) {
-                  coordsIndexedMissingC_.put(coordsNoC, new ArrayList<>(ALLOWED_AXES.size()));
-               }
-               coordsIndexedMissingC_.get(coordsNoC).add(coords);
-               lastFrameOpenedDataSet_ = Math.max(coords.getT(),
-                     lastFrameOpenedDataSet_);
-               if (firstImage_ == null) {
-                  firstImage_ = reader.readImage(coords);
+      } catch (IOException e) {
+         ReportingUtils.logError(e, "Failed to open " + directory_
+               + " using its index; reading all files");
+         coordsToReader_.clear();
+         coordsIndex_.clear();
+         axesInUse_.clear();
+         firstImage_ = null;
+         lastFrameOpenedDataSet_ = -1;
+         return null;
+      }
+      return summaryReader;
+   }
+
+   /**
+    * Opens all TIFF files in the directory. The files are read in parallel;
+    * files that need repair are repaired together afterwards, if the user
+    * agrees.
+    *
+    * @return Successfully opened readers, in the order of the given files
+    */
+   private List<MultipageTiffReader> openAllFiles(File[] listFiles) {
+      List<File> tiffFiles = new ArrayList<>();
+      for (File f : listFiles) {
+         if (IndexSidecar.isDataFile(f)) {
+            tiffFiles.add(f);
+         }
+      }
+      ProgressBar progressBar = null;
+      if (!GraphicsEnvironment.isHeadless()) {
+         progressBar = new ProgressBar(parent_, "Reading " + directory_, 0,
+               tiffFiles.size());
+         progressBar.setProgress(0);
+      }
+
+      ExecutorService openingExecutor = Executors.newFixedThreadPool(
+            Math.max(1, Math.min(MAX_OPENING_THREADS, tiffFiles.size())),
+            ThreadFactoryFactory.createThreadFactory("MultipageTiff Opening"));
+      List<Future<MultipageTiffReader>> futures = new ArrayList<>(tiffFiles.size());
+      for (final File f : tiffFiles) {
+         futures.add(openingExecutor.submit(
+               () -> new MultipageTiffReader(this, f, memoryMapFiles_)));
+      }
+      openingExecutor.shutdown();
+
+      // Indexed like tiffFiles; readers are added once all are known, so
+      // that repaired files keep their place
+      MultipageTiffReader[] opened = new MultipageTiffReader[tiffFiles.size()];
+      List<File> needRepair = new ArrayList<>();
+      boolean interrupted = false;
+      try {
+         for (int i = 0; i < tiffFiles.size(); i++) {
+            File f = tiffFiles.get(i);
+            try {
+               try {
+                  opened[i] = futures.get(i).get();
+               } catch (ExecutionException e) {
+                  if (!(e.getCause() instanceof InvalidIndexMapException)) {
+                     throw e.getCause() instanceof IOException
+                           ? (IOException) e.getCause() : new IOException(e.getCause());
+                  }
+                  needRepair.add(f);
                }
+            } catch (IOException ex) {
+               ReportingUtils.showError(ex, "There was an error reading the file: "
+                     + f.toString());
+            }
+            if (progressBar != null) {
+               progressBar.setProgress(i + 1);
+            }
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         openingExecutor.shutdownNow();
+         interrupted = true;
+      } finally {
+         if (progressBar != null) {
+            final ProgressBar tmpBar = progressBar;
+            SwingUtilities.invokeLater(() -> {
+               tmpBar.setVisible(false);
+            });
+         }
+      }
+
+      if (!interrupted) {
+         for (File f : repairFiles(needRepair)) {
+            try {
+               opened[tiffFiles.indexOf(f)] =
+                     new MultipageTiffReader(this, f, memoryMapFiles_);
+            } catch (IOException ex) {
+               ReportingUtils.showError(ex, "There was an error reading the file: "
+                     + f.toString());
+            }
+         }
+      }
+
+      List<MultipageTiffReader> readers = new ArrayList<>(tiffFiles.size());
+      for (int i = 0; i < opened.length; i++) {
+         if (opened[i] != null) {
+            try {
+               addReader(opened[i]);
+               readers.add(opened[i]);
+            } catch (IOException ex) {
+               ReportingUtils.showError(ex, "There was an error reading the file: "
+                     + tiffFiles.get(i).toString());
+            }
+         }
+      }
+      return readers;
+   }
+
+   /**
+    * Offers to repair files without a valid index map.
+    *
+    * @return Files that were repaired; empty if the user declined
+    */
+   private List<File> repairFiles(List<File> files) {
+      if (files.isEmpty()) {
+         return files;
+      }
+      // Prompt to repair them.
+      int choice = JOptionPane.showConfirmDialog(null,
+            (files.size() == 1 ? "This file cannot be opened because it appears"
+                  : files.size() + " files cannot be opened because they appear")
+                  + " to have \n"
+                  + "been improperly saved. Would you like Micro-Manger to attempt "
+                  + "to fix " + (files.size() == 1 ? "it" : "them") + "?",
+            "Micro-Manager", JOptionPane.YES_NO_OPTION);
+      if (choice != JOptionPane.YES_OPTION) {
+         return new ArrayList<>();
+      }
+      return IndexMapRepair.repair(parent_, files);
+   }
+
+   private void addReader(MultipageTiffReader reader) throws IOException {
+      Set<Coords> readerCoords = reader.getIndexKeys();
+      if (readerCoords != null) {
+         for (Coords coords : readerCoords) {
+            coordsToReader_.put(coords, reader);
+            axesInUse_.addAll(coords.getAxes());
+            coordsIndex_.add(coords);
+            lastFrameOpenedDataSet_ = Math.max(coords.getT(),
+                  lastFrameOpenedDataSet_);
+            if (firstImage_ == null) {
+               firstImage_ = reader.readImage(coords);
             }
          }
-      } catch (IOException ex) {
-         ReportingUtils.showError(ex, "There was an error reading the file: " + f.toString());
       }
-      return reader;
+   }
+
+   /**
+    * Writes the sidecar index that allows this dataset to be reopened
+    * without reading every file. Called once the files we wrote are closed,
+    * so that the recorded sizes and modification times are final. Failure
+    * is not an error; the dataset will then be opened the slow way.
+    */
+   private void writeIndexSidecar(Collection<MultipageTiffReader> readers) {
+      try {
+         IndexSidecar.write(new File(directory_), readers);
+      } catch (IOException e) {
+         ReportingUtils.logMessage("Unable to write index of " + directory_
+               + ": " + e.getMessage());
+      }
    }
 
    @Override
@@ -349,17 +751,49 @@ public final class StorageMultipageTiff implements Storage {
          ImageSizeChecker.checkImageSizes(firstImage_, image);
       }
 
+      // Index the coords before writing, so that the image can be found
+      // through getImagesIgnoringAxes() while it is still pending.
+      coordsIndex_.add(image.getCoords());
+      if (compressionLane_ != null) {
+         queueCompressedImage(image);
+         return;
+      }
       try {
          writeImage(image, false);
       } catch (MMException | InterruptedException | ExecutionException | IOException e) {
          ReportingUtils.showError(e, "Failed to write image at " + image.getCoords());
       }
-      // index the coords
-      Coords coordsNoC = image.getCoords().copyRemovingAxes(Coords.C);
-      if (!coordsIndexedMissingC_.containsKey(coordsNoC)) {
-         coordsIndexedMissingC_.put(coordsNoC, new ArrayList<>(ALLOWED_AXES.size()));
+   }
+
+   /**
+    * Hands the image to the compression lane. The IFD of a compressed image
+    * can only be laid out once its compressed size is known, so compression
+    * and the rest of writeImage() run there in acquisition order, and the
+    * caller only waits when compression falls behind.
+    */
+   private void queueCompressedImage(final DefaultImage image) {
+      if (!amInWriteMode_) {
+         ReportingUtils.showError("Tried to write image to a finished data set");
+         return;
+      }
+      // Make the image available to getImage() right away
+      synchronized (coordsToPendingImage_) {
+         coordsToPendingImage_.put(image.getCoords(), image);
+      }
+      try {
+         compressionLane_.execute(() -> {
+            try {
+               writeImage(image);
+            } catch (MMException | IOException | RuntimeException e) {
+               ReportingUtils.showError(e, "Failed to write image at " + image.getCoords());
+            }
+         });
+      } catch (RejectedExecutionException e) {
+         synchronized (coordsToPendingImage_) {
+            coordsToPendingImage_.remove(image.getCoords());
+         }
+         ReportingUtils.showError("Tried to write image to a finished data set");
       }
-      coordsIndexedMissingC_.get(coordsNoC).add(image.getCoords());
    }
 
    @Override
@@ -371,9 +805,14 @@ public final class StorageMultipageTiff implements Storage {
          throws MMException, InterruptedException, ExecutionException, IOException {
       writeImage(image);
       if (waitForWritingToFinish) {
-         Future<?> f = writingExecutor_.submit(() -> {
-         });
-         f.get();
+         List<Future<?>> futures = new ArrayList<>();
+         for (WritingLane lane : writingLanes_.values()) {
+            futures.add(lane.submit(() -> {
+            }));
+         }
+         for (Future<?> f : futures) {
+            f.get();
+         }
       }
    }
 
@@ -398,7 +837,7 @@ public final class StorageMultipageTiff implements Storage {
 
       startWritingTask(image);
 
-      writingExecutor_.submit(() -> {
+      getWritingLane(getFileSetIndex(coords)).execute(() -> {
          synchronized (coordsToPendingImage_) {
             coordsToPendingImage_.remove(coords);
          }
@@ -407,7 +846,7 @@ public final class StorageMultipageTiff implements Storage {
 
    /**
     * This method handles starting the process of writing images (which means
-    * that it ultimately submits a task to writingExecutor_).
+    * that it ultimately submits tasks to a WritingLane).
     */
    private void startWritingTask(DefaultImage image) throws MMException, IOException {
       // Update maxIndices_
@@ -422,21 +861,7 @@ public final class StorageMultipageTiff implements Storage {
          }
       }
 
-      // initialize writing executor
-      if (writingExecutor_ == null) {
-         writingExecutor_ = new ThreadPoolExecutor(1, 1, 0,
-               TimeUnit.NANOSECONDS,
-               new LinkedBlockingQueue<>(),
-               ThreadFactoryFactory.createThreadFactory("StorageMultiPageTiff"));
-      }
-      int fileSetIndex = 0;
-      if (splitByXYPosition_) {
-         fileSetIndex = image.getCoords().getStagePosition();
-         if (fileSetIndex == -1) {
-            // No position axis, so just default to 0.
-            fileSetIndex = 0;
-         }
-      }
+      int fileSetIndex = getFileSetIndex(image.getCoords());
 
       if (omeMetadata_ == null) {
          omeMetadata_ = new OMEMetadata(this);
@@ -445,7 +870,8 @@ public final class StorageMultipageTiff implements Storage {
       if (!positionToFileSet_.containsKey(fileSetIndex)) {
          positionToFileSet_.put(fileSetIndex,
                new FileSet(image, this, omeMetadata_,
-                     splitByXYPosition_, separateMetadataFile_));
+                     splitByXYPosition_, separateMetadataFile_,
+                     getWritingLane(fileSetIndex)));
       }
       FileSet set = positionToFileSet_.get(fileSetIndex);
 
@@ -462,6 +888,18 @@ public final class StorageMultipageTiff implements Storage {
 
    }
 
+   private int getFileSetIndex(Coords coords) {
+      int fileSetIndex = 0;
+      if (splitByXYPosition_) {
+         fileSetIndex = coords.getStagePosition();
+         if (fileSetIndex == -1) {
+            // No position axis, so just default to 0.
+            fileSetIndex = 0;
+         }
+      }
+      return fileSetIndex;
+   }
+
    public Set<Coords> imageKeys() {
       return coordsToReader_.keySet();
    }
@@ -471,7 +909,27 @@ public final class StorageMultipageTiff implements Storage {
     * Finishes writing the metadata file and closes it.
     * After calling this function, the imagestorage is read-only
     */
-   public synchronized void finished() {
+   public void finished() {
+      // Compression tasks call back into synchronized methods of this class,
+      // so they have to finish before we take the lock.
+      if (compressionLane_ != null && !compressionLane_.isShutdown()) {
+         compressionLane_.shutdown();
+         try {
+            int i = 0;
+            while (!compressionLane_.awaitTermination(4, TimeUnit.SECONDS)) {
+               ReportingUtils.logMessage(
+                     "Waiting for images to finish compressing (" + i + ")...");
+               i++;
+            }
+         } catch (InterruptedException e) {
+            ReportingUtils.logError("File finishing thread interrupted");
+            Thread.currentThread().interrupt();
+         }
+      }
+      finishWriting();
+   }
+
+   private synchronized void finishWriting() {
       if (finished_) {
          return;
       }
@@ -552,24 +1010,43 @@ public final class StorageMultipageTiff implements Storage {
                progressBar.setProgress(count);
             }
          }
-         // shut down writing executor--pause here until all tasks have finished
+         // shut down writing lanes--pause here until all tasks have finished
          // writing so that no attempt is made to close the dataset (and thus
          // the FileChannel) before everything has finished writing make sure
          // all images have finished writing if they are on separate thread
-         if (writingExecutor_ != null && !writingExecutor_.isShutdown()) {
-            writingExecutor_.shutdown();
-            try {
+         for (WritingLane lane : writingLanes_.values()) {
+            if (!lane.isShutdown()) {
+               lane.shutdown();
+            }
+         }
+         try {
+            for (WritingLane lane : writingLanes_.values()) {
                // Wait for tasks to finish.
                int i = 0;
-               while (!writingExecutor_.awaitTermination(4, TimeUnit.SECONDS)) {
+               while (!lane.awaitTermination(4, TimeUnit.SECONDS)) {
                   ReportingUtils.logMessage(
                         "Waiting for image stack to finish writing (" + i + ")...");
                   i++;
                }
-            } catch (InterruptedException e) {
-               ReportingUtils.logError("File finishing thread interrupted");
-               Thread.interrupted();
+               if (lane.getBlockedCount() > 0) {
+                  ReportingUtils.logMessage("Writing to " + directory_ + " waited "
+                        + lane.getBlockedCount() + " times for a full writing queue");
+               }
             }
+         } catch (InterruptedException e) {
+            ReportingUtils.logError("File finishing thread interrupted");
+            Thread.interrupted();
+         }
+         if (compress_) {
+            ReportingUtils.logMessage(String.format(
+                  "Multipage TIFF compression: ratio %.2f, %.1f MB/s",
+                  getCompressionRatio(), getCompressionThroughputMBps()));
+         }
+         if (getMetadataBytesPerImage() > 0) {
+            ReportingUtils.logMessage(String.format(
+                  "Multipage TIFF image metadata: %.0f bytes per image%s",
+                  getMetadataBytesPerImage(),
+                  deltaScopeData_ ? " (device properties delta encoded)" : ""));
          }
       } catch (IOException ex) {
          ReportingUtils.logError(ex);
@@ -600,15 +1077,8 @@ public final class StorageMultipageTiff implements Storage {
             .toJSON(summary.toPropertyMap());
 
       // setSummaryMetadata must be called before adding images to the store, so use this moment
-      // to smartly initialize several HashMaps
-      Coords dims = summaryMetadata_.getIntendedDimensions();
-      int nrImagesNoC = 1;
-      for (String axis : dims.getAxes()) {
-         if (!axis.equals(Coords.CHANNEL)) {
-            nrImagesNoC *= dims.getIndex(axis);
-         }
-      }
-      coordsIndexedMissingC_ = new HashMap<>(nrImagesNoC);
+      // to smartly initialize the index
+      coordsIndex_.presize(summaryMetadata_.getIntendedDimensions());
 
       // TODO: under what circumstances can coordsToReader_ already contain data?
       Map<Coords, MultipageTiffReader> oldImageMap = coordsToReader_;
@@ -939,58 +1409,39 @@ public final class StorageMultipageTiff implements Storage {
    @Override
    public List<Image> getImagesIgnoringAxes(Coords coords, String... ignoreTheseAxes)
          throws IOException {
-      HashSet<Image> result = new HashSet<>();
-      synchronized (coordsToPendingImage_) {
-         for (Coords imageCoords : coordsToPendingImage_.keySet()) {
-            if (coords.equals(imageCoords.copyRemovingAxes(ignoreTheseAxes))) {
-               result.add(coordsToPendingImage_.get(imageCoords));
-            }
-         }
-      }
-      // Optimization: traversing large HashMaps is costly, so avoid that when there is no need
-      // without this, there is noticeable slowdown for one axis data > ~10,000 images.
-      // An alternative optimization approach is to keep collections of coords
-      // for all possible ignoredAxes.  There is more upfront work involved but may be
-      // needed for fast multi-camera imaging.
-      boolean haveIgnoredAxes = false;
+      // Traversing large HashMaps is costly, so all lookups go through the
+      // coords index, which keeps a projection for every combination of
+      // ignored axes that has been asked for.
+      List<String> ignoredInUse = new ArrayList<>(ignoreTheseAxes.length);
       for (String axis : ignoreTheseAxes) {
          if (axesInUse_.contains(axis)) {
-            haveIgnoredAxes = true;
-            break;
+            ignoredInUse.add(axis);
          }
       }
-      if (!haveIgnoredAxes) {
-         result.add(coordsToReader_.get(coords).readImage(coords));
-      } else {
-         // special case: if the ignored axis is C, use a special index to find the Coords
-         // otherwise, the search will be very expensive (which will  be the case for other
-         // axes) and result in noticaeble slowodwns with large datasetsz
-         if (ignoreTheseAxes[0].equals(Coords.CHANNEL)
-               && coordsIndexedMissingC_.containsKey(coords)) {
-            for (Coords tmpCoords : coordsIndexedMissingC_.get(coords)) {
-               result.add(coordsToReader_.get(tmpCoords).readImage(tmpCoords));
+      List<Image> result = new ArrayList<>();
+      for (Coords match : coordsIndex_.getMatching(coords,
+            ignoredInUse.toArray(new String[0]))) {
+         Image image;
+         synchronized (coordsToPendingImage_) {
+            image = coordsToPendingImage_.get(match);
+         }
+         if (image == null) {
+            MultipageTiffReader reader = coordsToReader_.get(match);
+            if (reader == null) {
+               // Failed to write, or not yet handed to a FileSet
+               continue;
             }
-         } else {
-            // Brute force it.  This will be slow with large data sets
-            // Note that coordsToReader_ can be modified at the same time,
-            // catch ConcurrentModificationException rather than incur the cost
-            // of a lock that could slow down insertions
             try {
-               for (Coords imageCoords : coordsToReader_.keySet()) {
-                  if (coords.equals(imageCoords.copyRemovingAxes(ignoreTheseAxes))) {
-                     try {
-                        result.add(coordsToReader_.get(imageCoords).readImage(imageCoords));
-                     } catch (IOException ex) {
-                        ReportingUtils.logError("Failed to read image at " + imageCoords);
-                     }
-                  }
-               }
-            } catch (ConcurrentModificationException cme) {
-               ReportingUtils.logError(cme, "coordsToReader_ was modified while iterating");
+               image = reader.readImage(match);
+            } catch (IOException ex) {
+               ReportingUtils.logError("Failed to read image at " + match);
             }
          }
+         if (image != null) {
+            result.add(image);
+         }
       }
-      return new ArrayList<>(result);
+      return result;
    }
 
 
@@ -1007,11 +1458,21 @@ public final class StorageMultipageTiff implements Storage {
       }
       try {
          MultipageTiffReader mptReader = coordsToReader_.get(coords);
-         if (!amInWriteMode_ && lastReader_ != null && mptReader != lastReader_) {
+         // Images may be read from several threads (e.g. the viewer and its
+         // playback prefetcher). Only the choice of reader to pause is made
+         // under the lock; pause() itself waits for reads in progress on that
+         // reader, and reads from different files run concurrently.
+         MultipageTiffReader toPause = null;
+         synchronized (readerLock_) {
+            if (!amInWriteMode_ && lastReader_ != null && mptReader != lastReader_) {
+               toPause = lastReader_;
+            }
+            lastReader_ = mptReader;
+         }
+         if (toPause != null) {
             // this could be optional.  Not doing it can result in large memory leaks.
-            lastReader_.pause();
+            toPause.pause();
          }
-         lastReader_ = mptReader;
          return mptReader.readImage(coords);
       } catch (IOException ex) {
          ReportingUtils.logError(ex, "Failed to read image at " + coords);
@@ -1060,6 +1521,12 @@ public final class StorageMultipageTiff implements Storage {
             }
          }
       }
+      // Only for data we wrote ourselves, now that the files are final:
+      // opening a dataset must never write into its directory (which may be
+      // read-only, or still being written by another program)
+      if (positionToFileSet_ != null && finished_ && errorCounter == 0) {
+         writeIndexSidecar(new LinkedHashSet<>(coordsToReader_.values()));
+      }
    }
 
    public static boolean getShouldGenerateMetadataFile() {
@@ -1072,6 +1539,46 @@ public final class StorageMultipageTiff implements Storage {
             .putBoolean(SHOULD_GENERATE_METADATA_FILE, shouldGen);
    }
 
+   public static boolean getShouldMemoryMapFiles() {
+      return MMStudio.getInstance().profile().getSettings(StorageMultipageTiff.class)
+            .getBoolean(SHOULD_MEMORY_MAP_FILES, false);
+   }
+
+   public static void setShouldMemoryMapFiles(boolean shouldMap) {
+      MMStudio.getInstance().profile().getSettings(StorageMultipageTiff.class)
+            .putBoolean(SHOULD_MEMORY_MAP_FILES, shouldMap);
+   }
+
+   public static boolean getShouldCompress() {
+      return MMStudio.getInstance().profile().getSettings(StorageMultipageTiff.class)
+            .getBoolean(SHOULD_COMPRESS, false);
+   }
+
+   public static void setShouldCompress(boolean compress) {
+      MMStudio.getInstance().profile().getSettings(StorageMultipageTiff.class)
+            .putBoolean(SHOULD_COMPRESS, compress);
+   }
+
+   public static boolean getShouldDeltaEncodeScopeData() {
+      return MMStudio.getInstance().profile().getSettings(StorageMultipageTiff.class)
+            .getBoolean(SHOULD_DELTA_ENCODE_SCOPE_DATA, false);
+   }
+
+   public static void setShouldDeltaEncodeScopeData(boolean delta) {
+      MMStudio.getInstance().profile().getSettings(StorageMultipageTiff.class)
+            .putBoolean(SHOULD_DELTA_ENCODE_SCOPE_DATA, delta);
+   }
+
+   public static boolean getShouldWriteInParallel() {
+      return MMStudio.getInstance().profile().getSettings(StorageMultipageTiff.class)
+            .getBoolean(SHOULD_USE_PARALLEL_WRITING, false);
+   }
+
+   public static void setShouldWriteInParallel(boolean parallel) {
+      MMStudio.getInstance().profile().getSettings(StorageMultipageTiff.class)
+            .putBoolean(SHOULD_USE_PARALLEL_WRITING, parallel);
+   }
+
    public static boolean getShouldSplitPositions() {
       return MMStudio.getInstance().profile().getSettings(StorageMultipageTiff.class)
             .getBoolean(SHOULD_USE_SEPARATE_FILES_FOR_POSITIONS, true);
@@ -0,0 +1,117 @@
+package org.micromanager.data.internal.multipagetiff;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.micromanager.internal.utils.ReportingUtils;
+import org.micromanager.internal.utils.ThreadFactoryFactory;
+
+/**
+ * A single writing thread with a bounded number of outstanding tasks.
+ *
+ * <p>Tasks submitted to one lane run in submission order, so all writes to a
+ * given file must go through the same lane. When the lane is full, execute()
+ * blocks the caller until the writing thread has caught up, which throttles
+ * image producers without polling.
+ */
+final class WritingLane {
+   // Each image results in about three writing tasks (IFD and pixels, index
+   // map entry, release of the pending image), so this allows roughly 20
+   // images to be queued per lane.
+   static final int DEFAULT_CAPACITY = 64;
+
+   private final ThreadPoolExecutor executor_;
+   private final Semaphore slots_;
+   private final int capacity_;
+   private final String name_;
+   private long blockedCount_ = 0;
+
+   WritingLane(String name, int capacity) {
+      name_ = name;
+      capacity_ = capacity;
+      slots_ = new Semaphore(capacity);
+      executor_ = new ThreadPoolExecutor(1, 1, 0, TimeUnit.NANOSECONDS,
+            new LinkedBlockingQueue<>(),
+            ThreadFactoryFactory.createThreadFactory(name));
+   }
+
+   /**
+    * Queues a task on this lane, blocking while the lane is full.
+    * Must not be called from the lane's own thread.
+    *
+    * @param task Task to be run on the writing thread
+    */
+   void execute(final Runnable task) {
+      if (!slots_.tryAcquire()) {
+         synchronized (this) {
+            if (blockedCount_++ % 100 == 0) {
+               ReportingUtils.logMessage("Warning: " + name_
+                     + " writing queue behind by " + getQueueDepth() + " tasks.");
+            }
+         }
+         slots_.acquireUninterruptibly();
+      }
+      try {
+         executor_.execute(() -> {
+            try {
+               task.run();
+            } finally {
+               slots_.release();
+            }
+         });
+      } catch (RuntimeException e) {
+         slots_.release();
+         throw e;
+      }
+   }
+
+   /**
+    * Queues a task on this lane, returning a Future that completes once the
+    * task and all tasks queued before it have run.
+    *
+    * @param task Task to be run on the writing thread
+    * @return Future of the task
+    */
+   Future<?> submit(Runnable task) {
+      FutureTask<Void> future = new FutureTask<>(task, null);
+      execute(future);
+      return future;
+   }
+
+   /**
+    * Number of tasks that are queued or running on this lane.
+    *
+    * @return queue depth, between 0 and getCapacity()
+    */
+   int getQueueDepth() {
+      return capacity_ - slots_.availablePermits();
+   }
+
+   int getCapacity() {
+      return capacity_;
+   }
+
+   /**
+    * Number of times a caller had to wait because this lane was full.
+    *
+    * @return number of times execute() blocked
+    */
+   synchronized long getBlockedCount() {
+      return blockedCount_;
+   }
+
+   boolean isShutdown() {
+      return executor_.isShutdown();
+   }
+
+   void shutdown() {
+      executor_.shutdown();
+   }
+
+   boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+      return executor_.awaitTermination(timeout, unit);
+   }
+}
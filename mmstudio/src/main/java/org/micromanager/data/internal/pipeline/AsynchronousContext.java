@@ -20,20 +20,23 @@
 
 package org.micromanager.data.internal.pipeline;
 
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
 import org.micromanager.data.Datastore;
 import org.micromanager.data.Processor;
 import org.micromanager.internal.utils.ReportingUtils;
 
 public final class AsynchronousContext extends BaseContext {
    private boolean isFlushed_ = false;
-   private LinkedBlockingQueue<ImageWrapper> inputQueue_ = null;
+   private StageQueue<ImageWrapper> inputQueue_ = null;
 
-   public AsynchronousContext(Processor processor,
-                              Datastore store, DefaultPipeline parent) {
+   /**
+    * @param maxImages Capacity of the input queue, in images
+    * @param maxBytes  Capacity of the input queue, in bytes of pixel data; 0
+    *                  to only limit the number of images
+    */
+   public AsynchronousContext(Processor processor, Datastore store,
+                              DefaultPipeline parent, int maxImages, long maxBytes) {
       super(processor, store, parent);
-      inputQueue_ = new LinkedBlockingQueue<ImageWrapper>(1);
+      inputQueue_ = new StageQueue<>(maxImages, maxBytes, ImageWrapper::getByteCount);
       // Create a new thread to do processing in.
       new Thread(new Runnable() {
          @Override
@@ -53,7 +56,7 @@ public final class AsynchronousContext extends BaseContext {
       while (true) {
          ImageWrapper wrapper = null;
          try {
-            wrapper = inputQueue_.poll(1000, TimeUnit.MILLISECONDS);
+            wrapper = inputQueue_.poll(1000);
          } catch (InterruptedException e) {
             // Ignore it.
             Thread.currentThread().interrupt();
@@ -82,13 +85,7 @@ public final class AsynchronousContext extends BaseContext {
          } else {
             // Non-null image: process it.
             isFlushed_ = false;
-            try {
-               processor_.processImage(wrapper.getImage(), this);
-            } catch (Exception e) {
-               ReportingUtils.logError(e, "Processor failed to process image");
-               // Pass the exception to our parent.
-               parent_.exceptionOccurred(e);
-            }
+            processImage(wrapper, this);
          }
       }
    }
@@ -104,4 +101,14 @@ public final class AsynchronousContext extends BaseContext {
          ReportingUtils.logError(e, "Interrupted while passing image along pipeline");
       }
    }
+
+   @Override
+   public boolean offerImage(ImageWrapper wrapper) {
+      return inputQueue_.offer(wrapper);
+   }
+
+   @Override
+   protected StageQueue<?> getQueue() {
+      return inputQueue_;
+   }
 }
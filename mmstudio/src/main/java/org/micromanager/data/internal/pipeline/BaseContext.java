@@ -22,6 +22,7 @@ package org.micromanager.data.internal.pipeline;
 
 import java.io.IOException;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
 import org.micromanager.data.Datastore;
 import org.micromanager.data.Image;
 import org.micromanager.data.Processor;
@@ -35,6 +36,12 @@ public abstract class BaseContext implements ProcessorContext {
    protected Datastore store_;
    protected DefaultPipeline parent_;
    protected CountDownLatch flushLatch_;
+   // Statistics, see getStatistics()
+   private final AtomicLong imagesProcessed_ = new AtomicLong();
+   private final AtomicLong processingNs_ = new AtomicLong();
+   private final AtomicLong latencyNs_ = new AtomicLong();
+   private volatile long firstImageNs_ = 0;
+   private volatile long lastImageNs_ = 0;
 
    public BaseContext(Processor processor, Datastore store,
                       DefaultPipeline parent) {
@@ -99,6 +106,82 @@ public abstract class BaseContext implements ProcessorContext {
     */
    public abstract void insertImage(ImageWrapper wrapper);
 
+   /**
+    * Receive a new image for processing if this context can take it without
+    * waiting. Contexts without an input queue process it right away.
+    *
+    * @return false if the input queue is full; the image was not accepted
+    */
+   public boolean offerImage(ImageWrapper wrapper) {
+      insertImage(wrapper);
+      return true;
+   }
+
+   /**
+    * Hand an image to our processor, reporting any exception to the
+    * pipeline, and keep track of the time spent.
+    *
+    * @param wrapper Image to process, as it entered this context
+    * @param context Context the processor outputs its images to
+    */
+   protected void processImage(ImageWrapper wrapper, ProcessorContext context) {
+      long start = System.nanoTime();
+      if (firstImageNs_ == 0) {
+         firstImageNs_ = start;
+      }
+      try {
+         processor_.processImage(wrapper.getImage(), context);
+      } catch (Exception e) {
+         ReportingUtils.logError(e, "Processor failed to process image");
+         // Pass the exception to our parent.
+         parent_.exceptionOccurred(e);
+      }
+      lastImageNs_ = System.nanoTime();
+      processingNs_.addAndGet(lastImageNs_ - start);
+      latencyNs_.addAndGet(lastImageNs_ - wrapper.getCreatedNs());
+      imagesProcessed_.incrementAndGet();
+   }
+
+   /**
+    * Number of threads that run our processor.
+    */
+   public int getNumWorkers() {
+      return 1;
+   }
+
+   /**
+    * The input queue of this context, or null for contexts that process
+    * images as they arrive.
+    */
+   protected StageQueue<?> getQueue() {
+      return null;
+   }
+
+   /**
+    * Snapshot of the throughput, latency and queue occupancy of this stage.
+    */
+   public StageStatistics getStatistics() {
+      String name = processor_.getClass().getSimpleName();
+      if (name.isEmpty()) {
+         // Anonymous class
+         name = processor_.getClass().getName();
+      }
+      StageStatistics.Builder builder = new StageStatistics.Builder(name)
+            .numWorkers(getNumWorkers());
+      long count = imagesProcessed_.get();
+      if (count > 0) {
+         builder.images(count, processingNs_.get(), latencyNs_.get(),
+               lastImageNs_ - firstImageNs_);
+      }
+      StageQueue<?> queue = getQueue();
+      if (queue != null) {
+         builder.queue(queue.size(), queue.getPeakSize(), queue.getMaxImages(),
+               queue.getBytes(), queue.getMaxBytes(), queue.getBlockedNs(),
+               queue.getRefusedCount());
+      }
+      return builder.build();
+   }
+
    @Override
    public SummaryMetadata getSummaryMetadata() {
       return store_.getSummaryMetadata();
@@ -22,7 +22,10 @@ package org.micromanager.data.internal.pipeline;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.CountDownLatch;
 import org.micromanager.data.Datastore;
 import org.micromanager.data.DatastoreFrozenException;
@@ -42,7 +45,12 @@ public final class DefaultPipeline implements Pipeline {
    private boolean haveInsertedImages_ = false;
    private boolean amHalting_ = false;
    private boolean isHalted_ = false;
-   private final ArrayList<Exception> exceptions_;
+   private final List<Exception> exceptions_;
+
+   // Weak, so that pipelines that are never halted can still be collected
+   private static final Set<DefaultPipeline> ACTIVE_PIPELINES =
+         Collections.synchronizedSet(Collections.newSetFromMap(
+               new WeakHashMap<DefaultPipeline, Boolean>()));
 
    @SuppressWarnings("LeakingThisInConstructor")
    public DefaultPipeline(List<Processor> processors, Datastore store,
@@ -50,12 +58,19 @@ public final class DefaultPipeline implements Pipeline {
       processors_ = processors;
       store_ = store;
       contexts_ = new ArrayList<BaseContext>();
-      exceptions_ = new ArrayList<Exception>();
+      // Processors of parallel stages report exceptions from several threads
+      exceptions_ = Collections.synchronizedList(new ArrayList<Exception>());
       for (Processor processor : processors_) {
          if (isSynchronous) {
             contexts_.add(new SynchronousContext(processor, store_, this));
+         } else if (processor.isStateless()) {
+            contexts_.add(new ParallelContext(processor, store_, this,
+                  PipelineQueueSettings.getQueueImages(processor),
+                  PipelineQueueSettings.getQueueBytes(processor)));
          } else {
-            contexts_.add(new AsynchronousContext(processor, store_, this));
+            contexts_.add(new AsynchronousContext(processor, store_, this,
+                  PipelineQueueSettings.getQueueImages(processor),
+                  PipelineQueueSettings.getQueueBytes(processor)));
          }
       }
       // Chain the contexts together. The last one goes to the Datastore by
@@ -64,6 +79,19 @@ public final class DefaultPipeline implements Pipeline {
          contexts_.get(i).setSink(contexts_.get(i + 1));
       }
       isSynchronous_ = isSynchronous;
+      if (!isSynchronous && !contexts_.isEmpty()) {
+         ACTIVE_PIPELINES.add(this);
+      }
+   }
+
+   /**
+    * Asynchronous pipelines that have not been halted yet, e.g. for
+    * monitoring their queues.
+    */
+   public static List<DefaultPipeline> getActivePipelines() {
+      synchronized (ACTIVE_PIPELINES) {
+         return new ArrayList<>(ACTIVE_PIPELINES);
+      }
    }
 
    @Override
@@ -85,18 +113,24 @@ public final class DefaultPipeline implements Pipeline {
       }
    }
 
-   @Override
-   public synchronized void insertImage(Image image) throws IOException, PipelineErrorException {
+   /**
+    * Check whether images can be inserted.
+    *
+    * @return false if the pipeline is halting, and images are to be ignored
+    */
+   private boolean checkCanInsert() throws IOException, PipelineErrorException {
       if (amHalting_) {
          // Ignore it.
-         return;
+         return false;
       }
-      if (!exceptions_.isEmpty()) {
-         for (Exception ex : exceptions_) {
-            ReportingUtils.logError(ex);
+      synchronized (exceptions_) {
+         if (!exceptions_.isEmpty()) {
+            for (Exception ex : exceptions_) {
+               ReportingUtils.logError(ex);
+            }
+            // Currently in an error state.
+            throw new PipelineErrorException(exceptions_.get(0).getMessage());
          }
-         // Currently in an error state.
-         throw new PipelineErrorException(exceptions_.get(0).getMessage());
       }
       haveInsertedImages_ = true;
       // Manually check for frozen; otherwise for asynchronous pipelines,
@@ -105,6 +139,14 @@ public final class DefaultPipeline implements Pipeline {
       if (store_.isFrozen()) {
          throw new DatastoreFrozenException();
       }
+      return true;
+   }
+
+   @Override
+   public synchronized void insertImage(Image image) throws IOException, PipelineErrorException {
+      if (!checkCanInsert()) {
+         return;
+      }
       if (!contexts_.isEmpty()) {
          contexts_.get(0).insertImage(new ImageWrapper(image));
       } else {
@@ -113,6 +155,32 @@ public final class DefaultPipeline implements Pipeline {
       }
    }
 
+   /**
+    * Insert an Image into the Pipeline without waiting for room in the
+    * input queue of the first processor. Lets the caller find out that the
+    * pipeline can't keep up (backpressure) and decide what to do, e.g. wait
+    * with insertImage(), or drop the image. Synchronous pipelines always
+    * accept the image, after processing it.
+    *
+    * @param image Image to be processed by the Pipeline
+    * @return false if the queue of the first processor is full; the image was
+    *     not inserted
+    * @throws IOException if the pipeline is empty and the datastore fails to
+    *     store the image
+    * @throws PipelineErrorException if the pipeline is in an error state
+    */
+   public synchronized boolean offerImage(Image image) throws IOException,
+         PipelineErrorException {
+      if (!checkCanInsert()) {
+         return true;
+      }
+      if (!contexts_.isEmpty()) {
+         return contexts_.get(0).offerImage(new ImageWrapper(image));
+      }
+      store_.putImage(image);
+      return true;
+   }
+
    @Override
    public Datastore getDatastore() {
       return store_;
@@ -146,6 +214,10 @@ public final class DefaultPipeline implements Pipeline {
          ReportingUtils.logError("Interrupted while waiting for flush to complete.");
       }
       isHalted_ = true;
+      ACTIVE_PIPELINES.remove(this);
+      for (StageStatistics statistics : getStageStatistics()) {
+         ReportingUtils.logMessage("Pipeline stage " + statistics);
+      }
    }
 
    @Override
@@ -168,6 +240,17 @@ public final class DefaultPipeline implements Pipeline {
       return processors_;
    }
 
+   /**
+    * Throughput and queue occupancy of each processor, in pipeline order.
+    */
+   public List<StageStatistics> getStageStatistics() {
+      List<StageStatistics> result = new ArrayList<>(contexts_.size());
+      for (BaseContext context : contexts_) {
+         result.add(context.getStatistics());
+      }
+      return result;
+   }
+
    public void exceptionOccurred(Exception e) {
       exceptions_.add(e);
    }
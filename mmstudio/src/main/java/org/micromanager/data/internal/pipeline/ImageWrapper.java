@@ -29,12 +29,32 @@ import org.micromanager.data.Image;
  */
 public final class ImageWrapper {
    private Image image_;
+   private final long createdNs_;
 
    public ImageWrapper(Image image) {
       image_ = image;
+      createdNs_ = System.nanoTime();
    }
 
    public Image getImage() {
       return image_;
    }
+
+   /**
+    * System.nanoTime() at which this wrapper was created, i.e. when the image
+    * entered the current pipeline stage.
+    */
+   public long getCreatedNs() {
+      return createdNs_;
+   }
+
+   /**
+    * Size of the pixel data of the image, in bytes; 0 when flushing.
+    */
+   public long getByteCount() {
+      if (image_ == null) {
+         return 0;
+      }
+      return (long) image_.getWidth() * image_.getHeight() * image_.getBytesPerPixel();
+   }
 }
@@ -0,0 +1,193 @@
+package org.micromanager.data.internal.pipeline;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.micromanager.data.Datastore;
+import org.micromanager.data.Image;
+import org.micromanager.data.Processor;
+import org.micromanager.data.ProcessorContext;
+import org.micromanager.data.SummaryMetadata;
+import org.micromanager.internal.utils.ReportingUtils;
+
+/**
+ * Asynchronous context for stateless processors (see
+ * Processor.isStateless()). Several worker threads take images from a shared
+ * input queue and run the processor on them concurrently. Every input image
+ * gets a sequence number on arrival; the images a worker's processor outputs
+ * are held back until the output of all earlier input images has been passed
+ * on, so that the next stage sees images in acquisition order.
+ */
+public final class ParallelContext extends BaseContext {
+   // Upper limit, so that a many-core machine doesn't get a thread per core
+   // for every stage
+   private static final int MAX_WORKERS = 8;
+
+   /**
+    * An input image together with its position in the input order.
+    */
+   private static final class Entry {
+      final long sequence_;
+      final ImageWrapper wrapper_;
+
+      Entry(long sequence, ImageWrapper wrapper) {
+         sequence_ = sequence;
+         wrapper_ = wrapper;
+      }
+   }
+
+   /**
+    * Collects the images the processor outputs for a single input image.
+    */
+   private final class CollectingContext implements ProcessorContext {
+      private final List<Image> images_ = new ArrayList<>(1);
+
+      @Override
+      public void outputImage(Image image) {
+         images_.add(image);
+      }
+
+      @Override
+      public SummaryMetadata getSummaryMetadata() {
+         return ParallelContext.this.getSummaryMetadata();
+      }
+   }
+
+   private final int numWorkers_;
+   private final StageQueue<Entry> inputQueue_;
+   private volatile boolean isFlushed_ = false;
+
+   // Guarded by "this"
+   private long nextInputSequence_ = 0;
+   // Guarded by finished_
+   private final Map<Long, List<Image>> finished_ = new HashMap<>();
+   private long nextOutputSequence_ = 0;
+
+   /**
+    * @param maxImages Capacity of the input queue, in images; raised to the
+    *                  number of workers so that each of them can be kept busy
+    * @param maxBytes  Capacity of the input queue, in bytes of pixel data; 0
+    *                  to only limit the number of images
+    */
+   public ParallelContext(Processor processor, Datastore store,
+                          DefaultPipeline parent, int maxImages, long maxBytes) {
+      this(processor, store, parent, maxImages, maxBytes,
+            Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors()));
+   }
+
+   public ParallelContext(Processor processor, Datastore store,
+                          DefaultPipeline parent, int maxImages, long maxBytes,
+                          int numWorkers) {
+      super(processor, store, parent);
+      numWorkers_ = Math.max(1, numWorkers);
+      inputQueue_ = new StageQueue<>(Math.max(maxImages, numWorkers_), maxBytes,
+            (Entry entry) -> entry.wrapper_.getByteCount());
+      for (int i = 0; i < numWorkers_; ++i) {
+         new Thread(this::monitorQueue,
+               "Processor context " + (i + 1) + " for " + processor_).start();
+      }
+   }
+
+   /**
+    * Runs in each worker thread: pulls images from the input queue and feeds
+    * them to the processor.
+    */
+   private void monitorQueue() {
+      while (true) {
+         Entry entry = null;
+         try {
+            entry = inputQueue_.poll(1000);
+         } catch (InterruptedException e) {
+            // Ignore it.
+            Thread.currentThread().interrupt();
+         }
+         if (entry == null) {
+            if (isFlushed_) {
+               return;
+            }
+            continue;
+         }
+         if (entry.wrapper_.getImage() == null) {
+            // Flush; handled once everything before it has been passed on
+            finish(entry.sequence_, null);
+         } else {
+            isFlushed_ = false;
+            CollectingContext collector = new CollectingContext();
+            processImage(entry.wrapper_, collector);
+            finish(entry.sequence_, collector.images_);
+         }
+      }
+   }
+
+   /**
+    * Record the output for an input image, and pass on the output of all
+    * input images that are now complete, in input order.
+    *
+    * @param sequence Sequence number of the input image
+    * @param images   Images output by the processor, or null for a flush
+    */
+   private void finish(long sequence, List<Image> images) {
+      synchronized (finished_) {
+         finished_.put(sequence, images);
+         // Passing images on may block when the next stage is busy; that
+         // holds up the other workers as well, which is what we want.
+         while (finished_.containsKey(nextOutputSequence_)) {
+            List<Image> output = finished_.remove(nextOutputSequence_);
+            nextOutputSequence_++;
+            if (output == null) {
+               flush();
+            } else {
+               for (Image image : output) {
+                  outputImage(image);
+               }
+            }
+         }
+      }
+   }
+
+   private void flush() {
+      // All images before the flush have been processed and passed on
+      processor_.cleanup(this);
+      if (sink_ != null) {
+         sink_.insertImage(new ImageWrapper(null));
+      }
+      isFlushed_ = true;
+      if (flushLatch_ != null) {
+         flushLatch_.countDown();
+      }
+   }
+
+   /**
+    * Process an image. If the input ImageWrapper has a null image, then we
+    * flush the pipeline instead, passing the null along to the next context.
+    */
+   @Override
+   public synchronized void insertImage(ImageWrapper wrapper) {
+      try {
+         inputQueue_.put(new Entry(nextInputSequence_, wrapper));
+         nextInputSequence_++;
+      } catch (InterruptedException e) {
+         ReportingUtils.logError(e, "Interrupted while passing image along pipeline");
+      }
+   }
+
+   @Override
+   public int getNumWorkers() {
+      return numWorkers_;
+   }
+
+   @Override
+   public synchronized boolean offerImage(ImageWrapper wrapper) {
+      if (!inputQueue_.offer(new Entry(nextInputSequence_, wrapper))) {
+         return false;
+      }
+      nextInputSequence_++;
+      return true;
+   }
+
+   @Override
+   protected StageQueue<?> getQueue() {
+      return inputQueue_;
+   }
+}
@@ -0,0 +1,101 @@
+package org.micromanager.data.internal.pipeline;
+
+import org.micromanager.data.Processor;
+import org.micromanager.internal.MMStudio;
+import org.micromanager.propertymap.MutablePropertyMapView;
+
+/**
+ * Capacities of the input queues of asynchronous pipeline stages, stored in
+ * the user profile. A queue is limited by the number of images and,
+ * optionally, by the number of bytes of pixel data. There is a default for
+ * all stages, which can be overridden for the stages of a given Processor
+ * class. Changes apply to pipelines created afterwards.
+ */
+public final class PipelineQueueSettings {
+   // A single image, as before queues were configurable
+   public static final int DEFAULT_QUEUE_IMAGES = 1;
+   public static final int DEFAULT_QUEUE_MEGABYTES = 0;
+
+   private static final String QUEUE_IMAGES = "queue capacity in images";
+   private static final String QUEUE_MEGABYTES = "queue capacity in megabytes";
+
+   private PipelineQueueSettings() {
+   }
+
+   private static MutablePropertyMapView getSettings() {
+      MMStudio studio = MMStudio.getInstance();
+      if (studio == null) {
+         return null;
+      }
+      return studio.profile().getSettings(PipelineQueueSettings.class);
+   }
+
+   private static String key(String key, Class<?> processorClass) {
+      return processorClass == null ? key : key + ": " + processorClass.getName();
+   }
+
+   private static int get(String key, Class<?> processorClass, int fallback) {
+      MutablePropertyMapView settings = getSettings();
+      if (settings == null) {
+         return fallback;
+      }
+      if (processorClass != null) {
+         fallback = settings.getInteger(key, fallback);
+      }
+      return settings.getInteger(key(key, processorClass), fallback);
+   }
+
+   private static void put(String key, Class<?> processorClass, Integer value) {
+      MutablePropertyMapView settings = getSettings();
+      if (settings == null) {
+         return;
+      }
+      if (value == null) {
+         settings.remove(key(key, processorClass));
+      } else {
+         settings.putInteger(key(key, processorClass), value);
+      }
+   }
+
+   /**
+    * Maximum number of images waiting for the given processor.
+    *
+    * @param processorClass Class of the processor, or null for the default
+    */
+   public static int getQueueImages(Class<?> processorClass) {
+      return Math.max(1, get(QUEUE_IMAGES, processorClass, DEFAULT_QUEUE_IMAGES));
+   }
+
+   /**
+    * Maximum megabytes of pixel data waiting for the given processor; 0 if
+    * only the number of images is limited.
+    *
+    * @param processorClass Class of the processor, or null for the default
+    */
+   public static int getQueueMegabytes(Class<?> processorClass) {
+      return Math.max(0, get(QUEUE_MEGABYTES, processorClass, DEFAULT_QUEUE_MEGABYTES));
+   }
+
+   /**
+    * Set the queue capacity for the given processor.
+    *
+    * @param processorClass Class of the processor, or null to set the default
+    * @param images         Maximum number of images, or null to remove an
+    *                       override and use the default
+    * @param megabytes      Maximum megabytes of pixel data (0 for no limit), or
+    *                       null to remove an override and use the default
+    */
+   public static void setQueueCapacity(Class<? extends Processor> processorClass,
+                                       Integer images, Integer megabytes) {
+      put(QUEUE_IMAGES, processorClass, images);
+      put(QUEUE_MEGABYTES, processorClass, megabytes);
+   }
+
+   static int getQueueImages(Processor processor) {
+      return getQueueImages(processor.getClass());
+   }
+
+   static long getQueueBytes(Processor processor) {
+      return getQueueMegabytes(processor.getClass()) * 1024L * 1024L;
+   }
+}
@@ -0,0 +1,136 @@
+package org.micromanager.data.internal.pipeline;
+
+import java.util.ArrayDeque;
+import java.util.function.ToLongFunction;
+
+/**
+ * Input queue of an asynchronous pipeline stage, bounded both by the number
+ * of images and by the number of bytes of pixel data they hold.
+ *
+ * <p>An element is always accepted when the queue is empty, even if it is
+ * larger than the byte limit; otherwise a single large image could never pass.
+ * Besides the current occupancy, the queue keeps track of the largest
+ * occupancy seen, the time producers spent blocked in put(), and the number
+ * of elements refused by offer().
+ *
+ * @param <T> Type of element; ImageWrapper, or an object holding one
+ */
+final class StageQueue<T> {
+   private final int maxImages_;
+   private final long maxBytes_;
+   private final ToLongFunction<T> sizer_;
+   private final ArrayDeque<T> queue_ = new ArrayDeque<>();
+   private long bytes_ = 0;
+
+   private int peakSize_ = 0;
+   private long blockedNs_ = 0;
+   private long refused_ = 0;
+
+   /**
+    * @param maxImages Maximum number of elements; at least 1
+    * @param maxBytes  Maximum total size of the elements, or 0 for no limit
+    * @param sizer     Computes the size, in bytes, of an element
+    */
+   StageQueue(int maxImages, long maxBytes, ToLongFunction<T> sizer) {
+      maxImages_ = Math.max(1, maxImages);
+      maxBytes_ = Math.max(0, maxBytes);
+      sizer_ = sizer;
+   }
+
+   private boolean hasRoomFor(long size) {
+      if (queue_.isEmpty()) {
+         return true;
+      }
+      return queue_.size() < maxImages_
+            && (maxBytes_ == 0 || bytes_ + size <= maxBytes_);
+   }
+
+   private void add(T element, long size) {
+      queue_.addLast(element);
+      bytes_ += size;
+      peakSize_ = Math.max(peakSize_, queue_.size());
+      notifyAll();
+   }
+
+   /**
+    * Add an element, waiting until there is room for it.
+    */
+   synchronized void put(T element) throws InterruptedException {
+      long size = sizer_.applyAsLong(element);
+      if (!hasRoomFor(size)) {
+         long start = System.nanoTime();
+         try {
+            while (!hasRoomFor(size)) {
+               wait();
+            }
+         } finally {
+            blockedNs_ += System.nanoTime() - start;
+         }
+      }
+      add(element, size);
+   }
+
+   /**
+    * Add an element if there is room for it right now.
+    *
+    * @return false if the queue is full; the element was not added
+    */
+   synchronized boolean offer(T element) {
+      long size = sizer_.applyAsLong(element);
+      if (!hasRoomFor(size)) {
+         refused_++;
+         return false;
+      }
+      add(element, size);
+      return true;
+   }
+
+   /**
+    * Remove the oldest element, waiting up to the given time for one to
+    * arrive.
+    *
+    * @return the element, or null if the queue stayed empty
+    */
+   synchronized T poll(long timeoutMs) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + timeoutMs;
+      while (queue_.isEmpty()) {
+         long remaining = deadline - System.currentTimeMillis();
+         if (remaining <= 0) {
+            return null;
+         }
+         wait(remaining);
+      }
+      T element = queue_.removeFirst();
+      bytes_ -= sizer_.applyAsLong(element);
+      notifyAll();
+      return element;
+   }
+
+   synchronized int size() {
+      return queue_.size();
+   }
+
+   synchronized long getBytes() {
+      return bytes_;
+   }
+
+   int getMaxImages() {
+      return maxImages_;
+   }
+
+   long getMaxBytes() {
+      return maxBytes_;
+   }
+
+   synchronized int getPeakSize() {
+      return peakSize_;
+   }
+
+   synchronized long getBlockedNs() {
+      return blockedNs_;
+   }
+
+   synchronized long getRefusedCount() {
+      return refused_;
+   }
+}
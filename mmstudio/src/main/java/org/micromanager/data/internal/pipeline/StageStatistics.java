@@ -0,0 +1,190 @@
+package org.micromanager.data.internal.pipeline;
+
+/**
+ * Throughput, latency and queue occupancy of a single stage (processor) of a
+ * DefaultPipeline, as returned by DefaultPipeline.getStageStatistics().
+ * Times are cumulative since the pipeline was created.
+ */
+public final class StageStatistics {
+   private final String processorName_;
+   private final int numWorkers_;
+   private final long imagesProcessed_;
+   private final long processingNs_;
+   private final long latencyNs_;
+   private final long elapsedNs_;
+   private final int queueSize_;
+   private final int peakQueueSize_;
+   private final int queueCapacity_;
+   private final long queueBytes_;
+   private final long queueByteCapacity_;
+   private final long blockedNs_;
+   private final long refusedCount_;
+
+   static final class Builder {
+      private final String processorName_;
+      private int numWorkers_ = 1;
+      private long imagesProcessed_;
+      private long processingNs_;
+      private long latencyNs_;
+      private long elapsedNs_;
+      private int queueSize_;
+      private int peakQueueSize_;
+      private int queueCapacity_;
+      private long queueBytes_;
+      private long queueByteCapacity_;
+      private long blockedNs_;
+      private long refusedCount_;
+
+      Builder(String processorName) {
+         processorName_ = processorName;
+      }
+
+      Builder numWorkers(int numWorkers) {
+         numWorkers_ = numWorkers;
+         return this;
+      }
+
+      Builder images(long count, long processingNs, long latencyNs, long elapsedNs) {
+         imagesProcessed_ = count;
+         processingNs_ = processingNs;
+         latencyNs_ = latencyNs;
+         elapsedNs_ = elapsedNs;
+         return this;
+      }
+
+      Builder queue(int size, int peakSize, int capacity, long bytes,
+                    long byteCapacity, long blockedNs, long refusedCount) {
+         queueSize_ = size;
+         peakQueueSize_ = peakSize;
+         queueCapacity_ = capacity;
+         queueBytes_ = bytes;
+         queueByteCapacity_ = byteCapacity;
+         blockedNs_ = blockedNs;
+         refusedCount_ = refusedCount;
+         return this;
+      }
+
+      StageStatistics build() {
+         return new StageStatistics(this);
+      }
+   }
+
+   private StageStatistics(Builder b) {
+      processorName_ = b.processorName_;
+      numWorkers_ = b.numWorkers_;
+      imagesProcessed_ = b.imagesProcessed_;
+      processingNs_ = b.processingNs_;
+      latencyNs_ = b.latencyNs_;
+      elapsedNs_ = b.elapsedNs_;
+      queueSize_ = b.queueSize_;
+      peakQueueSize_ = b.peakQueueSize_;
+      queueCapacity_ = b.queueCapacity_;
+      queueBytes_ = b.queueBytes_;
+      queueByteCapacity_ = b.queueByteCapacity_;
+      blockedNs_ = b.blockedNs_;
+      refusedCount_ = b.refusedCount_;
+   }
+
+   public String getProcessorName() {
+      return processorName_;
+   }
+
+   /**
+    * Number of threads running the processor; more than one for stateless
+    * processors in asynchronous pipelines.
+    */
+   public int getNumWorkers() {
+      return numWorkers_;
+   }
+
+   public long getImagesProcessed() {
+      return imagesProcessed_;
+   }
+
+   /**
+    * Average time the processor spent on a single image, in milliseconds.
+    */
+   public double getMeanProcessingTimeMs() {
+      return imagesProcessed_ == 0 ? 0.0 : processingNs_ / 1e6 / imagesProcessed_;
+   }
+
+   /**
+    * Average time from an image entering this stage (including the time it
+    * spent in the queue) until the processor was done with it, in
+    * milliseconds.
+    */
+   public double getMeanLatencyMs() {
+      return imagesProcessed_ == 0 ? 0.0 : latencyNs_ / 1e6 / imagesProcessed_;
+   }
+
+   /**
+    * Images processed per second between the start of processing of the
+    * first image and the end of processing of the last one.
+    */
+   public double getImagesPerSecond() {
+      return elapsedNs_ <= 0 ? 0.0 : imagesProcessed_ * 1e9 / elapsedNs_;
+   }
+
+   /**
+    * Number of images waiting for this stage. Zero for stages without an
+    * input queue (synchronous pipelines).
+    */
+   public int getQueueSize() {
+      return queueSize_;
+   }
+
+   /**
+    * Largest number of images that were waiting for this stage at any time.
+    */
+   public int getPeakQueueSize() {
+      return peakQueueSize_;
+   }
+
+   /**
+    * Maximum number of images in the queue; 0 if there is no queue.
+    */
+   public int getQueueCapacity() {
+      return queueCapacity_;
+   }
+
+   /**
+    * Bytes of pixel data waiting for this stage.
+    */
+   public long getQueueBytes() {
+      return queueBytes_;
+   }
+
+   /**
+    * Maximum bytes of pixel data in the queue; 0 if not limited by size.
+    */
+   public long getQueueByteCapacity() {
+      return queueByteCapacity_;
+   }
+
+   /**
+    * Total time the previous stage (or the acquisition) had to wait for
+    * room in the queue, in milliseconds.
+    */
+   public double getBlockedTimeMs() {
+      return blockedNs_ / 1e6;
+   }
+
+   /**
+    * Number of images refused because the queue was full, when submitted
+    * without waiting (see DefaultPipeline.offerImage()).
+    */
+   public long getRefusedCount() {
+      return refusedCount_;
+   }
+
+   @Override
+   public String toString() {
+      return String.format("%s: %d worker(s), %d images, %.2f ms/image, "
+                  + "latency %.2f ms, %.1f images/s, queue %d/%d (peak %d), "
+                  + "blocked %.0f ms, refused %d",
+            processorName_, numWorkers_, imagesProcessed_,
+            getMeanProcessingTimeMs(), getMeanLatencyMs(), getImagesPerSecond(),
+            queueSize_, queueCapacity_, peakQueueSize_, getBlockedTimeMs(),
+            refusedCount_);
+   }
+}
@@ -15,6 +15,7 @@ import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JComboBox;
 import javax.swing.JLabel;
 import javax.swing.JMenu;
+import javax.swing.JMenuItem;
 import javax.swing.JPanel;
 import javax.swing.JPopupMenu;
 import javax.swing.JSeparator;
@@ -104,6 +105,10 @@ public class IntensityInspectorPanelController
          new JCheckBoxMenuItem("Use ROI for Histograms and Autostretch");
    private final JCheckBoxMenuItem gearMenuIgnoreZerosItem_ =
          new JCheckBoxMenuItem("Ignore zero value pixels in Autostretch and Stats");
+   private final JMenuItem gearMenuDatasetAutostretchItem_ =
+         new JMenuItem("Set Ranges to Whole Dataset");
+   private final JCheckBoxMenuItem gearMenuApproximateLiveItem_ =
+         new JCheckBoxMenuItem("Approximate Stats While Images Arrive (Faster)");
 
    private final JPanel generalControlPanel_ = new JPanel();
    private final JComboBox<ColorModeCell.Item> colorModeComboBox_ = new JComboBox<>();
@@ -220,6 +225,13 @@ public class IntensityInspectorPanelController
       gearMenuIgnoreZerosItem_.addActionListener((ActionEvent e) ->
             handleIgnoreZeros(gearMenuIgnoreZerosItem_.isSelected()));
 
+      gearMenu_.add(gearMenuDatasetAutostretchItem_);
+      gearMenuDatasetAutostretchItem_.addActionListener((ActionEvent e) ->
+            handleDatasetAutostretch());
+
+      gearMenu_.add(gearMenuApproximateLiveItem_);
+      gearMenuApproximateLiveItem_.addActionListener((ActionEvent e) ->
+            handleApproximateLiveStats(gearMenuApproximateLiveItem_.isSelected()));
    }
 
    private void setUpGeneralControlPanel() {
@@ -344,6 +356,20 @@ public class IntensityInspectorPanelController
       }
    }
 
+   private void handleDatasetAutostretch() {
+      if (viewer_ instanceof DisplayController) {
+         final DisplayController viewer = (DisplayController) viewer_;
+         // May need to read all images if the data has no saved summary
+         new Thread(viewer::autostretchOverDataset, "Dataset Autostretch").start();
+      }
+   }
+
+   private void handleApproximateLiveStats(boolean approximate) {
+      if (viewer_ instanceof DisplayController) {
+         ((DisplayController) viewer_).setApproximateLiveStats(approximate);
+      }
+   }
+
    private void handleHistogramUseROI(boolean useROI) {
       DisplaySettings oldSettings;
       DisplaySettings newSettings;
@@ -526,6 +552,11 @@ public class IntensityInspectorPanelController
          if (histogramMenuMap_.get(updateRate) != null) {
             handleHistogramUpdateRate(histogramMenuMap_.get(updateRate));
          }
+         gearMenuDatasetAutostretchItem_.setEnabled(viewer_ instanceof DisplayController);
+         // Approximate stats are a per-display choice
+         gearMenuApproximateLiveItem_.setEnabled(viewer_ instanceof DisplayController);
+         gearMenuApproximateLiveItem_.setSelected(viewer_ instanceof DisplayController
+               && ((DisplayController) viewer_).isApproximateLiveStats());
       });
    }
 
@@ -14,6 +14,7 @@
 package org.micromanager.display.internal.animate;
 
 import com.google.common.collect.Lists;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import org.micromanager.data.Coords;
@@ -82,6 +83,34 @@ public class DataCoordsAnimationState implements AnimationStateDelegate<Coords>
       return advanceAnimationPositionImpl(frames, true);
    }
 
+   /**
+    * Predicts the positions that will be displayed next if playback proceeds
+    * one frame at a time, without changing the state.
+    *
+    * @param count number of positions to predict
+    * @return upcoming positions, in order; shorter than count if playback
+    *     wraps around to the current position
+    */
+   public synchronized List<Coords> peekUpcomingPositions(int count) {
+      final Coords savedCoords = animationCoords_;
+      final double savedError = cumulativeFrameCountError_;
+      List<Coords> result = new ArrayList<>(count);
+      try {
+         cumulativeFrameCountError_ = 0.0;
+         for (int i = 0; i < count; i++) {
+            Coords next = advanceAnimationPositionImpl(1.0, true);
+            if (next == null || next.equals(savedCoords)) {
+               break;
+            }
+            result.add(next);
+         }
+      } finally {
+         animationCoords_ = savedCoords;
+         cumulativeFrameCountError_ = savedError;
+      }
+      return result;
+   }
+
    private Coords advanceAnimationPositionImpl(double frames,
                                                boolean skipNonExistent) {
       final Coords prevPos = animationCoords_;
@@ -0,0 +1,208 @@
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.display.internal.animate;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import org.micromanager.data.Coords;
+import org.micromanager.data.DataProvider;
+import org.micromanager.data.Image;
+import org.micromanager.internal.utils.ThreadFactoryFactory;
+import org.micromanager.internal.utils.performance.PerformanceMonitor;
+
+/**
+ * Reads ahead of animated playback.
+ *
+ * <p>While playback is running, the viewer asks for the images (all channels)
+ * at each position in turn. Reading them from disk on the display thread
+ * limits the attainable frame rate, even though the positions that will be
+ * needed next are known from the {@link DataCoordsAnimationState}. This class
+ * reads those positions on a background thread into a small cache, so that
+ * the display thread normally finds its images already in memory.</p>
+ *
+ * <p>The cache holds at most {@code depth} positions. Entries are removed
+ * once they have been consumed, when they are no longer among the upcoming
+ * positions (e.g. because the user moved a scroll bar), and when an image at
+ * that position is (re)written.</p>
+ */
+public final class PlaybackPrefetcher {
+   public static final int DEFAULT_DEPTH = 8;
+
+   private final DataProvider dataProvider_;
+   private final int depth_;
+   private final ExecutorService executor_;
+
+   // Keys are positions without channel axis. Guarded by this.
+   private final Map<Coords, Future<List<Image>>> cache_ =
+         new LinkedHashMap<>();
+
+   private final AtomicLong hits_ = new AtomicLong();
+   private final AtomicLong misses_ = new AtomicLong();
+
+   private volatile PerformanceMonitor perfMon_;
+
+   /**
+    * Instead of constructor.
+    *
+    * @param dataProvider source of the images
+    * @param depth maximum number of positions to read ahead
+    * @return a new prefetcher
+    */
+   public static PlaybackPrefetcher create(DataProvider dataProvider,
+                                           int depth) {
+      if (dataProvider == null) {
+         throw new NullPointerException();
+      }
+      if (depth < 1) {
+         throw new IllegalArgumentException("Prefetch depth must be positive");
+      }
+      return new PlaybackPrefetcher(dataProvider, depth);
+   }
+
+   private PlaybackPrefetcher(DataProvider dataProvider, int depth) {
+      dataProvider_ = dataProvider;
+      depth_ = depth;
+      executor_ = Executors.newSingleThreadExecutor(
+            ThreadFactoryFactory.createThreadFactory("Playback prefetch"));
+   }
+
+   public void setPerformanceMonitor(PerformanceMonitor perfMon) {
+      perfMon_ = perfMon;
+   }
+
+   /**
+    * Returns the images of all channels at the given position, taking them
+    * from the cache if they were prefetched.
+    *
+    * @param position display position; the channel axis is ignored
+    * @return images at the position; a new, modifiable list
+    * @throws IOException if reading from the data provider fails
+    */
+   public List<Image> getImagesIgnoringChannel(Coords position)
+         throws IOException {
+      Coords key = position.copyRemovingAxes(Coords.CHANNEL);
+      Future<List<Image>> future;
+      synchronized (this) {
+         future = cache_.remove(key);
+      }
+      if (future != null) {
+         boolean wasDone = future.isDone();
+         try {
+            List<Image> images = future.get();
+            hits_.incrementAndGet();
+            PerformanceMonitor perfMon = perfMon_;
+            if (perfMon != null) {
+               perfMon.sample("Prefetch hit (1) or miss (0)", 1.0);
+               perfMon.sample("Prefetch hit was ready (1) or in flight (0)",
+                     wasDone ? 1.0 : 0.0);
+            }
+            return new ArrayList<>(images);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         } catch (ExecutionException | CancellationException e) {
+            // Fall back to reading directly
+         }
+      }
+      misses_.incrementAndGet();
+      PerformanceMonitor perfMon = perfMon_;
+      if (perfMon != null) {
+         perfMon.sample("Prefetch hit (1) or miss (0)", 0.0);
+      }
+      return new ArrayList<>(
+            dataProvider_.getImagesIgnoringAxes(key, Coords.CHANNEL));
+   }
+
+   /**
+    * Sets the positions expected to be displayed next. Positions beyond the
+    * prefetch depth are ignored, and cached positions that are not in the
+    * list are dropped.
+    *
+    * @param upcoming positions in the order they will be displayed, such as
+    *     returned by {@link DataCoordsAnimationState#peekUpcomingPositions}
+    */
+   public synchronized void prefetch(List<Coords> upcoming) {
+      if (executor_.isShutdown()) {
+         return;
+      }
+      Set<Coords> wanted = new LinkedHashSet<>();
+      for (Coords position : upcoming) {
+         if (wanted.size() >= depth_) {
+            break;
+         }
+         wanted.add(position.copyRemovingAxes(Coords.CHANNEL));
+      }
+      Iterator<Map.Entry<Coords, Future<List<Image>>>> it =
+            cache_.entrySet().iterator();
+      while (it.hasNext()) {
+         Map.Entry<Coords, Future<List<Image>>> entry = it.next();
+         if (!wanted.contains(entry.getKey())) {
+            entry.getValue().cancel(false);
+            it.remove();
+         }
+      }
+      for (final Coords key : wanted) {
+         if (!cache_.containsKey(key)) {
+            cache_.put(key, executor_.submit(
+                  () -> dataProvider_.getImagesIgnoringAxes(key, Coords.CHANNEL)));
+         }
+      }
+   }
+
+   /**
+    * Drops any cached images at the position of the given coords, e.g.
+    * because a new image has been stored there.
+    *
+    * @param coords coords of a new or changed image
+    */
+   public synchronized void invalidate(Coords coords) {
+      Future<List<Image>> future =
+            cache_.remove(coords.copyRemovingAxes(Coords.CHANNEL));
+      if (future != null) {
+         future.cancel(false);
+      }
+   }
+
+   /**
+    * Drops all cached images, e.g. when playback stops.
+    */
+   public synchronized void clear() {
+      for (Future<List<Image>> future : cache_.values()) {
+         future.cancel(false);
+      }
+      cache_.clear();
+   }
+
+   public long getHitCount() {
+      return hits_.get();
+   }
+
+   public long getMissCount() {
+      return misses_.get();
+   }
+
+   public synchronized void shutdown() {
+      clear();
+      executor_.shutdownNow();
+   }
+}
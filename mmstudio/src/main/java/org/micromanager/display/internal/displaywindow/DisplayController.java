@@ -34,6 +34,7 @@ import java.util.concurrent.FutureTask;
 import java.util.concurrent.RunnableFuture;
 import java.util.concurrent.atomic.AtomicInteger;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import org.micromanager.Studio;
 import org.micromanager.data.Coordinates;
 import org.micromanager.data.Coords;
@@ -44,6 +45,9 @@ import org.micromanager.data.Datastore;
 import org.micromanager.data.DatastoreClosingEvent;
 import org.micromanager.data.DatastoreFrozenEvent;
 import org.micromanager.data.Image;
+import org.micromanager.data.internal.DefaultDatastore;
+import org.micromanager.data.internal.IntensitySummary;
+import org.micromanager.display.ChannelDisplaySettings;
 import org.micromanager.display.DataViewerListener;
 import org.micromanager.display.DisplaySettings;
 import org.micromanager.display.DisplayWindow;
@@ -53,6 +57,7 @@ import org.micromanager.display.internal.DefaultDisplaySettings;
 import org.micromanager.display.internal.RememberedDisplaySettings;
 import org.micromanager.display.internal.animate.AnimationController;
 import org.micromanager.display.internal.animate.DataCoordsAnimationState;
+import org.micromanager.display.internal.animate.PlaybackPrefetcher;
 import org.micromanager.display.internal.event.DataViewerDidBecomeActiveEvent;
 import org.micromanager.display.internal.event.DataViewerDidBecomeInvisibleEvent;
 import org.micromanager.display.internal.event.DataViewerDidBecomeVisibleEvent;
@@ -100,12 +105,23 @@ public final class DisplayController extends DisplayWindowAPIAdapter
 
    // Not final but set only upon creation
    private AnimationController<Coords> animationController_;
+   private DataCoordsAnimationState animationState_;
+   private PlaybackPrefetcher prefetcher_;
 
    private final Set<String> playbackAxes_ = new HashSet<>();
 
    private final StatsComputeQueue computeQueue_ = StatsComputeQueue.create();
    private static final long MIN_REPAINT_PERIOD_NS = Math.round(1e9 / 60.0);
 
+   // Whether to compute approximate (subsampled) stats while new images keep
+   // arriving, e.g. in live mode. Exact stats are computed when an ROI is set,
+   // and once no new image has arrived for LIVE_STATS_WINDOW_MS.
+   private volatile boolean approximateLiveStats_ = false;
+   private volatile long lastNewImageNs_ = Long.MIN_VALUE;
+   private static final int LIVE_STATS_WINDOW_MS = 500;
+   private final Timer exactStatsTimer_ =
+         new Timer(LIVE_STATS_WINDOW_MS, e -> redisplayIfApproximate());
+
    private final LinkManager linkManager_;
 
    // The UI controller manages the actual JFrame and all the components in it,
@@ -269,6 +285,7 @@ public final class DisplayController extends DisplayWindowAPIAdapter
       linkManager_ = linkManager;
 
       computeQueue_.setPerformanceMonitor(perfMon_);
+      exactStatsTimer_.setRepeats(false);
 
       ReportingUtils.logMessage("Class: " + this.getClass());
       ReportingUtils.logMessage("Classloader: " + this.getClass().getClassLoader());
@@ -278,10 +295,13 @@ public final class DisplayController extends DisplayWindowAPIAdapter
    private void initialize() {
       // Initialize some things that would leak 'this' if done in the
       // constructor
-      DataCoordsAnimationState animationState = DataCoordsAnimationState.create(this);
-      animationController_ = AnimationController.create(animationState);
+      animationState_ = DataCoordsAnimationState.create(this);
+      animationController_ = AnimationController.create(animationState_);
       animationController_.setPerformanceMonitor(perfMon_);
       animationController_.addListener(this);
+      prefetcher_ = PlaybackPrefetcher.create(dataProvider_,
+            PlaybackPrefetcher.DEFAULT_DEPTH);
+      prefetcher_.setPerformanceMonitor(perfMon_);
 
       uiController_ = DisplayUIController.create(studio_, this, controlsFactory_,
             animationController_);
@@ -567,10 +587,24 @@ public final class DisplayController extends DisplayWindowAPIAdapter
 
       // Always compute stats for all channels
       List<Image> images;
+      final AnimationController<Coords> animationController = animationController_;
+      final PlaybackPrefetcher prefetcher = prefetcher_;
       try {
-         images = dataProvider_.getImagesIgnoringAxes(
-               position.copyRemovingAxes(Coords.CHANNEL),
-               Coords.CHANNEL);
+         if (prefetcher != null && animationController != null
+               && animationController.isAnimating()) {
+            // During playback, take the images from the read-ahead cache and
+            // request the positions that will be shown next
+            images = prefetcher.getImagesIgnoringChannel(position);
+            prefetcher.prefetch(animationState_.peekUpcomingPositions(
+                  PlaybackPrefetcher.DEFAULT_DEPTH));
+         } else {
+            if (prefetcher != null) {
+               prefetcher.clear();
+            }
+            images = dataProvider_.getImagesIgnoringAxes(
+                  position.copyRemovingAxes(Coords.CHANNEL),
+                  Coords.CHANNEL);
+         }
       } catch (IOException e) {
          // TODO Should display error
          images = Collections.emptyList();
@@ -657,9 +691,17 @@ public final class DisplayController extends DisplayWindowAPIAdapter
       if (perfMon_ != null) {
          perfMon_.sampleTimeInterval("Submitting compute request");
       }
+      boolean approximate = false;
+      if (approximateLiveStats_
+            && System.nanoTime() - lastNewImageNs_ < LIVE_STATS_WINDOW_MS * 1000000L) {
+         synchronized (selectionLock_) {
+            approximate = selection_.getBounds() == null;
+         }
+      }
       computeQueue_.submitRequest(ImageStatsRequest.create(position,
             images,
-            selection));
+            selection,
+            approximate));
 
       return position;
    }
@@ -848,6 +890,38 @@ public final class DisplayController extends DisplayWindowAPIAdapter
       return 1e9 / intervalNs;
    }
 
+   /**
+    * Sets whether image statistics (histograms and autostretch) are computed
+    * from a subsample of the pixels while new images keep arriving, which is
+    * much faster for large images from fast cameras. Exact statistics are
+    * still computed when an ROI is set, and for the last image once no new
+    * images arrive.
+    *
+    * @param enabled true to allow approximate statistics for this display
+    */
+   public void setApproximateLiveStats(boolean enabled) {
+      approximateLiveStats_ = enabled;
+      if (!enabled) {
+         SwingUtilities.invokeLater(this::redisplayIfApproximate);
+      }
+   }
+
+   public boolean isApproximateLiveStats() {
+      return approximateLiveStats_;
+   }
+
+   @MustCallOnEDT
+   private void redisplayIfApproximate() {
+      if (displayedImages_ == null || !displayedImages_.getRequest().isApproximate()) {
+         return;
+      }
+      // This is the thread-safe way to trigger a redisplay
+      Coords pos;
+      do {
+         pos = getDisplayPosition();
+      } while (!compareAndSetDisplayPosition(pos, pos, true));
+   }
+
    /**
     * Sets the axes that will be animated.
     *
@@ -941,6 +1015,12 @@ public final class DisplayController extends DisplayWindowAPIAdapter
       // any ongoing playback animation. Actual display of new images happens
       // upon receiving callbacks via the AnimationController.Listener
       // interface.
+      prefetcher_.invalidate(event.getImage().getCoords());
+      lastNewImageNs_ = System.nanoTime();
+      if (approximateLiveStats_) {
+         // Exact stats for the last image once images stop arriving
+         exactStatsTimer_.restart();
+      }
       animationController_.newDataPosition(event.getImage().getCoords());
    }
 
@@ -1071,6 +1151,48 @@ public final class DisplayController extends DisplayWindowAPIAdapter
       }
    }
 
+   /**
+    * Sets the intensity scaling of each channel to the range of the whole
+    * dataset rather than of the displayed images, and turns off autostretch.
+    * Uses the intensity summary kept by the datastore, so that this does not
+    * require reading all images (except once, for data saved without a
+    * summary). May be slow in that case; do not call on the EDT.
+    */
+   public void autostretchOverDataset() {
+      if (!(dataProvider_ instanceof DefaultDatastore)) {
+         return;
+      }
+      IntensitySummary summary;
+      try {
+         summary = ((DefaultDatastore) dataProvider_).getIntensitySummary();
+      } catch (IOException e) {
+         ReportingUtils.logError(e, "Failed to compute intensity range of dataset");
+         return;
+      }
+      if (summary == null) {
+         return;
+      }
+      DisplaySettings oldSettings;
+      DisplaySettings newSettings;
+      do {
+         oldSettings = getDisplaySettings();
+         double q = oldSettings.getAutoscaleIgnoredQuantile();
+         DisplaySettings.Builder builder = oldSettings.copyBuilder().autostretch(false);
+         for (int i = 0; i < oldSettings.getNumberOfChannels(); ++i) {
+            long[] range = summary.getRange(i, q, oldSettings.isAutoscaleIgnoringZeros());
+            if (range == null) {
+               continue;
+            }
+            ChannelDisplaySettings channelSettings = oldSettings.getChannelSettings(i);
+            builder.channel(i, channelSettings.copyBuilderWithComponentSettings(0,
+                  channelSettings.getComponentSettings(0).copyBuilder()
+                        .scalingRange(range[0], Math.max(range[0] + 1, range[1]))
+                        .build()).build());
+         }
+         newSettings = builder.build();
+      } while (!compareAndSetDisplaySettings(oldSettings, newSettings));
+   }
+
    @Override
    @Deprecated
    public ImagePlus getImagePlus() {
@@ -1138,6 +1260,7 @@ public final class DisplayController extends DisplayWindowAPIAdapter
             // RememberedDisplaySettings we do not need to do it again here
          }
          dataProvider_.unregisterForEvents(this);
+         exactStatsTimer_.stop();
          try {
             computeQueue_.removeListener(this);
             computeQueue_.shutdown();
@@ -1145,6 +1268,13 @@ public final class DisplayController extends DisplayWindowAPIAdapter
             // TODO: report exception
          }
          perfMon_ = null;
+         if (prefetcher_.getHitCount() + prefetcher_.getMissCount() > 0) {
+            ReportingUtils.logMessage("Playback prefetch: "
+                  + prefetcher_.getHitCount() + " hits, "
+                  + prefetcher_.getMissCount() + " misses");
+         }
+         prefetcher_.shutdown();
+         prefetcher_ = null;
          animationController_.shutdown();
          animationController_.removeListener(this);
          animationController_ = null;
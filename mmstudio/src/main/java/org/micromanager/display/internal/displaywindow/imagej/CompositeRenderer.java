@@ -0,0 +1,319 @@
+package org.micromanager.display.internal.displaywindow.imagej;
+
+import ij.process.LUT;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import org.micromanager.internal.MMStudio;
+
+/**
+ * Renders multi-channel composites without going through ImageJ's per-channel
+ * 8-bit images.
+ *
+ * <p>For each channel, a table mapping every raw sample value directly to an
+ * RGB color is built from the channel's LUT and display range, and kept until
+ * they change. All visible channels are then looked up and added (saturating
+ * at 255 per color component) in a single pass over the pixels, writing
+ * straight into the buffer of the displayed image. Large images are rendered
+ * in parallel bands of rows.
+ *
+ * <p>The result matches ImageJ's {@code CompositeImage} in composite mode,
+ * which scales each channel to 8 bits, applies its LUT, and adds the channels.
+ * The scaling follows ImageJ for each pixel type: ByteProcessor picks LUT
+ * entries with {@code 256 * (v - min) / (max - min)}, rounded down, and
+ * ShortProcessor converts to 8 bits with {@code (v - min) * 256 / (max - min + 1)},
+ * rounded. Display ranges that ImageJ treats specially are left to ImageJ.
+ * Not thread-safe; used on the EDT by {@link MMCompositeImage}.
+ */
+public final class CompositeRenderer {
+   private static final String ENABLED_KEY = "Use fast composite rendering";
+
+   // Images with at least this many pixels (e.g. 1024 x 1024) are split
+   // into bands of rows of about BAND_PIXELS each, rendered in parallel
+   private static final long MIN_PIXELS_FOR_BANDS = 1L << 20;
+   private static final long BAND_PIXELS = 1L << 18;
+
+   private static ForkJoinPool bandPool_;
+
+   private static final class ChannelTable {
+      final byte[] reds_ = new byte[256];
+      final byte[] greens_ = new byte[256];
+      final byte[] blues_ = new byte[256];
+      double min_;
+      double max_;
+      int[] rgb_;
+
+      boolean matches(LUT lut, double min, double max, int size, byte[] scratch) {
+         if (rgb_ == null || rgb_.length != size || min_ != min || max_ != max) {
+            return false;
+         }
+         lut.getReds(scratch);
+         if (!Arrays.equals(scratch, reds_)) {
+            return false;
+         }
+         lut.getGreens(scratch);
+         if (!Arrays.equals(scratch, greens_)) {
+            return false;
+         }
+         lut.getBlues(scratch);
+         return Arrays.equals(scratch, blues_);
+      }
+
+      void update(LUT lut, double min, double max, int size) {
+         lut.getReds(reds_);
+         lut.getGreens(greens_);
+         lut.getBlues(blues_);
+         min_ = min;
+         max_ = max;
+         if (rgb_ == null || rgb_.length != size) {
+            rgb_ = new int[size];
+         }
+         int[] colors = new int[256];
+         for (int i = 0; i < 256; ++i) {
+            colors[i] = ((reds_[i] & 0xff) << 16) | ((greens_[i] & 0xff) << 8)
+                  | (blues_[i] & 0xff);
+         }
+         // ImageJ truncates the display range to integers
+         int intMin = (int) min;
+         int intMax = (int) max;
+         if (size == 256) {
+            // As ByteProcessor.setMinAndMax()
+            for (int v = 0; v < size; ++v) {
+               int index;
+               if (v < intMin) {
+                  index = 0;
+               } else if (v > intMax) {
+                  index = 255;
+               } else {
+                  index = (int) (256.0 * (v - intMin) / (intMax - intMin));
+               }
+               rgb_[v] = colors[Math.max(0, Math.min(255, index))];
+            }
+         } else {
+            // As ShortProcessor.create8BitImage()
+            double scale = 256.0 / (intMax - intMin + 1);
+            for (int v = 0; v < size; ++v) {
+               int index = (int) (Math.max(0, v - intMin) * scale + 0.5);
+               rgb_[v] = colors[Math.min(255, index)];
+            }
+         }
+      }
+   }
+
+   private ChannelTable[] tables_ = new ChannelTable[0];
+   private final byte[] scratch_ = new byte[256];
+   private BufferedImage image_;
+
+   static CompositeRenderer create() {
+      return new CompositeRenderer();
+   }
+
+   private CompositeRenderer() {
+   }
+
+   /**
+    * Whether composites are rendered by this class rather than by ImageJ.
+    * Stored in the user profile; on by default.
+    */
+   public static boolean isEnabled() {
+      MMStudio studio = MMStudio.getInstance();
+      if (studio == null) {
+         return true;
+      }
+      return studio.profile().getSettings(CompositeRenderer.class)
+            .getBoolean(ENABLED_KEY, true);
+   }
+
+   public static void setEnabled(boolean enabled) {
+      MMStudio studio = MMStudio.getInstance();
+      if (studio != null) {
+         studio.profile().getSettings(CompositeRenderer.class)
+               .putBoolean(ENABLED_KEY, enabled);
+      }
+   }
+
+   private static synchronized ForkJoinPool getBandPool() {
+      if (bandPool_ == null) {
+         bandPool_ = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+               pool -> {
+                  ForkJoinWorkerThread thread =
+                        ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                  thread.setName("Composite rendering " + thread.getPoolIndex());
+                  return thread;
+               },
+               null, false);
+      }
+      return bandPool_;
+   }
+
+   /**
+    * Render a composite of the given channels.
+    *
+    * @param pixels  pixel arrays of the channels, either all {@code byte[]} or
+    *                all {@code short[]}; null for channels not to be shown
+    * @param luts    LUTs of the channels, with their display range in
+    *                {@code min} and {@code max}
+    * @param width   image width
+    * @param height  image height
+    * @return the rendered image, or null if the pixel types, sizes or
+    *         display ranges are not supported. The same image is reused (and
+    *         overwritten) by the next call with the same size.
+    */
+   BufferedImage render(Object[] pixels, LUT[] luts, int width, int height) {
+      int count = 0;
+      boolean isShort = false;
+      for (int c = 0; c < pixels.length; ++c) {
+         Object p = pixels[c];
+         if (p == null) {
+            continue;
+         }
+         if (luts[c] == null || luts[c].getMapSize() != 256) {
+            return null;
+         }
+         boolean s = p instanceof short[];
+         if (!s && !(p instanceof byte[])) {
+            return null;
+         }
+         int length = s ? ((short[]) p).length : ((byte[]) p).length;
+         if (length != width * height) {
+            return null;
+         }
+         if (count > 0 && s != isShort) {
+            return null;
+         }
+         isShort = s;
+         count++;
+      }
+
+      int size = isShort ? 65536 : 256;
+      if (tables_.length < pixels.length) {
+         tables_ = Arrays.copyOf(tables_, pixels.length);
+      }
+      int[][] rgbTables = new int[count][];
+      Object[] visible = new Object[count];
+      int k = 0;
+      for (int c = 0; c < pixels.length; ++c) {
+         if (pixels[c] == null) {
+            continue;
+         }
+         double min = luts[c].min;
+         double max = luts[c].max;
+         if (max < min || (isShort && min == 0.0 && max == 0.0)) {
+            // ImageJ ignores the range, or uses the range of the pixels
+            return null;
+         }
+         if (isShort) {
+            // As ShortProcessor.setMinAndMax()
+            min = Math.max(0.0, min);
+            max = Math.min(size - 1, max);
+         }
+         if (tables_[c] == null) {
+            tables_[c] = new ChannelTable();
+         }
+         if (!tables_[c].matches(luts[c], min, max, size, scratch_)) {
+            tables_[c].update(luts[c], min, max, size);
+         }
+         rgbTables[k] = tables_[c].rgb_;
+         visible[k] = pixels[c];
+         k++;
+      }
+
+      if (image_ == null || image_.getWidth() != width
+            || image_.getHeight() != height) {
+         image_ = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+      }
+      int[] rgb = ((DataBufferInt) image_.getRaster().getDataBuffer()).getData();
+
+      int nPixels = width * height;
+      if (nPixels >= MIN_PIXELS_FOR_BANDS
+            && Runtime.getRuntime().availableProcessors() > 1) {
+         getBandPool().invoke(new BandTask(rgb, visible, rgbTables, 0, nPixels,
+               Math.max(width, (int) (BAND_PIXELS / width * width))));
+      } else {
+         composite(rgb, visible, rgbTables, 0, nPixels);
+      }
+      return image_;
+   }
+
+   /**
+    * Add the colors of the channels for the pixels from start (inclusive) to
+    * end (exclusive).
+    */
+   static void composite(int[] rgb, Object[] pixels, int[][] tables,
+                         int start, int end) {
+      if (pixels.length == 0) {
+         Arrays.fill(rgb, start, end, 0);
+      } else if (pixels[0] instanceof short[]) {
+         short[][] channels = new short[pixels.length][];
+         for (int c = 0; c < pixels.length; ++c) {
+            channels[c] = (short[]) pixels[c];
+         }
+         for (int i = start; i < end; ++i) {
+            int r = 0;
+            int g = 0;
+            int b = 0;
+            for (int c = 0; c < channels.length; ++c) {
+               int color = tables[c][channels[c][i] & 0xffff];
+               r += color >>> 16;
+               g += (color >>> 8) & 0xff;
+               b += color & 0xff;
+            }
+            rgb[i] = (Math.min(255, r) << 16) | (Math.min(255, g) << 8)
+                  | Math.min(255, b);
+         }
+      } else {
+         byte[][] channels = new byte[pixels.length][];
+         for (int c = 0; c < pixels.length; ++c) {
+            channels[c] = (byte[]) pixels[c];
+         }
+         for (int i = start; i < end; ++i) {
+            int r = 0;
+            int g = 0;
+            int b = 0;
+            for (int c = 0; c < channels.length; ++c) {
+               int color = tables[c][channels[c][i] & 0xff];
+               r += color >>> 16;
+               g += (color >>> 8) & 0xff;
+               b += color & 0xff;
+            }
+            rgb[i] = (Math.min(255, r) << 16) | (Math.min(255, g) << 8)
+                  | Math.min(255, b);
+         }
+      }
+   }
+
+   private static final class BandTask extends RecursiveAction {
+      private final int[] rgb_;
+      private final Object[] pixels_;
+      private final int[][] tables_;
+      private final int start_;
+      private final int end_;
+      private final int bandPixels_;
+
+      BandTask(int[] rgb, Object[] pixels, int[][] tables,
+               int start, int end, int bandPixels) {
+         rgb_ = rgb;
+         pixels_ = pixels;
+         tables_ = tables;
+         start_ = start;
+         end_ = end;
+         bandPixels_ = bandPixels;
+      }
+
+      @Override
+      protected void compute() {
+         if (end_ - start_ <= bandPixels_) {
+            composite(rgb_, pixels_, tables_, start_, end_);
+            return;
+         }
+         // Split at a row boundary (bandPixels_ is a whole number of rows)
+         int bands = (end_ - start_ + bandPixels_ - 1) / bandPixels_;
+         int middle = start_ + (bands / 2) * bandPixels_;
+         invokeAll(new BandTask(rgb_, pixels_, tables_, start_, middle, bandPixels_),
+               new BandTask(rgb_, pixels_, tables_, middle, end_, bandPixels_));
+      }
+   }
+}
@@ -16,6 +16,10 @@ package org.micromanager.display.internal.displaywindow.imagej;
 
 import ij.CompositeImage;
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import ij.process.LUT;
+import java.awt.image.BufferedImage;
 
 /**
  * Wrapped version of ImageJ's {@code CompositeImage}.
@@ -25,6 +29,8 @@ import ij.ImagePlus;
  */
 public final class MMCompositeImage extends CompositeImage
       implements IMMImagePlus {
+   private final CompositeRenderer renderer_ = CompositeRenderer.create();
+
    static MMCompositeImage create(ImageJBridge parent, ImagePlus predecessor) {
       return new MMCompositeImage(parent, predecessor);
    }
@@ -34,6 +40,51 @@ public final class MMCompositeImage extends CompositeImage
       // So far we don't use parent reference
    }
 
+   /**
+    * In composite mode, render with {@link CompositeRenderer} when possible,
+    * instead of converting each channel to an 8-bit image.
+    */
+   @Override
+   public synchronized void updateImage() {
+      if (getMode() != COMPOSITE || !CompositeRenderer.isEnabled()
+            || !renderComposite()) {
+         super.updateImage();
+      }
+   }
+
+   private boolean renderComposite() {
+      int nChannels = getNChannelsWithoutSideEffect();
+      if (nChannels < 2) {
+         return false;
+      }
+      ImageStack stack = getImageStack();
+      boolean[] active = getActiveChannels();
+      Object[] pixels = new Object[nChannels];
+      LUT[] luts = new LUT[nChannels];
+      for (int c = 0; c < nChannels; ++c) {
+         // Let ImageJ set up its per-channel processors and LUTs first
+         ImageProcessor proc = getProcessor(c + 1);
+         if (proc == null || proc.getWidth() != width
+               || proc.getHeight() != height) {
+            return false;
+         }
+         if (active != null && c < active.length && !active[c]) {
+            continue;
+         }
+         int index = getStackIndex(c + 1, getSlice(), getFrame());
+         pixels[c] = stack instanceof MMVirtualStack
+               ? ((MMVirtualStack) stack).getPixelsWithoutCopy(index)
+               : stack.getPixels(index);
+         luts[c] = getChannelLut(c + 1);
+      }
+      BufferedImage rendered = renderer_.render(pixels, luts, width, height);
+      if (rendered == null) {
+         return false;
+      }
+      img = rendered;
+      return true;
+   }
+
    @Override
    public void setDimensionsWithoutUpdate(
          int nChannels, int nSlices, int nFrames) {
@@ -125,6 +125,16 @@ public final class MMVirtualStack extends VirtualStack {
       return image.getRawPixelsCopy();
    }
 
+   /**
+    * Like {@link #getPixels}, but returns the image's own pixel array, which
+    * must not be modified. For rendering.
+    */
+   Object getPixelsWithoutCopy(int flatIndex) {
+      Coords coords = parent_.getMMCoordsForIJFlatIndex(flatIndex);
+      Image image = parent_.getMMImage(coords);
+      return image.getRawPixels();
+   }
+
    @Override
    public void setPixels(Object pixels, int n) {
       // Not supported
@@ -30,21 +30,38 @@ public final class ImageStatsRequest {
    private final Coords nominalCoords_;
    private final List<Image> images_ = new ArrayList<>();
    private final BoundsRectAndMask roi_;
+   private final boolean approximate_;
 
    public static ImageStatsRequest create(Coords nominalCoords,
                                           List<Image> images,
                                           BoundsRectAndMask roi) {
-      return new ImageStatsRequest(nominalCoords, images, roi);
+      return new ImageStatsRequest(nominalCoords, images, roi, false);
+   }
+
+   /**
+    * Create a request, optionally for approximate statistics.
+    *
+    * @param approximate if true, statistics may be computed from a subsample
+    *                    of the pixels (see ImageStatsProcessor); ignored when
+    *                    an ROI is given
+    */
+   public static ImageStatsRequest create(Coords nominalCoords,
+                                          List<Image> images,
+                                          BoundsRectAndMask roi,
+                                          boolean approximate) {
+      return new ImageStatsRequest(nominalCoords, images, roi, approximate);
    }
 
    private ImageStatsRequest(Coords nominalCoords,
                              List<Image> images,
-                             BoundsRectAndMask roi) {
+                             BoundsRectAndMask roi,
+                             boolean approximate) {
       Preconditions.checkNotNull(nominalCoords);
       Preconditions.checkNotNull(images);
       nominalCoords_ = nominalCoords;
       images_.addAll(images);
       roi_ = roi;
+      approximate_ = approximate && roi.getBounds() == null;
    }
 
    public Coords getNominalCoords() {
@@ -71,6 +88,10 @@ public final class ImageStatsRequest {
       return roi_.getBounds();
    }
 
+   public boolean isApproximate() {
+      return approximate_;
+   }
+
    public byte[] getROIMask() {
       return roi_.getMask();
    }
@@ -31,7 +31,8 @@ public final class IntegerComponentStats {
    private final long minimumExcludingZeros_;
    private final long maximum_;
    private final long sum_;
-   private final long sumOfSquares_;
+   // Not a long, which could overflow for very large images
+   private final double sumOfSquares_;
    private final transient long[] cumulativeDistrib_;
 
    public static class Builder {
@@ -44,7 +45,7 @@ public final class IntegerComponentStats {
       private long minimumExcludingZeros_;
       private long maximum_;
       private long sum_;
-      private long sumOfSquares_;
+      private double sumOfSquares_;
 
       private Builder() {
       }
@@ -96,6 +97,11 @@ public final class IntegerComponentStats {
          return this;
       }
 
+      public Builder sumOfSquares(double ssq) {
+         sumOfSquares_ = ssq;
+         return this;
+      }
+
       public IntegerComponentStats build() {
          return new IntegerComponentStats(this);
       }
@@ -372,15 +378,19 @@ public final class IntegerComponentStats {
       }
    }
 
+   /**
+    * Sum of the squares of all sample values, saturating at Long.MAX_VALUE;
+    * exact up to 2^53.
+    */
    public long getSumOfSquares() {
-      return sumOfSquares_;
+      return (long) sumOfSquares_;
    }
 
    public double getStandardDeviation() {
       if (pixelCount_ == 0) {
          return Double.NaN;
       }
-      double meanSq = ((double) sumOfSquares_) / pixelCount_;
+      double meanSq = sumOfSquares_ / pixelCount_;
       double mean = getMeanIntensity();
       return Math.sqrt(meanSq - (mean * mean));
    }
@@ -389,7 +399,7 @@ public final class IntegerComponentStats {
       if (pixelCountExcludingZeros_ == 0) {
          return Double.NaN;
       }
-      double meanSq = ((double) sumOfSquares_) / pixelCountExcludingZeros_;
+      double meanSq = sumOfSquares_ / pixelCountExcludingZeros_;
       double mean = getMeanIntensityExcludingZeros();
       return Math.sqrt(meanSq - (mean * mean));
    }
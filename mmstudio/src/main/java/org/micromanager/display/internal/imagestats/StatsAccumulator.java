@@ -0,0 +1,440 @@
+package org.micromanager.display.internal.imagestats;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * Accumulates histograms, extrema and sums of the samples of an image,
+ * for each color component, directly from the raw pixel array.
+ *
+ * <p>The pixel array holds the components of each pixel next to each other,
+ * pixels in row-major order. Histograms are binned like
+ * {@link PowerOf2BinMapper}: bin 0 and the last bin count samples below and
+ * above the range of the sample bit depth, and each in-range bin covers a
+ * power-of-2 number of values.
+ *
+ * <p>There are separate loops for each pixel type, and for rectangles with
+ * and without a mask; a rectangle spanning whole rows is handled as a single
+ * run. An instance can be reused for many images (call {@code reset} first)
+ * to avoid allocating histograms for every image. Not thread-safe; to
+ * compute the statistics of an image in parallel, accumulate parts of it
+ * separately and {@code merge} them.
+ *
+ * <p>Sums of squares are accumulated in a long within a single loop, which
+ * cannot overflow since a Java array has fewer than 2^31 elements, and are
+ * totalled as doubles, which do not overflow for any image size.
+ */
+final class StatsAccumulator {
+   private static final int MASK_THRESH = 128;
+
+   private int nComponents_;
+   private int sampleShift_;
+   private int endOfRange_;
+   private int binWidthPowerOf2_;
+   private long[][] histograms_ = new long[0][];
+   private long[] counts_ = new long[0];
+   private long[] countsExcludingZeros_ = new long[0];
+   private long[] minima_ = new long[0];
+   private long[] minimaExcludingZeros_ = new long[0];
+   private long[] maxima_ = new long[0];
+   private long[] sums_ = new long[0];
+   private double[] sumsOfSquares_ = new double[0];
+
+   /**
+    * Clear all statistics and set up for a new image.
+    *
+    * @param nComponents      number of components per pixel
+    * @param sampleBitDepth   bit depth of the samples; larger values are
+    *                         counted in the last (out-of-range) bin
+    * @param binCountPowerOf2 log2 of the number of in-range bins
+    */
+   void reset(int nComponents, int sampleBitDepth, int binCountPowerOf2) {
+      sampleShift_ = Math.max(0, sampleBitDepth - binCountPowerOf2);
+      binWidthPowerOf2_ = sampleShift_;
+      endOfRange_ = (int) Math.min(Integer.MAX_VALUE, (1L << sampleBitDepth) - 1);
+      int binCount = (1 << binCountPowerOf2) + 2;
+      if (nComponents != nComponents_) {
+         nComponents_ = nComponents;
+         histograms_ = new long[nComponents][];
+         counts_ = new long[nComponents];
+         countsExcludingZeros_ = new long[nComponents];
+         minima_ = new long[nComponents];
+         minimaExcludingZeros_ = new long[nComponents];
+         maxima_ = new long[nComponents];
+         sums_ = new long[nComponents];
+         sumsOfSquares_ = new double[nComponents];
+      }
+      for (int c = 0; c < nComponents; ++c) {
+         if (histograms_[c] == null || histograms_[c].length != binCount) {
+            histograms_[c] = new long[binCount];
+         } else {
+            Arrays.fill(histograms_[c], 0L);
+         }
+      }
+      Arrays.fill(counts_, 0L);
+      Arrays.fill(countsExcludingZeros_, 0L);
+      Arrays.fill(minima_, Long.MAX_VALUE);
+      Arrays.fill(minimaExcludingZeros_, Long.MAX_VALUE);
+      Arrays.fill(maxima_, Long.MIN_VALUE);
+      Arrays.fill(sums_, 0L);
+      Arrays.fill(sumsOfSquares_, 0.0);
+   }
+
+   /**
+    * Add the samples within a rectangle of an 8-bit image.
+    *
+    * @param pixels image pixels
+    * @param width  image width, in pixels
+    * @param rect   part of the image to add; must lie within the image
+    */
+   void addRect(byte[] pixels, int width, Rectangle rect) {
+      if (rect.x == 0 && rect.width == width) {
+         // Whole rows: a single contiguous run
+         int start = rect.y * width * nComponents_;
+         int end = start + rect.height * width * nComponents_;
+         for (int c = 0; c < nComponents_; ++c) {
+            addRun(pixels, start + c, end, c);
+         }
+         return;
+      }
+      for (int y = rect.y; y < rect.y + rect.height; ++y) {
+         int start = (y * width + rect.x) * nComponents_;
+         int end = start + rect.width * nComponents_;
+         for (int c = 0; c < nComponents_; ++c) {
+            addRun(pixels, start + c, end, c);
+         }
+      }
+   }
+
+   /**
+    * Add the samples within a rectangle of a 16-bit image.
+    *
+    * @param pixels image pixels
+    * @param width  image width, in pixels
+    * @param rect   part of the image to add; must lie within the image
+    */
+   void addRect(short[] pixels, int width, Rectangle rect) {
+      if (rect.x == 0 && rect.width == width) {
+         int start = rect.y * width * nComponents_;
+         int end = start + rect.height * width * nComponents_;
+         for (int c = 0; c < nComponents_; ++c) {
+            addRun(pixels, start + c, end, c);
+         }
+         return;
+      }
+      for (int y = rect.y; y < rect.y + rect.height; ++y) {
+         int start = (y * width + rect.x) * nComponents_;
+         int end = start + rect.width * nComponents_;
+         for (int c = 0; c < nComponents_; ++c) {
+            addRun(pixels, start + c, end, c);
+         }
+      }
+   }
+
+   /**
+    * Add a subsample of the samples within a rectangle of an 8-bit image:
+    * every stride-th pixel of every stride-th row, starting at the given
+    * offsets from the corner of the rectangle.
+    *
+    * @param pixels  image pixels
+    * @param width   image width, in pixels
+    * @param rect    part of the image to sample; must lie within the image
+    * @param stride  distance between sampled pixels, in both directions
+    * @param xOffset offset of the first sampled column; less than stride
+    * @param yOffset offset of the first sampled row; less than stride
+    */
+   void addSampled(byte[] pixels, int width, Rectangle rect, int stride,
+                   int xOffset, int yOffset) {
+      for (int y = rect.y + yOffset; y < rect.y + rect.height; y += stride) {
+         int start = (y * width + rect.x + xOffset) * nComponents_;
+         int end = (y * width + rect.x + rect.width) * nComponents_;
+         for (int c = 0; c < nComponents_; ++c) {
+            addRun(pixels, start + c, end, c, stride * nComponents_);
+         }
+      }
+   }
+
+   /**
+    * Add a subsample of the samples within a rectangle of a 16-bit image;
+    * see the 8-bit version.
+    */
+   void addSampled(short[] pixels, int width, Rectangle rect, int stride,
+                   int xOffset, int yOffset) {
+      for (int y = rect.y + yOffset; y < rect.y + rect.height; y += stride) {
+         int start = (y * width + rect.x + xOffset) * nComponents_;
+         int end = (y * width + rect.x + rect.width) * nComponents_;
+         for (int c = 0; c < nComponents_; ++c) {
+            addRun(pixels, start + c, end, c, stride * nComponents_);
+         }
+      }
+   }
+
+   /**
+    * Add the samples within a rectangle of an 8-bit image, for pixels where
+    * the mask is set.
+    *
+    * @param pixels     image pixels
+    * @param width      image width, in pixels
+    * @param rect       part of the image to add; must lie within both the
+    *                   image and the mask
+    * @param mask       mask values, one byte per pixel; pixels with a value of
+    *                   128 or more are used
+    * @param maskBounds position and size of the mask in the image
+    */
+   void addMasked(byte[] pixels, int width, Rectangle rect,
+                  byte[] mask, Rectangle maskBounds) {
+      final int shift = sampleShift_;
+      final int endOfRange = endOfRange_;
+      for (int c = 0; c < nComponents_; ++c) {
+         final long[] histogram = histograms_[c];
+         final int overflowBin = histogram.length - 1;
+         long count = 0;
+         long countNonZero = 0;
+         int min = Integer.MAX_VALUE;
+         int minNonZero = Integer.MAX_VALUE;
+         int max = Integer.MIN_VALUE;
+         long sum = 0;
+         long sumOfSquares = 0;
+         for (int y = rect.y; y < rect.y + rect.height; ++y) {
+            int m = (y - maskBounds.y) * maskBounds.width + (rect.x - maskBounds.x);
+            int i = (y * width + rect.x) * nComponents_ + c;
+            for (int x = 0; x < rect.width; ++x, ++m, i += nComponents_) {
+               if ((mask[m] & 0xff) < MASK_THRESH) {
+                  continue;
+               }
+               int v = pixels[i] & 0xff;
+               histogram[v > endOfRange ? overflowBin : (v >>> shift) + 1]++;
+               count++;
+               if (v < min) {
+                  min = v;
+               }
+               if (v > max) {
+                  max = v;
+               }
+               if (v != 0) {
+                  countNonZero++;
+                  if (v < minNonZero) {
+                     minNonZero = v;
+                  }
+               }
+               sum += v;
+               sumOfSquares += (long) v * v;
+            }
+         }
+         record(c, count, countNonZero, min, minNonZero, max, sum, sumOfSquares);
+      }
+   }
+
+   /**
+    * Add the samples within a rectangle of a 16-bit image, for pixels where
+    * the mask is set.
+    *
+    * @param pixels     image pixels
+    * @param width      image width, in pixels
+    * @param rect       part of the image to add; must lie within both the
+    *                   image and the mask
+    * @param mask       mask values, one byte per pixel; pixels with a value of
+    *                   128 or more are used
+    * @param maskBounds position and size of the mask in the image
+    */
+   void addMasked(short[] pixels, int width, Rectangle rect,
+                  byte[] mask, Rectangle maskBounds) {
+      final int shift = sampleShift_;
+      final int endOfRange = endOfRange_;
+      for (int c = 0; c < nComponents_; ++c) {
+         final long[] histogram = histograms_[c];
+         final int overflowBin = histogram.length - 1;
+         long count = 0;
+         long countNonZero = 0;
+         int min = Integer.MAX_VALUE;
+         int minNonZero = Integer.MAX_VALUE;
+         int max = Integer.MIN_VALUE;
+         long sum = 0;
+         long sumOfSquares = 0;
+         for (int y = rect.y; y < rect.y + rect.height; ++y) {
+            int m = (y - maskBounds.y) * maskBounds.width + (rect.x - maskBounds.x);
+            int i = (y * width + rect.x) * nComponents_ + c;
+            for (int x = 0; x < rect.width; ++x, ++m, i += nComponents_) {
+               if ((mask[m] & 0xff) < MASK_THRESH) {
+                  continue;
+               }
+               int v = pixels[i] & 0xffff;
+               histogram[v > endOfRange ? overflowBin : (v >>> shift) + 1]++;
+               count++;
+               if (v < min) {
+                  min = v;
+               }
+               if (v > max) {
+                  max = v;
+               }
+               if (v != 0) {
+                  countNonZero++;
+                  if (v < minNonZero) {
+                     minNonZero = v;
+                  }
+               }
+               sum += v;
+               sumOfSquares += (long) v * v;
+            }
+         }
+         record(c, count, countNonZero, min, minNonZero, max, sum, sumOfSquares);
+      }
+   }
+
+   /**
+    * Add every nComponents-th sample from start (inclusive) to end
+    * (exclusive) to the statistics of component c.
+    */
+   private void addRun(byte[] pixels, int start, int end, int c) {
+      addRun(pixels, start, end, c, nComponents_);
+   }
+
+   private void addRun(short[] pixels, int start, int end, int c) {
+      addRun(pixels, start, end, c, nComponents_);
+   }
+
+   /**
+    * Add every stride-th sample from start (inclusive) to end (exclusive) to
+    * the statistics of component c.
+    */
+   private void addRun(byte[] pixels, int start, int end, int c, int stride) {
+      final long[] histogram = histograms_[c];
+      final int overflowBin = histogram.length - 1;
+      final int shift = sampleShift_;
+      final int endOfRange = endOfRange_;
+      long countNonZero = 0;
+      int min = Integer.MAX_VALUE;
+      int minNonZero = Integer.MAX_VALUE;
+      int max = Integer.MIN_VALUE;
+      long sum = 0;
+      long sumOfSquares = 0;
+      for (int i = start; i < end; i += stride) {
+         int v = pixels[i] & 0xff;
+         histogram[v > endOfRange ? overflowBin : (v >>> shift) + 1]++;
+         if (v < min) {
+            min = v;
+         }
+         if (v > max) {
+            max = v;
+         }
+         if (v != 0) {
+            countNonZero++;
+            if (v < minNonZero) {
+               minNonZero = v;
+            }
+         }
+         sum += v;
+         sumOfSquares += (long) v * v;
+      }
+      long count = start < end ? (end - start + stride - 1) / stride : 0;
+      record(c, count, countNonZero, min, minNonZero, max, sum, sumOfSquares);
+   }
+
+   private void addRun(short[] pixels, int start, int end, int c, int stride) {
+      final long[] histogram = histograms_[c];
+      final int overflowBin = histogram.length - 1;
+      final int shift = sampleShift_;
+      final int endOfRange = endOfRange_;
+      long countNonZero = 0;
+      int min = Integer.MAX_VALUE;
+      int minNonZero = Integer.MAX_VALUE;
+      int max = Integer.MIN_VALUE;
+      long sum = 0;
+      long sumOfSquares = 0;
+      for (int i = start; i < end; i += stride) {
+         int v = pixels[i] & 0xffff;
+         histogram[v > endOfRange ? overflowBin : (v >>> shift) + 1]++;
+         if (v < min) {
+            min = v;
+         }
+         if (v > max) {
+            max = v;
+         }
+         if (v != 0) {
+            countNonZero++;
+            if (v < minNonZero) {
+               minNonZero = v;
+            }
+         }
+         sum += v;
+         sumOfSquares += (long) v * v;
+      }
+      long count = start < end ? (end - start + stride - 1) / stride : 0;
+      record(c, count, countNonZero, min, minNonZero, max, sum, sumOfSquares);
+   }
+
+   private void record(int c, long count, long countNonZero, int min,
+                       int minNonZero, int max, long sum, long sumOfSquares) {
+      if (count == 0) {
+         return;
+      }
+      counts_[c] += count;
+      countsExcludingZeros_[c] += countNonZero;
+      minima_[c] = Math.min(minima_[c], min);
+      if (countNonZero > 0) {
+         minimaExcludingZeros_[c] = Math.min(minimaExcludingZeros_[c], minNonZero);
+      }
+      maxima_[c] = Math.max(maxima_[c], max);
+      sums_[c] += sum;
+      sumsOfSquares_[c] += sumOfSquares;
+   }
+
+   /**
+    * Add the statistics accumulated by another accumulator, which must have
+    * been reset with the same parameters.
+    */
+   void merge(StatsAccumulator other) {
+      for (int c = 0; c < nComponents_; ++c) {
+         long[] histogram = histograms_[c];
+         long[] otherHistogram = other.histograms_[c];
+         for (int bin = 0; bin < histogram.length; ++bin) {
+            histogram[bin] += otherHistogram[bin];
+         }
+         counts_[c] += other.counts_[c];
+         countsExcludingZeros_[c] += other.countsExcludingZeros_[c];
+         minima_[c] = Math.min(minima_[c], other.minima_[c]);
+         minimaExcludingZeros_[c] = Math.min(minimaExcludingZeros_[c],
+               other.minimaExcludingZeros_[c]);
+         maxima_[c] = Math.max(maxima_[c], other.maxima_[c]);
+         sums_[c] += other.sums_[c];
+         sumsOfSquares_[c] += other.sumsOfSquares_[c];
+      }
+   }
+
+   /**
+    * Whether any mask value within the rectangle is set.
+    */
+   static boolean isMaskSetWithin(byte[] mask, Rectangle maskBounds, Rectangle rect) {
+      for (int y = rect.y; y < rect.y + rect.height; ++y) {
+         int m = (y - maskBounds.y) * maskBounds.width + (rect.x - maskBounds.x);
+         for (int end = m + rect.width; m < end; ++m) {
+            if ((mask[m] & 0xff) >= MASK_THRESH) {
+               return true;
+            }
+         }
+      }
+      return false;
+   }
+
+   /**
+    * The statistics accumulated since the last reset. The histograms are
+    * copied, so this accumulator can be reused afterwards.
+    */
+   IntegerComponentStats[] toComponentStats(boolean usedROI) {
+      IntegerComponentStats[] stats = new IntegerComponentStats[nComponents_];
+      for (int c = 0; c < nComponents_; ++c) {
+         stats[c] = IntegerComponentStats.builder()
+               .histogram(histograms_[c], binWidthPowerOf2_)
+               .pixelCount(counts_[c])
+               .pixelCountExcludingZeros(countsExcludingZeros_[c])
+               .usedROI(usedROI)
+               .minimum(minima_[c])
+               .minimumExcludingZeros(minimaExcludingZeros_[c])
+               .maximum(maxima_[c])
+               .sum(sums_[c])
+               .sumOfSquares(sumsOfSquares_[c])
+               .build();
+      }
+      return stats;
+   }
+}
@@ -27,6 +27,7 @@ import mmcorej.CMMCore;
 import mmcorej.MMEventCallback;
 import org.micromanager.Studio;
 import org.micromanager.acquisition.AcquisitionManager;
+import org.micromanager.internal.DeviceStateCache;
 
 /**
  * Callback to update Java layer when a change happens in the MMCore. This
@@ -38,6 +39,7 @@ public final class CoreEventCallback extends MMEventCallback {
    private final CMMCore core_;
    private final Studio studio_;
    private final AcquisitionManager acquisitionManager_;
+   private final DeviceStateCache deviceState_;
    private volatile boolean ignoreCoreEvents_;
 
    /**
@@ -47,18 +49,23 @@ public final class CoreEventCallback extends MMEventCallback {
     *
     * @param studio Our main Studio object (usually a singleton)
     * @param acquisitionManager Acquisition manager abstracts access to engine object
+    * @param deviceState Cache kept current by the callbacks, even while event
+    *                    posting is interrupted
     */
    @SuppressWarnings("LeakingThisInConstructor")
-   public CoreEventCallback(Studio studio, AcquisitionManager acquisitionManager) {
+   public CoreEventCallback(Studio studio, AcquisitionManager acquisitionManager,
+                            DeviceStateCache deviceState) {
       super();
       studio_ = studio;
       core_ = studio.core();
       acquisitionManager_ = acquisitionManager;
+      deviceState_ = deviceState;
       core_.registerCallback(this);
    }
 
    @Override
    public void onPropertiesChanged() {
+      deviceState_.onPropertiesChanged();
       // TODO: remove test once acquisition engine is fully multithreaded
       if (acquisitionManager_ != null && acquisitionManager_.isAcquisitionRunning()) {
          core_.logMessage("Notification from MMCore ignored because acquisition is running!", true);
@@ -75,6 +82,7 @@ public final class CoreEventCallback extends MMEventCallback {
 
    @Override
    public void onPropertyChanged(String deviceName, String propName, String propValue) {
+      deviceState_.onPropertyChanged(deviceName);
       core_.logMessage("Notification for Device: " + deviceName + " Property: "
             + propName + " changed to value: " + propValue, true);
       // Not running this on the EDT causes rare deadlocks, for instance:
@@ -104,6 +112,7 @@ public final class CoreEventCallback extends MMEventCallback {
 
    @Override
    public void onConfigGroupChanged(String groupName, String newConfig) {
+      deviceState_.onConfigGroupChanged(groupName, newConfig);
       if (ignoreCoreEvents_) {
          core_.logMessage("Notification from MMCore ignored", true);
       } else {
@@ -115,6 +124,7 @@ public final class CoreEventCallback extends MMEventCallback {
 
    @Override
    public void onSystemConfigurationLoaded() {
+      deviceState_.onSystemConfigurationLoaded();
       if (ignoreCoreEvents_) {
          core_.logMessage("Notification from MMCore ignored", true);
       } else {
@@ -151,6 +161,7 @@ public final class CoreEventCallback extends MMEventCallback {
 
    @Override
    public void onStagePositionChanged(String deviceName, double pos) {
+      deviceState_.onStagePositionChanged(deviceName, pos);
       if (ignoreCoreEvents_) {
          core_.logMessage("Notification from MMCore ignored", true);
       } else {
@@ -162,6 +173,7 @@ public final class CoreEventCallback extends MMEventCallback {
 
    @Override
    public void onXYStagePositionChanged(String deviceName, double xPos, double yPos) {
+      deviceState_.onXYStagePositionChanged(deviceName, xPos, yPos);
       if (ignoreCoreEvents_) {
          core_.logMessage("Notification from MMCore ignored", true);
       } else {
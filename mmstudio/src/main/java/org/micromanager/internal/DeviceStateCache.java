@@ -0,0 +1,181 @@
+package org.micromanager.internal;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import mmcorej.CMMCore;
+
+/**
+ * Stage positions and configuration group states, as last reported by the
+ * core's callbacks, so that acquisition hooks and event modules do not need
+ * a (possibly slow, serial) round trip to the hardware for each of them.
+ *
+ * <p>The cache is fed by {@link org.micromanager.events.internal.CoreEventCallback}
+ * on the thread issuing the callback, whether or not the callback is passed
+ * on to the rest of the application. The rules are:
+ * <ul>
+ * <li>A stage position is only ever taken from the stage's own position
+ * callback. Stages that have not issued one since the last invalidation may
+ * not report their moves at all, so their positions are read from the core
+ * (and not stored).
+ * <li>A configuration group state is taken from the config group callback,
+ * or stored when read from the core.
+ * <li>A property change drops all configuration group states, since the
+ * property may belong to any group, and the position of the device whose
+ * property changed, since a stage property (origin, units, a position
+ * property) may change the position without a position callback.
+ * <li>"Properties changed" and "system configuration loaded" drop everything.
+ * <li>Code that changes the hardware in a way that may not cause a callback
+ * calls {@link #invalidate()}. Acquisitions do so when they start, so that
+ * e.g. a stage origin set since the last acquisition is never used stale.
+ * </ul>
+ *
+ * <p>Thread-safe.
+ */
+public class DeviceStateCache {
+   private final CMMCore core_;
+   private final Map<String, Double> positions_ = new ConcurrentHashMap<>();
+   private final Map<String, double[]> xyPositions_ = new ConcurrentHashMap<>();
+   private final Map<String, String> configs_ = new ConcurrentHashMap<>();
+   private final AtomicLong hits_ = new AtomicLong();
+   private final AtomicLong coreCalls_ = new AtomicLong();
+   // Incremented when group states are dropped, so that a state read from
+   // the core is not stored if it may have changed while it was being read
+   // Guarded by configs_
+   private long configGeneration_ = 0;
+
+   public DeviceStateCache(CMMCore core) {
+      core_ = core;
+   }
+
+   /**
+    * Returns the position of the current focus drive.
+    */
+   public double getPosition() throws Exception {
+      return getPosition(readFocusDevice());
+   }
+
+   public double getPosition(String stage) throws Exception {
+      Double position = positions_.get(stage);
+      if (position != null) {
+         hits_.incrementAndGet();
+         return position;
+      }
+      coreCalls_.incrementAndGet();
+      return readPosition(stage);
+   }
+
+   /**
+    * Returns the position of an XY stage.
+    *
+    * @return array holding x and y
+    */
+   public double[] getXYPosition(String xyStage) throws Exception {
+      double[] position = xyPositions_.get(xyStage);
+      if (position != null) {
+         hits_.incrementAndGet();
+         return position.clone();
+      }
+      coreCalls_.incrementAndGet();
+      return readXYPosition(xyStage);
+   }
+
+   public String getCurrentConfig(String group) throws Exception {
+      String config = configs_.get(group);
+      if (config != null) {
+         hits_.incrementAndGet();
+         return config;
+      }
+      coreCalls_.incrementAndGet();
+      long generation;
+      synchronized (configs_) {
+         generation = configGeneration_;
+      }
+      config = readCurrentConfig(group);
+      synchronized (configs_) {
+         if (generation == configGeneration_) {
+            configs_.putIfAbsent(group, config);
+         }
+      }
+      return config;
+   }
+
+   // The following are called by CoreEventCallback
+
+   public void onStagePositionChanged(String stage, double position) {
+      positions_.put(stage, position);
+   }
+
+   public void onXYStagePositionChanged(String xyStage, double x, double y) {
+      xyPositions_.put(xyStage, new double[] {x, y});
+   }
+
+   public void onConfigGroupChanged(String group, String config) {
+      configs_.put(group, config);
+   }
+
+   public void onPropertyChanged(String device) {
+      positions_.remove(device);
+      xyPositions_.remove(device);
+      dropConfigs();
+   }
+
+   public void onPropertiesChanged() {
+      invalidate();
+   }
+
+   public void onSystemConfigurationLoaded() {
+      invalidate();
+   }
+
+   /**
+    * Forgets everything, so that all values are read from the core again.
+    */
+   public void invalidate() {
+      positions_.clear();
+      xyPositions_.clear();
+      dropConfigs();
+   }
+
+   private void dropConfigs() {
+      synchronized (configs_) {
+         configGeneration_++;
+         configs_.clear();
+      }
+   }
+
+   public long getHitCount() {
+      return hits_.get();
+   }
+
+   public long getCoreCallCount() {
+      return coreCalls_.get();
+   }
+
+   @Override
+   public String toString() {
+      return String.format("Device state cache: %d hits, %d core calls",
+            getHitCount(), getCoreCallCount());
+   }
+
+   // Reads from the hardware; overridden by tests
+
+   String readFocusDevice() {
+      return core_.getFocusDevice();
+   }
+
+   double readPosition(String stage) throws Exception {
+      return core_.getPosition(stage);
+   }
+
+   double[] readXYPosition(String xyStage) throws Exception {
+      double[] x = new double[1];
+      double[] y = new double[1];
+      core_.getXYPosition(xyStage, x, y);
+      return new double[] {x[0], y[0]};
+   }
+
+   String readCurrentConfig(String group) throws Exception {
+      return core_.getCurrentConfig(group);
+   }
+}
@@ -0,0 +1,146 @@
+package org.micromanager.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import org.micromanager.internal.utils.performance.ExponentialSmoothing;
+
+/**
+ * Counts of frames acquired, displayed and dropped during a live mode run,
+ * and the camera-to-screen latency of the displayed frames.
+ *
+ * <p>Frames acquired are counted from the advance of the image numbers of
+ * each camera channel, so frames that were overwritten in the sequence buffer
+ * before being retrieved count as acquired (and dropped). Frames without an
+ * image number count once per retrieval. Frames displayed are the distinct
+ * frames that were actually shown. Thread-safe.
+ */
+final class LiveFrameStats {
+   private static final double TIME_CONSTANT_MS = 1000.0;
+   // Minimum period over which the display rate is measured
+   private static final long RATE_PERIOD_NS = 250_000_000L;
+
+   private final Map<Integer, Long> lastAcquired_ = new HashMap<>();
+   private final Map<Integer, Object> lastDisplayed_ = new HashMap<>();
+   private long acquired_;
+   private long displayed_;
+   private ExponentialSmoothing latencyMs_;
+   private long rateStartNs_;
+   private long rateStartDisplayed_;
+   private double rateHz_;
+
+   LiveFrameStats() {
+      reset();
+   }
+
+   synchronized void reset() {
+      lastAcquired_.clear();
+      lastDisplayed_.clear();
+      acquired_ = 0;
+      displayed_ = 0;
+      rateStartNs_ = System.nanoTime();
+      rateStartDisplayed_ = 0;
+      rateHz_ = 0.0;
+      latencyMs_ = ExponentialSmoothing.createWithTimeConstantMs(TIME_CONSTANT_MS);
+   }
+
+   /**
+    * Record a frame retrieved from the sequence buffer.
+    *
+    * @param channel     camera channel
+    * @param imageNumber image number assigned by the core, or null
+    */
+   synchronized void frameAcquired(int channel, Long imageNumber) {
+      if (imageNumber == null) {
+         acquired_++;
+         return;
+      }
+      Long previous = lastAcquired_.put(channel, imageNumber);
+      if (previous == null || imageNumber < previous) {
+         // First frame, or the sequence buffer was reset
+         acquired_++;
+      } else {
+         acquired_ += imageNumber - previous;
+      }
+   }
+
+   /**
+    * Record a frame shown by the display. Frames shown again (e.g. on
+    * repaint) are only counted once.
+    *
+    * @param channel   camera channel
+    * @param frameKey  identifies the frame (e.g. its UUID)
+    * @param latencyMs time from acquisition to display, or a negative value
+    *                  if unknown
+    * @return true if the frame was newly displayed
+    */
+   synchronized boolean frameDisplayed(int channel, Object frameKey,
+                                       double latencyMs) {
+      if (frameKey != null
+            && Objects.equals(lastDisplayed_.put(channel, frameKey), frameKey)) {
+         return false;
+      }
+      displayed_++;
+      if (latencyMs >= 0.0) {
+         latencyMs_.sample(latencyMs);
+      }
+      return true;
+   }
+
+   synchronized long getFramesAcquired() {
+      return acquired_;
+   }
+
+   synchronized long getFramesDisplayed() {
+      return displayed_;
+   }
+
+   /**
+    * Frames acquired but never displayed. Frames retrieved but still
+    * waiting to be displayed are included.
+    */
+   synchronized long getFramesDropped() {
+      return Math.max(0, acquired_ - displayed_);
+   }
+
+   /**
+    * Rate at which frames were displayed (all channels together) since the
+    * previous call, measured over at least a quarter second.
+    */
+   synchronized double getDisplayRateHz() {
+      long now = System.nanoTime();
+      if (now - rateStartNs_ >= RATE_PERIOD_NS) {
+         rateHz_ = (displayed_ - rateStartDisplayed_) * 1e9 / (now - rateStartNs_);
+         rateStartNs_ = now;
+         rateStartDisplayed_ = displayed_;
+      }
+      return rateHz_;
+   }
+
+   /**
+    * Average camera-to-screen latency, or a negative value if unknown.
+    */
+   synchronized double getLatencyMs() {
+      if (latencyMs_.getCount() == 0) {
+         return -1.0;
+      }
+      return latencyMs_.getAverage();
+   }
+
+   /**
+    * One-line summary for display in the UI.
+    */
+   synchronized String getSummary() {
+      if (acquired_ == 0) {
+         return "";
+      }
+      StringBuilder sb = new StringBuilder();
+      sb.append(String.format("%.1f fps, %.0f%% dropped", getDisplayRateHz(),
+            100.0 * getFramesDropped() / acquired_));
+      double latency = getLatencyMs();
+      if (latency >= 0.0) {
+         sb.append(String.format(", %.0f ms latency", latency));
+      }
+      return sb.toString();
+   }
+}
@@ -143,6 +143,7 @@ public final class MMStudio implements Studio {
    // Local Classes
    private final MMSettings settings_ = new MMSettings();
    private MMCache cache_;
+   private DeviceStateCache deviceState_;
    private final MMUIManager ui_;
    private final MMROIManager roi_;
 
@@ -396,7 +397,8 @@ public final class MMStudio implements Studio {
               this, ui_.getAcquisitionWindow());
 
       // This entity is a class property to avoid garbage collection.
-      coreCallback_ = new CoreEventCallback(studio_, acquisitionManager_);
+      deviceState_ = new DeviceStateCache(core_);
+      coreCallback_ = new CoreEventCallback(studio_, acquisitionManager_, deviceState_);
 
       // Load hardware configuration
       // Note that this also initializes Autofocus plugins, and updates the system cache.
@@ -1223,6 +1225,14 @@ public final class MMStudio implements Studio {
       return cache_;
    }
 
+   /**
+    * Stage positions and config group states kept current by core
+    * callbacks, for code that would otherwise query the hardware often.
+    */
+   public DeviceStateCache deviceState() {
+      return deviceState_;
+   }
+
    public MMSettings settings() {
       return settings_;
    }
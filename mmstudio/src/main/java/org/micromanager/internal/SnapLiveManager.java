@@ -15,6 +15,7 @@
 package org.micromanager.internal;
 
 import com.bulenkov.iconloader.IconLoader;
+import com.google.common.base.Preconditions;
 import com.google.common.eventbus.Subscribe;
 import java.awt.Color;
 import java.awt.Component;
@@ -35,8 +36,14 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import javax.swing.JButton;
+import javax.swing.JComboBox;
 import javax.swing.JComponent;
+import javax.swing.JLabel;
+import javax.swing.JSpinner;
+import javax.swing.SpinnerNumberModel;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.event.ChangeEvent;
 import mmcorej.CMMCore;
 import mmcorej.TaggedImage;
 import mmcorej.org.json.JSONException;
@@ -57,6 +64,7 @@ import org.micromanager.data.internal.StorageRAM;
 import org.micromanager.display.ChannelDisplaySettings;
 import org.micromanager.display.DataViewer;
 import org.micromanager.display.DataViewerListener;
+import org.micromanager.display.DisplayDidShowImageEvent;
 import org.micromanager.display.DisplaySettings;
 import org.micromanager.display.DisplayWindow;
 import org.micromanager.display.DisplayWindowControlsFactory;
@@ -93,6 +101,48 @@ public final class SnapLiveManager extends DataViewerListener
    // skipped.
    private static final double DISPLAY_INTERVAL_ESTIMATE_Q = 0.25;
 
+   // Most frames taken from the sequence buffer per grab with
+   // FramePolicy.EVERY_FRAME, so that stopping live mode stays responsive
+   private static final int MAX_FRAMES_PER_GRAB = 64;
+
+   private static final String FRAME_POLICY_KEY = "live mode frame policy";
+   private static final String DECIMATED_RATE_KEY = "live mode limited display rate (Hz)";
+   public static final double DEFAULT_DECIMATED_RATE_HZ = 10.0;
+   private static final double MIN_DECIMATED_RATE_HZ = 1.0;
+   private static final double MAX_DECIMATED_RATE_HZ = 100.0;
+
+   private static final int FRAME_STATS_UPDATE_MS = 500;
+
+   /**
+    * Which of the frames acquired in live mode are displayed.
+    */
+   public enum FramePolicy {
+      /**
+       * Display every frame, in order. If the display cannot keep up, frames
+       * are lost in the sequence buffer once it overflows.
+       */
+      EVERY_FRAME("Display Every Frame"),
+      /**
+       * Display the newest frame, as often as the display keeps up.
+       */
+      NEWEST_ONLY("Display Newest Frame"),
+      /**
+       * Display the newest frame, at most at the limited display rate.
+       */
+      DECIMATE("Limit Display Rate");
+
+      private final String displayName_;
+
+      FramePolicy(String displayName) {
+         displayName_ = displayName;
+      }
+
+      @Override
+      public String toString() {
+         return displayName_;
+      }
+   }
+
    private final MMStudio mmStudio_;
    private final CMMCore core_;
    private final UiMovesStageManager uiMovesStageManager_;
@@ -128,6 +178,18 @@ public final class SnapLiveManager extends DataViewerListener
 
    private final PerformanceMonitor perfMon_ =
          PerformanceMonitor.createWithTimeConstantMs(1000.0);
+
+   private final LiveFrameStats frameStats_ = new LiveFrameStats();
+   // System.nanoTime() when the sequence buffer was (re)started; the core
+   // stamps frames with their elapsed time since then
+   private volatile long sequenceStartNs_;
+   private final Timer frameStatsTimer_;
+   private JLabel frameStatsLabel_; // Accessed on EDT
+
+   // Latest-frame-wins hand-off of images from the grabber to the EDT: the
+   // newest image of each channel waiting to be displayed
+   private final Map<Integer, Image> pendingImages_ = new HashMap<>();
+   private boolean displayOfPendingImagesScheduled_ = false; // Guarded by pendingImages_
    private DisplayInfo displayInfo_;
    private final Object displayInfoLock_;
 
@@ -183,6 +245,70 @@ public final class SnapLiveManager extends DataViewerListener
       includeSystemStateCache_ = core_.getIncludeSystemStateCache();
       uiMovesStageManager_ = mmStudio_.getUiMovesStageManager();
       displayInfoLock_ = new Object();
+      frameStatsTimer_ = new Timer(FRAME_STATS_UPDATE_MS, e -> updateFrameStatsLabel());
+   }
+
+   /**
+    * Which frames are displayed in live mode. Stored in the user profile.
+    */
+   public FramePolicy getFramePolicy() {
+      return mmStudio_.profile().getSettings(SnapLiveManager.class)
+            .getStringAsEnum(FRAME_POLICY_KEY, FramePolicy.class,
+                  FramePolicy.NEWEST_ONLY);
+   }
+
+   /**
+    * Set which frames are displayed in live mode. Takes effect immediately
+    * if live mode is running.
+    */
+   public void setFramePolicy(FramePolicy policy) {
+      mmStudio_.profile().getSettings(SnapLiveManager.class)
+            .putEnumAsString(FRAME_POLICY_KEY, policy);
+      restartIfLive();
+   }
+
+   /**
+    * Maximum display rate with {@link FramePolicy#DECIMATE}.
+    */
+   public double getDecimatedRateHz() {
+      return mmStudio_.profile().getSettings(SnapLiveManager.class)
+            .getDouble(DECIMATED_RATE_KEY, DEFAULT_DECIMATED_RATE_HZ);
+   }
+
+   public void setDecimatedRateHz(double rateHz) {
+      Preconditions.checkArgument(rateHz > 0.0);
+      mmStudio_.profile().getSettings(SnapLiveManager.class)
+            .putDouble(DECIMATED_RATE_KEY, rateHz);
+      restartIfLive();
+   }
+
+   private void restartIfLive() {
+      synchronized (liveModeLock_) {
+         if (isLiveOn_) {
+            setSuspended(true);
+            setSuspended(false);
+         }
+      }
+   }
+
+   public long getFramesAcquired() {
+      return frameStats_.getFramesAcquired();
+   }
+
+   public long getFramesDisplayed() {
+      return frameStats_.getFramesDisplayed();
+   }
+
+   public long getFramesDropped() {
+      return frameStats_.getFramesDropped();
+   }
+
+   /**
+    * Average time from the core receiving a frame to its display, in
+    * milliseconds, or a negative value if unknown.
+    */
+   public double getDisplayLatencyMs() {
+      return frameStats_.getLatencyMs();
    }
 
    @Override
@@ -258,8 +384,14 @@ public final class SnapLiveManager extends DataViewerListener
 
       stopLiveMode(); // Make sure
 
+      synchronized (pendingImages_) {
+         pendingImages_.clear();
+      }
+      frameStats_.reset();
+
       try {
          amStartingSequenceAcquisition_ = true;
+         sequenceStartNs_ = System.nanoTime();
          core_.startContinuousSequenceAcquisition(0);
          amStartingSequenceAcquisition_ = false;
          if (core_.getAutoShutter()) {
@@ -287,6 +419,9 @@ public final class SnapLiveManager extends DataViewerListener
          return;
       }
       final String camName = core_.getCameraDevice();
+      final FramePolicy policy = getFramePolicy();
+      final double decimatedIntervalMs = policy == FramePolicy.DECIMATE
+            ? 1000.0 / getDecimatedRateHz() : 0.0;
 
       synchronized (displayInfoLock_) {
          if (displayInfo_ != null) {
@@ -316,20 +451,30 @@ public final class SnapLiveManager extends DataViewerListener
                      return;
                   }
                }
-               grabAndAddImages(camName, liveModeCount);
+               if (policy == FramePolicy.EVERY_FRAME) {
+                  popAndAddImages(camName, liveModeCount);
+               } else {
+                  grabAndAddImages(camName, liveModeCount);
+               }
 
                // Choose an interval within the absolute bounds, and at least as
                // long as the exposure. Within that range, try to match the
                // actual frequency at which the images are getting displayed.
+               // When displaying every frame, poll the sequence buffer as
+               // often as allowed instead.
 
                double displayIntervalLowQuantileMs;
-               if (display_ != null) {
+               if (policy == FramePolicy.EVERY_FRAME) {
+                  displayIntervalLowQuantileMs = 0.0;
+               } else if (display_ != null) {
                   displayIntervalLowQuantileMs =
                         display_.getDisplayIntervalQuantile(
                               DISPLAY_INTERVAL_ESTIMATE_Q);
                } else {
                   displayIntervalLowQuantileMs = 0.0;
                }
+               displayIntervalLowQuantileMs = Math.max(
+                     displayIntervalLowQuantileMs, decimatedIntervalMs);
 
                long delayMs;
                synchronized (SnapLiveManager.this) {
@@ -337,7 +482,8 @@ public final class SnapLiveManager extends DataViewerListener
                         || liveModeStartCount_ != liveModeCount) {
                      return;
                   }
-                  delayMs = computeGrabDelayMs(exposureMs,
+                  delayMs = computeGrabDelayMs(
+                        policy == FramePolicy.EVERY_FRAME ? 0.0 : exposureMs,
                         displayIntervalLowQuantileMs,
                         -scheduledGrab_.getDelay(TimeUnit.MILLISECONDS));
                   scheduledGrab_ = scheduler_.schedule(this,
@@ -352,6 +498,7 @@ public final class SnapLiveManager extends DataViewerListener
       if (display_ != null) {
          display_.toFront();
       }
+      SwingUtilities.invokeLater(frameStatsTimer_::start);
    }
 
    private static long computeGrabDelayMs(double exposureMs,
@@ -387,6 +534,13 @@ public final class SnapLiveManager extends DataViewerListener
             scheduledGrab_ = null;
          }
       }
+      synchronized (pendingImages_) {
+         pendingImages_.clear();
+      }
+      SwingUtilities.invokeLater(() -> {
+         frameStatsTimer_.stop();
+         updateFrameStatsLabel();
+      });
 
       try {
          if (core_.isSequenceRunning()) {
@@ -436,42 +590,41 @@ public final class SnapLiveManager extends DataViewerListener
                // Already provided a more recent version of this channel.
                continue;
             }
-            DefaultImage image = new DefaultImage(tagged);
-            final Long seqNr = image.getMetadata().getImageNumber();
-            perfMon_.sample("Image missing ImageNumber (%)",
-                  seqNr == null ? 100.0 : 0.0);
-            Coords newCoords = image.getCoords().copyBuilder()
-                  .t(0)
-                  .c(imageChannel).build();
-            // Generate a new UUID for the image, so that our histogram
-            // update code realizes this is a new image.
-            Metadata newMetadata = image.getMetadata().copyBuilderWithNewUUID()
-                  .build();
-            final Image newImage = image.copyWith(newCoords, newMetadata);
+            handOffForDisplay(makeLiveImage(tagged, imageChannel), liveModeCount);
+            channelsSet.add(imageChannel);
+            if (channelsSet.size() == numCameraChannels_) {
+               // Got every channel.
+               break;
+            }
+         }
+      } catch (JSONException e) {
+         ReportingUtils.logError(e, "Exception in image grabber thread.");
+      }
+   }
 
+   /**
+    * Take all images, in order, out of the Core and insert them into our
+    * pipeline, waiting for each to be displayed.
+    */
+   private void popAndAddImages(String camName, final long liveModeCount) {
+      try {
+         for (int i = 0; i < MAX_FRAMES_PER_GRAB; ++i) {
+            TaggedImage tagged;
             try {
-               SwingUtilities.invokeAndWait(() -> {
-                  synchronized (SnapLiveManager.this) {
-                     if (scheduledGrab_ == null
-                           || liveModeStartCount_ != liveModeCount) {
-                        throw new CancellationException();
-                     }
-                  }
-                  displayImage(newImage);
-               });
-
-            } catch (InterruptedException unexpected) {
-               Thread.currentThread().interrupt();
-            } catch (InvocationTargetException e) {
-               if (e.getCause() instanceof CancellationException) {
+               if (core_.getRemainingImageCount() == 0) {
                   return;
                }
-               throw new RuntimeException(e.getCause());
+               tagged = core_.popNextTaggedImage();
+               perfMon_.sampleTimeInterval("popNextTaggedImage");
+            } catch (Exception e) {
+               return;
             }
-            channelsSet.add(imageChannel);
-            if (channelsSet.size() == numCameraChannels_) {
-               // Got every channel.
-               break;
+            int imageChannel = 0;
+            if (numCameraChannels_ > 1 && tagged.tags.has(camName + "-CameraChannelIndex")) {
+               imageChannel = tagged.tags.getInt(camName + "-CameraChannelIndex");
+            }
+            if (!displayAndWait(makeLiveImage(tagged, imageChannel), liveModeCount)) {
+               return;
             }
          }
       } catch (JSONException e) {
@@ -479,6 +632,118 @@ public final class SnapLiveManager extends DataViewerListener
       }
    }
 
+   private Image makeLiveImage(TaggedImage tagged, int imageChannel)
+         throws JSONException {
+      DefaultImage image = new DefaultImage(tagged);
+      final Long seqNr = image.getMetadata().getImageNumber();
+      perfMon_.sample("Image missing ImageNumber (%)",
+            seqNr == null ? 100.0 : 0.0);
+      frameStats_.frameAcquired(imageChannel, seqNr);
+      Coords newCoords = image.getCoords().copyBuilder()
+            .t(0)
+            .c(imageChannel).build();
+      // Generate a new UUID for the image, so that our histogram
+      // update code realizes this is a new image.
+      Metadata newMetadata = image.getMetadata().copyBuilderWithNewUUID()
+            .build();
+      return image.copyWith(newCoords, newMetadata);
+   }
+
+   /**
+    * Display an image on the EDT and wait until it has been inserted.
+    *
+    * @return false if live mode was stopped
+    */
+   private boolean displayAndWait(final Image image, final long liveModeCount) {
+      try {
+         SwingUtilities.invokeAndWait(() -> {
+            synchronized (SnapLiveManager.this) {
+               if (scheduledGrab_ == null
+                     || liveModeStartCount_ != liveModeCount) {
+                  throw new CancellationException();
+               }
+            }
+            displayImage(image);
+         });
+      } catch (InterruptedException unexpected) {
+         Thread.currentThread().interrupt();
+      } catch (InvocationTargetException e) {
+         if (e.getCause() instanceof CancellationException) {
+            return false;
+         }
+         throw new RuntimeException(e.getCause());
+      }
+      return true;
+   }
+
+   /**
+    * Queue an image for display without waiting. If an earlier image of the
+    * same channel has not been displayed yet, it is replaced (dropped), so
+    * that the grabber never waits for a slow display.
+    */
+   private void handOffForDisplay(Image image, final long liveModeCount) {
+      synchronized (pendingImages_) {
+         pendingImages_.put(image.getCoords().getChannel(), image);
+         if (displayOfPendingImagesScheduled_) {
+            return;
+         }
+         displayOfPendingImagesScheduled_ = true;
+      }
+      SwingUtilities.invokeLater(() -> {
+         List<Image> images;
+         synchronized (pendingImages_) {
+            images = new ArrayList<>(pendingImages_.values());
+            pendingImages_.clear();
+            displayOfPendingImagesScheduled_ = false;
+         }
+         synchronized (SnapLiveManager.this) {
+            if (scheduledGrab_ == null
+                  || liveModeStartCount_ != liveModeCount) {
+               return;
+            }
+         }
+         for (Image pending : images) {
+            displayImage(pending);
+         }
+      });
+   }
+
+   /**
+    * Count the live mode frames shown by our display, and measure their
+    * latency from their elapsed time stamp.
+    *
+    * @param event Contains the images that were shown
+    */
+   @Subscribe
+   public void onDisplayDidShowImage(DisplayDidShowImageEvent event) {
+      synchronized (this) {
+         if (scheduledGrab_ == null) {
+            return; // Not live
+         }
+      }
+      double nowMs = (System.nanoTime() - sequenceStartNs_) / 1e6;
+      for (Image image : event.getImages()) {
+         Metadata metadata = image.getMetadata();
+         double latencyMs = metadata.hasElapsedTimeMs()
+               ? nowMs - metadata.getElapsedTimeMs(0.0) : -1.0;
+         Object key = metadata.getUUID() != null
+               ? metadata.getUUID() : metadata.getImageNumber();
+         frameStats_.frameDisplayed(image.getCoords().getChannel(), key, latencyMs);
+      }
+   }
+
+   @MustCallOnEDT
+   private void updateFrameStatsLabel() {
+      if (frameStatsLabel_ == null) {
+         return;
+      }
+      frameStatsLabel_.setText(frameStats_.getSummary());
+      frameStatsLabel_.setToolTipText(String.format(
+            "<html>Live mode frames acquired: %d<br>Displayed: %d<br>Dropped: %d</html>",
+            frameStats_.getFramesAcquired(), frameStats_.getFramesDisplayed(),
+            frameStats_.getFramesDropped()));
+   }
+
    @Override
    public boolean isLiveModeOn() {
       return isLiveOn_;
@@ -629,6 +894,42 @@ public final class SnapLiveManager extends DataViewerListener
          }
       });
       controls.add(toAlbumButton);
+
+      JComboBox<FramePolicy> framePolicyComboBox =
+            new JComboBox<>(FramePolicy.values());
+      framePolicyComboBox.setSelectedItem(getFramePolicy());
+      framePolicyComboBox.setToolTipText("Frames to display in live mode");
+      framePolicyComboBox.setFont(GUIUtils.buttonFont);
+      controls.add(framePolicyComboBox);
+
+      double rate = Math.max(MIN_DECIMATED_RATE_HZ,
+            Math.min(MAX_DECIMATED_RATE_HZ, getDecimatedRateHz()));
+      JSpinner decimatedRateSpinner = new JSpinner(new SpinnerNumberModel(
+            rate, MIN_DECIMATED_RATE_HZ, MAX_DECIMATED_RATE_HZ, 1.0));
+      decimatedRateSpinner.setToolTipText(
+            "Maximum display rate (Hz) when the displayed frames are limited");
+      decimatedRateSpinner.setFont(GUIUtils.buttonFont);
+      decimatedRateSpinner.setEnabled(getFramePolicy() == FramePolicy.DECIMATE);
+      decimatedRateSpinner.addChangeListener((ChangeEvent event) -> {
+         double newRate = ((Number) decimatedRateSpinner.getValue()).doubleValue();
+         if (newRate != getDecimatedRateHz()) {
+            setDecimatedRateHz(newRate);
+         }
+      });
+      controls.add(decimatedRateSpinner);
+
+      framePolicyComboBox.addActionListener((ActionEvent event) -> {
+         FramePolicy policy = (FramePolicy) framePolicyComboBox.getSelectedItem();
+         if (policy != null && policy != getFramePolicy()) {
+            setFramePolicy(policy);
+         }
+         decimatedRateSpinner.setEnabled(policy == FramePolicy.DECIMATE);
+      });
+
+      frameStatsLabel_ = new JLabel();
+      frameStatsLabel_.setFont(GUIUtils.buttonFont);
+      updateFrameStatsLabel();
+      controls.add(frameStatsLabel_);
       return controls;
    }
 
@@ -39,7 +39,10 @@ import mmcorej.CMMCore;
 import org.micromanager.ApplicationSkin.SkinMode;
 import org.micromanager.Studio;
 import org.micromanager.UserProfile;
+import org.micromanager.data.internal.DefaultDatastore;
+import org.micromanager.data.internal.StorageOffHeap;
 import org.micromanager.data.internal.multipagetiff.StorageMultipageTiff;
+import org.micromanager.display.internal.displaywindow.imagej.CompositeRenderer;
 import org.micromanager.internal.MMStudio;
 import org.micromanager.internal.MainFrame;
 import org.micromanager.internal.StartupSettings;
@@ -62,6 +65,7 @@ public final class OptionsDlg extends JDialog {
 
    private final JTextField startupScriptFile_;
    private final JTextField bufSizeField_;
+   private final JTextField ramStorageBudgetField_;
    private final JTextField logDeleteDaysField_;
    private final JComboBox<String> comboDisplayBackground_;
 
@@ -206,6 +210,13 @@ public final class OptionsDlg extends JDialog {
       bufSizeField_ = new JTextField(
             Integer.toString(mmStudio_.settings().getCircularBufferSize()), 5);
 
+      ramStorageBudgetField_ = new JTextField(
+            Long.toString(StorageOffHeap.getBudgetMB()), 5);
+      ramStorageBudgetField_.setToolTipText("<html>Images of acquisitions that are not "
+            + "saved to disk are kept outside of the Java heap, within this budget.<br>"
+            + "Older images are moved to a scratch file when the budget is exceeded.<br>"
+            + "Use 0 to keep all images on the Java heap.</html>");
+
       String[] options = new String[SkinMode.values().length];
       for (int i = 0; i < SkinMode.values().length; ++i) {
          options[i] = SkinMode.values()[i].getDesc();
@@ -247,6 +258,64 @@ public final class OptionsDlg extends JDialog {
             StorageMultipageTiff.setShouldSplitPositions(
                   separateFilesForPositionsMPTiffCheckBox.isSelected()));
 
+      final JCheckBox parallelWritingMPTiffCheckBox = new JCheckBox();
+      parallelWritingMPTiffCheckBox.setText(
+            "Write separate XY position files in parallel");
+      parallelWritingMPTiffCheckBox.setToolTipText(
+            "Uses one writing thread per XY position. Can be faster on fast disks or RAID arrays.");
+      parallelWritingMPTiffCheckBox.setSelected(
+            StorageMultipageTiff.getShouldWriteInParallel());
+      parallelWritingMPTiffCheckBox.addActionListener((ActionEvent arg0) ->
+            StorageMultipageTiff.setShouldWriteInParallel(
+                  parallelWritingMPTiffCheckBox.isSelected()));
+
+      final JCheckBox compressMPTiffCheckBox = new JCheckBox();
+      compressMPTiffCheckBox.setText(
+            "Compress Image Stack Files (lossless)");
+      compressMPTiffCheckBox.setToolTipText(
+            "Deflate compression; saves disk space and bandwidth at the cost of CPU time. "
+                  + "Not all TIFF readers can open compressed files.");
+      compressMPTiffCheckBox.setSelected(
+            StorageMultipageTiff.getShouldCompress());
+      compressMPTiffCheckBox.addActionListener((ActionEvent arg0) ->
+            StorageMultipageTiff.setShouldCompress(
+                  compressMPTiffCheckBox.isSelected()));
+
+      final JCheckBox deltaScopeDataMPTiffCheckBox = new JCheckBox();
+      deltaScopeDataMPTiffCheckBox.setText(
+            "Store only changed device properties with each image");
+      deltaScopeDataMPTiffCheckBox.setToolTipText(
+            "Reduces the size of the image metadata in Image Stack Files, and of "
+                  + "metadata.txt in Separate Image Files. Other programs only see "
+                  + "all device properties for some images.");
+      deltaScopeDataMPTiffCheckBox.setSelected(
+            StorageMultipageTiff.getShouldDeltaEncodeScopeData());
+      deltaScopeDataMPTiffCheckBox.addActionListener((ActionEvent arg0) ->
+            StorageMultipageTiff.setShouldDeltaEncodeScopeData(
+                  deltaScopeDataMPTiffCheckBox.isSelected()));
+
+      final JCheckBox memoryMapMPTiffCheckBox = new JCheckBox();
+      memoryMapMPTiffCheckBox.setText(
+            "Use memory mapping when opening Image Stack Files");
+      memoryMapMPTiffCheckBox.setSelected(
+            StorageMultipageTiff.getShouldMemoryMapFiles());
+      memoryMapMPTiffCheckBox.addActionListener((ActionEvent arg0) ->
+            StorageMultipageTiff.setShouldMemoryMapFiles(
+                  memoryMapMPTiffCheckBox.isSelected()));
+
+      final JCheckBox intensitySummaryCheckBox = new JCheckBox();
+      intensitySummaryCheckBox.setText(
+            "Keep intensity range of new datasets while acquiring");
+      intensitySummaryCheckBox.setToolTipText(
+            "Allows scaling the display to the range of the whole dataset "
+                  + "without reading all images again. Uses some processor time "
+                  + "while acquiring.");
+      intensitySummaryCheckBox.setSelected(
+            DefaultDatastore.getShouldKeepIntensitySummary(mmStudio_));
+      intensitySummaryCheckBox.addActionListener((ActionEvent arg0) ->
+            DefaultDatastore.setShouldKeepIntensitySummary(mmStudio_,
+                  intensitySummaryCheckBox.isSelected()));
+
       final JCheckBox includeVerboseMetadataCheckBox = new JCheckBox();
       includeVerboseMetadataCheckBox.setText(
             "Include verbose metadata with MDA images");
@@ -296,6 +365,15 @@ public final class OptionsDlg extends JDialog {
          mmStudio_.settings().setShouldUseAcqEngJ(acqEngJ.isSelected());
       });
 
+      final JCheckBox fastCompositeCheckBox = new JCheckBox();
+      fastCompositeCheckBox.setText("Fast rendering of multi-channel composites");
+      fastCompositeCheckBox.setToolTipText(
+            "Renders composite images in a single pass instead of through "
+                  + "ImageJ. Turn off if composites look different than in ImageJ.");
+      fastCompositeCheckBox.setSelected(CompositeRenderer.isEnabled());
+      fastCompositeCheckBox.addActionListener((ActionEvent arg0) ->
+            CompositeRenderer.setEnabled(fastCompositeCheckBox.isSelected()));
+
       final JCheckBox showBackgroundWindow = new JCheckBox();
       showBackgroundWindow.setText("Show background window");
       showBackgroundWindow.setSelected(mmStudio.settings().getShowBackgroundWindow());
@@ -316,6 +394,7 @@ public final class OptionsDlg extends JDialog {
       super.add(new JLabel("Display Background:"), "split 2, gapright push");
       super.add(comboDisplayBackground_, "wrap");
       super.add(showBackgroundWindow, "wrap");
+      super.add(fastCompositeCheckBox, "wrap");
 
       super.add(new JSeparator(), "wrap");
 
@@ -323,10 +402,20 @@ public final class OptionsDlg extends JDialog {
       super.add(bufSizeField_, "gapright related");
       super.add(new JLabel("MB"), "wrap");
 
+      super.add(new JLabel("RAM Storage Budget (0 = Java heap):"),
+            "split 3, gapright push");
+      super.add(ramStorageBudgetField_, "gapright related");
+      super.add(new JLabel("MB"), "wrap");
+
       super.add(new JSeparator(), "wrap");
 
       super.add(metadataFileWithMultipageTiffCheckBox, "wrap");
       super.add(separateFilesForPositionsMPTiffCheckBox, "wrap");
+      super.add(parallelWritingMPTiffCheckBox, "wrap");
+      super.add(compressMPTiffCheckBox, "wrap");
+      super.add(deltaScopeDataMPTiffCheckBox, "wrap");
+      super.add(memoryMapMPTiffCheckBox, "wrap");
+      super.add(intensitySummaryCheckBox, "wrap");
       super.add(includeVerboseMetadataCheckBox, "wrap");
 
       super.add(new JSeparator(), "wrap");
@@ -374,10 +463,13 @@ public final class OptionsDlg extends JDialog {
 
    private void closeRequested() {
       int seqBufSize;
+      int ramStorageBudget;
       int deleteLogDays;
       try {
          seqBufSize =
                NumberUtils.displayStringToInt(bufSizeField_.getText());
+         ramStorageBudget =
+               NumberUtils.displayStringToInt(ramStorageBudgetField_.getText());
          deleteLogDays =
                NumberUtils.displayStringToInt(logDeleteDaysField_.getText());
       } catch (ParseException ex) {
@@ -386,6 +478,7 @@ public final class OptionsDlg extends JDialog {
       }
 
       mmStudio_.settings().setCircularBufferSize(seqBufSize);
+      StorageOffHeap.setBudgetMB(ramStorageBudget);
       mmStudio_.settings().setCoreLogLifetimeDays(deleteLogDays);
 
       ScriptPanel.setStartupScript(mmStudio_, startupScriptFile_.getText());
@@ -180,6 +180,11 @@ public final class DefaultPropertyMap implements PropertyMap {
       }
    }
 
+   // The value as stored (see Builder), for PropertyMapBinarySerializer
+   Object getStoredValue(String key) {
+      return map_.get(key);
+   }
+
    @Override
    public PropertyMap.OpaqueValue getAsOpaqueValue(String key) {
       Preconditions.checkArgument(map_.containsKey(key));
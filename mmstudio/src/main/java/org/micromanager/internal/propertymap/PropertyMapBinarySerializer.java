@@ -0,0 +1,589 @@
+package org.micromanager.internal.propertymap;
+
+import com.google.common.base.Preconditions;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import org.micromanager.PropertyMap;
+
+/**
+ * Compact binary serialization of property maps.
+ *
+ * <p>Much cheaper to produce and parse than the JSON formats, at the cost of
+ * not being human readable. Intended for transporting and holding per-image
+ * metadata in memory, and as a per-plane metadata block where readability is
+ * not needed; the JSON formats remain the formats for files meant to be read
+ * by other programs.
+ *
+ * <p>Every distinct string (key or string value) is written once per encoded
+ * map; later occurrences refer to the first one by index. Keys known in
+ * advance can be supplied as a {@link KeyDictionary}, in which case they are
+ * never written at all. The same dictionary must be used for decoding.
+ *
+ * <p>Layout: a magic byte, the format version, the fingerprint of the
+ * dictionary (4 bytes), then the map. A map is the number of entries
+ * followed by key, value type and value of each entry. Integers (including
+ * counts and string references) are written as zigzag variable-length
+ * integers; floating point values in big-endian IEEE format.
+ */
+public final class PropertyMapBinarySerializer {
+   private static final byte MAGIC = (byte) 0xB5;
+   private static final byte VERSION = 1;
+
+   // Value types. Arrays have ARRAY added to the element type.
+   private static final int BOOLEAN = 1;
+   private static final int BYTE = 2;
+   private static final int SHORT = 3;
+   private static final int INT = 4;
+   private static final int LONG = 5;
+   private static final int FLOAT = 6;
+   private static final int DOUBLE = 7;
+   private static final int STRING = 8;
+   private static final int UUID_TYPE = 9;
+   private static final int COLOR = 10;
+   private static final int AFFINE_TRANSFORM = 11;
+   private static final int PROPERTY_MAP = 12;
+   private static final int RECTANGLE = 13;
+   private static final int DIMENSION = 14;
+   private static final int POINT = 15;
+   private static final int ARRAY = 0x40;
+
+   private static final Map<Class<?>, Integer> TYPES = new HashMap<>();
+
+   static {
+      TYPES.put(Boolean.class, BOOLEAN);
+      TYPES.put(Byte.class, BYTE);
+      TYPES.put(Short.class, SHORT);
+      TYPES.put(Integer.class, INT);
+      TYPES.put(Long.class, LONG);
+      TYPES.put(Float.class, FLOAT);
+      TYPES.put(Double.class, DOUBLE);
+      TYPES.put(String.class, STRING);
+      TYPES.put(UUID.class, UUID_TYPE);
+      TYPES.put(Color.class, COLOR);
+      TYPES.put(AffineTransform.class, AFFINE_TRANSFORM);
+      TYPES.put(DefaultPropertyMap.class, PROPERTY_MAP);
+      TYPES.put(Rectangle.class, RECTANGLE);
+      TYPES.put(Dimension.class, DIMENSION);
+      TYPES.put(Point.class, POINT);
+      TYPES.put(boolean[].class, ARRAY + BOOLEAN);
+      TYPES.put(byte[].class, ARRAY + BYTE);
+      TYPES.put(short[].class, ARRAY + SHORT);
+      TYPES.put(int[].class, ARRAY + INT);
+      TYPES.put(long[].class, ARRAY + LONG);
+      TYPES.put(float[].class, ARRAY + FLOAT);
+      TYPES.put(double[].class, ARRAY + DOUBLE);
+      TYPES.put(String[].class, ARRAY + STRING);
+      TYPES.put(UUID[].class, ARRAY + UUID_TYPE);
+      TYPES.put(Color[].class, ARRAY + COLOR);
+      TYPES.put(AffineTransform[].class, ARRAY + AFFINE_TRANSFORM);
+      TYPES.put(PropertyMap[].class, ARRAY + PROPERTY_MAP);
+      TYPES.put(Rectangle[].class, ARRAY + RECTANGLE);
+      TYPES.put(Dimension[].class, ARRAY + DIMENSION);
+      TYPES.put(Point[].class, ARRAY + POINT);
+   }
+
+   /**
+    * Strings known to both the encoder and the decoder, typically the
+    * standard keys of a kind of property map. Entries must only ever be
+    * appended, since encoded maps refer to them by index. Maps encoded with
+    * one dictionary cannot be decoded with another.
+    */
+   public static final class KeyDictionary {
+      private static final KeyDictionary EMPTY = new KeyDictionary(
+            Collections.<String>emptyList());
+
+      private final List<String> keys_;
+      private final Map<String, Integer> indices_ = new HashMap<>();
+      private final int fingerprint_;
+
+      private KeyDictionary(List<String> keys) {
+         keys_ = Collections.unmodifiableList(new ArrayList<>(keys));
+         for (String key : keys_) {
+            Preconditions.checkArgument(indices_.put(key, indices_.size()) == null,
+                  "Duplicate key in dictionary: " + key);
+         }
+         fingerprint_ = keys_.hashCode();
+      }
+
+      public static KeyDictionary of(String... keys) {
+         return new KeyDictionary(Arrays.asList(keys));
+      }
+
+      public static KeyDictionary of(List<String> keys) {
+         return new KeyDictionary(keys);
+      }
+
+      public static KeyDictionary empty() {
+         return EMPTY;
+      }
+   }
+
+   private PropertyMapBinarySerializer() {
+   }
+
+   public static byte[] toBytes(PropertyMap map) {
+      return toBytes(map, KeyDictionary.EMPTY);
+   }
+
+   /**
+    * Encode a property map.
+    *
+    * @param map        the map to encode
+    * @param dictionary strings that need not be written
+    * @return the encoded map
+    * @throws UnsupportedOperationException if the map contains a value of an
+    *                                       unsupported (legacy) type
+    */
+   public static byte[] toBytes(PropertyMap map, KeyDictionary dictionary) {
+      Encoder encoder = new Encoder(dictionary);
+      encoder.writeByte(MAGIC);
+      encoder.writeByte(VERSION);
+      encoder.writeFixedInt(dictionary.fingerprint_);
+      encoder.writeMap(map);
+      return encoder.toByteArray();
+   }
+
+   public static PropertyMap fromBytes(byte[] bytes) throws IOException {
+      return fromBytes(bytes, KeyDictionary.EMPTY);
+   }
+
+   /**
+    * Decode a property map.
+    *
+    * @param bytes      the encoded map
+    * @param dictionary the dictionary used for encoding
+    * @return the decoded map
+    * @throws IOException if the data is not a valid encoding or was encoded
+    *                     with a different dictionary
+    */
+   public static PropertyMap fromBytes(byte[] bytes, KeyDictionary dictionary)
+         throws IOException {
+      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      try {
+         if (buffer.get() != MAGIC) {
+            throw new IOException("Not a binary property map");
+         }
+         byte version = buffer.get();
+         if (version != VERSION) {
+            throw new IOException("Unsupported binary property map version " + version);
+         }
+         if (buffer.getInt() != dictionary.fingerprint_) {
+            throw new IOException("Binary property map uses a different key dictionary");
+         }
+         PropertyMap map = new Decoder(buffer, dictionary).readMap();
+         if (buffer.hasRemaining()) {
+            throw new IOException("Trailing data after binary property map");
+         }
+         return map;
+      } catch (BufferUnderflowException | IndexOutOfBoundsException
+            | IllegalArgumentException e) {
+         throw new IOException("Corrupt binary property map", e);
+      }
+   }
+
+   private static final class Encoder {
+      private final KeyDictionary dictionary_;
+      private final Map<String, Integer> strings_ = new HashMap<>();
+      private byte[] bytes_ = new byte[256];
+      private int length_;
+
+      Encoder(KeyDictionary dictionary) {
+         dictionary_ = dictionary;
+      }
+
+      byte[] toByteArray() {
+         return Arrays.copyOf(bytes_, length_);
+      }
+
+      private void ensureCapacity(int additional) {
+         if (length_ + additional > bytes_.length) {
+            bytes_ = Arrays.copyOf(bytes_,
+                  Math.max(bytes_.length * 2, length_ + additional));
+         }
+      }
+
+      void writeByte(int b) {
+         ensureCapacity(1);
+         bytes_[length_++] = (byte) b;
+      }
+
+      void writeFixedInt(int v) {
+         ensureCapacity(4);
+         bytes_[length_++] = (byte) (v >>> 24);
+         bytes_[length_++] = (byte) (v >>> 16);
+         bytes_[length_++] = (byte) (v >>> 8);
+         bytes_[length_++] = (byte) v;
+      }
+
+      void writeFixedLong(long v) {
+         writeFixedInt((int) (v >>> 32));
+         writeFixedInt((int) v);
+      }
+
+      void writeVarLong(long v) {
+         ensureCapacity(10);
+         long zigzag = (v << 1) ^ (v >> 63);
+         while ((zigzag & ~0x7fL) != 0) {
+            bytes_[length_++] = (byte) ((zigzag & 0x7f) | 0x80);
+            zigzag >>>= 7;
+         }
+         bytes_[length_++] = (byte) zigzag;
+      }
+
+      void writeString(String s) {
+         // 0 introduces a new string; n > 0 refers to the (n - 1)th string of
+         // the dictionary, followed by those written so far
+         Integer index = dictionary_.indices_.get(s);
+         if (index == null) {
+            index = strings_.get(s);
+         }
+         if (index != null) {
+            writeVarLong(index + 1);
+            return;
+         }
+         strings_.put(s, dictionary_.keys_.size() + strings_.size());
+         writeVarLong(0);
+         byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+         writeVarLong(utf8.length);
+         ensureCapacity(utf8.length);
+         System.arraycopy(utf8, 0, bytes_, length_, utf8.length);
+         length_ += utf8.length;
+      }
+
+      void writeMap(PropertyMap map) {
+         if (!(map instanceof DefaultPropertyMap)) {
+            throw new UnsupportedOperationException();
+         }
+         DefaultPropertyMap pmap = (DefaultPropertyMap) map;
+         writeVarLong(pmap.size());
+         for (String key : pmap.keySet()) {
+            Object value = pmap.getStoredValue(key);
+            Integer type = TYPES.get(value.getClass());
+            if (type == null && value instanceof PropertyMap) {
+               type = PROPERTY_MAP;
+            }
+            if (type == null) {
+               throw new UnsupportedOperationException(
+                     "Cannot encode value of type " + value.getClass().getName()
+                           + " for key " + key);
+            }
+            writeString(key);
+            writeByte(type);
+            if ((type & ARRAY) == 0) {
+               writeValue(type, value);
+            } else {
+               writeArray(type - ARRAY, value);
+            }
+         }
+      }
+
+      private void writeArray(int type, Object array) {
+         switch (type) {
+            case BOOLEAN:
+               writeVarLong(((boolean[]) array).length);
+               for (boolean v : (boolean[]) array) {
+                  writeByte(v ? 1 : 0);
+               }
+               break;
+            case BYTE:
+               writeVarLong(((byte[]) array).length);
+               for (byte v : (byte[]) array) {
+                  writeByte(v);
+               }
+               break;
+            case SHORT:
+               writeVarLong(((short[]) array).length);
+               for (short v : (short[]) array) {
+                  writeVarLong(v);
+               }
+               break;
+            case INT:
+               writeVarLong(((int[]) array).length);
+               for (int v : (int[]) array) {
+                  writeVarLong(v);
+               }
+               break;
+            case LONG:
+               writeVarLong(((long[]) array).length);
+               for (long v : (long[]) array) {
+                  writeVarLong(v);
+               }
+               break;
+            case FLOAT:
+               writeVarLong(((float[]) array).length);
+               for (float v : (float[]) array) {
+                  writeFixedInt(Float.floatToIntBits(v));
+               }
+               break;
+            case DOUBLE:
+               writeVarLong(((double[]) array).length);
+               for (double v : (double[]) array) {
+                  writeFixedLong(Double.doubleToLongBits(v));
+               }
+               break;
+            default:
+               Object[] values = (Object[]) array;
+               writeVarLong(values.length);
+               for (Object v : values) {
+                  writeValue(type, v);
+               }
+         }
+      }
+
+      private void writeValue(int type, Object value) {
+         switch (type) {
+            case BOOLEAN:
+               writeByte((Boolean) value ? 1 : 0);
+               break;
+            case BYTE:
+               writeByte((Byte) value);
+               break;
+            case SHORT:
+               writeVarLong((Short) value);
+               break;
+            case INT:
+               writeVarLong((Integer) value);
+               break;
+            case LONG:
+               writeVarLong((Long) value);
+               break;
+            case FLOAT:
+               writeFixedInt(Float.floatToIntBits((Float) value));
+               break;
+            case DOUBLE:
+               writeFixedLong(Double.doubleToLongBits((Double) value));
+               break;
+            case STRING:
+               writeString((String) value);
+               break;
+            case UUID_TYPE:
+               writeFixedLong(((UUID) value).getMostSignificantBits());
+               writeFixedLong(((UUID) value).getLeastSignificantBits());
+               break;
+            case COLOR:
+               writeFixedInt(((Color) value).getRGB());
+               break;
+            case AFFINE_TRANSFORM:
+               double[] matrix = new double[6];
+               ((AffineTransform) value).getMatrix(matrix);
+               for (double v : matrix) {
+                  writeFixedLong(Double.doubleToLongBits(v));
+               }
+               break;
+            case PROPERTY_MAP:
+               writeMap((PropertyMap) value);
+               break;
+            case RECTANGLE:
+               Rectangle r = (Rectangle) value;
+               writeVarLong(r.x);
+               writeVarLong(r.y);
+               writeVarLong(r.width);
+               writeVarLong(r.height);
+               break;
+            case DIMENSION:
+               writeVarLong(((Dimension) value).width);
+               writeVarLong(((Dimension) value).height);
+               break;
+            case POINT:
+               writeVarLong(((Point) value).x);
+               writeVarLong(((Point) value).y);
+               break;
+            default:
+               throw new AssertionError(type);
+         }
+      }
+   }
+
+   private static final class Decoder {
+      private final ByteBuffer buffer_;
+      private final List<String> strings_;
+
+      Decoder(ByteBuffer buffer, KeyDictionary dictionary) {
+         buffer_ = buffer;
+         strings_ = new ArrayList<>(dictionary.keys_);
+      }
+
+      long readVarLong() throws IOException {
+         long zigzag = 0;
+         for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer_.get();
+            zigzag |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+               return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+         }
+         throw new IOException("Malformed integer in binary property map");
+      }
+
+      int readCount() throws IOException {
+         long count = readVarLong();
+         // Every element takes at least one byte
+         if (count < 0 || count > buffer_.remaining()) {
+            throw new IOException("Invalid count in binary property map");
+         }
+         return (int) count;
+      }
+
+      String readString() throws IOException {
+         long ref = readVarLong();
+         if (ref != 0) {
+            return strings_.get((int) (ref - 1));
+         }
+         int length = readCount();
+         String s = new String(buffer_.array(), buffer_.position(), length,
+               StandardCharsets.UTF_8);
+         buffer_.position(buffer_.position() + length);
+         strings_.add(s);
+         return s;
+      }
+
+      PropertyMap readMap() throws IOException {
+         DefaultPropertyMap.Builder builder = new DefaultPropertyMap.Builder();
+         int size = readCount();
+         for (int i = 0; i < size; i++) {
+            String key = readString();
+            int type = buffer_.get();
+            Object value = (type & ARRAY) == 0
+                  ? readValue(type) : readArray(type - ARRAY);
+            builder.map_.put(key, value);
+         }
+         return builder.build();
+      }
+
+      private Object readArray(int type) throws IOException {
+         int length = readCount();
+         switch (type) {
+            case BOOLEAN: {
+               boolean[] values = new boolean[length];
+               for (int i = 0; i < length; i++) {
+                  values[i] = buffer_.get() != 0;
+               }
+               return values;
+            }
+            case BYTE: {
+               byte[] values = new byte[length];
+               buffer_.get(values);
+               return values;
+            }
+            case SHORT: {
+               short[] values = new short[length];
+               for (int i = 0; i < length; i++) {
+                  values[i] = (short) readVarLong();
+               }
+               return values;
+            }
+            case INT: {
+               int[] values = new int[length];
+               for (int i = 0; i < length; i++) {
+                  values[i] = (int) readVarLong();
+               }
+               return values;
+            }
+            case LONG: {
+               long[] values = new long[length];
+               for (int i = 0; i < length; i++) {
+                  values[i] = readVarLong();
+               }
+               return values;
+            }
+            case FLOAT: {
+               float[] values = new float[length];
+               for (int i = 0; i < length; i++) {
+                  values[i] = buffer_.getFloat();
+               }
+               return values;
+            }
+            case DOUBLE: {
+               double[] values = new double[length];
+               for (int i = 0; i < length; i++) {
+                  values[i] = buffer_.getDouble();
+               }
+               return values;
+            }
+            case STRING:
+               return fillArray(new String[length], type);
+            case UUID_TYPE:
+               return fillArray(new UUID[length], type);
+            case COLOR:
+               return fillArray(new Color[length], type);
+            case AFFINE_TRANSFORM:
+               return fillArray(new AffineTransform[length], type);
+            case PROPERTY_MAP:
+               return fillArray(new PropertyMap[length], type);
+            case RECTANGLE:
+               return fillArray(new Rectangle[length], type);
+            case DIMENSION:
+               return fillArray(new Dimension[length], type);
+            case POINT:
+               return fillArray(new Point[length], type);
+            default:
+               throw new IOException("Unknown value type in binary property map: "
+                     + (type + ARRAY));
+         }
+      }
+
+      private Object[] fillArray(Object[] values, int type) throws IOException {
+         for (int i = 0; i < values.length; i++) {
+            values[i] = readValue(type);
+         }
+         return values;
+      }
+
+      private Object readValue(int type) throws IOException {
+         switch (type) {
+            case BOOLEAN:
+               return buffer_.get() != 0;
+            case BYTE:
+               return buffer_.get();
+            case SHORT:
+               return (short) readVarLong();
+            case INT:
+               return (int) readVarLong();
+            case LONG:
+               return readVarLong();
+            case FLOAT:
+               return buffer_.getFloat();
+            case DOUBLE:
+               return buffer_.getDouble();
+            case STRING:
+               return readString();
+            case UUID_TYPE:
+               return new UUID(buffer_.getLong(), buffer_.getLong());
+            case COLOR:
+               return new Color(buffer_.getInt(), true);
+            case AFFINE_TRANSFORM:
+               double[] matrix = new double[6];
+               for (int i = 0; i < 6; i++) {
+                  matrix[i] = buffer_.getDouble();
+               }
+               return new AffineTransform(matrix);
+            case PROPERTY_MAP:
+               return readMap();
+            case RECTANGLE:
+               return new Rectangle((int) readVarLong(), (int) readVarLong(),
+                     (int) readVarLong(), (int) readVarLong());
+            case DIMENSION:
+               return new Dimension((int) readVarLong(), (int) readVarLong());
+            case POINT:
+               return new Point((int) readVarLong(), (int) readVarLong());
+            default:
+               throw new IOException("Unknown value type in binary property map: "
+                     + type);
+         }
+      }
+   }
+}
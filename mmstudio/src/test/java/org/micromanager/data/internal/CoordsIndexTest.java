@@ -0,0 +1,103 @@
+package org.micromanager.data.internal;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import org.micromanager.data.Coords;
+
+public class CoordsIndexTest {
+
+   private static Coords coords(int c, int z, int t) {
+      return new DefaultCoords.Builder().c(c).z(z).t(t).build();
+   }
+
+   private CoordsIndex fill() {
+      CoordsIndex index = new CoordsIndex(Coords.C);
+      for (int t = 0; t < 3; t++) {
+         for (int z = 0; z < 4; z++) {
+            for (int c = 0; c < 2; c++) {
+               index.add(coords(c, z, t));
+            }
+         }
+      }
+      return index;
+   }
+
+   @Test
+   public void testChannelProjection() {
+      CoordsIndex index = fill();
+      Coords noC = new DefaultCoords.Builder().z(2).t(1).build();
+      List<Coords> matches = index.getMatching(noC, Coords.C);
+      Assert.assertEquals(Arrays.asList(coords(0, 2, 1), coords(1, 2, 1)), matches);
+   }
+
+   @Test
+   public void testLazyProjectionIsMaintained() {
+      CoordsIndex index = fill();
+      Coords noZ = new DefaultCoords.Builder().c(1).t(2).build();
+      Assert.assertEquals(4, index.getMatching(noZ, Coords.Z).size());
+
+      index.add(coords(1, 4, 2));
+      Assert.assertEquals(5, index.getMatching(noZ, Coords.Z).size());
+      index.remove(coords(1, 0, 2));
+      List<Coords> matches = index.getMatching(noZ, Coords.Z);
+      Assert.assertEquals(4, matches.size());
+      Assert.assertFalse(matches.contains(coords(1, 0, 2)));
+   }
+
+   @Test
+   public void testMultipleAxesInAnyOrder() {
+      CoordsIndex index = fill();
+      Coords onlyT = new DefaultCoords.Builder().t(0).build();
+      Assert.assertEquals(8, index.getMatching(onlyT, Coords.C, Coords.Z).size());
+      Assert.assertEquals(8, index.getMatching(onlyT, Coords.Z, Coords.C).size());
+   }
+
+   @Test
+   public void testDuplicatesAndMisses() {
+      CoordsIndex index = fill();
+      index.add(coords(0, 0, 0));
+      Assert.assertEquals(24, index.size());
+      Assert.assertTrue(index.getMatching(coords(5, 0, 0)).isEmpty());
+      Assert.assertEquals(1, index.getMatching(coords(0, 0, 0)).size());
+      Assert.assertTrue(index.getMatching(
+            new DefaultCoords.Builder().z(9).t(0).build(), Coords.C).isEmpty());
+   }
+
+   @Test
+   public void testRequestedProjectionsAreBounded() {
+      CoordsIndex index = fill();
+      String[][] combinations = {
+            {Coords.Z}, {Coords.T}, {Coords.C, Coords.Z}, {Coords.C, Coords.T},
+            {Coords.Z, Coords.T}, {Coords.C, Coords.Z, Coords.T}};
+      for (String[] axes : combinations) {
+         index.getMatching(new DefaultCoords.Builder().build(), axes);
+      }
+      Assert.assertEquals(CoordsIndex.MAX_REQUESTED_PROJECTIONS,
+            index.getNumRequestedProjections());
+
+      // The Z projection was dropped; it is rebuilt, including later changes
+      index.add(coords(1, 4, 2));
+      Coords noZ = new DefaultCoords.Builder().c(1).t(2).build();
+      Assert.assertEquals(5, index.getMatching(noZ, Coords.Z).size());
+      Assert.assertEquals(CoordsIndex.MAX_REQUESTED_PROJECTIONS,
+            index.getNumRequestedProjections());
+   }
+
+   @Test
+   public void testRemoveKeepsOrder() {
+      CoordsIndex index = fill();
+      Coords noZ = new DefaultCoords.Builder().c(0).t(1).build();
+      index.getMatching(noZ, Coords.Z);
+      index.remove(coords(0, 1, 1));
+      Assert.assertEquals(Arrays.asList(coords(0, 0, 1), coords(0, 2, 1),
+            coords(0, 3, 1)), index.getMatching(noZ, Coords.Z));
+      index.add(coords(0, 1, 1));
+      Assert.assertEquals(Arrays.asList(coords(0, 0, 1), coords(0, 2, 1),
+            coords(0, 3, 1), coords(0, 1, 1)), index.getMatching(noZ, Coords.Z));
+      index.clear();
+      Assert.assertEquals(0, index.getNumRequestedProjections());
+      Assert.assertTrue(index.getMatching(noZ, Coords.Z).isEmpty());
+   }
+}
@@ -0,0 +1,70 @@
+package org.micromanager.data.internal;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+import org.micromanager.data.Coords;
+
+public class DefaultCoordsTest {
+
+   @Test
+   public void testAxesAreSortedAndZeroIndicesDropped() {
+      Coords coords = new DefaultCoords.Builder().t(3).c(1).z(0).p(2).build();
+      Assert.assertEquals(Arrays.asList(Coords.CHANNEL, Coords.STAGE_POSITION,
+            Coords.TIME_POINT), coords.getAxes());
+      Assert.assertEquals(3, coords.getT());
+      Assert.assertEquals(0, coords.getZ());
+      Assert.assertFalse(coords.hasZ());
+      Assert.assertEquals("<channel=1 position=2 time=3>", coords.toString());
+   }
+
+   @Test
+   public void testEqualityIgnoresBuildOrder() {
+      Coords a = new DefaultCoords.Builder().c(1).z(2).t(3).index("custom", 4).build();
+      Coords b = new DefaultCoords.Builder().index(new String("custom"), 4)
+            .t(3).z(2).c(1).build();
+      Assert.assertEquals(a, b);
+      Assert.assertEquals(a.hashCode(), b.hashCode());
+      Assert.assertNotEquals(a, new DefaultCoords.Builder().c(1).z(2).t(3).build());
+
+      Map<Coords, String> map = new HashMap<>();
+      map.put(a, "a");
+      Assert.assertEquals("a", map.get(b));
+   }
+
+   @Test
+   public void testCopyBuilder() {
+      Coords original = new DefaultCoords.Builder().c(2).t(5).build();
+      Assert.assertSame(original, original.copyBuilder().build());
+      Assert.assertSame(original, original.copyBuilder().t(5).build());
+      Assert.assertSame(original, original.copyRemovingAxes(Coords.Z));
+
+      Coords.Builder builder = original.copyBuilder().removeAxis(Coords.C).offset(Coords.T, 1);
+      Coords modified = builder.build();
+      Assert.assertEquals(new DefaultCoords.Builder().t(6).build(), modified);
+      // The builder can be reused after build()
+      Assert.assertEquals(new DefaultCoords.Builder().t(6).z(1).build(),
+            builder.z(1).build());
+      Assert.assertEquals(new DefaultCoords.Builder().t(6).build(), modified);
+      Assert.assertEquals(new DefaultCoords.Builder().c(2).build(),
+            original.copyRetainingAxes(Coords.C, Coords.Z));
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void testInvalidAxis() {
+      new DefaultCoords.Builder().index("1nvalid", 1);
+   }
+
+   @Test
+   public void testManyAxes() {
+      DefaultCoords.Builder builder = new DefaultCoords.Builder();
+      for (int i = 1; i <= 8; i++) {
+         builder.index("axis" + i, i);
+      }
+      Coords coords = builder.build();
+      Assert.assertEquals(8, coords.getAxes().size());
+      Assert.assertEquals(7, coords.getIndex("axis7"));
+   }
+}
@@ -0,0 +1,165 @@
+package org.micromanager.data.internal;
+
+import java.io.IOException;
+import org.junit.Assert;
+import org.junit.Test;
+import org.micromanager.PropertyMap;
+import org.micromanager.PropertyMaps;
+import org.micromanager.data.Image;
+
+public class IntensitySummaryTest {
+
+   private static Image image8(int channel, int... values) {
+      byte[] pixels = new byte[values.length];
+      for (int i = 0; i < values.length; i++) {
+         pixels[i] = (byte) values[i];
+      }
+      return new DefaultImage(pixels, values.length, 1, 1, 1,
+            new DefaultCoords.Builder().c(channel).build(),
+            new DefaultMetadata.Builder().bitDepth(8).build());
+   }
+
+   private static Image image16(int channel, int bitDepth, int... values) {
+      short[] pixels = new short[values.length];
+      for (int i = 0; i < values.length; i++) {
+         pixels[i] = (short) values[i];
+      }
+      return new DefaultImage(pixels, values.length, 1, 2, 1,
+            new DefaultCoords.Builder().c(channel).build(),
+            new DefaultMetadata.Builder().bitDepth(bitDepth).build());
+   }
+
+   private static int[] range(int from, int to) {
+      int[] result = new int[to - from];
+      for (int i = 0; i < result.length; i++) {
+         result[i] = from + i;
+      }
+      return result;
+   }
+
+   private static PropertyMap channel(IntensitySummary summary, int index) {
+      for (PropertyMap pm : summary.toPropertyMap().getPropertyMapList("Channels")) {
+         if (pm.getInteger("Channel", -1) == index) {
+            return pm;
+         }
+      }
+      return null;
+   }
+
+   @Test
+   public void testRebinForLargerAndSmallerBitDepths() {
+      IntensitySummary summary = new IntensitySummary();
+      // One pixel in each of the 256 bins
+      summary.add(image8(0, range(0, 256)));
+      Assert.assertEquals(8, channel(summary, 0).getInteger("BitDepth", 0));
+
+      // A 10-bit image widens the histogram; each extra bit merges pairs of
+      // bins, so 4 old bins end up in each new one
+      summary.add(image16(0, 10, 1023));
+      PropertyMap pm = channel(summary, 0);
+      Assert.assertEquals(10, pm.getInteger("BitDepth", 0));
+      long[] histogram = pm.getLongList("Histogram");
+      for (int i = 0; i < 64; i++) {
+         Assert.assertEquals(4, histogram[i]);
+      }
+      for (int i = 64; i < 255; i++) {
+         Assert.assertEquals(0, histogram[i]);
+      }
+      Assert.assertEquals(1, histogram[255]);
+
+      // A later 8-bit image is folded into the 10-bit bins
+      summary.add(image8(0, 255, 255, 255, 255));
+      histogram = channel(summary, 0).getLongList("Histogram");
+      Assert.assertEquals(4 + 4, histogram[63]);
+      Assert.assertEquals(1, histogram[255]);
+      Assert.assertArrayEquals(new long[] {0, 1023}, summary.getRange(0, 0.0, false));
+      Assert.assertEquals(3, summary.getImageCount());
+   }
+
+   @Test
+   public void testChannelsAreSeparate() {
+      IntensitySummary summary = new IntensitySummary();
+      summary.add(image8(0, 10, 20));
+      summary.add(image8(2, 30, 40));
+      Assert.assertTrue(summary.hasChannel(0));
+      Assert.assertFalse(summary.hasChannel(1));
+      Assert.assertArrayEquals(new long[] {10, 20}, summary.getRange(0, 0.0, false));
+      Assert.assertArrayEquals(new long[] {30, 40}, summary.getRange(2, 0.0, false));
+      Assert.assertNull(summary.getRange(1, 0.0, false));
+   }
+
+   @Test
+   public void testQuantileRange() {
+      IntensitySummary summary = new IntensitySummary();
+      // 100 pixels, 0 to 99: one per bin at 8 bits
+      summary.add(image8(0, range(0, 100)));
+      Assert.assertArrayEquals(new long[] {0, 99}, summary.getRange(0, 0.0, false));
+      // 10 pixels left out at each end
+      Assert.assertArrayEquals(new long[] {10, 89}, summary.getRange(0, 0.1, false));
+   }
+
+   @Test
+   public void testQuantileRangeIgnoringZeros() {
+      IntensitySummary summary = new IntensitySummary();
+      summary.add(image8(0, range(0, 100)));
+      Assert.assertArrayEquals(new long[] {1, 99}, summary.getRange(0, 0.0, true));
+      // 99 non-zero pixels; 9 left out at each end
+      Assert.assertArrayEquals(new long[] {10, 90}, summary.getRange(0, 0.1, true));
+
+      IntensitySummary zeros = new IntensitySummary();
+      zeros.add(image8(0, 0, 0, 0));
+      Assert.assertArrayEquals(new long[] {0, 0}, zeros.getRange(0, 0.0, false));
+      Assert.assertNull(zeros.getRange(0, 0.0, true));
+   }
+
+   @Test
+   public void testQuantileRangeIsRoundedToBins() {
+      IntensitySummary summary = new IntensitySummary();
+      // 12-bit: bins are 16 values wide; 1000 to 1007 fall in the first
+      // bin, 1088 to 1099 in the last one
+      summary.add(image16(0, 12, range(1000, 1100)));
+      // Only the first bin holds fewer than 10 pixels
+      Assert.assertArrayEquals(new long[] {1008, 1099},
+            summary.getRange(0, 0.1, false));
+      // Ends are rounded to bins, but not beyond the exact min and max
+      Assert.assertArrayEquals(new long[] {1000, 1099},
+            summary.getRange(0, 0.05, false));
+   }
+
+   @Test
+   public void testPropertyMapRoundTrip() throws IOException {
+      IntensitySummary summary = new IntensitySummary();
+      summary.add(image8(0, range(0, 100)));
+      summary.add(image16(1, 12, 0, 500, 4000));
+      // RGB images are only counted
+      summary.add(new DefaultImage(new byte[16], 2, 2, 4, 3,
+            new DefaultCoords.Builder().c(0).build(),
+            new DefaultMetadata.Builder().build()));
+
+      IntensitySummary copy = IntensitySummary.fromPropertyMap(
+            PropertyMaps.fromJSON(summary.toPropertyMap().toJSON()));
+      Assert.assertEquals(3, copy.getImageCount());
+      Assert.assertFalse(copy.isModified());
+      for (int channel = 0; channel < 2; channel++) {
+         for (double quantile : new double[] {0.0, 0.1}) {
+            for (boolean ignoreZeros : new boolean[] {false, true}) {
+               Assert.assertArrayEquals(
+                     summary.getRange(channel, quantile, ignoreZeros),
+                     copy.getRange(channel, quantile, ignoreZeros));
+            }
+         }
+      }
+      Assert.assertEquals(summary.toPropertyMap(), copy.toPropertyMap());
+   }
+
+   @Test(expected = IOException.class)
+   public void testInvalidHistogramIsRejected() throws IOException {
+      PropertyMap channel = PropertyMaps.builder()
+            .putInteger("Channel", 0)
+            .putLongList("Histogram", 1L, 2L, 3L)
+            .build();
+      IntensitySummary.fromPropertyMap(PropertyMaps.builder()
+            .putPropertyMapList("Channels", channel)
+            .build());
+   }
+}
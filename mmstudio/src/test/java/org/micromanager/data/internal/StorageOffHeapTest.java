@@ -0,0 +1,172 @@
+package org.micromanager.data.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.micromanager.data.Coords;
+import org.micromanager.data.Image;
+import org.micromanager.internal.propertymap.DefaultPropertyMap;
+
+public class StorageOffHeapTest {
+   private static final int WIDTH = 4;
+   private static final int HEIGHT = 4;
+   private static final int PLANE_BYTES = WIDTH * HEIGHT * 2;
+
+   private StorageOffHeap storage_;
+
+   @Before
+   public void setUp() {
+      // Room for two planes in RAM
+      storage_ = new StorageOffHeap(new DefaultDatastore(null), 2 * PLANE_BYTES);
+   }
+
+   @After
+   public void tearDown() {
+      storage_.close();
+   }
+
+   private static Coords coords(int t) {
+      return new DefaultCoords.Builder().t(t).build();
+   }
+
+   private static Image image(int t, int value) {
+      short[] pixels = new short[WIDTH * HEIGHT];
+      for (int i = 0; i < pixels.length; i++) {
+         pixels[i] = (short) (value + i);
+      }
+      return new DefaultImage(pixels, WIDTH, HEIGHT, 2, 1, coords(t),
+            new DefaultMetadata.Builder().exposureMs((double) value).bitDepth(12).build());
+   }
+
+   private static void assertImage(Image image, int t, int value) {
+      Assert.assertNotNull(image);
+      Assert.assertEquals(coords(t), image.getCoords());
+      short[] pixels = (short[]) image.getRawPixels();
+      for (int i = 0; i < pixels.length; i++) {
+         Assert.assertEquals((short) (value + i), pixels[i]);
+      }
+      Assert.assertEquals(Double.valueOf(value), image.getMetadata().getExposureMs());
+      Assert.assertEquals(Integer.valueOf(12), image.getMetadata().getBitDepth());
+   }
+
+   @Test
+   public void testPutAndGetWithinBudget() throws IOException {
+      storage_.putImage(image(0, 100));
+      storage_.putImage(image(1, 200));
+      assertImage(storage_.getImage(coords(0)), 0, 100);
+      assertImage(storage_.getImage(coords(1)), 1, 200);
+      Assert.assertEquals(0, storage_.getSpillCount());
+      Assert.assertEquals(0, storage_.getReloadCount());
+      Assert.assertEquals(2, storage_.getNumImages());
+   }
+
+   @Test
+   public void testLeastRecentlyUsedIsSpilledAndReloaded() throws IOException {
+      storage_.putImage(image(0, 100));
+      storage_.putImage(image(1, 200));
+      // Touch 0, so that 1 is the least recently used
+      storage_.getImage(coords(0));
+      storage_.putImage(image(2, 300));
+      Assert.assertEquals(1, storage_.getSpillCount());
+
+      // 0 is still resident
+      assertImage(storage_.getImage(coords(0)), 0, 100);
+      Assert.assertEquals(0, storage_.getReloadCount());
+
+      // 1 is read back, spilling 2 (now least recently used)
+      assertImage(storage_.getImage(coords(1)), 1, 200);
+      Assert.assertEquals(1, storage_.getReloadCount());
+      Assert.assertEquals(2, storage_.getSpillCount());
+      assertImage(storage_.getImage(coords(2)), 2, 300);
+      Assert.assertEquals(2, storage_.getReloadCount());
+   }
+
+   @Test
+   public void testUnchangedPlanesAreNotWrittenAgain() throws IOException {
+      storage_.putImage(image(0, 100));
+      storage_.putImage(image(1, 200));
+      storage_.putImage(image(2, 300));
+      storage_.getImage(coords(0));
+      storage_.getImage(coords(1));
+      // Each of the three planes has been written to disk once
+      Assert.assertEquals(3, storage_.getSpillCount());
+      // Evicting planes that were read back unchanged writes nothing
+      assertImage(storage_.getImage(coords(2)), 2, 300);
+      assertImage(storage_.getImage(coords(0)), 0, 100);
+      Assert.assertEquals(3, storage_.getSpillCount());
+      Assert.assertEquals(4, storage_.getReloadCount());
+   }
+
+   @Test
+   @SuppressWarnings("deprecation")
+   public void testLegacyUserDataIsKept() throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+         out.writeObject("legacy value");
+      }
+      Image legacy = image(0, 100).copyWithMetadata(
+            new DefaultMetadata.Builder().exposureMs(100.0).bitDepth(12)
+                  .userData(new DefaultPropertyMap.Builder()
+                        .putLegacySerializedObject("Old", bytes.toByteArray())
+                        .build())
+                  .build());
+      storage_.putImage(legacy);
+      storage_.putImage(image(1, 200));
+      storage_.putImage(image(2, 300));
+      // Spilled and read back
+      Image image = storage_.getImage(coords(0));
+      assertImage(image, 0, 100);
+      Assert.assertEquals("legacy value", ((DefaultPropertyMap)
+            image.getMetadata().getUserData()).getLegacySerializedObject("Old", null));
+   }
+
+   @Test
+   public void testOverwriteSpilledImage() throws IOException {
+      storage_.putImage(image(0, 100));
+      storage_.putImage(image(1, 200));
+      storage_.putImage(image(2, 300));
+      // 0 was spilled; replace it
+      storage_.putImage(image(0, 400));
+      assertImage(storage_.getImage(coords(0)), 0, 400);
+      assertImage(storage_.getImage(coords(1)), 1, 200);
+      assertImage(storage_.getImage(coords(2)), 2, 300);
+      assertImage(storage_.getImage(coords(0)), 0, 400);
+      Assert.assertEquals(3, storage_.getNumImages());
+   }
+
+   @Test
+   public void testDelete() throws IOException {
+      storage_.putImage(image(0, 100));
+      storage_.putImage(image(1, 200));
+      storage_.putImage(image(2, 300));
+      storage_.deleteImage(coords(0));
+      storage_.deleteImage(coords(2));
+      Assert.assertFalse(storage_.hasImage(coords(0)));
+      Assert.assertNull(storage_.getImage(coords(2)));
+      Assert.assertEquals(1, storage_.getNumImages());
+      // Freed slots and scratch space are reused
+      storage_.putImage(image(3, 500));
+      storage_.putImage(image(4, 600));
+      assertImage(storage_.getImage(coords(1)), 1, 200);
+      assertImage(storage_.getImage(coords(3)), 3, 500);
+      assertImage(storage_.getImage(coords(4)), 4, 600);
+   }
+
+   @Test
+   public void testAnyImageIsCurrent() throws IOException {
+      Assert.assertNull(storage_.getAnyImage());
+      storage_.putImage(image(0, 100));
+      storage_.putImage(image(1, 200));
+      assertImage(storage_.getAnyImage(), 0, 100);
+      storage_.putImage(image(0, 300));
+      assertImage(storage_.getAnyImage(), 0, 300);
+      storage_.deleteImage(coords(0));
+      assertImage(storage_.getAnyImage(), 1, 200);
+      storage_.deleteImage(coords(1));
+      Assert.assertNull(storage_.getAnyImage());
+   }
+}
@@ -0,0 +1,83 @@
+package org.micromanager.data.internal;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.micromanager.PropertyMap;
+import org.micromanager.PropertyMaps;
+import org.micromanager.data.Coords;
+import org.micromanager.data.Image;
+
+public class StorageSinglePlaneTiffSeriesTest {
+   private static final int WIDTH = 16;
+   private static final int HEIGHT = 8;
+   private static final int NUM_FRAMES = 3;
+
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   private static PropertyMap scopeData(int t) {
+      return PropertyMaps.builder()
+            .putString("Camera-Exposure", "10")
+            .putString("Camera-Gain", "1")
+            .putString("Stage-Position", Integer.toString(t))
+            .build();
+   }
+
+   @Test
+   public void testDeltaEncodedMetadataFile() throws IOException {
+      String dir = new File(folder.getRoot(), "series").getPath();
+      DefaultDatastore store = new DefaultDatastore(null);
+      StorageSinglePlaneTiffSeries storage = new StorageSinglePlaneTiffSeries(
+            store, dir, true, true);
+      store.setStorage(storage);
+      store.setSummaryMetadata(new DefaultSummaryMetadata.Builder()
+            .imageWidth(WIDTH).imageHeight(HEIGHT).channelNames("Default")
+            .axisOrder(Coords.P, Coords.T, Coords.Z, Coords.C).build());
+      for (int t = 0; t < NUM_FRAMES; t++) {
+         store.putImage(new DefaultImage(new short[WIDTH * HEIGHT], WIDTH, HEIGHT,
+               2, 1, new DefaultCoords.Builder().t(t).build(),
+               new DefaultMetadata.Builder().positionName("Pos0")
+                     .scopeData(scopeData(t)).build()));
+      }
+      store.freeze();
+
+      String text = new String(Files.readAllBytes(
+            new File(dir, "Pos0/metadata.txt").toPath()), StandardCharsets.UTF_8);
+      JsonObject entries = new JsonParser().parse(text).getAsJsonObject();
+      String keyframeKey = null;
+      int numDeltas = 0;
+      for (Map.Entry<String, JsonElement> entry : entries.entrySet()) {
+         String key = entry.getKey();
+         if (!key.startsWith("Metadata-")) {
+            continue;
+         }
+         JsonObject md = entry.getValue().getAsJsonObject();
+         if (md.has("ScopeDataKeyframe")) {
+            numDeltas++;
+            Assert.assertEquals(keyframeKey, md.get("ScopeDataKeyframe").getAsString());
+            Assert.assertEquals(1, md.getAsJsonObject("ScopeDataDelta").entrySet().size());
+         } else {
+            Assert.assertNull(keyframeKey);
+            keyframeKey = key;
+         }
+      }
+      Assert.assertNotNull(keyframeKey);
+      Assert.assertEquals(NUM_FRAMES - 1, numDeltas);
+
+      // The TIFF files keep the full scope data
+      for (int t = 0; t < NUM_FRAMES; t++) {
+         Image image = storage.getImage(new DefaultCoords.Builder().t(t).build());
+         Assert.assertEquals(scopeData(t), image.getMetadata().getScopeData());
+      }
+   }
+}
@@ -0,0 +1,76 @@
+package org.micromanager.data.internal.multipagetiff;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DeflateStripCodecTest {
+
+   private static byte[] roundTrip(DeflateStripCodec codec, byte[] pixels)
+         throws IOException {
+      byte[][] strips = codec.compress(ByteBuffer.wrap(pixels));
+      Assert.assertEquals(codec.getNumStrips(), strips.length);
+      ByteBuffer[] buffers = new ByteBuffer[strips.length];
+      for (int i = 0; i < strips.length; i++) {
+         buffers[i] = ByteBuffer.wrap(strips[i]);
+      }
+      return codec.decompress(buffers, DeflateStripCodec.PREDICTOR_HORIZONTAL);
+   }
+
+   private static byte[] randomBytes(int length, long seed) {
+      byte[] result = new byte[length];
+      new Random(seed).nextBytes(result);
+      return result;
+   }
+
+   @Test
+   public void testGray8MultipleStrips() throws IOException {
+      DeflateStripCodec codec = new DeflateStripCodec(37, 101, 1, 1, 10,
+            ByteOrder.LITTLE_ENDIAN);
+      Assert.assertEquals(11, codec.getNumStrips());
+      byte[] pixels = randomBytes(37 * 101, 1);
+      Assert.assertArrayEquals(pixels, roundTrip(codec, pixels));
+   }
+
+   @Test
+   public void testGray16BothByteOrders() throws IOException {
+      for (ByteOrder order : new ByteOrder[] {ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN}) {
+         DeflateStripCodec codec = new DeflateStripCodec(64, 48, 1, 2, 7, order);
+         byte[] pixels = randomBytes(64 * 48 * 2, 2);
+         Assert.assertArrayEquals(pixels, roundTrip(codec, pixels));
+      }
+   }
+
+   @Test
+   public void testRgb() throws IOException {
+      DeflateStripCodec codec = new DeflateStripCodec(20, 15, 3, 1, 0,
+            ByteOrder.LITTLE_ENDIAN);
+      Assert.assertEquals(1, codec.getNumStrips());
+      byte[] pixels = randomBytes(20 * 15 * 3, 3);
+      Assert.assertArrayEquals(pixels, roundTrip(codec, pixels));
+   }
+
+   @Test
+   public void testSmoothDataCompresses() throws IOException {
+      int width = 512;
+      int height = 512;
+      ByteBuffer pixels = ByteBuffer.allocate(width * height * 2)
+            .order(ByteOrder.LITTLE_ENDIAN);
+      for (int y = 0; y < height; y++) {
+         for (int x = 0; x < width; x++) {
+            pixels.putShort((short) (1000 + x + y));
+         }
+      }
+      DeflateStripCodec codec = new DeflateStripCodec(width, height, 1, 2, 0,
+            ByteOrder.LITTLE_ENDIAN);
+      long stored = 0;
+      for (byte[] strip : codec.compress(pixels)) {
+         stored += strip.length;
+      }
+      // The predictor turns ramps into runs of ones
+      Assert.assertTrue(stored * 20 < width * height * 2);
+   }
+}
@@ -0,0 +1,141 @@
+package org.micromanager.data.internal.multipagetiff;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.micromanager.data.Coords;
+import org.micromanager.data.Image;
+import org.micromanager.data.internal.DefaultCoords;
+import org.micromanager.data.internal.DefaultDatastore;
+import org.micromanager.data.internal.DefaultImage;
+import org.micromanager.data.internal.DefaultMetadata;
+import org.micromanager.data.internal.DefaultSummaryMetadata;
+
+public class IndexMapRepairTest {
+   private static final int WIDTH = 32;
+   private static final int HEIGHT = 24;
+   private static final int NUM_POSITIONS = 2;
+   private static final int NUM_FRAMES = 4;
+
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   private static Coords coords(int p, int t) {
+      return new DefaultCoords.Builder().p(p).t(t).build();
+   }
+
+   private static short[] pixels(int p, int t) {
+      short[] result = new short[WIDTH * HEIGHT];
+      for (int i = 0; i < result.length; i++) {
+         result[i] = (short) (i + 100 * t + 1000 * p);
+      }
+      return result;
+   }
+
+   private String writeDataset(StorageMultipageTiff.Options options)
+         throws IOException {
+      String dir = new File(folder.getRoot(), "data").getPath();
+      StorageMultipageTiff storage = new StorageMultipageTiff(null,
+            new DefaultDatastore(null), dir, true, options);
+      storage.setSummaryMetadata(new DefaultSummaryMetadata.Builder()
+            .imageWidth(WIDTH).imageHeight(HEIGHT).channelNames("Default")
+            .axisOrder(Coords.P, Coords.T, Coords.Z, Coords.C).build());
+      for (int t = 0; t < NUM_FRAMES; t++) {
+         for (int p = 0; p < NUM_POSITIONS; p++) {
+            storage.putImage(new DefaultImage(pixels(p, t), WIDTH, HEIGHT, 2, 1,
+                  coords(p, t), new DefaultMetadata.Builder().bitDepth(16)
+                        .positionName("Pos" + p).build()));
+         }
+      }
+      storage.finished();
+      storage.close();
+      return dir;
+   }
+
+   /**
+    * Leaves the file as a crash during acquisition would: the index map is
+    * unusable, and the last IFD points at the end of the file, where the next
+    * image would have been written.
+    */
+   private static void damage(File file) throws IOException {
+      try (RandomAccessFile raFile = new RandomAccessFile(file, "rw")) {
+         FileChannel channel = raFile.getChannel();
+         ByteBuffer header = ByteBuffer.allocate(16);
+         channel.read(header, 0);
+         ByteOrder order = header.get(0) == 'I'
+               ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+         header.order(order);
+         Assert.assertEquals(MultipageTiffWriter.INDEX_MAP_OFFSET_HEADER,
+               header.getInt(8));
+         long indexMap = header.getInt(12);
+
+         ByteBuffer mapHeader = ByteBuffer.allocate(8).order(order);
+         channel.read(mapHeader, indexMap);
+         int numEntries = mapHeader.getInt(4);
+         ByteBuffer entries = ByteBuffer.allocate(20 * numEntries).order(order);
+         channel.read(entries, indexMap + 8);
+         long lastIFD = 0;
+         for (int i = 0; i < numEntries; i++) {
+            lastIFD = Math.max(lastIFD, entries.getInt(20 * i + 16) & 0xffffffffL);
+         }
+
+         ByteBuffer ifdEntries = ByteBuffer.allocate(2).order(order);
+         channel.read(ifdEntries, lastIFD);
+         long nextIFDLocation = lastIFD + 2 + 12 * ifdEntries.getChar(0);
+         ByteBuffer value = ByteBuffer.allocate(4).order(order);
+         value.putInt(0, (int) channel.size());
+         channel.write(value, nextIFDLocation);
+
+         value.clear();
+         value.putInt(0, 0);
+         channel.write(value, indexMap);
+      }
+   }
+
+   @Test
+   public void testRepairedFilesReadBack() throws IOException {
+      StorageMultipageTiff.Options options = new StorageMultipageTiff.Options.Builder()
+            .splitPositions(true).separateMetadataFile(false).build();
+      String dir = writeDataset(options);
+      // The sidecar index would let the dataset open without the index maps
+      new File(dir, IndexSidecar.FILE_NAME).delete();
+
+      File[] tiffs = new File(dir).listFiles((d, name) -> name.endsWith(".tif"));
+      Assert.assertNotNull(tiffs);
+      Assert.assertEquals(NUM_POSITIONS, tiffs.length);
+      List<File> files = new ArrayList<>(Arrays.asList(tiffs));
+      for (File f : files) {
+         damage(f);
+         try {
+            new MultipageTiffReader(null, f, false);
+            Assert.fail("Damaged index map was read");
+         } catch (InvalidIndexMapException expected) {
+            // Needs repair
+         }
+      }
+
+      Assert.assertEquals(files, IndexMapRepair.repair(null, files));
+
+      StorageMultipageTiff reopened = new StorageMultipageTiff(null,
+            new DefaultDatastore(null), dir, false, options);
+      Assert.assertEquals(NUM_POSITIONS * NUM_FRAMES, reopened.getNumImages());
+      for (int p = 0; p < NUM_POSITIONS; p++) {
+         for (int t = 0; t < NUM_FRAMES; t++) {
+            Image image = reopened.getImage(coords(p, t));
+            Assert.assertNotNull(image);
+            Assert.assertArrayEquals(pixels(p, t), (short[]) image.getRawPixels());
+         }
+      }
+      reopened.close();
+   }
+}
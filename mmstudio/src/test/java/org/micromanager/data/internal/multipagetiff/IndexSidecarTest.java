@@ -0,0 +1,85 @@
+package org.micromanager.data.internal.multipagetiff;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.micromanager.data.Coords;
+import org.micromanager.data.internal.DefaultCoords;
+
+public class IndexSidecarTest {
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   private static File createFile(File dir, String name, int length)
+         throws IOException {
+      File f = new File(dir, name);
+      try (FileOutputStream out = new FileOutputStream(f)) {
+         out.write(new byte[length]);
+      }
+      return f;
+   }
+
+   private static MultipageTiffReader reader(File f, ByteOrder order,
+                                             HashMap<Coords, Long> offsets) {
+      return new MultipageTiffReader(null, f, false,
+            new IndexSidecar.FileIndex(0, 0, order, offsets));
+   }
+
+   private File writeDataset() throws IOException {
+      File dir = folder.getRoot();
+      HashMap<Coords, Long> first = new HashMap<>();
+      first.put(new DefaultCoords.Builder().c(1).z(2).t(3).p(0).build(), 1000L);
+      first.put(new DefaultCoords.Builder().build(), 8L);
+      HashMap<Coords, Long> second = new HashMap<>();
+      second.put(new DefaultCoords.Builder().p(1).build(), 5000000000L);
+      IndexSidecar.write(dir, Arrays.asList(
+            reader(createFile(dir, "a_MMStack.ome.tif", 100), ByteOrder.LITTLE_ENDIAN, first),
+            reader(createFile(dir, "b_MMStack.ome.tif", 200), ByteOrder.BIG_ENDIAN, second)));
+      return dir;
+   }
+
+   @Test
+   public void testRoundTrip() throws IOException {
+      File dir = writeDataset();
+      Map<String, IndexSidecar.FileIndex> index = IndexSidecar.read(dir, dir.listFiles());
+      Assert.assertNotNull(index);
+      Assert.assertEquals(2, index.size());
+      IndexSidecar.FileIndex a = index.get("a_MMStack.ome.tif");
+      Assert.assertEquals(ByteOrder.LITTLE_ENDIAN, a.byteOrder_);
+      Assert.assertEquals(Long.valueOf(1000L), a.offsets_.get(
+            new DefaultCoords.Builder().c(1).z(2).t(3).build()));
+      Assert.assertEquals(Long.valueOf(8L), a.offsets_.get(
+            new DefaultCoords.Builder().build()));
+      IndexSidecar.FileIndex b = index.get("b_MMStack.ome.tif");
+      Assert.assertEquals(ByteOrder.BIG_ENDIAN, b.byteOrder_);
+      Assert.assertEquals(200, b.size_);
+      Assert.assertEquals(Long.valueOf(5000000000L), b.offsets_.get(
+            new DefaultCoords.Builder().p(1).build()));
+   }
+
+   @Test
+   public void testStaleWhenFileChanges() throws IOException {
+      File dir = writeDataset();
+      createFile(dir, "b_MMStack.ome.tif", 300);
+      Assert.assertNull(IndexSidecar.read(dir, dir.listFiles()));
+   }
+
+   @Test
+   public void testStaleWhenFileAdded() throws IOException {
+      File dir = writeDataset();
+      createFile(dir, "c_MMStack.ome.tif", 10);
+      Assert.assertNull(IndexSidecar.read(dir, dir.listFiles()));
+      // Files that are not part of the dataset don't matter
+      new File(dir, "c_MMStack.ome.tif").delete();
+      createFile(dir, "notes.txt", 10);
+      Assert.assertNotNull(IndexSidecar.read(dir, dir.listFiles()));
+   }
+}
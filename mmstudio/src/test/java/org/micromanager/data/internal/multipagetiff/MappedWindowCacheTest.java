@@ -0,0 +1,108 @@
+package org.micromanager.data.internal.multipagetiff;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedWindowCacheTest {
+   private static final int WINDOW = 4096;
+   private static final int FILE_SIZE = 5 * WINDOW;
+
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   private static byte expected(long position) {
+      return (byte) (position % 251);
+   }
+
+   private File makeFile() throws IOException {
+      byte[] contents = new byte[FILE_SIZE];
+      for (int i = 0; i < contents.length; i++) {
+         contents[i] = expected(i);
+      }
+      File file = folder.newFile("mapped.bin");
+      Files.write(file.toPath(), contents);
+      return file;
+   }
+
+   private static void assertRegion(ByteBuffer region, long offset, int length) {
+      Assert.assertEquals(0, region.position());
+      Assert.assertEquals(length, region.capacity());
+      for (int i = 0; i < length; i++) {
+         Assert.assertEquals(expected(offset + i), region.get(i));
+      }
+   }
+
+   @Test
+   public void testRegionSpanningWindowEnd() throws IOException {
+      File file = makeFile();
+      MappedWindowCache cache = new MappedWindowCache(WINDOW, 4 * WINDOW);
+      try (RandomAccessFile raFile = new RandomAccessFile(file, "r")) {
+         ByteBuffer region = cache.getRegion(file, raFile.getChannel(),
+               WINDOW - 100, 300, ByteOrder.LITTLE_ENDIAN);
+         assertRegion(region, WINDOW - 100, 300);
+         // The first window was extended rather than split
+         Assert.assertEquals(1, cache.getNumWindows());
+         Assert.assertEquals(WINDOW + 200, cache.getMappedBytes());
+
+         // Other regions starting in the extended window do not map anything new
+         assertRegion(cache.getRegion(file, raFile.getChannel(), WINDOW - 50, 250,
+               ByteOrder.LITTLE_ENDIAN), WINDOW - 50, 250);
+         Assert.assertEquals(1, cache.getNumWindows());
+         Assert.assertEquals(WINDOW + 200, cache.getMappedBytes());
+      }
+   }
+
+   @Test
+   public void testLeastRecentlyUsedWindowsAreEvicted() throws IOException {
+      File file = makeFile();
+      MappedWindowCache cache = new MappedWindowCache(WINDOW, 2 * WINDOW);
+      try (RandomAccessFile raFile = new RandomAccessFile(file, "r")) {
+         ByteBuffer first = cache.getRegion(file, raFile.getChannel(), 10, 20,
+               ByteOrder.LITTLE_ENDIAN);
+         cache.getRegion(file, raFile.getChannel(), WINDOW + 10, 20,
+               ByteOrder.LITTLE_ENDIAN);
+         // Touch the first window, so that the second is the eldest
+         cache.getRegion(file, raFile.getChannel(), 40, 20, ByteOrder.LITTLE_ENDIAN);
+         cache.getRegion(file, raFile.getChannel(), 2 * WINDOW + 10, 20,
+               ByteOrder.LITTLE_ENDIAN);
+         Assert.assertEquals(2, cache.getNumWindows());
+         Assert.assertEquals(2 * WINDOW, cache.getMappedBytes());
+
+         // Reading from the first window again maps nothing new
+         cache.getRegion(file, raFile.getChannel(), 100, 20, ByteOrder.LITTLE_ENDIAN);
+         Assert.assertEquals(2, cache.getNumWindows());
+         // Without an open channel, only windows still in the cache can be read
+         cache.getRegion(file, null, 2 * WINDOW + 100, 20, ByteOrder.LITTLE_ENDIAN);
+         try {
+            cache.getRegion(file, null, WINDOW + 100, 20, ByteOrder.LITTLE_ENDIAN);
+            Assert.fail("Evicted window was still cached");
+         } catch (IOException expected) {
+            // The second window was evicted
+         }
+
+         // Views handed out before remain valid after eviction
+         cache.evict(file);
+         Assert.assertEquals(0, cache.getNumWindows());
+         Assert.assertEquals(0, cache.getMappedBytes());
+         assertRegion(first, 10, 20);
+      }
+   }
+
+   @Test(expected = IOException.class)
+   public void testRegionBeyondEndOfFileThrows() throws IOException {
+      File file = makeFile();
+      MappedWindowCache cache = new MappedWindowCache(WINDOW, 4 * WINDOW);
+      try (RandomAccessFile raFile = new RandomAccessFile(file, "r")) {
+         cache.getRegion(file, raFile.getChannel(), FILE_SIZE - 10, 20,
+               ByteOrder.LITTLE_ENDIAN);
+      }
+   }
+}
@@ -0,0 +1,170 @@
+package org.micromanager.data.internal.multipagetiff;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.micromanager.PropertyMap;
+import org.micromanager.PropertyMaps;
+import org.micromanager.data.Coords;
+import org.micromanager.data.internal.DefaultCoords;
+import org.micromanager.data.internal.DefaultDatastore;
+import org.micromanager.data.internal.DefaultImage;
+import org.micromanager.data.internal.DefaultMetadata;
+import org.micromanager.data.internal.DefaultSummaryMetadata;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MultipageTiffReaderTest {
+   private static final int WIDTH = 16;
+   private static final int HEIGHT = 16;
+
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   private static Integer scan(String json) {
+      return MultipageTiffReader.scanTopLevelInteger(
+            json.getBytes(StandardCharsets.UTF_8), "BitDepth");
+   }
+
+   @Test
+   public void testScanTopLevelInteger() {
+      assertEquals(Integer.valueOf(12), scan("{\"BitDepth\":12}"));
+      assertEquals(Integer.valueOf(14), scan(
+            "{\"UserData\":{\"BitDepth\":3},\"Cam-BitDepth\":\"8\","
+                  + "\"Note\":\"\\\"BitDepth\\\":4\",\"List\":[{\"BitDepth\":5}],"
+                  + "\"BitDepth\" : 14}"));
+      assertNull(scan("{\"Camera\":\"BitDepth\"}"));
+      assertNull(scan("{\"BitDepth\":\"sixteen\"}"));
+      assertNull(scan("{\"Summary\":{\"BitDepth\":16}}"));
+   }
+
+   private static short[] pixels(int t) {
+      short[] result = new short[WIDTH * HEIGHT];
+      for (int i = 0; i < result.length; i++) {
+         result[i] = (short) (i * 3 + t);
+      }
+      return result;
+   }
+
+   private static PropertyMap scopeData(int t) {
+      return PropertyMaps.builder()
+            .putString("Camera-Exposure", "10")
+            .putString("Stage-Position", Integer.toString(t))
+            .build();
+   }
+
+   /**
+    * Writes a few planes with delta-encoded device properties, and returns
+    * the storage, reopened for reading.
+    */
+   private StorageMultipageTiff writeDeltaEncodedDataset(int numFrames)
+         throws IOException {
+      String dir = new File(folder.getRoot(), "delta").getPath();
+      StorageMultipageTiff.Options options = new StorageMultipageTiff.Options.Builder()
+            .deltaScopeData(true).separateMetadataFile(false).build();
+      StorageMultipageTiff storage = new StorageMultipageTiff(null,
+            new DefaultDatastore(null), dir, true, options);
+      storage.setSummaryMetadata(new DefaultSummaryMetadata.Builder()
+            .imageWidth(WIDTH).imageHeight(HEIGHT).channelNames("Default")
+            .axisOrder(Coords.P, Coords.T, Coords.Z, Coords.C).build());
+      for (int t = 0; t < numFrames; t++) {
+         storage.putImage(new DefaultImage(pixels(t), WIDTH, HEIGHT,
+               2, 1, new DefaultCoords.Builder().t(t).build(),
+               new DefaultMetadata.Builder().bitDepth(12).positionName("Pos0")
+                     .scopeData(scopeData(t)).build()));
+      }
+      storage.finished();
+      storage.close();
+      return new StorageMultipageTiff(null, new DefaultDatastore(null), dir,
+            false, options);
+   }
+
+   private static File onlyTiff(String dir) {
+      File[] files = new File(dir).listFiles((d, name) -> name.endsWith(".tif"));
+      assertNotNull(files);
+      assertEquals(1, files.length);
+      return files[0];
+   }
+
+   @Test
+   public void testDeferredMetadataAfterPause() throws Exception {
+      StorageMultipageTiff storage = writeDeltaEncodedDataset(3);
+      MultipageTiffReader reader = new MultipageTiffReader(storage,
+            onlyTiff(storage.getDiskLocation()), false);
+      // Plane 2 stores only its change to the keyframe (plane 0)
+      DefaultImage image = reader.readImage(new DefaultCoords.Builder().t(2).build());
+      assertNotNull(image);
+      assertFalse(image.isMetadataLoaded());
+      reader.pause();
+
+      assertEquals(scopeData(2), image.getMetadata().getScopeData());
+      assertEquals(Integer.valueOf(12), image.getMetadata().getBitDepth());
+      // The file is paused again, and can still be read
+      DefaultImage other = reader.readImage(new DefaultCoords.Builder().t(1).build());
+      assertEquals(scopeData(1), other.getMetadata().getScopeData());
+      reader.close();
+      storage.close();
+   }
+
+   @Test
+   public void testMemoryMappedRead() throws Exception {
+      StorageMultipageTiff storage = writeDeltaEncodedDataset(3);
+      MultipageTiffReader reader = new MultipageTiffReader(storage,
+            onlyTiff(storage.getDiskLocation()), true);
+      for (int t = 0; t < 3; t++) {
+         DefaultImage image = reader.readImage(new DefaultCoords.Builder().t(t).build());
+         assertArrayEquals(pixels(t), (short[]) image.getRawPixels());
+      }
+      assertTrue(reader.isMemoryMapped());
+      reader.close();
+      storage.close();
+   }
+
+   @Test
+   public void testFallbackWhenMappingFails() throws Exception {
+      StorageMultipageTiff storage = writeDeltaEncodedDataset(3);
+      MultipageTiffReader reader = new MultipageTiffReader(storage,
+            onlyTiff(storage.getDiskLocation()), true);
+      reader.setMappedWindowCache(new MappedWindowCache(
+            MappedWindowCache.WINDOW_SIZE, Long.MAX_VALUE) {
+         @Override
+         MappedByteBuffer map(FileChannel channel, long start, long size)
+               throws IOException {
+            throw new IOException("Map failed");
+         }
+      });
+      for (int t = 0; t < 3; t++) {
+         DefaultImage image = reader.readImage(new DefaultCoords.Builder().t(t).build());
+         assertNotNull(image);
+         assertArrayEquals(pixels(t), (short[]) image.getRawPixels());
+         assertEquals(scopeData(t), image.getMetadata().getScopeData());
+      }
+      assertFalse(reader.isMemoryMapped());
+      reader.close();
+      storage.close();
+   }
+
+   @Test(expected = UncheckedIOException.class)
+   public void testUnreadableDeferredMetadataThrows() throws Exception {
+      StorageMultipageTiff storage = writeDeltaEncodedDataset(2);
+      File file = onlyTiff(storage.getDiskLocation());
+      MultipageTiffReader reader = new MultipageTiffReader(storage, file, false);
+      DefaultImage image = reader.readImage(new DefaultCoords.Builder().t(1).build());
+      reader.pause();
+      storage.close();
+      // The keyframe can no longer be read
+      assertTrue(file.delete());
+      image.getMetadata();
+   }
+}
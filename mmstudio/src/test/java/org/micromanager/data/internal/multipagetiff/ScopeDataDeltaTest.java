@@ -0,0 +1,82 @@
+package org.micromanager.data.internal.multipagetiff;
+
+import com.google.gson.JsonObject;
+import org.junit.Test;
+import org.micromanager.PropertyMap;
+import org.micromanager.PropertyMaps;
+import org.micromanager.data.internal.PropertyKey;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ScopeDataDeltaTest {
+   private static PropertyMap scopeData(double z, boolean withShutter) {
+      PropertyMap.Builder builder = PropertyMaps.builder()
+            .putString("Camera-Binning", "1")
+            .putString("Camera-Exposure", "10.0")
+            .putString("Objective-Label", "10x")
+            .putString("Z-Position", Double.toString(z));
+      if (withShutter) {
+         builder.putString("Shutter-State", "1");
+      }
+      return builder.build();
+   }
+
+   private static PropertyMap metadata(PropertyMap scopeData) {
+      return PropertyMaps.builder()
+            .putString(PropertyKey.CAMERA.key(), "Camera")
+            .putPropertyMap(PropertyKey.SCOPE_DATA.key(), scopeData)
+            .build();
+   }
+
+   @Test
+   public void testDeltaRoundTrip() {
+      ScopeDataDelta encoder = new ScopeDataDelta();
+      PropertyMap first = metadata(scopeData(0.0, true));
+      JsonObject jo = new JsonObject();
+      assertSame(first, encoder.encode(first, 1000, jo));
+      assertEquals(-1, ScopeDataDelta.getKeyframeOffset(jo));
+
+      PropertyMap second = metadata(scopeData(1.5, false));
+      jo = new JsonObject();
+      PropertyMap stored = encoder.encode(second, 2000, jo);
+      assertFalse(stored.containsKey(PropertyKey.SCOPE_DATA.key()));
+      assertEquals("Camera", stored.getString(PropertyKey.CAMERA.key(), null));
+      assertEquals(1000, ScopeDataDelta.getKeyframeOffset(jo));
+
+      PropertyMap decoded = ScopeDataDelta.decode(jo, scopeData(0.0, true));
+      assertEquals(scopeData(1.5, false), decoded);
+      // The delta is consumed
+      assertTrue(jo.entrySet().isEmpty());
+   }
+
+   @Test
+   public void testKeyframes() {
+      ScopeDataDelta encoder = new ScopeDataDelta();
+      PropertyMap md = metadata(scopeData(0.0, true));
+      encoder.encode(md, 0, new JsonObject());
+      for (int i = 1; i <= ScopeDataDelta.KEYFRAME_INTERVAL; ++i) {
+         JsonObject jo = new JsonObject();
+         encoder.encode(md, i, jo);
+         assertEquals(0, ScopeDataDelta.getKeyframeOffset(jo));
+      }
+      JsonObject jo = new JsonObject();
+      encoder.encode(md, 500, jo);
+      assertEquals(-1, ScopeDataDelta.getKeyframeOffset(jo));
+
+      // Most properties changed: new keyframe
+      PropertyMap changed = metadata(PropertyMaps.builder()
+            .putString("Camera-Binning", "2")
+            .putString("Camera-Exposure", "20.0")
+            .putString("Objective-Label", "20x")
+            .build());
+      jo = new JsonObject();
+      encoder.encode(changed, 600, jo);
+      assertEquals(-1, ScopeDataDelta.getKeyframeOffset(jo));
+      jo = new JsonObject();
+      encoder.encode(changed, 700, jo);
+      assertEquals(600, ScopeDataDelta.getKeyframeOffset(jo));
+   }
+}
@@ -0,0 +1,84 @@
+package org.micromanager.data.internal.multipagetiff;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.micromanager.data.Coords;
+import org.micromanager.data.Image;
+import org.micromanager.data.internal.DefaultCoords;
+import org.micromanager.data.internal.DefaultDatastore;
+import org.micromanager.data.internal.DefaultImage;
+import org.micromanager.data.internal.DefaultMetadata;
+import org.micromanager.data.internal.DefaultSummaryMetadata;
+
+public class StorageMultipageTiffTest {
+   private static final int WIDTH = 64;
+   private static final int HEIGHT = 48;
+   private static final int NUM_FRAMES = 40;
+
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   private static Coords frame(int t) {
+      return new DefaultCoords.Builder().t(t).build();
+   }
+
+   private static short[] pixels(int t) {
+      short[] result = new short[WIDTH * HEIGHT];
+      for (int i = 0; i < result.length; i++) {
+         result[i] = (short) ((i % WIDTH) * 7 + (i / WIDTH) + t * 13);
+      }
+      return result;
+   }
+
+   private static Image image(int t) {
+      return new DefaultImage(pixels(t), WIDTH, HEIGHT, 2, 1, frame(t),
+            new DefaultMetadata.Builder().bitDepth(12).positionName("Pos0").build());
+   }
+
+   private String writeDataset(StorageMultipageTiff.Options options)
+         throws IOException {
+      String dir = new File(folder.getRoot(), "data").getPath();
+      StorageMultipageTiff storage = new StorageMultipageTiff(null,
+            new DefaultDatastore(null), dir, true, options);
+      storage.setSummaryMetadata(new DefaultSummaryMetadata.Builder()
+            .imageWidth(WIDTH).imageHeight(HEIGHT).channelNames("Default")
+            .axisOrder(Coords.P, Coords.T, Coords.Z, Coords.C).build());
+      for (int t = 0; t < NUM_FRAMES; t++) {
+         storage.putImage(image(t));
+         // Available while it is still waiting to be compressed and written
+         Image pending = storage.getImage(frame(t));
+         Assert.assertNotNull(pending);
+         Assert.assertArrayEquals(pixels(t), (short[]) pending.getRawPixels());
+      }
+      storage.finished();
+      Assert.assertEquals(0, storage.getCompressionQueueDepth());
+      for (int t = 0; t < NUM_FRAMES; t++) {
+         Assert.assertArrayEquals(pixels(t),
+               (short[]) storage.getImage(frame(t)).getRawPixels());
+      }
+      storage.close();
+      return dir;
+   }
+
+   @Test
+   public void testCompressedImagesReadBack() throws IOException {
+      StorageMultipageTiff.Options options = new StorageMultipageTiff.Options.Builder()
+            .compress(true).separateMetadataFile(false).build();
+      String dir = writeDataset(options);
+
+      StorageMultipageTiff reopened = new StorageMultipageTiff(null,
+            new DefaultDatastore(null), dir, false, options);
+      Assert.assertEquals(NUM_FRAMES, reopened.getNumImages());
+      for (int t = 0; t < NUM_FRAMES; t++) {
+         Image read = reopened.getImage(frame(t));
+         Assert.assertNotNull(read);
+         Assert.assertArrayEquals(pixels(t), (short[]) read.getRawPixels());
+         Assert.assertEquals(Integer.valueOf(12), read.getMetadata().getBitDepth());
+      }
+      reopened.close();
+   }
+}
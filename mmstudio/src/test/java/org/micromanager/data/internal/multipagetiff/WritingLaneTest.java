@@ -0,0 +1,83 @@
+package org.micromanager.data.internal.multipagetiff;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class WritingLaneTest {
+   private WritingLane lane_;
+
+   @After
+   public void tearDown() throws InterruptedException {
+      if (lane_ != null) {
+         lane_.shutdown();
+         Assert.assertTrue(lane_.awaitTermination(10, TimeUnit.SECONDS));
+      }
+   }
+
+   @Test
+   public void testTasksRunInSubmissionOrder() throws Exception {
+      lane_ = new WritingLane("WritingLaneTest", 4);
+      final List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+      for (int i = 0; i < 1000; i++) {
+         final int index = i;
+         lane_.execute(() -> order.add(index));
+      }
+      lane_.submit(() -> { }).get(10, TimeUnit.SECONDS);
+      Assert.assertEquals(1000, order.size());
+      for (int i = 0; i < 1000; i++) {
+         Assert.assertEquals(i, (int) order.get(i));
+      }
+      Assert.assertEquals(0, lane_.getQueueDepth());
+   }
+
+   @Test
+   public void testExecuteBlocksWhileLaneIsFull() throws Exception {
+      lane_ = new WritingLane("WritingLaneTest", 2);
+      final CountDownLatch release = new CountDownLatch(1);
+      final CountDownLatch started = new CountDownLatch(1);
+      lane_.execute(() -> {
+         started.countDown();
+         try {
+            release.await();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      });
+      Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+      lane_.execute(() -> { });
+      Assert.assertEquals(lane_.getCapacity(), lane_.getQueueDepth());
+      Assert.assertEquals(0, lane_.getBlockedCount());
+
+      final CountDownLatch queued = new CountDownLatch(1);
+      Thread producer = new Thread(() -> {
+         lane_.execute(() -> { });
+         queued.countDown();
+      });
+      producer.start();
+      Assert.assertFalse(queued.await(200, TimeUnit.MILLISECONDS));
+      Assert.assertEquals(1, lane_.getBlockedCount());
+
+      release.countDown();
+      Assert.assertTrue(queued.await(10, TimeUnit.SECONDS));
+      producer.join(10000);
+      lane_.submit(() -> { }).get(10, TimeUnit.SECONDS);
+      Assert.assertEquals(0, lane_.getQueueDepth());
+   }
+
+   @Test
+   public void testFailingTaskReleasesItsSlot() throws Exception {
+      lane_ = new WritingLane("WritingLaneTest", 1);
+      lane_.execute(() -> {
+         throw new IllegalStateException("expected by test");
+      });
+      // Would block forever if the failed task had kept the only slot
+      lane_.submit(() -> { }).get(10, TimeUnit.SECONDS);
+      Assert.assertEquals(0, lane_.getQueueDepth());
+   }
+}
@@ -0,0 +1,95 @@
+package org.micromanager.data.internal.pipeline;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Assert;
+import org.junit.Test;
+import org.micromanager.data.Image;
+import org.micromanager.data.Processor;
+import org.micromanager.data.ProcessorContext;
+import org.micromanager.data.internal.DefaultCoords;
+import org.micromanager.data.internal.DefaultImage;
+import org.micromanager.data.internal.DefaultMetadata;
+
+public class ParallelContextTest {
+   private static final int NUM_IMAGES = 4;
+
+   /**
+    * Next stage of the pipeline; records the time points it receives, with
+    * -1 standing for a flush.
+    */
+   private static final class RecordingSink extends BaseContext {
+      final List<Integer> received_ = Collections.synchronizedList(new ArrayList<>());
+
+      RecordingSink() {
+         super((Image image, ProcessorContext context) -> { }, null, null);
+      }
+
+      @Override
+      public void insertImage(ImageWrapper wrapper) {
+         Image image = wrapper.getImage();
+         received_.add(image == null ? -1 : image.getCoords().getT());
+      }
+   }
+
+   private static Image image(int t) {
+      return new DefaultImage(new byte[4], 2, 2, 1, 1,
+            new DefaultCoords.Builder().t(t).build(),
+            new DefaultMetadata.Builder().build());
+   }
+
+   @Test
+   public void testOutputIsInInputOrder() throws InterruptedException {
+      // The first image is held back until all the others have been
+      // processed, so the processor finishes them out of order
+      final CountDownLatch othersDone = new CountDownLatch(NUM_IMAGES - 1);
+      final List<Integer> processed = Collections.synchronizedList(new ArrayList<>());
+      // Runs on the workers; results are checked on the test thread
+      final AtomicBoolean heldBack = new AtomicBoolean(false);
+      Processor processor = (Image image, ProcessorContext context) -> {
+         int t = image.getCoords().getT();
+         if (t == 0) {
+            try {
+               heldBack.set(othersDone.await(10, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+            }
+         }
+         processed.add(t);
+         // Two outputs per input, which must stay together
+         context.outputImage(image);
+         context.outputImage(image.copyAtCoords(image.getCoords().copyBuilder()
+               .t(t + 100).build()));
+         if (t != 0) {
+            othersDone.countDown();
+         }
+      };
+
+      ParallelContext context = new ParallelContext(processor, null, null,
+            NUM_IMAGES, 0, NUM_IMAGES);
+      RecordingSink sink = new RecordingSink();
+      context.setSink(sink);
+      CountDownLatch flushed = new CountDownLatch(1);
+      context.setFlushLatch(flushed);
+      for (int t = 0; t < NUM_IMAGES; t++) {
+         context.insertImage(new ImageWrapper(image(t)));
+      }
+      context.insertImage(new ImageWrapper(null));
+      Assert.assertTrue(flushed.await(10, TimeUnit.SECONDS));
+
+      Assert.assertTrue(heldBack.get());
+      Assert.assertEquals(NUM_IMAGES, processed.size());
+      Assert.assertEquals(0, (int) processed.get(NUM_IMAGES - 1));
+      List<Integer> expected = new ArrayList<>();
+      for (int t = 0; t < NUM_IMAGES; t++) {
+         expected.add(t);
+         expected.add(t + 100);
+      }
+      expected.add(-1);
+      Assert.assertEquals(expected, sink.received_);
+   }
+}
@@ -0,0 +1,55 @@
+package org.micromanager.data.internal.pipeline;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StageQueueTest {
+
+   @Test
+   public void testImageLimit() throws InterruptedException {
+      StageQueue<Long> queue = new StageQueue<>(2, 0, (Long size) -> size);
+      Assert.assertTrue(queue.offer(10L));
+      Assert.assertTrue(queue.offer(10L));
+      Assert.assertFalse(queue.offer(10L));
+      Assert.assertEquals(2, queue.size());
+      Assert.assertEquals(20, queue.getBytes());
+      Assert.assertEquals(1, queue.getRefusedCount());
+      Assert.assertEquals(Long.valueOf(10L), queue.poll(0));
+      Assert.assertTrue(queue.offer(10L));
+      Assert.assertEquals(2, queue.getPeakSize());
+   }
+
+   @Test
+   public void testByteLimit() throws InterruptedException {
+      StageQueue<Long> queue = new StageQueue<>(100, 100, (Long size) -> size);
+      // An element larger than the limit is accepted by an empty queue
+      Assert.assertTrue(queue.offer(150L));
+      Assert.assertFalse(queue.offer(1L));
+      queue.poll(0);
+      Assert.assertTrue(queue.offer(60L));
+      Assert.assertTrue(queue.offer(40L));
+      Assert.assertFalse(queue.offer(1L));
+      Assert.assertEquals(100, queue.getBytes());
+   }
+
+   @Test
+   public void testPutWaitsForRoom() throws InterruptedException {
+      final StageQueue<Long> queue = new StageQueue<>(1, 0, (Long size) -> size);
+      queue.put(1L);
+      Thread consumer = new Thread(() -> {
+         try {
+            Thread.sleep(50);
+            queue.poll(1000);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      });
+      consumer.start();
+      queue.put(2L);
+      consumer.join();
+      Assert.assertEquals(1, queue.size());
+      Assert.assertTrue(queue.getBlockedNs() > 0);
+      Assert.assertEquals(Long.valueOf(2L), queue.poll(0));
+      Assert.assertNull(queue.poll(10));
+   }
+}
@@ -187,4 +187,36 @@ public class DataCoordsAnimationStateTest {
       Coords c = instance.advanceAnimationPosition(1.0);
       assertEquals(0, c.getAxes().size());
    }
+
+   @Test
+   public void testPeekUpcomingPositions() {
+      mockAxes_ = Arrays.asList(DefaultCoords.TIME_POINT, DefaultCoords.Z);
+      for (int t = 0; t < 3; ++t) {
+         for (int z = 0; z < 2; ++z) {
+            mockDataset_.put(new DefaultCoords.Builder().t(t).z(z).build(), Boolean.TRUE);
+         }
+      }
+      mockDataset_.put(new DefaultCoords.Builder().t(1).z(1).build(), Boolean.FALSE);
+      mockAnimatedAxes_ = new HashSet<String>(Arrays.asList(
+            DefaultCoords.TIME_POINT, DefaultCoords.Z));
+
+      DataCoordsAnimationState instance =
+            DataCoordsAnimationState.create(mockCoordsProvider_);
+      instance.setAnimationPosition(new DefaultCoords.Builder().t(0).z(1).build());
+
+      // Should skip the missing position and stop before wrapping around to
+      // the current one
+      List<Coords> upcoming = instance.peekUpcomingPositions(10);
+      assertEquals(Arrays.asList(
+            new DefaultCoords.Builder().t(1).z(0).build(),
+            new DefaultCoords.Builder().t(2).z(0).build(),
+            new DefaultCoords.Builder().t(2).z(1).build(),
+            new DefaultCoords.Builder().t(0).z(0).build()), upcoming);
+
+      // Peeking must not move the animation
+      Coords c = instance.getAnimationPosition();
+      assertEquals(0, c.getT());
+      assertEquals(1, c.getZ());
+      assertEquals(2, instance.peekUpcomingPositions(2).size());
+   }
 }
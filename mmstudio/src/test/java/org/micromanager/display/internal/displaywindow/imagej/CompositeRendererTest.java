@@ -0,0 +1,151 @@
+package org.micromanager.display.internal.displaywindow.imagej;
+
+import ij.CompositeImage;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.LUT;
+import java.awt.image.BufferedImage;
+import java.awt.image.PixelGrabber;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CompositeRendererTest {
+   private static LUT makeLUT(int redMask, int greenMask, int blueMask,
+                              double min, double max) {
+      byte[] r = new byte[256];
+      byte[] g = new byte[256];
+      byte[] b = new byte[256];
+      for (int i = 0; i < 256; ++i) {
+         r[i] = (byte) (i & redMask);
+         g[i] = (byte) (i & greenMask);
+         b[i] = (byte) (i & blueMask);
+      }
+      LUT lut = new LUT(r, g, b);
+      lut.min = min;
+      lut.max = max;
+      return lut;
+   }
+
+   /**
+    * Renders the channels with ImageJ's CompositeImage in composite mode.
+    * Channels with null pixels are shown as inactive.
+    */
+   private static int[] renderWithImageJ(Object[] pixels, LUT[] luts,
+                                         int width, int height) {
+      ImageStack stack = new ImageStack(width, height);
+      StringBuilder active = new StringBuilder();
+      for (Object p : pixels) {
+         Object blank = p instanceof short[] || pixels[0] instanceof short[]
+               ? new short[width * height] : new byte[width * height];
+         stack.addSlice("", p == null ? blank : p);
+         active.append(p == null ? '0' : '1');
+      }
+      ImagePlus plus = new ImagePlus("", stack);
+      plus.setDimensions(pixels.length, 1, 1);
+      CompositeImage composite = new CompositeImage(plus, CompositeImage.COMPOSITE);
+      composite.setLuts(luts);
+      for (int c = 0; c < luts.length; ++c) {
+         composite.setC(c + 1);
+         composite.setDisplayRange(luts[c].min, luts[c].max);
+      }
+      composite.setActiveChannels(active.toString());
+      composite.updateImage();
+      int[] rgb = new int[width * height];
+      PixelGrabber grabber = new PixelGrabber(composite.getImage(), 0, 0,
+            width, height, rgb, 0, width);
+      try {
+         grabber.grabPixels();
+      } catch (InterruptedException e) {
+         throw new RuntimeException(e);
+      }
+      return rgb;
+   }
+
+   private static void assertMatchesImageJ(Object[] pixels, LUT[] luts,
+                                           int width, int height) {
+      int[] expected = renderWithImageJ(pixels, luts, width, height);
+      BufferedImage image = CompositeRenderer.create().render(
+            pixels, luts, width, height);
+      for (int i = 0; i < expected.length; ++i) {
+         assertEquals("pixel " + i, expected[i] & 0xffffff,
+               image.getRGB(i % width, i / width) & 0xffffff);
+      }
+   }
+
+   @Test
+   public void testShortChannelsMatchImageJ() {
+      Random random = new Random(17);
+      short[] red = new short[64 * 64];
+      short[] yellow = new short[64 * 64];
+      for (int i = 0; i < red.length; ++i) {
+         red[i] = (short) random.nextInt(4096);
+         yellow[i] = (short) random.nextInt(65536);
+      }
+      assertMatchesImageJ(new Object[] {red, yellow}, new LUT[] {
+            makeLUT(0xff, 0, 0, 100.0, 1023.0),
+            makeLUT(0xff, 0xff, 0, 0.0, 65535.0)}, 64, 64);
+      assertMatchesImageJ(new Object[] {red, null}, new LUT[] {
+            makeLUT(0xff, 0, 0, 10.6, 3000.2),
+            makeLUT(0xff, 0xff, 0, 0.0, 4095.0)}, 64, 64);
+   }
+
+   @Test
+   public void testByteChannelsMatchImageJ() {
+      byte[] ramp = new byte[256];
+      byte[] reversed = new byte[256];
+      for (int i = 0; i < 256; ++i) {
+         ramp[i] = (byte) i;
+         reversed[i] = (byte) (255 - i);
+      }
+      assertMatchesImageJ(new Object[] {ramp, reversed}, new LUT[] {
+            makeLUT(0, 0, 0xff, 0.0, 127.0),
+            makeLUT(0, 0xff, 0, 10.0, 200.0)}, 16, 16);
+      assertMatchesImageJ(new Object[] {ramp, reversed}, new LUT[] {
+            makeLUT(0xff, 0, 0xff, 3.0, 5.0),
+            makeLUT(0, 0xff, 0, 2.6, 100.4)}, 16, 16);
+   }
+
+   @Test
+   public void testTablesFollowDisplayRange() {
+      byte[] pixels = {0, 64, (byte) 128, (byte) 255};
+      CompositeRenderer renderer = CompositeRenderer.create();
+      LUT[] luts = {makeLUT(0, 0, 0xff, 0.0, 255.0), makeLUT(0, 0, 0, 0.0, 255.0)};
+      BufferedImage image = renderer.render(
+            new Object[] {pixels, pixels}, luts, 4, 1);
+      assertEquals(64, image.getRGB(1, 0) & 0xff);
+
+      // ImageJ: 256 * 64 / 127, rounded down
+      luts[0] = makeLUT(0, 0, 0xff, 0.0, 127.0);
+      image = renderer.render(new Object[] {pixels, pixels}, luts, 4, 1);
+      assertEquals(129, image.getRGB(1, 0) & 0xff);
+      assertEquals(255, image.getRGB(2, 0) & 0xff);
+   }
+
+   @Test
+   public void testUnsupportedPixels() {
+      LUT[] luts = {makeLUT(0xff, 0, 0, 0.0, 255.0), makeLUT(0, 0xff, 0, 0.0, 255.0)};
+      CompositeRenderer renderer = CompositeRenderer.create();
+      assertNull(renderer.render(
+            new Object[] {new byte[4], new short[4]}, luts, 2, 2));
+      assertNull(renderer.render(
+            new Object[] {new float[4], new float[4]}, luts, 2, 2));
+      assertNull(renderer.render(
+            new Object[] {new byte[3], new byte[3]}, luts, 2, 2));
+   }
+
+   @Test
+   public void testRangesLeftToImageJ() {
+      CompositeRenderer renderer = CompositeRenderer.create();
+      // Inverted range
+      assertNull(renderer.render(new Object[] {new byte[4], new byte[4]},
+            new LUT[] {makeLUT(0xff, 0, 0, 200.0, 100.0),
+                  makeLUT(0, 0xff, 0, 0.0, 255.0)}, 2, 2));
+      // ShortProcessor uses the range of the pixels instead
+      assertNull(renderer.render(new Object[] {new short[4], new short[4]},
+            new LUT[] {makeLUT(0xff, 0, 0, 0.0, 0.0),
+                  makeLUT(0, 0xff, 0, 0.0, 255.0)}, 2, 2));
+   }
+}
@@ -0,0 +1,193 @@
+package org.micromanager.display.internal.imagestats;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StatsAccumulatorTest {
+   private static final int WIDTH = 37;
+   private static final int HEIGHT = 23;
+
+   private static short[] randomShorts(int n, int bitDepth) {
+      Random random = new Random(42);
+      short[] pixels = new short[n];
+      for (int i = 0; i < n; ++i) {
+         // Include some zeros and some values above the bit depth
+         pixels[i] = (short) (i % 17 == 0 ? 0 : random.nextInt(1 << (bitDepth + 1)));
+      }
+      return pixels;
+   }
+
+   /**
+    * Straightforward computation of the expected histogram (bin count 2^8).
+    */
+   private static long[] expectedHistogram(short[] pixels, int nComponents,
+                                           int component, int bitDepth,
+                                           Rectangle rect, byte[] mask) {
+      long[] histogram = new long[258];
+      for (int y = rect.y; y < rect.y + rect.height; ++y) {
+         for (int x = rect.x; x < rect.x + rect.width; ++x) {
+            if (mask != null && (mask[y * WIDTH + x] & 0xff) < 128) {
+               continue;
+            }
+            int v = pixels[(y * WIDTH + x) * nComponents + component] & 0xffff;
+            if (v > (1 << bitDepth) - 1) {
+               histogram[257]++;
+            } else {
+               histogram[(v >> (bitDepth - 8)) + 1]++;
+            }
+         }
+      }
+      return histogram;
+   }
+
+   @Test
+   public void testWholeImage() {
+      short[] pixels = randomShorts(WIDTH * HEIGHT, 12);
+      StatsAccumulator accumulator = new StatsAccumulator();
+      accumulator.reset(1, 12, 8);
+      Rectangle all = new Rectangle(0, 0, WIDTH, HEIGHT);
+      accumulator.addRect(pixels, WIDTH, all);
+      IntegerComponentStats stats = accumulator.toComponentStats(false)[0];
+
+      long sum = 0;
+      long nonZero = 0;
+      int max = 0;
+      for (short p : pixels) {
+         int v = p & 0xffff;
+         sum += v;
+         nonZero += v != 0 ? 1 : 0;
+         max = Math.max(max, v);
+      }
+      assertEquals(WIDTH * HEIGHT, stats.getPixelCount());
+      assertEquals(nonZero, stats.getPixelCountExcludingZeros());
+      assertEquals(0, stats.getMinIntensity());
+      assertEquals(max, stats.getMaxIntensity());
+      assertEquals(Math.round((double) sum / (WIDTH * HEIGHT)), stats.getMeanIntensity());
+      assertEquals(16, stats.getHistogramBinWidth());
+      long[] expected = expectedHistogram(pixels, 1, 0, 12, all, null);
+      assertArrayEquals(Arrays.copyOfRange(expected, 1, 257),
+            stats.getInRangeHistogram());
+   }
+
+   @Test
+   public void testRectAndMaskWithComponents() {
+      int nComponents = 3;
+      short[] pixels = randomShorts(WIDTH * HEIGHT * nComponents, 10);
+      Rectangle rect = new Rectangle(5, 3, 20, 11);
+      byte[] mask = new byte[WIDTH * HEIGHT];
+      for (int i = 0; i < mask.length; ++i) {
+         mask[i] = (byte) (i % 3 == 0 ? 255 : 0);
+      }
+      Rectangle maskBounds = new Rectangle(0, 0, WIDTH, HEIGHT);
+
+      StatsAccumulator accumulator = new StatsAccumulator();
+      // Reuse after a differently shaped image
+      accumulator.reset(1, 16, 8);
+      accumulator.addRect(pixels, WIDTH, new Rectangle(0, 0, WIDTH, HEIGHT));
+
+      accumulator.reset(nComponents, 10, 8);
+      accumulator.addRect(pixels, WIDTH, rect);
+      IntegerComponentStats[] rectStats = accumulator.toComponentStats(true);
+      accumulator.reset(nComponents, 10, 8);
+      accumulator.addMasked(pixels, WIDTH, rect, mask, maskBounds);
+      IntegerComponentStats[] maskedStats = accumulator.toComponentStats(true);
+
+      for (int c = 0; c < nComponents; ++c) {
+         assertEquals(rect.width * rect.height, rectStats[c].getPixelCount());
+         long[] expected = expectedHistogram(pixels, nComponents, c, 10, rect, null);
+         assertArrayEquals(Arrays.copyOfRange(expected, 1, 257),
+               rectStats[c].getInRangeHistogram());
+         expected = expectedHistogram(pixels, nComponents, c, 10, rect, mask);
+         assertArrayEquals(Arrays.copyOfRange(expected, 1, 257),
+               maskedStats[c].getInRangeHistogram());
+         long count = 0;
+         for (long n : expected) {
+            count += n;
+         }
+         assertEquals(count, maskedStats[c].getPixelCount());
+      }
+   }
+
+   @Test
+   public void testMergeOfBands() {
+      int nComponents = 2;
+      short[] pixels = randomShorts(WIDTH * HEIGHT * nComponents, 12);
+      Rectangle rect = new Rectangle(3, 2, 30, 19);
+
+      StatsAccumulator whole = new StatsAccumulator();
+      whole.reset(nComponents, 12, 8);
+      whole.addRect(pixels, WIDTH, rect);
+      IntegerComponentStats[] expected = whole.toComponentStats(true);
+
+      StatsAccumulator total = new StatsAccumulator();
+      total.reset(nComponents, 12, 8);
+      StatsAccumulator band = new StatsAccumulator();
+      for (int y = rect.y; y < rect.y + rect.height; y += 5) {
+         int height = Math.min(5, rect.y + rect.height - y);
+         band.reset(nComponents, 12, 8);
+         band.addRect(pixels, WIDTH, new Rectangle(rect.x, y, rect.width, height));
+         total.merge(band);
+      }
+      IntegerComponentStats[] merged = total.toComponentStats(true);
+
+      for (int c = 0; c < nComponents; ++c) {
+         assertEquals(expected[c].getPixelCount(), merged[c].getPixelCount());
+         assertEquals(expected[c].getPixelCountExcludingZeros(),
+               merged[c].getPixelCountExcludingZeros());
+         assertEquals(expected[c].getMinIntensity(), merged[c].getMinIntensity());
+         assertEquals(expected[c].getMaxIntensity(), merged[c].getMaxIntensity());
+         assertEquals(expected[c].getMeanIntensity(), merged[c].getMeanIntensity());
+         assertEquals(expected[c].getSumOfSquares(), merged[c].getSumOfSquares());
+         assertArrayEquals(expected[c].getInRangeHistogram(),
+               merged[c].getInRangeHistogram());
+      }
+   }
+
+   @Test
+   public void testSampled() {
+      short[] pixels = randomShorts(WIDTH * HEIGHT, 12);
+      Rectangle rect = new Rectangle(2, 1, 31, 20);
+      StatsAccumulator accumulator = new StatsAccumulator();
+      accumulator.reset(1, 12, 8);
+      accumulator.addRect(pixels, WIDTH, rect);
+      IntegerComponentStats exact = accumulator.toComponentStats(false)[0];
+
+      // A stride of 1 samples every pixel
+      accumulator.reset(1, 12, 8);
+      accumulator.addSampled(pixels, WIDTH, rect, 1, 0, 0);
+      IntegerComponentStats all = accumulator.toComponentStats(false)[0];
+      assertEquals(exact.getPixelCount(), all.getPixelCount());
+      assertArrayEquals(exact.getInRangeHistogram(), all.getInRangeHistogram());
+
+      // Columns 3, 7, ..., 31 and rows 2, 6, ..., 18 of the rectangle
+      accumulator.reset(1, 12, 8);
+      accumulator.addSampled(pixels, WIDTH, rect, 4, 1, 1);
+      IntegerComponentStats sampled = accumulator.toComponentStats(false)[0];
+      assertEquals(8 * 5, sampled.getPixelCount());
+      int max = 0;
+      for (int y = 2; y < 21; y += 4) {
+         for (int x = 3; x < 33; x += 4) {
+            max = Math.max(max, pixels[y * WIDTH + x] & 0xffff);
+         }
+      }
+      assertEquals(max, sampled.getMaxIntensity());
+   }
+
+   @Test
+   public void testMaskSetWithin() {
+      byte[] mask = new byte[10 * 10];
+      mask[5 * 10 + 5] = (byte) 200;
+      Rectangle maskBounds = new Rectangle(2, 2, 10, 10);
+      assertTrue(StatsAccumulator.isMaskSetWithin(mask, maskBounds,
+            new Rectangle(7, 7, 1, 1)));
+      assertFalse(StatsAccumulator.isMaskSetWithin(mask, maskBounds,
+            new Rectangle(2, 2, 5, 5)));
+   }
+}
@@ -0,0 +1,128 @@
+package org.micromanager.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class DeviceStateCacheTest {
+   // Stands in for the hardware; counts the reads that reach it
+   private final Map<String, Double> positions_ = new HashMap<>();
+   private final Map<String, String> configs_ = new HashMap<>();
+   private int reads_;
+   private DeviceStateCache cache_;
+
+   @Before
+   public void setUp() {
+      positions_.put("Z", 1.0);
+      positions_.put("XY.x", 10.0);
+      positions_.put("XY.y", 20.0);
+      configs_.put("Channel", "DAPI");
+      reads_ = 0;
+      cache_ = new DeviceStateCache(null) {
+         @Override
+         String readFocusDevice() {
+            return "Z";
+         }
+
+         @Override
+         double readPosition(String stage) {
+            reads_++;
+            return positions_.get(stage);
+         }
+
+         @Override
+         double[] readXYPosition(String xyStage) {
+            reads_++;
+            return new double[] {positions_.get(xyStage + ".x"),
+                  positions_.get(xyStage + ".y")};
+         }
+
+         @Override
+         String readCurrentConfig(String group) {
+            reads_++;
+            return configs_.get(group);
+         }
+      };
+   }
+
+   @Test
+   public void testPositionsOnlyFromCallbacks() throws Exception {
+      // No callback yet: always read, never stored
+      assertEquals(1.0, cache_.getPosition(), 0.0);
+      positions_.put("Z", 2.0);
+      assertEquals(2.0, cache_.getPosition(), 0.0);
+      assertEquals(2, reads_);
+
+      cache_.onStagePositionChanged("Z", 3.0);
+      assertEquals(3.0, cache_.getPosition("Z"), 0.0);
+      cache_.onXYStagePositionChanged("XY", 11.0, 21.0);
+      assertArrayEquals(new double[] {11.0, 21.0}, cache_.getXYPosition("XY"), 0.0);
+      assertEquals(2, reads_);
+      assertEquals(2, cache_.getHitCount());
+      assertEquals(2, cache_.getCoreCallCount());
+   }
+
+   @Test
+   public void testPropertyChangeDropsDevicePositionAndConfigs() throws Exception {
+      cache_.onStagePositionChanged("Z", 3.0);
+      cache_.onXYStagePositionChanged("XY", 11.0, 21.0);
+      assertEquals("DAPI", cache_.getCurrentConfig("Channel"));
+      assertEquals("DAPI", cache_.getCurrentConfig("Channel"));
+      assertEquals(1, reads_);
+
+      // e.g. the stage origin was set
+      cache_.onPropertyChanged("Z");
+      configs_.put("Channel", "FITC");
+      assertEquals(1.0, cache_.getPosition("Z"), 0.0);
+      assertArrayEquals(new double[] {11.0, 21.0}, cache_.getXYPosition("XY"), 0.0);
+      assertEquals("FITC", cache_.getCurrentConfig("Channel"));
+      assertEquals(3, reads_);
+
+      cache_.onConfigGroupChanged("Channel", "Cy5");
+      assertEquals("Cy5", cache_.getCurrentConfig("Channel"));
+      assertEquals(3, reads_);
+   }
+
+   @Test
+   public void testPropertiesChangedAndConfigurationLoadedDropEverything()
+         throws Exception {
+      cache_.onStagePositionChanged("Z", 3.0);
+      cache_.onXYStagePositionChanged("XY", 11.0, 21.0);
+      cache_.onConfigGroupChanged("Channel", "Cy5");
+      cache_.onPropertiesChanged();
+      assertEquals(1.0, cache_.getPosition("Z"), 0.0);
+      assertArrayEquals(new double[] {10.0, 20.0}, cache_.getXYPosition("XY"), 0.0);
+      assertEquals("DAPI", cache_.getCurrentConfig("Channel"));
+      assertEquals(3, reads_);
+
+      cache_.onStagePositionChanged("Z", 3.0);
+      cache_.onXYStagePositionChanged("XY", 11.0, 21.0);
+      cache_.onSystemConfigurationLoaded();
+      assertEquals(1.0, cache_.getPosition("Z"), 0.0);
+      assertArrayEquals(new double[] {10.0, 20.0}, cache_.getXYPosition("XY"), 0.0);
+      assertEquals("DAPI", cache_.getCurrentConfig("Channel"));
+      assertEquals(6, reads_);
+      assertEquals(0, cache_.getHitCount());
+      assertEquals(6, cache_.getCoreCallCount());
+   }
+
+   @Test
+   public void testConfigReadRacingWithChangeIsNotStored() throws Exception {
+      DeviceStateCache cache = new DeviceStateCache(null) {
+         @Override
+         String readCurrentConfig(String group) {
+            reads_++;
+            // A property changes while the state is being read
+            onPropertyChanged("Filter");
+            return "DAPI";
+         }
+      };
+      assertEquals("DAPI", cache.getCurrentConfig("Channel"));
+      assertEquals("DAPI", cache.getCurrentConfig("Channel"));
+      assertEquals(2, reads_);
+   }
+}
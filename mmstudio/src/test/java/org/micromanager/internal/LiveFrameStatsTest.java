@@ -0,0 +1,45 @@
+package org.micromanager.internal;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LiveFrameStatsTest {
+   @Test
+   public void testFramesCountedFromImageNumbers() {
+      LiveFrameStats stats = new LiveFrameStats();
+      stats.frameAcquired(0, 10L);
+      stats.frameAcquired(0, 10L); // Retrieved again
+      stats.frameAcquired(0, 14L);
+      stats.frameAcquired(1, 3L);
+      assertEquals(6, stats.getFramesAcquired());
+
+      // Sequence buffer reset
+      stats.frameAcquired(0, 0L);
+      assertEquals(7, stats.getFramesAcquired());
+
+      stats.frameAcquired(0, null);
+      assertEquals(8, stats.getFramesAcquired());
+   }
+
+   @Test
+   public void testDisplayedFramesCountedOnce() {
+      LiveFrameStats stats = new LiveFrameStats();
+      stats.frameAcquired(0, 1L);
+      stats.frameAcquired(0, 5L);
+      assertTrue(stats.frameDisplayed(0, "a", 20.0));
+      assertFalse(stats.frameDisplayed(0, "a", 30.0));
+      assertTrue(stats.frameDisplayed(0, "b", 40.0));
+      assertEquals(2, stats.getFramesDisplayed());
+      assertEquals(3, stats.getFramesDropped());
+      assertTrue(stats.getLatencyMs() > 20.0);
+      assertTrue(stats.getLatencyMs() <= 40.0);
+
+      stats.reset();
+      assertEquals(0, stats.getFramesDisplayed());
+      assertEquals(-1.0, stats.getLatencyMs(), 0.0);
+      assertEquals("", stats.getSummary());
+   }
+}
@@ -0,0 +1,93 @@
+package org.micromanager.internal.propertymap;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.UUID;
+import org.junit.Test;
+import org.micromanager.PropertyMap;
+import org.micromanager.PropertyMaps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PropertyMapBinarySerializerTest {
+   @Test
+   public void testRoundTrip() throws Exception {
+      PropertyMap inner = PropertyMaps.builder()
+            .putString("Bar", "baz")
+            .putShort("hi", (short) -100)
+            .putByte("ho", (byte) 50)
+            .putBoolean("flag", true)
+            .putLong("looong", 2L * Integer.MIN_VALUE)
+            .putDoubleList("numerical", 1.2, 3.4, 5.6, 7.8)
+            .putBooleanList("alternative truth", false, true, false)
+            .putByteList("crlf", (byte) 0x0d, (byte) 0x0a)
+            .putShortList("14-bit", (short) 0, (short) 16384)
+            .putIntegerList("voltage", +15, -15)
+            .putLongList("64-bit signed", Long.MIN_VALUE, Long.MAX_VALUE)
+            .putFloatList("gray", 0.5f, 0.5f, 0.5f)
+            .putPropertyMapList("empty pair", Arrays.asList(
+                  PropertyMaps.emptyPropertyMap(), PropertyMaps.emptyPropertyMap()))
+            .build();
+      PropertyMap pm = PropertyMaps.builder()
+            .putString("Foo", "foo")
+            .putStringList("FooBar", "foo", "bar", "Bar")
+            .putInteger("answer", 42)
+            .putFloat("n", 1.2f)
+            .putString("unicode", "\u00B5m")
+            .putColor("Red", new Color(255, 0, 0, 128))
+            .putColorList("Tree", Color.RED, Color.BLACK)
+            .putAffineTransform("Rotate", AffineTransform.getRotateInstance(1.0))
+            .putAffineTransformList("ShearAndTranslate",
+                  AffineTransform.getShearInstance(0.5, 0.5),
+                  AffineTransform.getTranslateInstance(20.0, 15.3))
+            .putDouble("posinf", Double.POSITIVE_INFINITY)
+            .putFloat("nan", Float.NaN)
+            .putPropertyMap("nested", inner)
+            .putRectangle("bounds", new Rectangle(-10, 20, 480, 320))
+            .putDimension("size", new Dimension(480, 320))
+            .putPointList("line", new Point(10, 20), new Point(470, 300))
+            .putUUID("uuid", UUID.randomUUID())
+            .putUUIDList("uuids", UUID.randomUUID(), UUID.randomUUID())
+            .build();
+      byte[] bytes = PropertyMapBinarySerializer.toBytes(pm);
+      assertEquals(pm, PropertyMapBinarySerializer.fromBytes(bytes));
+   }
+
+   @Test
+   public void testDictionaryAndInterning() throws Exception {
+      PropertyMap.Builder scopeData = PropertyMaps.builder();
+      for (int i = 0; i < 20; ++i) {
+         scopeData.putString("Device-Property" + i, "Off");
+      }
+      PropertyMap pm = PropertyMaps.builder()
+            .putString("Camera", "Camera")
+            .putPropertyMap("ScopeData", scopeData.build())
+            .build();
+      PropertyMapBinarySerializer.KeyDictionary dictionary =
+            PropertyMapBinarySerializer.KeyDictionary.of("Camera", "ScopeData");
+
+      byte[] plain = PropertyMapBinarySerializer.toBytes(pm);
+      byte[] withDictionary = PropertyMapBinarySerializer.toBytes(pm, dictionary);
+      assertTrue(withDictionary.length < plain.length);
+      assertEquals(pm, PropertyMapBinarySerializer.fromBytes(withDictionary, dictionary));
+
+      try {
+         PropertyMapBinarySerializer.fromBytes(withDictionary);
+         fail();
+      } catch (IOException expected) {
+      }
+      try {
+         PropertyMapBinarySerializer.fromBytes(
+               Arrays.copyOf(plain, plain.length - 1));
+         fail();
+      } catch (IOException expected) {
+      }
+   }
+}
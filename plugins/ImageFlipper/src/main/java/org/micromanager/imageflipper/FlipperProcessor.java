@@ -98,6 +98,15 @@ public class FlipperProcessor implements Processor {
             transformImage(studio_, image, isMirrored_, rotation_));
    }
 
+   /**
+    * Each image is transformed on its own, so images can be processed in
+    * parallel.
+    */
+   @Override
+   public boolean isStateless() {
+      return true;
+   }
+
    /**
     * Executes image transformation.
     * First mirror the image if requested, than rotate as requested
@@ -45,7 +45,6 @@ import java.awt.event.WindowFocusListener;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.ShortBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -526,11 +525,11 @@ public class CVViewer implements DataViewer, ImageStatsPublisher {
             // add the contiguous memory as fragment:
             if (image != null) {
                if (image.getBytesPerPixel() == 1) {
-                  byte[] pixels = ((ByteBuffer) image.getPixelBuffer()).array();
+                  byte[] pixels = (byte[]) image.getRawPixels();
                   fragmentedMemory.add(ByteBuffer.allocateDirect(pixels.length).put(pixels));
                } else if (image.getBytesPerPixel() == 2) {
                   maxIntensity = 65535;
-                  short[] pixels = ((ShortBuffer) image.getPixelBuffer()).array();
+                  short[] pixels = (short[]) image.getRawPixels();
                   fragmentedMemory.add(ByteBuffer.allocateDirect(
                         2 * pixels.length).order(NATIVE_ORDER).asShortBuffer().put(pixels));
                }
@@ -16,20 +16,29 @@
 package org.micromanager.plugins.sequencebuffermonitor;
 
 import java.awt.Dimension;
+import java.awt.Font;
 import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.util.List;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JProgressBar;
+import javax.swing.JSpinner;
+import javax.swing.JTextArea;
 import javax.swing.JTextField;
+import javax.swing.SpinnerNumberModel;
 import javax.swing.Timer;
+import org.micromanager.data.internal.pipeline.DefaultPipeline;
+import org.micromanager.data.internal.pipeline.PipelineQueueSettings;
+import org.micromanager.data.internal.pipeline.StageStatistics;
 import org.micromanager.internal.utils.WindowPositioning;
 
 
 class SequenceBufferMonitorFrame extends JFrame {
    org.micromanager.Studio app_;
    JProgressBar usageBar_;
+   JTextArea pipelineText_;
    Timer timer_;
 
    int previousTotalCapacity_ = -1;
@@ -65,14 +74,37 @@ class SequenceBufferMonitorFrame extends JFrame {
          }
       });
 
+      pipelineText_ = new JTextArea(6, 60);
+      pipelineText_.setEditable(false);
+      pipelineText_.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 11));
+
+      // Capacity of the input queue of each processor, for pipelines
+      // created from now on
+      final JSpinner queueImages = new JSpinner(new SpinnerNumberModel(
+            PipelineQueueSettings.getQueueImages((Class<?>) null), 1, 10000, 1));
+      final JSpinner queueMegabytes = new JSpinner(new SpinnerNumberModel(
+            PipelineQueueSettings.getQueueMegabytes((Class<?>) null), 0, 100000, 64));
+      javax.swing.event.ChangeListener queueListener = e ->
+            PipelineQueueSettings.setQueueCapacity(null,
+                  (Integer) queueImages.getValue(), (Integer) queueMegabytes.getValue());
+      queueImages.addChangeListener(queueListener);
+      queueMegabytes.addChangeListener(queueListener);
+
       setLayout(new net.miginfocom.swing.MigLayout(
             "insets dialog",
             "[grow, fill]",
-            "[]related[]"));
+            "[]related[]unrelated[]related[]related[]"));
       add(usageBar_, "wrap");
       add(new JLabel("Update Interval:"), "split 3, gapleft push");
       add(intervalField);
-      add(new JLabel("ms"));
+      add(new JLabel("ms"), "wrap");
+      add(new JLabel("Processing pipelines:"), "wrap");
+      add(pipelineText_, "wrap");
+      add(new JLabel("Queue per processor (new pipelines):"), "split 5");
+      add(queueImages);
+      add(new JLabel("images,"));
+      add(queueMegabytes);
+      add(new JLabel("MB (0 = no limit)"));
 
       Dimension size = usageBar_.getPreferredSize();
       usageBar_.setPreferredSize(new Dimension(2 * size.width, size.height));
@@ -97,6 +129,7 @@ class SequenceBufferMonitorFrame extends JFrame {
    }
 
    private void update() {
+      updatePipelines();
       mmcorej.CMMCore core = app_.getCMMCore();
       if (core == null) {
          usageBar_.setValue(0);
@@ -118,6 +151,31 @@ class SequenceBufferMonitorFrame extends JFrame {
             + Integer.toString((int) Math.round(percentage)) + "%)");
    }
 
+   private void updatePipelines() {
+      List<DefaultPipeline> pipelines = DefaultPipeline.getActivePipelines();
+      if (pipelines.isEmpty()) {
+         pipelineText_.setText("No asynchronous pipeline running");
+         return;
+      }
+      StringBuilder text = new StringBuilder();
+      for (DefaultPipeline pipeline : pipelines) {
+         if (text.length() > 0) {
+            text.append("\n");
+         }
+         text.append(pipeline.getDatastore().getName()).append(":");
+         for (StageStatistics stage : pipeline.getStageStatistics()) {
+            text.append(String.format("%n  %s: queue %d/%d (peak %d), %d MB, "
+                        + "latency %.1f ms, %.1f images/s, blocked %.0f ms, refused %d",
+                  stage.getProcessorName(), stage.getQueueSize(),
+                  stage.getQueueCapacity(), stage.getPeakQueueSize(),
+                  stage.getQueueBytes() / (1024 * 1024), stage.getMeanLatencyMs(),
+                  stage.getImagesPerSecond(), stage.getBlockedTimeMs(),
+                  stage.getRefusedCount()));
+         }
+      }
+      pipelineText_.setText(text.toString());
+   }
+
    void start() {
       if (timer_ != null) {
          return;
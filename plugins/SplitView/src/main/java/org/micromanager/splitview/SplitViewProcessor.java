@@ -128,4 +128,13 @@ public class SplitViewProcessor implements Processor {
          context.outputImage(output);
       }
    }
+
+   /**
+    * Each image is split on its own, so images can be processed in
+    * parallel.
+    */
+   @Override
+   public boolean isStateless() {
+      return true;
+   }
 }